@@ -0,0 +1,245 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+/**
+ * Registers and unregisters many ports at once, keeping up to a given
+ * number of requests outstanding rather than waiting for each response
+ * before sending the next request, as a host does at startup for the
+ * thousands of ports of its services. The requests go through the request
+ * engine, which sends them again when their responses do not come; the
+ * report tells how long the whole batch took, the percentiles of the time
+ * each request took, and how many were sent again or failed.
+ *
+ * The engine has at most 256 requests expecting the same response type
+ * outstanding, so allowing more than 256 in flight only helps a batch of
+ * both registrations and unregistrations.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class BulkRegistrar {
+	private RequestEngine engine;
+	private int maxInFlight;
+	private byte[] ip;
+	private List<Op> ops = new ArrayList<Op>();
+
+	/**
+	 * Constructs a new BulkRegistrar for the ports of the local host.
+	 *
+	 * @param engine engine to send the requests through
+	 * @param maxInFlight most requests to have outstanding at once
+	 * @throws UnknownHostException if the local host's IP is unknown
+	 * @throws IllegalArgumentException if maxInFlight is not positive
+	 */
+	public BulkRegistrar(RequestEngine engine, int maxInFlight) throws UnknownHostException {
+		if (maxInFlight <= 0)
+			throw new IllegalArgumentException("requests in flight must be positive");
+
+		this.engine = engine;
+		this.maxInFlight = maxInFlight;
+		ip = InetAddress.getLocalHost().getAddress();
+	}
+
+	/**
+	 * Adds the registration of a port to the batch.
+	 *
+	 * @param port port number
+	 * @param data service data
+	 * @param name service name
+	 * @return the registration, whose outcome is known once the batch ran
+	 * @throws IllegalArgumentException if the name is too long
+	 */
+	public Op register(int port, int data, String name) {
+		byte[] msg = new byte[RegistrationCodec.registerLen(name)];
+		RegistrationCodec.register(msg, 0, 0, ip, port, data, name);
+		Op op = new Op(true, port, msg);
+		ops.add(op);
+		return op;
+	}
+
+	/**
+	 * Adds the unregistration of a port to the batch.
+	 *
+	 * @param port port number
+	 * @return the unregistration, whose outcome is known once the batch ran
+	 */
+	public Op unregister(int port) {
+		byte[] msg = new byte[RegistrationCodec.UNREGISTER_LEN];
+		RegistrationCodec.unregister(msg, 0, 0, ip, port);
+		Op op = new Op(false, port, msg);
+		ops.add(op);
+		return op;
+	}
+
+	/**
+	 * Returns the registrations and unregistrations of the batch, in the
+	 * order they were added.
+	 *
+	 * @return the operations
+	 */
+	public List<Op> ops() {
+		return ops;
+	}
+
+	/**
+	 * Sends the whole batch, in the order it was added, and waits for all
+	 * of it to be done. An operation on a port whose earlier operation is
+	 * still outstanding waits for it, so the service sees the operations
+	 * on each port in order.
+	 *
+	 * @return how it went
+	 * @throws InterruptedException if interrupted meanwhile
+	 */
+	public Report run() throws InterruptedException {
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		Map<Integer, RequestEngine.Request> last = new HashMap<Integer, RequestEngine.Request>();
+		long start = System.nanoTime();
+		for (final Op op : ops) {
+			RequestEngine.Request prev = last.get(op.port);
+			if (prev != null) {
+				try {
+					prev.get();
+				} catch (ExecutionException e) {
+					// it failed; the report tells
+				}
+			}
+
+			inFlight.acquire();
+			op.request = engine.send(op.msg, op.register ?
+					RegistrationCodec.REGISTERED : RegistrationCodec.ACK);
+			op.request.whenComplete(new BiConsumer<byte[], Throwable>() {
+				@Override
+				public void accept(byte[] res, Throwable t) {
+					inFlight.release();
+				}
+			});
+			last.put(op.port, op.request);
+		}
+		inFlight.acquire(maxInFlight);
+		inFlight.release(maxInFlight);
+		return new Report(ops, System.nanoTime() - start);
+	}
+
+	/**
+	 * A registration or unregistration in a batch.
+	 */
+	public static class Op {
+		final boolean register;
+		final int port;
+		final byte[] msg;
+		RequestEngine.Request request;
+
+		/**
+		 * Constructs a new Op.
+		 *
+		 * @param register true for a registration, false for an unregistration
+		 * @param port port number
+		 * @param msg message to send
+		 */
+		Op(boolean register, int port, byte[] msg) {
+			this.register = register;
+			this.port = port;
+			this.msg = msg;
+		}
+
+		/**
+		 * Returns true if the service answered.
+		 *
+		 * @return true if the operation succeeded
+		 */
+		public boolean succeeded() {
+			return request != null && request.isDone() && !request.isCompletedExceptionally();
+		}
+
+		/**
+		 * Returns the life time the service gave a registration.
+		 *
+		 * @return the life time, or -1 if the operation is no registration
+		 * or did not succeed
+		 */
+		public int lifeTime() {
+			if (!register || !succeeded())
+				return -1;
+			return RegistrationAgent.getLifeTime(request.join());
+		}
+	}
+
+	/**
+	 * How a batch went.
+	 */
+	public static class Report {
+		private int numOps;
+		private int failed;
+		private int retried;
+		private long retries;
+		private long elapsed;  // in nanoseconds
+		private long[] latencies;  // of the operations that succeeded, sorted
+
+		/**
+		 * Constructs a new Report.
+		 *
+		 * @param ops operations of the batch, all done
+		 * @param elapsed nanoseconds the batch took
+		 */
+		Report(List<Op> ops, long elapsed) {
+			this.elapsed = elapsed;
+			numOps = ops.size();
+			latencies = new long[numOps];
+			int n = 0;
+			for (Op op : ops) {
+				int tries = op.request.tries();
+				if (tries > 1) {
+					retried++;
+					retries += tries - 1;
+				}
+				if (op.succeeded())
+					latencies[n++] = op.request.latency();
+				else
+					failed++;
+			}
+			latencies = Arrays.copyOf(latencies, n);
+			Arrays.sort(latencies);
+		}
+
+		/**
+		 * Returns the number of operations that got no response.
+		 *
+		 * @return number of failed operations
+		 */
+		public int failed() {
+			return failed;
+		}
+
+		/**
+		 * Returns the time a given share of the successful operations took
+		 * at most, from when the request was first sent to its response.
+		 *
+		 * @param p the share, from 0 to 1
+		 * @return the time in nanoseconds, or 0 if none succeeded
+		 */
+		public long percentile(double p) {
+			if (latencies.length == 0)
+				return 0;
+			int i = (int) Math.ceil(p * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(i, latencies.length - 1))];
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d requests in %.3f s (%.0f/s), %d failed%n" +
+								 "latency ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n" +
+								 "%d requests sent again, %d retries in all",
+								 numOps, elapsed / 1e9, numOps * 1e9 / Math.max(elapsed, 1), failed,
+								 percentile(0.5) / 1e6, percentile(0.9) / 1e6,
+								 percentile(0.99) / 1e6, percentile(1) / 1e6, retried, retries);
+		}
+	}
+}
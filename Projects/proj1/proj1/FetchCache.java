@@ -0,0 +1,256 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Keeps the responses to fetches by name prefix, so fetching a prefix
+ * fetched a moment ago needs no round trip to the service. A response is
+ * fresh for FRESH_TTL; after that it is still answered from the cache
+ * while a fetch in the background brings it up to date, until it is as
+ * old as the life time the service gives registrations, by when every
+ * registration it lists may have expired. The cache holds at most a given
+ * number of prefixes, dropping the least recently used.
+ *
+ * The entries of a fetch response carry no service names, so a response
+ * for a prefix cannot be narrowed down to a longer prefix, except when it
+ * is fresh and empty: nothing is registered under "foo" if nothing is
+ * under "fo".
+ * When the agent registers or unregisters a name itself, the responses
+ * for the prefixes of the name are dropped, as they changed.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class FetchCache {
+	private static final long FRESH_TTL = 5000;  // in milliseconds
+	// until the service gave a life time
+	private static final int DEFAULT_LIFETIME = 60;  // in seconds
+
+	private RequestEngine engine;
+	private final int maxEntries;
+	private volatile int lifeTime = DEFAULT_LIFETIME;
+
+	// responses by prefix, the least recently used first
+	private Map<String, Entry> entries;
+	// counts the invalidations, so responses to fetches sent before one
+	// are not kept
+	private long generation;
+
+	private long hits;
+	private long staleHits;
+	private long prefixHits;
+	private long misses;
+	private long refreshes;
+
+	/**
+	 * Constructs a new FetchCache.
+	 *
+	 * @param engine engine to send the fetches through
+	 * @param maxEntries most prefixes to keep the responses of
+	 * @throws IllegalArgumentException if maxEntries is not positive
+	 */
+	public FetchCache(RequestEngine engine, int maxEntries) {
+		if (maxEntries <= 0)
+			throw new IllegalArgumentException("cache size must be positive");
+
+		this.engine = engine;
+		this.maxEntries = maxEntries;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FetchCache.Entry> eldest) {
+				return size() > FetchCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the response to a fetch of a prefix, from the cache if it has
+	 * it, otherwise from the service.
+	 *
+	 * @param prefix name prefix, or an empty one for all names
+	 * @return the response, done already if it came from the cache; it
+	 * fails as the request to the service does
+	 * @throws InterruptedException if interrupted waiting to send the fetch
+	 */
+	public CompletableFuture<byte[]> fetch(final String prefix) throws InterruptedException {
+		final long now = System.currentTimeMillis();
+		final long gen;
+		Entry stale = null;
+		synchronized (this) {
+			Entry e = entries.get(prefix);
+			if (e != null && now < e.expiresAt) {
+				hits++;
+				if (now >= e.staleAt && !e.refreshing) {
+					staleHits++;
+					refreshes++;
+					e.refreshing = true;
+					stale = e;
+				}
+			} else {
+				e = null;
+
+				// a fresh empty response for a shorter prefix answers
+				// for this one
+				for (int i = prefix.length() - 1; i >= 0 && e == null; i--) {
+					Entry broader = entries.get(prefix.substring(0, i));
+					if (broader != null && now < broader.staleAt && broader.numEntries() == 0)
+						e = broader;
+				}
+				if (e != null)
+					prefixHits++;
+				else
+					misses++;
+			}
+			gen = generation;
+
+			if (e != null && stale == null)
+				return CompletableFuture.completedFuture(e.response);
+		}
+
+		if (stale != null) {
+			refresh(prefix, stale, gen);
+			return CompletableFuture.completedFuture(stale.response);
+		}
+
+		return send(prefix).thenApply(new Function<byte[], byte[]>() {
+			@Override
+			public byte[] apply(byte[] res) {
+				put(prefix, res, now, gen);
+				return res;
+			}
+		});
+	}
+
+	/**
+	 * Sets the life time the service gives registrations, which is how long
+	 * a response may be answered from the cache at most.
+	 *
+	 * @param lifeTime life time in seconds
+	 */
+	public void setLifeTime(int lifeTime) {
+		this.lifeTime = lifeTime;
+	}
+
+	/**
+	 * Drops the responses that may have changed as a name was registered
+	 * or unregistered: those for the prefixes of the name.
+	 *
+	 * @param name service name
+	 */
+	public synchronized void invalidate(String name) {
+		generation++;
+		for (int i = 0; i <= name.length(); i++)
+			entries.remove(name.substring(0, i));
+	}
+
+	/**
+	 * Drops all responses.
+	 */
+	public synchronized void invalidateAll() {
+		generation++;
+		entries.clear();
+	}
+
+	/**
+	 * Returns how the cache did so far, for the log.
+	 *
+	 * @return the counts of hits, misses and refreshes
+	 */
+	public synchronized String report() {
+		return "fetch cache: " + hits + " hits (" + staleHits + " stale), " +
+			   prefixHits + " answered by a shorter prefix, " + misses + " misses, " +
+			   refreshes + " refreshed in the background, " + entries.size() + " prefixes kept";
+	}
+
+	/**
+	 * Sends a fetch of a prefix to the service.
+	 */
+	private RequestEngine.Request send(String prefix) throws InterruptedException {
+		byte[] msg = RegistrationCodec.acquire();
+		int len = RegistrationCodec.fetch(msg, 0, 0, prefix);
+		return engine.sendPooled(msg, len, RegistrationCodec.FETCH_RESPONSE);
+	}
+
+	/**
+	 * Fetches a stale response again in the background.
+	 */
+	private void refresh(final String prefix, final Entry e, final long gen) {
+		final long sentAt = System.currentTimeMillis();
+		RequestEngine.Request r;
+		try {
+			r = send(prefix);
+		} catch (InterruptedException ex) {
+			synchronized (this) {
+				e.refreshing = false;
+			}
+			Thread.currentThread().interrupt();
+			return;
+		}
+		r.whenComplete(new BiConsumer<byte[], Throwable>() {
+			@Override
+			public void accept(byte[] res, Throwable t) {
+				synchronized (FetchCache.this) {
+					e.refreshing = false;
+				}
+				// keep the stale response if there is no new one
+				if (t == null)
+					put(prefix, res, sentAt, gen);
+			}
+		});
+	}
+
+	/**
+	 * Keeps a response, unless the cache was invalidated or a newer
+	 * response kept since the fetch was sent. The engine passes on only
+	 * well-formed responses.
+	 */
+	private synchronized void put(String prefix, byte[] res, long sentAt, long gen) {
+		if (gen != generation)
+			return;
+
+		Entry e = entries.get(prefix);
+		if (e != null && e.fetchedAt > sentAt)
+			return;
+		entries.put(prefix, new Entry(res, sentAt, sentAt + FRESH_TTL,
+									  sentAt + lifeTime * 1000L));
+	}
+
+	/**
+	 * A response kept.
+	 */
+	static class Entry {
+		final byte[] response;
+		final long fetchedAt;
+		final long staleAt;
+		final long expiresAt;
+		boolean refreshing;
+
+		/**
+		 * Constructs a new Entry.
+		 *
+		 * @param response the response
+		 * @param fetchedAt when the fetch was sent
+		 * @param staleAt when the response should be fetched again
+		 * @param expiresAt when the response may not be answered any more
+		 */
+		Entry(byte[] response, long fetchedAt, long staleAt, long expiresAt) {
+			this.response = response;
+			this.fetchedAt = fetchedAt;
+			this.staleAt = staleAt;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * Returns the number of registrations in the response.
+		 *
+		 * @return number of entries
+		 */
+		int numEntries() {
+			return new RegistrationCodec.Message().wrap(response, 0, response.length).numEntries();
+		}
+	}
+}
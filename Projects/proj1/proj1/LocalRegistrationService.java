@@ -0,0 +1,281 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A stand-in for the registration service on the local host, for trying
+ * out the agent and measuring it without the real service. It answers
+ * register, fetch, unregister and probe requests the way the spec says,
+ * copying the sequence number of each request into its response, and
+ * keeps the registrations in memory. Requests it does not understand get
+ * no response, as with the real service.
+ *
+ * It can drop a share of the requests it receives, as a lossy network
+ * would, so the agent has to send them again.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class LocalRegistrationService {
+	// two bytes (0xC461) for header
+	private static final byte FST_HEADER_BYTE = (byte) 0xC4;
+	private static final byte SND_HEADER_BYTE = (byte) 0x61;
+	private static final int HEADER_LEN = 4;
+
+	// message type constants
+	private static final byte R_MSG_TYPE = (byte) 0x1;
+	private static final byte RR_MSG_TYPE = (byte) 0x2;
+	private static final byte F_MSG_TYPE = (byte) 0x3;
+	private static final byte FR_MSG_TYPE = (byte) 0x4;
+	private static final byte U_MSG_TYPE = (byte) 0x5;
+	private static final byte P_MSG_TYPE = (byte) 0x6;
+	private static final byte ACK_MSG_TYPE = (byte) 0x7;
+
+	private static final int LIFETIME = 300;  // in seconds
+	private static final int MAX_FETCH_ENTRIES = 255;
+	private static final int FETCH_ENTRY_LEN = 10;
+	private static final int MAX_REQUEST_LEN = 1024;
+	private static final int RECEIVE_BUFFER_LEN = 1 << 20;
+
+	private DatagramSocket socket;
+	private double dropRate;
+	private int lifeTime;
+	private Random random = new Random();
+
+	// registrations by IP and port, in the order they were made
+	private Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+
+	/**
+	 * Starts a stand-in service until the process is killed.
+	 *
+	 * @param args port to listen on, the share of requests to drop, and
+	 * the life time of the registrations
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 3) {
+			System.out.println("Usage: java LocalRegistrationService " +
+							   "<port> [drop rate] [life time]");
+			System.exit(1);
+		}
+
+		try {
+			int port = Integer.valueOf(args[0]).intValue();
+			double dropRate = args.length > 1 ? Double.valueOf(args[1]).doubleValue() : 0;
+			int lifeTime = args.length > 2 ? Integer.valueOf(args[2]).intValue() : LIFETIME;
+			LocalRegistrationService service =
+					new LocalRegistrationService(port, dropRate, lifeTime);
+			System.out.println("Registration service listening on port " + service.getPort());
+			service.serve();
+		} catch (IOException e) {
+			System.out.println("IO: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Constructs a new LocalRegistrationService that gives registrations
+	 * the default life time.
+	 *
+	 * @param port port to listen on, or 0 for any free one
+	 * @param dropRate share of the requests received to drop, from 0 to 1
+	 * @throws SocketException if the socket could not be opened
+	 */
+	public LocalRegistrationService(int port, double dropRate) throws SocketException {
+		this(port, dropRate, LIFETIME);
+	}
+
+	/**
+	 * Constructs a new LocalRegistrationService.
+	 *
+	 * @param port port to listen on, or 0 for any free one
+	 * @param dropRate share of the requests received to drop, from 0 to 1
+	 * @param lifeTime life time of the registrations, in seconds
+	 * @throws SocketException if the socket could not be opened
+	 */
+	public LocalRegistrationService(int port, double dropRate, int lifeTime)
+			throws SocketException {
+		if (dropRate < 0 || dropRate >= 1)
+			throw new IllegalArgumentException("drop rate must be at least 0 and less than 1");
+		if (lifeTime < 0 || lifeTime > 65535)
+			throw new IllegalArgumentException("life time out of range");
+
+		socket = new DatagramSocket(port, InetAddress.getLoopbackAddress());
+		socket.setReceiveBufferSize(RECEIVE_BUFFER_LEN);
+		this.dropRate = dropRate;
+		this.lifeTime = lifeTime;
+	}
+
+	/**
+	 * Returns the port the service listens on.
+	 *
+	 * @return the port number
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Answers requests on a daemon thread until the service is closed.
+	 */
+	public void start() {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serve();
+			}
+		}, "registration-service");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Stops the service.
+	 */
+	public void close() {
+		socket.close();
+	}
+
+	/**
+	 * Answers requests until the service is closed.
+	 */
+	public void serve() {
+		byte[] buf = new byte[MAX_REQUEST_LEN];
+		DatagramPacket req = new DatagramPacket(buf, buf.length);
+		while (true) {
+			try {
+				req.setLength(buf.length);
+				socket.receive(req);
+				if (dropRate > 0 && random.nextDouble() < dropRate)
+					continue;
+
+				byte[] res = respond(ByteBuffer.wrap(buf, 0, req.getLength())
+											   .order(ByteOrder.BIG_ENDIAN));
+				if (res != null)
+					socket.send(new DatagramPacket(res, res.length,
+												   req.getAddress(), req.getPort()));
+			} catch (SocketException e) {
+				// the socket was closed
+				return;
+			} catch (IOException e) {
+				System.out.println("IO: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Returns the response to a request, or null if it gets none.
+	 */
+	private byte[] respond(ByteBuffer req) {
+		int len = req.remaining();
+		if (len < HEADER_LEN || req.get(0) != FST_HEADER_BYTE || req.get(1) != SND_HEADER_BYTE)
+			return null;
+
+		byte seqNum = req.get(2);
+		byte msgType = req.get(3);
+		if (msgType == R_MSG_TYPE && len >= 15 && len == 15 + (req.get(14) & 0xff)) {
+			byte[] name = new byte[len - 15];
+			req.position(15);
+			req.get(name);
+			Entry e = new Entry(req.getInt(4), req.getShort(8), req.getInt(10),
+								new String(name, StandardCharsets.US_ASCII));
+			entries.put(e.key(), e);
+			return header(RR_MSG_TYPE, seqNum, 6).putShort((short) lifeTime).array();
+		} else if (msgType == F_MSG_TYPE && (len == 4 || (len >= 5 && len == 5 + (req.get(4) & 0xff)))) {
+			String prefix = "";
+			if (len > 5) {
+				byte[] name = new byte[len - 5];
+				req.position(5);
+				req.get(name);
+				prefix = new String(name, StandardCharsets.US_ASCII);
+			}
+			return fetch(seqNum, prefix);
+		} else if (msgType == U_MSG_TYPE && len == 10) {
+			entries.remove(key(req.getInt(4), req.getShort(8)));
+			return header(ACK_MSG_TYPE, seqNum, 4).array();
+		} else if (msgType == P_MSG_TYPE && len == 4) {
+			return header(ACK_MSG_TYPE, seqNum, 4).array();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the response to a fetch: the first registrations whose names
+	 * start with the prefix.
+	 */
+	private byte[] fetch(byte seqNum, String prefix) {
+		int n = 0;
+		for (Entry e : entries.values()) {
+			if (n < MAX_FETCH_ENTRIES && e.name.startsWith(prefix))
+				n++;
+		}
+
+		ByteBuffer bb = header(FR_MSG_TYPE, seqNum, 5 + n * FETCH_ENTRY_LEN);
+		bb.put((byte) n);
+		for (Entry e : entries.values()) {
+			if (n == 0)
+				break;
+			if (e.name.startsWith(prefix)) {
+				bb.putInt(e.ip).putShort(e.port).putInt(e.data);
+				n--;
+			}
+		}
+		return bb.array();
+	}
+
+	/**
+	 * Returns a buffer for a response, with its header filled in.
+	 */
+	private static ByteBuffer header(byte msgType, byte seqNum, int len) {
+		ByteBuffer bb = ByteBuffer.allocate(len).order(ByteOrder.BIG_ENDIAN);
+		bb.put(FST_HEADER_BYTE).put(SND_HEADER_BYTE).put(seqNum).put(msgType);
+		return bb;
+	}
+
+	/**
+	 * Returns the key of a registration.
+	 */
+	private static long key(int ip, short port) {
+		return ((ip & 0xffffffffL) << 16) | (port & 0xffff);
+	}
+
+	/**
+	 * A registration.
+	 */
+	static class Entry {
+		final int ip;
+		final short port;
+		final int data;
+		final String name;
+
+		/**
+		 * Constructs a new Entry.
+		 *
+		 * @param ip service IP
+		 * @param port service port number
+		 * @param data service data
+		 * @param name service name
+		 */
+		Entry(int ip, short port, int data, String name) {
+			this.ip = ip;
+			this.port = port;
+			this.data = data;
+			this.name = name;
+		}
+
+		/**
+		 * Returns the key of the registration.
+		 *
+		 * @return IP and port in one number
+		 */
+		long key() {
+			return LocalRegistrationService.key(ip, port);
+		}
+	}
+}
@@ -1,18 +1,18 @@
 import java.io.IOException;
 import java.net.*;
-import java.nio.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class RegistrationAgent {
 	private static final int TIMEOUT = 5000;
-	private static final int MAX_FETCH_BUFFER_LEN = 5000;
 	private static final int MAX_NUM_TRIES = 3;
-
-	// two bytes (0xC461) for header
-	private static final byte FST_HEADER_BYTE = (byte) 0x61;
-	private static final byte SND_HEADER_BYTE = (byte) 0xC4;
+	private static final int DEFAULT_BATCH_IN_FLIGHT = 256;
+	private static final int MAX_CACHED_FETCHES = 1024;
 
 	private static final String ASK_INPUT = 
 			"Type in r(egister), f(etch), u(nregister), p(robe), or q(uit): ";
@@ -24,41 +24,33 @@ public class RegistrationAgent {
 	private static final String PROBE = "p";
 	private static final String QUIT = "q";
 
-	// message type constants
-	private static final byte R_MSG_TYPE = (byte) 0x1;
-	private static final byte RR_MSG_TYPE = (byte) 0x2;
-	private static final byte F_MSG_TYPE = (byte) 0x3;
-	private static final byte FR_MSG_TYPE = (byte) 0x4;
-	private static final byte U_MSG_TYPE = (byte) 0x5;
-	private static final byte P_MSG_TYPE = (byte) 0x6;
-	private static final byte ACK_MSG_TYPE = (byte) 0x7;
-
 	// socket with port number p in spec
 	private static DatagramSocket fstSocket = null;
 	// socket with port number p + 1 in spec
 	private static DatagramSocket sndSocket = null;
 
-	private static byte seqNum = 0;  // sequence number for the messages
+	// sends the requests on fstSocket and matches the responses to them
+	private static RequestEngine engine = null;
 	
-	private static Map<Integer, Thread> reregHandlers;
-	private static Map<Integer, Boolean> portLocks;
+	// reregisters the registered ports before their registrations expire
+	private static ReregScheduler reregs = null;
+
+	// responses to recent fetches
+	private static FetchCache fetches = null;
 
 	private static InetAddress hostName;
 	private static int servicePort;
 	
 	public static void main (String[] args) {
-		if (args.length != 2) {
+		if (args.length < 2 || args.length > 4) {
 			System.out.println("Client Usage: java RegistrationAgent " + 
-		                       "<registration service host name> <service port>");
+		                       "<registration service host name> <service port> " +
+			                   "[<batch file> [<requests in flight>]]");
 			System.exit(1);
 		}
 		
-		reregHandlers = new HashMap<Integer, Thread>();
-		portLocks = new HashMap<Integer, Boolean>();
-
 		try {
 			fstSocket = new DatagramSocket();
-			fstSocket.setSoTimeout(TIMEOUT);
 
 			sndSocket = new DatagramSocket(fstSocket.getLocalPort() + 1);
 
@@ -66,6 +58,26 @@ public class RegistrationAgent {
 			hostName = InetAddress.getByName(args[0]);
 			servicePort = Integer.valueOf(args[1]).intValue();
 
+			engine = new RequestEngine(fstSocket, hostName, servicePort,
+									   TIMEOUT, MAX_NUM_TRIES);
+			reregs = new ReregScheduler(engine, RegistrationCodec.REGISTERED, 
+										new ReregListener());
+			fetches = new FetchCache(engine, MAX_CACHED_FETCHES);
+
+			// answer the service's probes on sndSocket
+			Thread pbHandleThread = new Thread(new ProbeHandler());
+			pbHandleThread.setDaemon(true);
+			pbHandleThread.start();
+
+			// register and unregister the ports listed in the batch file
+			// before taking commands
+			if (args.length > 2) {
+				int inFlight = DEFAULT_BATCH_IN_FLIGHT;
+				if (args.length > 3)
+					inFlight = Integer.valueOf(args[3]).intValue();
+				runBatch(args[2], inFlight);
+			}
+
 			// ask for user input
 			Scanner sc = new Scanner(System.in);
 			System.out.println(ASK_INPUT);
@@ -80,15 +92,11 @@ public class RegistrationAgent {
 					System.out.println(ASK_INPUT);
 					continue;
 				} else if (input.equals(QUIT)) {
-					// if user typed in "q", close the sockets 
-					// and let another thread (if any) run
+					// if user typed in "q", stop reregistering 
+					// and close the sockets
+					System.out.println(fetches.report());
 					closeSockets();
 					
-					for (Integer key : reregHandlers.keySet()) {
-						Thread nextToRun = reregHandlers.get(key);
-						nextToRun.interrupt();
-					}
-					
 					// get out of the while loop after
 					// we return back to execute this thread
 					break;
@@ -117,6 +125,16 @@ public class RegistrationAgent {
 	 * registration agent.
 	 */
 	private static void closeSockets() {
+		if (reregs != null) {
+			reregs.close();
+			reregs = null;
+		}
+
+		if (engine != null) {
+			engine.close();
+			engine = null;
+		}
+
 		if (fstSocket != null) {
 			fstSocket.close();
 			fstSocket = null;
@@ -148,7 +166,7 @@ public class RegistrationAgent {
 			return;
 		}
 
-		DatagramPacket response;
+		byte[] response;
 		byte[] msg;
 		
 		if (cmdAndArgs[0].equals(REGISTER)) {
@@ -162,45 +180,39 @@ public class RegistrationAgent {
 			int port = Integer.valueOf(cmdAndArgs[1]).intValue();
 			int data = (int) Long.valueOf(cmdAndArgs[1]).longValue();
 			String name = cmdAndArgs[3];
-			int nameLen = name.length();
-
-			ByteBuffer rbb = buildMsgHeader(R_MSG_TYPE, nameLen + 15, seqNum);
-			msg = buildRegisterMsg(rbb, InetAddress.getLocalHost().getAddress(), 
-								   port, data, name, nameLen);
-			seqNum++;
+			if (name.length() > RegistrationCodec.MAX_NAME_LEN) {
+				System.out.printf("Service name can be at most %d characters.\n", 
+								  RegistrationCodec.MAX_NAME_LEN);
+				return;
+			}
 
-			DatagramPacket rReq = new DatagramPacket(msg, msg.length, 
-													 hostName, servicePort);
-			fstSocket.send(rReq);
-			response = requestForResponse(rReq, 6, "register");
+			// the message is kept for reregistering, so it is not pooled
+			msg = new byte[RegistrationCodec.registerLen(name)];
+			RegistrationCodec.register(msg, 0, 0, InetAddress.getLocalHost().getAddress(), 
+									   port, data, name);
+			try {
+				response = awaitResponse(engine.send(msg, RegistrationCodec.REGISTERED), 
+										 "register");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
 
 			int lifeTime;
 			if (response == null) {
 				System.out.println("Register failed.");
 				return;
 			} else {
-				lifeTime = getLifeTime(response.getData());
+				lifeTime = getLifeTime(response);
 				String ip = InetAddress.getLocalHost().getHostAddress();
 				
 				printRegisterSucceedMsg(ip, port, lifeTime, false);
 			}
-			
-			int reregInterval = 0;
-			if (lifeTime >= 30)
-				reregInterval = lifeTime - 30;
-
-			ReregHandler rrHandler = new ReregHandler(rReq, reregInterval, port);
-			Thread reregThread = new Thread(rrHandler);
-
-			// lock the port to indicate it's in used and 
-			// let the reregister thread starts
-			acquireLock(port);
-			reregHandlers.put(port, reregThread);
-			reregThread.start();
 
-			ProbeHandler pbHandler = new ProbeHandler();
-			Thread pbHandleThread = new Thread(pbHandler);
-			pbHandleThread.start();
+			// reregister the port from now on with the same message
+			reregs.schedule(port, msg, lifeTime);
+			fetches.setLifeTime(lifeTime);
+			fetches.invalidate(name);
 		} else if (cmdAndArgs[0].equals(FETCH)) {
 			// check if user passed in exactly 0 or 1 argument with "f" command
 			if (cmdAndArgs.length != 1 && cmdAndArgs.length != 2) {
@@ -208,24 +220,17 @@ public class RegistrationAgent {
 				return;
 			}
 
-			if (cmdAndArgs.length == 1) {
-				ByteBuffer fbb = buildMsgHeader(F_MSG_TYPE, 5, seqNum);
-				msg = buildFetchMsg(fbb, null, 0);
-			} else {
-				int argLen = cmdAndArgs[1].length();
-				ByteBuffer fbb = buildMsgHeader(F_MSG_TYPE, argLen + 5, seqNum);
-				msg = buildFetchMsg(fbb, cmdAndArgs[1], argLen);
+			// answered from the cache if the prefix was fetched recently
+			String prefix = cmdAndArgs.length == 1 ? "" : cmdAndArgs[1];
+			try {
+				response = awaitResponse(fetches.fetch(prefix), "fecth");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
 			}
-			seqNum++;
-			
-			DatagramPacket fReq = new DatagramPacket(msg, msg.length, 
-					 								 hostName, servicePort);
-			
-			fstSocket.send(fReq);
-			response = requestForResponse(fReq, MAX_FETCH_BUFFER_LEN, "fecth");
 			
 			if (response != null) {
-				displayFetchResults(response.getData());
+				displayFetchResults(response);
 				System.out.println("Fetch succeeeded.");
 			} else {
 				System.out.println("Fetch failed.");
@@ -241,28 +246,29 @@ public class RegistrationAgent {
 			
 			// if the user tries to unregister a port that's never registered 
 			// before, print the message to notify the user
-			if (!reregHandlers.containsKey(uPort)) {
+			if (!reregs.isScheduled(uPort)) {
 				System.out.printf("Port number %d hasn't been registered " + 
 								  "yet.\n", uPort);
 				return;
 			}
 
 			// build the unregister message
-			ByteBuffer ubb = buildMsgHeader(U_MSG_TYPE, 10, seqNum);
-			msg = buildUnregisterMsg(ubb, InetAddress.getLocalHost().getAddress(), uPort);
-			seqNum++;
-			
-			DatagramPacket uReq = new DatagramPacket(msg, msg.length, 
-													 hostName, servicePort);
+			msg = RegistrationCodec.acquire();
+			int len = RegistrationCodec.unregister(msg, 0, 0, 
+					InetAddress.getLocalHost().getAddress(), uPort);
 
 			// send the request and waiting for response
 			// expect an ACK as response
-			fstSocket.send(uReq);
-			response = requestForResponse(uReq, 4, "unregister");
+			response = requestForResponse(msg, len, RegistrationCodec.ACK, "unregister");
 
 			// indicate whether unregister succeeded or not
 			if (response != null) {
-				releasePort(uPort);
+				byte[] rMsg = reregs.getMessage(uPort);
+				if (rMsg != null)
+					fetches.invalidate(getServiceName(rMsg));
+				else
+					fetches.invalidateAll();
+				reregs.cancel(uPort);
 				System.out.println("Unregister succeeeded.");
 			} else {
 				System.out.println("Unregister failed.");
@@ -277,19 +283,16 @@ public class RegistrationAgent {
 			}
 
 			// build the probe message
-			msg = (buildMsgHeader(P_MSG_TYPE, 4, seqNum)).array();
-			DatagramPacket pReq = new DatagramPacket(msg, msg.length, 
-													 hostName, servicePort);
+			msg = RegistrationCodec.acquire();
+			int len = RegistrationCodec.probe(msg, 0, 0);
 
 			// send the request and waiting for response
 			// expect an ACK as response
-			fstSocket.send(pReq);
-			response = requestForResponse(pReq, 4, "probe");
+			response = requestForResponse(msg, len, RegistrationCodec.ACK, "probe");
 
 			// indicate whether probe succeeded or not
 			if (response != null) {
 				System.out.println("Yeah! Probed the service successfully.");
-				seqNum++;
 			} else {
 				System.out.println("Probe failed.");
 			}
@@ -297,130 +300,84 @@ public class RegistrationAgent {
 	}
 
 	/**
-	 * Add the specified port number from registration.
-	 * 
-	 * @param port port number
-	 */
-	private static synchronized void acquireLock(int port) {
-		portLocks.put(port, true);
-	}
-	
-	/**
-	 * Return true if the port number is locked.
-	 * 
-	 * @return true if the port number is locked
-	 */
-	private static synchronized boolean getLockStatus(int port) {
-		return portLocks.get(port);
-	}
-	
-	/**
-	 * Remove the specified port number from registration.
-	 * 
-	 * @param port port number
-	 */
-	private static synchronized void releasePort(int port) {
-		portLocks.put(port, false);
-	}
-
-	/**
-	 * Delete the port entry from the table.
+	 * Registers and unregisters the ports listed in a batch file, with up to
+	 * the given number of requests in flight, and reports how it went. Each
+	 * line of the file is a register or unregister command, as typed in:
+	 * "r <port num> <data> <service name>" or "u <port num>"; empty lines
+	 * and lines starting with "#" are skipped. The ports registered are
+	 * reregistered from then on. Nothing is sent if a line is malformed,
+	 * which includes a service name longer than MAX_NAME_LEN characters.
 	 * 
-	 * @param port port number
+	 * @param file name of the batch file
+	 * @param inFlight most requests to have outstanding at once
+	 * @throws IOException if the file could not be read
 	 */
-	private static synchronized void removePort(int port) {
-		portLocks.remove(port);
-	}
-
-	/**
-	 * Build the header of the message to be sent.
-	 * 
-	 * @param msgType type of message to be sent
-	 * @param len length of the message (in bytes)
-	 * @param sNum sequence number
-	 * @return a ByteBuffer contains special header, sequence number, and
-	 * message type
-	 */
-	private static ByteBuffer buildMsgHeader(byte msgType, int len, byte sNum) {
-		ByteBuffer bb = ByteBuffer.allocate(len).order(ByteOrder.BIG_ENDIAN);
-		
-		// put special 0xC461 header into message
-		bb.put(SND_HEADER_BYTE);
-		bb.put(FST_HEADER_BYTE);
-		
-		// put sequence number and message type into message
-		bb.put(sNum);
-		bb.put(msgType);
-
-		return bb;
-	}
-
-	/**
-	 * Build the register message.
-	 * 
-	 * @param bb a ByteBuffer to store all the information needed
-	 * @param ip service IP
-	 * @param port port number
-	 * @param data service data
-	 * @param name service name
-	 * @param len service name length
-	 * @return a byte array that contains the register message
-	 */
-	private static byte[] buildRegisterMsg(ByteBuffer bb, byte[] ip,
-			int port, int data, String name, int len) {
-		bb.put(ip);
-		// convert port number to short to meet the format in the spec
-		bb.putShort((short) port);
-		bb.putInt(data);
-		// convert service name length to byte to meet the format in the spec
-		bb.put((byte) len);
-		
-		byte[] nameBytes = name.getBytes();
-		bb.put(nameBytes);
+	private static void runBatch(String file, int inFlight) throws IOException {
+		BulkRegistrar bulk = new BulkRegistrar(engine, inFlight);
+		List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.US_ASCII);
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
 
-		return bb.array();
-	}
+			String[] cmdAndArgs = line.split("\\s+");
+			try {
+				if (cmdAndArgs[0].equals(REGISTER) && cmdAndArgs.length == 4 &&
+					cmdAndArgs[3].length() <= RegistrationCodec.MAX_NAME_LEN) {
+					bulk.register(Integer.valueOf(cmdAndArgs[1]).intValue(),
+								  (int) Long.valueOf(cmdAndArgs[2]).longValue(), cmdAndArgs[3]);
+					continue;
+				} else if (cmdAndArgs[0].equals(UNREGISTER) && cmdAndArgs.length == 2) {
+					bulk.unregister(Integer.valueOf(cmdAndArgs[1]).intValue());
+					continue;
+				}
+			} catch (NumberFormatException e) {
+				// reported below
+			}
+			System.out.printf("Batch: malformed line %d: %s\n", i + 1, line);
+			return;
+		}
 
-	/**
-	 * Build the fetch message.
-	 * 
-	 * @param bb a ByteBuffer to store all the information needed
-	 * @param name service name
-	 * @param len service name length
-	 * @return a byte array that contains the fetch message
-	 */
-	private static byte[] buildFetchMsg(ByteBuffer bb, String name, int len) {
-		if (name != null) {
-			bb.put((byte) len);
-			bb.put(name.getBytes());
+		BulkRegistrar.Report report;
+		try {
+			report = bulk.run();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
 		}
 
-		return bb.array();
+		// keep the ports registered that are registered now
+		for (BulkRegistrar.Op op : bulk.ops()) {
+			if (op.succeeded() && op.lifeTime() >= 0) {
+				reregs.schedule(op.port, op.msg, op.lifeTime());
+				fetches.setLifeTime(op.lifeTime());
+			} else if (op.succeeded()) {
+				reregs.cancel(op.port);
+			}
+		}
+		fetches.invalidateAll();
+		System.out.println(report);
 	}
 
 	/**
-	 * Build the unregister message.
+	 * Retrieve the life time of the registration from the service's response.
 	 * 
-	 * @param bb a ByteBuffer to store all the information needed
-	 * @param ip service IP
-	 * @param port port number
-	 * @return a byte array that contains the unregister message
+	 * @param res service's response in byte array format
+	 * @return life time of the registration
 	 */
-	private static byte[] buildUnregisterMsg(ByteBuffer bb, byte[] ip, int port) {
-		bb.put(ip);
-		// convert port number to short to meet the format in the spec
-		bb.putShort((short) port);
-		return bb.array();
+	static int getLifeTime(byte[] res) {
+		return new RegistrationCodec.Message().wrap(res, 0, res.length).lifeTime();
 	}
 
 	/**
-	 * Retrieve the life time of the registration from the service's response.
+	 * Retrieve the service name from a register message.
 	 * 
-	 * @param res service's response in byte array format
-	 * @return life time of the registration
+	 * @param msg register message in byte array format
+	 * @return service name
 	 */
-	private static int getLifeTime(byte[] res) {
-		return ByteBuffer.wrap(res).order(ByteOrder.BIG_ENDIAN).getShort(4);
+	static String getServiceName(byte[] msg) {
+		return new String(msg, RegistrationCodec.REGISTER_LEN, msg[14] & 0xff, 
+						  StandardCharsets.US_ASCII);
 	}
 
 	/**
@@ -448,156 +405,118 @@ public class RegistrationAgent {
 	 * @param res data of the response
 	 */
 	private static void displayFetchResults(byte[] res) {
-		int totalEntries = ByteBuffer.wrap(res).order(ByteOrder.BIG_ENDIAN).get(4);
+		// the entries are read in place
+		RegistrationCodec.Message fr = new RegistrationCodec.Message().wrap(res, 0, res.length);
+		int totalEntries = fr.numEntries();
 		for (int i = 0; i < totalEntries; i++) {
 			System.out.printf("Result %d:\n", i);
-			displayFetchServiceIPs(res, i);
-			displayFetchServicePorts(res, i);
-			displayFetchServiceData(res, i);
+			displayFetchServiceIPs(fr, i);
+			displayFetchServicePorts(fr, i);
+			displayFetchServiceData(fr, i);
 		}
 	}
 
 	/**
 	 * Helper function to display service IPs of the fetch results.
 	 * 
-	 * @param res data of the response
+	 * @param fr the response
 	 * @param idx position of the current entry
 	 */
-	private static void displayFetchServiceIPs(byte[] res, int idx) {
-		byte[] ipBytes = new byte[4];
-		String serviceIP;
-
-		for (int i = 0; i < 4; i++) {
-			ipBytes[i] = ByteBuffer.wrap(res).order(ByteOrder.BIG_ENDIAN).get((5 + i) + idx * 10);
-		}
-		
-		try {
-			serviceIP = InetAddress.getByAddress(ipBytes).getHostAddress(); 
-			System.out.printf("    Service IP: %s\n", serviceIP);
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
-		}
+	private static void displayFetchServiceIPs(RegistrationCodec.Message fr, int idx) {
+		int ip = fr.entryIp(idx);
+		System.out.printf("    Service IP: %d.%d.%d.%d\n", ip >>> 24, 
+						  (ip >> 16) & 0xff, (ip >> 8) & 0xff, ip & 0xff);
 	}
 	
 	/**
 	 * Helper function to display the service ports of fetch results.
 	 * 
-	 * @param res data of the response
+	 * @param fr the response
 	 * @param idx position of the current entry
 	 */
-	private static void displayFetchServicePorts(byte[] res, int idx) {
-		short port = ByteBuffer.wrap(res).order(ByteOrder.BIG_ENDIAN).getShort(9 + idx * 10);
-		if (port < 0)
-			port += 65536;
-
-		System.out.println("    Service Port: " + port);
+	private static void displayFetchServicePorts(RegistrationCodec.Message fr, int idx) {
+		System.out.println("    Service Port: " + fr.entryPort(idx));
 	}
 	
 	/**
 	 * Helper function to display the service data of fetch results.
 	 * 
-	 * @param res data of the response
+	 * @param fr the response
 	 * @param idx position of the current entry
 	 */
-	private static void displayFetchServiceData(byte[] res, int idx) {
-		long mask = Long.parseLong("4294967296");
-		long data = ByteBuffer.wrap(res).order(ByteOrder.BIG_ENDIAN).getInt(11 + idx * 10);
-
-		long hexData = data;
-		if (data < 0)
-			hexData += mask;
- 		
-		System.out.print("    Service Data: 0x" + Long.toHexString(hexData).toLowerCase());
+	private static void displayFetchServiceData(RegistrationCodec.Message fr, int idx) {
+		// printed as unsigned
+		System.out.print("    Service Data: 0x" + Integer.toHexString(fr.entryData(idx)));
 	}
 
 	/**
-	 * Helper function for sending request multiple times (if necessary) 
-	 * and waiting for appropriate response.
+	 * Helper function for sending request and waiting for its response.
+	 * The request engine sends the request again if necessary, and only
+	 * takes the response with the request's sequence number and the
+	 * expected message type, so other requests can be outstanding
+	 * meanwhile.
 	 * 
-	 * @param req request to be sent
-	 * @param bufLen length of the buffer for response
+	 * @param msg request to be sent, in an array from RegistrationCodec.acquire
+	 * that goes back to the pool once the request is done; the engine fills
+	 * in its sequence number
+	 * @param len length of the request
+	 * @param resType message type of the expected response
 	 * @param msgType type of the request
-	 * @throws IOException
+	 * @return the response, or null if there was none
 	 */
-	private static DatagramPacket requestForResponse(DatagramPacket req, 
-			int bufLen, String msgType) throws IOException {
-		// tries sending the packet at most MAX_NUM_TRIES times
-		for (int i = 0; i < MAX_NUM_TRIES; i++) {
-			byte[] buf = new byte[bufLen];
-			DatagramPacket response = new DatagramPacket(buf, buf.length);
-			try {
-				fstSocket.receive(response);
-				return response;
-			} catch (SocketException e) {
-				e.printStackTrace();
-			} catch (SocketTimeoutException e) {
+	private static byte[] requestForResponse(byte[] msg, int len, byte resType, 
+			String msgType) {
+		try {
+			return awaitResponse(engine.sendPooled(msg, len, resType), msgType);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Helper function for waiting for the response to a request.
+	 * 
+	 * @param res the response to come
+	 * @param msgType type of the request
+	 * @return the response, or null if there was none
+	 */
+	private static byte[] awaitResponse(Future<byte[]> res, String msgType) {
+		try {
+			return res.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SocketTimeoutException) {
 				System.out.println("Timed out waiting on response for " + 
 								   msgType + " request.");
-				fstSocket.send(req);
-				continue;
-			} catch (IOException e) {
-				System.out.println("IO: " + e.getMessage());
+				System.out.printf("No response received after %d tries.\n", MAX_NUM_TRIES);
+			} else {
+				System.out.println("IO: " + e.getCause().getMessage());
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
-		
-		System.out.printf("No response received after %d tries.\n", MAX_NUM_TRIES);
 		return null;
 	}
 
 	/**
-	 * An inner class to handle reregistration.
+	 * An inner class to report the reregistrations.
 	 */
-	static class ReregHandler implements Runnable {
-		private int reregInterval;
-		private int port;
-		private DatagramPacket rReq;
-
-		public ReregHandler(DatagramPacket req, int p, int t) {
-			rReq = req;
-			port = p;
-			reregInterval = t;
-		}
-
+	static class ReregListener implements ReregScheduler.Listener {
 		@Override
-    	public void run() {
+		public void reregistered(int port, int lifeTime) {
 			try {
-				Thread.sleep(1000 * reregInterval);
-				// no need to reregister if the it's already unregistered
-				if (!getLockStatus(port)) {
-					removePort(port);
-					reregHandlers.remove(port);
-					return;
-				}
-				
-				fstSocket.send(rReq);
-				DatagramPacket response = requestForResponse(rReq, 6, "register");
-				if (response == null) {
-					System.out.println("Reregister failed.");
-					releasePort(port);
-					return;
-				}
-
 				// print the message of reregister succeed
-				int lifeTime = getLifeTime(response.getData());
 				String ip = InetAddress.getLocalHost().getHostAddress();
 				printRegisterSucceedMsg(ip, port, lifeTime, true);
-				
-				int newReregInterval = 0;
-				if (lifeTime >= 30)
-					newReregInterval = lifeTime - 30;
-
-				// done with reregister, create a new thread 
-				// to do the next reregister if reregister is needed
-				ReregHandler rrHandler = new ReregHandler(rReq, newReregInterval, port);
-				Thread reregThread = new Thread(rrHandler);
-				reregHandlers.put(port, reregThread);
-				reregThread.start();
-			} catch (InterruptedException e) {
-				return;
-			} catch (IOException e) {
-				System.out.println("IO: " + e.getMessage());
+			} catch (UnknownHostException e) {
+				System.out.println("UnknownHost: " + e.getMessage());
 			}
 		}
+
+		@Override
+		public void failed(int port, Throwable cause) {
+			System.out.println("Reregister failed.");
+		}
 	}
 
 	/**
@@ -606,21 +525,26 @@ public class RegistrationAgent {
 	static class ProbeHandler implements Runnable {
 		@Override
     	public void run() {
-			while (true) {
-				byte[] buffer = new byte[4];
-				DatagramPacket pReq = new DatagramPacket(buffer, buffer.length);
+			// the buffers, packets and view are reused for every probe
+			byte[] buffer = new byte[RegistrationCodec.MAX_MSG_LEN];
+			DatagramPacket pReq = new DatagramPacket(buffer, buffer.length);
+			RegistrationCodec.Message probe = new RegistrationCodec.Message();
+			byte[] msg = new byte[RegistrationCodec.HEADER_LEN];
+			DatagramPacket ack = new DatagramPacket(msg, msg.length, 
+												    hostName, servicePort);
 
+			while (true) {
 				try {
+					pReq.setLength(buffer.length);
 					sndSocket.receive(pReq);
+					probe.wrap(buffer, 0, pReq.getLength());
+					if (!probe.isValid() || probe.type() != RegistrationCodec.PROBE)
+						continue;
 					System.out.println("Ouch! Registration service porbed me!");
 					
 					// build the ask message with the sequence number 
 					// sent from the service
-					byte sNum = ByteBuffer.wrap(pReq.getData()).order(ByteOrder.BIG_ENDIAN).get(2);
-					ByteBuffer abb = buildMsgHeader(ACK_MSG_TYPE, 4, sNum);
-					byte[] msg = abb.array();
-					DatagramPacket ack = new DatagramPacket(msg, msg.length, 
-														    hostName, servicePort);
+					RegistrationCodec.ack(msg, 0, probe.seqNum());
 					sndSocket.send(ack);
 				} catch (SocketException e) {
 					break;
@@ -0,0 +1,399 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * Writes and reads the messages of the registration protocol in place in
+ * byte arrays, without allocating. The encoders write a message into a
+ * caller's array and return its length; the arrays of messages that are
+ * done with right away, such as fetches and probes, can come from a small
+ * pool and go back to it. Message is a view over a received message whose
+ * accessors read its fields where they are, including the entries of a
+ * fetch response, so one view can be reused for every message.
+ *
+ * All multi-byte fields are big endian. Service names are ASCII, one byte
+ * per character.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class RegistrationCodec {
+	// message type constants
+	static final byte REGISTER = (byte) 0x1;
+	static final byte REGISTERED = (byte) 0x2;
+	static final byte FETCH = (byte) 0x3;
+	static final byte FETCH_RESPONSE = (byte) 0x4;
+	static final byte UNREGISTER = (byte) 0x5;
+	static final byte PROBE = (byte) 0x6;
+	static final byte ACK = (byte) 0x7;
+
+	// two bytes (0xC461) for header
+	private static final byte FST_HEADER_BYTE = (byte) 0xC4;
+	private static final byte SND_HEADER_BYTE = (byte) 0x61;
+	static final int HEADER_LEN = 4;
+
+	static final int MAX_NAME_LEN = 255;
+	static final int REGISTER_LEN = 15;  // without the name
+	static final int REGISTERED_LEN = 6;
+	static final int FETCH_LEN = 5;  // without the name
+	static final int FETCH_RESPONSE_LEN = 5;  // without the entries
+	static final int FETCH_ENTRY_LEN = 10;
+	static final int UNREGISTER_LEN = 10;
+	static final int MAX_FETCH_ENTRIES = 255;
+
+	// the longest message an agent sends: a register with the longest name
+	static final int MAX_MSG_LEN = REGISTER_LEN + MAX_NAME_LEN;
+
+	// enough for the requests of a busy agent that are outstanding at once
+	private static final int MAX_POOLED_BUFFERS = 256;
+
+	private static final ArrayDeque<byte[]> pool = new ArrayDeque<byte[]>();
+
+	// big endian shorts and ints read and written at any position of an
+	// array, each with one access
+	private static final VarHandle SHORT =
+			MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle INT =
+			MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	/**
+	 * Returns an array of MAX_MSG_LEN bytes from the pool, or a new one if
+	 * the pool is empty.
+	 *
+	 * @return the array, which may hold any bytes
+	 */
+	static byte[] acquire() {
+		synchronized (pool) {
+			byte[] b = pool.poll();
+			if (b != null)
+				return b;
+		}
+		return new byte[MAX_MSG_LEN];
+	}
+
+	/**
+	 * Gives an array from acquire back to the pool.
+	 *
+	 * @param b the array, which must not be used afterwards
+	 */
+	static void release(byte[] b) {
+		if (b.length != MAX_MSG_LEN)
+			throw new IllegalArgumentException("not a pooled buffer");
+		synchronized (pool) {
+			if (pool.size() < MAX_POOLED_BUFFERS)
+				pool.push(b);
+		}
+	}
+
+	/**
+	 * Returns the length of the register message for a name.
+	 *
+	 * @param name service name
+	 * @return the message length
+	 */
+	static int registerLen(CharSequence name) {
+		return REGISTER_LEN + name.length();
+	}
+
+	/**
+	 * Writes a register message.
+	 *
+	 * @param b array to write to
+	 * @param off position in b
+	 * @param seqNum sequence number
+	 * @param ip service IP
+	 * @param port port number
+	 * @param data service data
+	 * @param name service name
+	 * @return the message length
+	 * @throws IllegalArgumentException if the name is longer than MAX_NAME_LEN
+	 */
+	static int register(byte[] b, int off, int seqNum, byte[] ip,
+						int port, int data, CharSequence name) {
+		int nameLen = name.length();
+		if (nameLen > MAX_NAME_LEN)
+			throw new IllegalArgumentException("service name too long");
+
+		header(b, off, seqNum, REGISTER);
+		System.arraycopy(ip, 0, b, off + 4, 4);
+		putShort(b, off + 8, port);
+		putInt(b, off + 10, data);
+		b[off + 14] = (byte) nameLen;
+		putName(b, off + 15, name);
+		return REGISTER_LEN + nameLen;
+	}
+
+	/**
+	 * Writes a registered message, as the service does.
+	 *
+	 * @param b array to write to
+	 * @param off position in b
+	 * @param seqNum sequence number of the register message it answers
+	 * @param lifeTime life time of the registration
+	 * @return the message length
+	 */
+	static int registered(byte[] b, int off, int seqNum, int lifeTime) {
+		header(b, off, seqNum, REGISTERED);
+		putShort(b, off + 4, lifeTime);
+		return REGISTERED_LEN;
+	}
+
+	/**
+	 * Writes a fetch message.
+	 *
+	 * @param b array to write to
+	 * @param off position in b
+	 * @param seqNum sequence number
+	 * @param prefix name prefix, or an empty one for all names
+	 * @return the message length
+	 * @throws IllegalArgumentException if the prefix is longer than MAX_NAME_LEN
+	 */
+	static int fetch(byte[] b, int off, int seqNum, CharSequence prefix) {
+		int len = prefix.length();
+		if (len > MAX_NAME_LEN)
+			throw new IllegalArgumentException("name prefix too long");
+
+		header(b, off, seqNum, FETCH);
+		b[off + 4] = (byte) len;
+		putName(b, off + 5, prefix);
+		return FETCH_LEN + len;
+	}
+
+	/**
+	 * Writes the start of a fetch response, as the service does; the
+	 * entries follow it.
+	 *
+	 * @param b array to write to
+	 * @param off position in b
+	 * @param seqNum sequence number of the fetch it answers
+	 * @param numEntries number of entries
+	 * @return the message length, with the entries
+	 */
+	static int fetchResponse(byte[] b, int off, int seqNum, int numEntries) {
+		header(b, off, seqNum, FETCH_RESPONSE);
+		b[off + 4] = (byte) numEntries;
+		return FETCH_RESPONSE_LEN + numEntries * FETCH_ENTRY_LEN;
+	}
+
+	/**
+	 * Writes an entry of a fetch response.
+	 *
+	 * @param b array to write to
+	 * @param off position of the fetch response in b
+	 * @param i index of the entry
+	 * @param ip service IP, as a number
+	 * @param port port number
+	 * @param data service data
+	 */
+	static void fetchEntry(byte[] b, int off, int i, int ip, int port, int data) {
+		int pos = off + FETCH_RESPONSE_LEN + i * FETCH_ENTRY_LEN;
+		putInt(b, pos, ip);
+		putShort(b, pos + 4, port);
+		putInt(b, pos + 6, data);
+	}
+
+	/**
+	 * Writes an unregister message.
+	 *
+	 * @param b array to write to
+	 * @param off position in b
+	 * @param seqNum sequence number
+	 * @param ip service IP
+	 * @param port port number
+	 * @return the message length
+	 */
+	static int unregister(byte[] b, int off, int seqNum, byte[] ip, int port) {
+		header(b, off, seqNum, UNREGISTER);
+		System.arraycopy(ip, 0, b, off + 4, 4);
+		putShort(b, off + 8, port);
+		return UNREGISTER_LEN;
+	}
+
+	/**
+	 * Writes a probe message.
+	 *
+	 * @param b array to write to
+	 * @param off position in b
+	 * @param seqNum sequence number
+	 * @return the message length
+	 */
+	static int probe(byte[] b, int off, int seqNum) {
+		header(b, off, seqNum, PROBE);
+		return HEADER_LEN;
+	}
+
+	/**
+	 * Writes an ACK message.
+	 *
+	 * @param b array to write to
+	 * @param off position in b
+	 * @param seqNum sequence number of the message it answers
+	 * @return the message length
+	 */
+	static int ack(byte[] b, int off, int seqNum) {
+		header(b, off, seqNum, ACK);
+		return HEADER_LEN;
+	}
+
+	/**
+	 * Writes the header of a message.
+	 */
+	private static void header(byte[] b, int off, int seqNum, byte msgType) {
+		b[off] = FST_HEADER_BYTE;
+		b[off + 1] = SND_HEADER_BYTE;
+		b[off + 2] = (byte) seqNum;
+		b[off + 3] = msgType;
+	}
+
+	/**
+	 * Writes a name, one byte per character.
+	 */
+	private static void putName(byte[] b, int off, CharSequence name) {
+		for (int i = 0, len = name.length(); i < len; i++)
+			b[off + i] = (byte) name.charAt(i);
+	}
+
+	private static void putShort(byte[] b, int off, int v) {
+		SHORT.set(b, off, (short) v);
+	}
+
+	private static void putInt(byte[] b, int off, int v) {
+		INT.set(b, off, v);
+	}
+
+	private static int getShort(byte[] b, int off) {
+		return (short) SHORT.get(b, off) & 0xffff;
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return (int) INT.get(b, off);
+	}
+
+	/**
+	 * A view over a received message, whose fields are read where they are
+	 * in its array. wrap points the view at a message; check isValid
+	 * before reading the fields of a message from the network.
+	 */
+	static class Message {
+		private byte[] b;
+		private int off;
+		private int len;
+
+		/**
+		 * Points the view at a message.
+		 *
+		 * @param b array holding the message
+		 * @param off position of the message in b
+		 * @param len length of the message
+		 * @return this view
+		 */
+		Message wrap(byte[] b, int off, int len) {
+			this.b = b;
+			this.off = off;
+			this.len = len;
+			return this;
+		}
+
+		/**
+		 * Returns true if the message has the protocol's header and is long
+		 * enough for the fields its type has.
+		 *
+		 * @return true if the fields can be read
+		 */
+		boolean isValid() {
+			if (len < HEADER_LEN || b[off] != FST_HEADER_BYTE || b[off + 1] != SND_HEADER_BYTE)
+				return false;
+
+			switch (type()) {
+			case REGISTER:
+				return len >= REGISTER_LEN && len == REGISTER_LEN + (b[off + 14] & 0xff);
+			case REGISTERED:
+				return len >= REGISTERED_LEN;
+			case FETCH:
+				return len == HEADER_LEN ||
+					   (len >= FETCH_LEN && len == FETCH_LEN + (b[off + 4] & 0xff));
+			case FETCH_RESPONSE:
+				return len >= FETCH_RESPONSE_LEN &&
+					   len >= FETCH_RESPONSE_LEN + numEntries() * FETCH_ENTRY_LEN;
+			case UNREGISTER:
+				return len >= UNREGISTER_LEN;
+			default:
+				return true;
+			}
+		}
+
+		/**
+		 * Returns the sequence number.
+		 *
+		 * @return sequence number, from 0 to 255
+		 */
+		int seqNum() {
+			return b[off + 2] & 0xff;
+		}
+
+		/**
+		 * Returns the message type.
+		 *
+		 * @return message type
+		 */
+		byte type() {
+			return b[off + 3];
+		}
+
+		/**
+		 * Returns the life time of a registered message.
+		 *
+		 * @return life time in seconds
+		 */
+		int lifeTime() {
+			return getShort(b, off + 4);
+		}
+
+		/**
+		 * Returns the number of entries of a fetch response.
+		 *
+		 * @return number of entries
+		 */
+		int numEntries() {
+			return b[off + 4] & 0xff;
+		}
+
+		/**
+		 * Returns the service IP of an entry of a fetch response.
+		 *
+		 * @param i index of the entry
+		 * @return IP as a number
+		 */
+		int entryIp(int i) {
+			return getInt(b, entry(i));
+		}
+
+		/**
+		 * Returns the port number of an entry of a fetch response.
+		 *
+		 * @param i index of the entry
+		 * @return port number, from 0 to 65535
+		 */
+		int entryPort(int i) {
+			return getShort(b, entry(i) + 4);
+		}
+
+		/**
+		 * Returns the service data of an entry of a fetch response.
+		 *
+		 * @param i index of the entry
+		 * @return service data
+		 */
+		int entryData(int i) {
+			return getInt(b, entry(i) + 6);
+		}
+
+		/**
+		 * Returns the position of an entry of a fetch response.
+		 */
+		private int entry(int i) {
+			return off + FETCH_RESPONSE_LEN + i * FETCH_ENTRY_LEN;
+		}
+	}
+}
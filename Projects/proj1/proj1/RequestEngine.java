@@ -0,0 +1,392 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends requests to the registration service and hands each reply to the
+ * request it answers, so many requests can be outstanding on one socket
+ * at once. One receiver thread reads every reply and matches it to its
+ * request by sequence number and message type, as the spec says a reply
+ * copies the sequence number of its request; a reply nobody waits for,
+ * such as the late answer to a request that was given up on, is dropped
+ * instead of being taken for the answer to another request.
+ *
+ * A request that gets no reply within the timeout is sent again with
+ * the same sequence number, up to the given number of tries. The
+ * retransmissions of all requests are driven by one timer thread.
+ *
+ * Sequence numbers are one byte, so at most 256 requests expecting the
+ * same reply type can be outstanding; a request past that waits for one
+ * of them to finish.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class RequestEngine {
+	// sequence numbers and message types are one byte each
+	private static final int NUM_SEQ_NUMS = 256;
+	private static final int NUM_MSG_TYPES = 256;
+
+	// the largest UDP payload, so no reply is ever cut short
+	private static final int MAX_DATAGRAM_LEN = 65507;
+
+	// room for the replies to hundreds of outstanding requests arriving
+	// at once, as the socket's default is room for about a hundred
+	private static final int RECEIVE_BUFFER_LEN = 1 << 20;
+
+	private static final int SEQ_NUM_POS = 2;
+
+	private DatagramSocket socket;
+	private InetAddress host;
+	private int port;
+	private long timeout;  // in milliseconds
+	private int maxTries;
+
+	// outstanding requests by the type of their reply and sequence number
+	private Request[][] pending = new Request[NUM_MSG_TYPES][];
+	private int[] numPending = new int[NUM_MSG_TYPES];
+	private int nextSeqNum;
+	private boolean closed;
+
+	private ScheduledThreadPoolExecutor timer;
+
+	// requests sent, sent again, answered, and replies nobody waited for
+	private AtomicLong sent = new AtomicLong();
+	private AtomicLong resent = new AtomicLong();
+	private AtomicLong answered = new AtomicLong();
+	private AtomicLong stray = new AtomicLong();
+
+	/**
+	 * Constructs a new RequestEngine and starts its receiver thread.
+	 *
+	 * @param socket socket the requests are sent from and the replies
+	 * arrive on; nothing else may read from it
+	 * @param host address of the registration service
+	 * @param port port of the registration service
+	 * @param timeout milliseconds to wait for a reply before sending again
+	 * @param maxTries number of times a request is sent before giving up
+	 * @throws IllegalArgumentException if socket or host is null, or
+	 * timeout or maxTries is not positive
+	 */
+	public RequestEngine(DatagramSocket socket, InetAddress host, int port,
+						 long timeout, int maxTries) {
+		if (socket == null || host == null || timeout <= 0 || maxTries <= 0)
+			throw new IllegalArgumentException("invalid request engine arguments");
+
+		this.socket = socket;
+		try {
+			socket.setReceiveBufferSize(RECEIVE_BUFFER_LEN);
+		} catch (SocketException e) {
+			// keep the default; replies lost to it are sent again
+		}
+		this.host = host;
+		this.port = port;
+		this.timeout = timeout;
+		this.maxTries = maxTries;
+
+		timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "request-timer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.setRemoveOnCancelPolicy(true);
+
+		Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		}, "request-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	/**
+	 * Sends a request. The engine picks its sequence number and writes it
+	 * into the message, so the message must not be changed until the
+	 * request is done.
+	 *
+	 * @param msg the message, with room for the sequence number in its header
+	 * @param replyType message type of the expected reply
+	 * @return the request, which completes with the reply once it arrives;
+	 * it fails with SocketTimeoutException if none arrived after all the
+	 * tries, or with IOException if the request could not be sent
+	 * @throws InterruptedException if interrupted waiting for a sequence
+	 * number to become free
+	 */
+	public Request send(byte[] msg, byte replyType) throws InterruptedException {
+		return send(msg, msg.length, replyType);
+	}
+
+	/**
+	 * Sends a request that is the first len bytes of an array, as send
+	 * does.
+	 *
+	 * @param msg array holding the message
+	 * @param len length of the message
+	 * @param replyType message type of the expected reply
+	 * @return the request, which completes with the reply once it arrives
+	 * @throws InterruptedException if interrupted waiting for a sequence
+	 * number to become free
+	 */
+	public Request send(byte[] msg, int len, byte replyType) throws InterruptedException {
+		Request r = new Request(msg, len, replyType & 0xff);
+		register(r);
+		transmit(r);
+		return r;
+	}
+
+	/**
+	 * Sends a request written into an array from RegistrationCodec.acquire,
+	 * and gives the array back to the pool once the request is done.
+	 *
+	 * @param msg array holding the message
+	 * @param len length of the message
+	 * @param replyType message type of the expected reply
+	 * @return the request, which completes with the reply once it arrives
+	 * @throws InterruptedException if interrupted waiting for a sequence
+	 * number to become free
+	 */
+	public Request sendPooled(byte[] msg, int len, byte replyType) throws InterruptedException {
+		final Request r = new Request(msg, len, replyType & 0xff);
+		r.whenComplete(new BiConsumer<byte[], Throwable>() {
+			@Override
+			public void accept(byte[] reply, Throwable t) {
+				// once a retransmission under way is done with the array
+				synchronized (r) {
+					RegistrationCodec.release(r.msg);
+				}
+			}
+		});
+		register(r);
+		transmit(r);
+		return r;
+	}
+
+	/**
+	 * Stops the engine: the outstanding requests fail, and so do the ones
+	 * sent from now on. The socket is left open.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		timer.shutdownNow();
+		for (int type = 0; type < NUM_MSG_TYPES; type++) {
+			for (int seq = 0; seq < NUM_SEQ_NUMS; seq++) {
+				Request r = take(type, seq);
+				if (r != null)
+					r.completeExceptionally(new IOException("request engine closed"));
+			}
+		}
+	}
+
+	/**
+	 * Returns what the engine did so far, for the log.
+	 *
+	 * @return requests sent, sent again, answered, and replies dropped
+	 */
+	public String report() {
+		return "requests sent: " + sent.get() + ", resent: " + resent.get() +
+			   ", answered: " + answered.get() + ", stray replies: " + stray.get();
+	}
+
+	/**
+	 * Returns the number of times requests were sent again.
+	 *
+	 * @return number of retransmissions
+	 */
+	public long retransmissions() {
+		return resent.get();
+	}
+
+	/**
+	 * Gives a request a sequence number that no outstanding request
+	 * expecting the same reply type has, waiting for one if necessary.
+	 */
+	private synchronized void register(Request r) throws InterruptedException {
+		if (pending[r.type] == null)
+			pending[r.type] = new Request[NUM_SEQ_NUMS];
+		while (numPending[r.type] == NUM_SEQ_NUMS && !closed)
+			wait();
+		if (closed) {
+			r.completeExceptionally(new IOException("request engine closed"));
+			return;
+		}
+
+		// the numbers go up across all requests, skipping the ones in use
+		Request[] slots = pending[r.type];
+		while (slots[nextSeqNum] != null)
+			nextSeqNum = (nextSeqNum + 1) % NUM_SEQ_NUMS;
+		r.seqNum = nextSeqNum;
+		nextSeqNum = (nextSeqNum + 1) % NUM_SEQ_NUMS;
+		slots[r.seqNum] = r;
+		numPending[r.type]++;
+		r.msg[SEQ_NUM_POS] = (byte) r.seqNum;
+	}
+
+	/**
+	 * Removes and returns the outstanding request of the given reply type
+	 * and sequence number, or returns null if there is none.
+	 */
+	private synchronized Request take(int type, int seq) {
+		Request[] slots = pending[type];
+		if (slots == null || slots[seq] == null)
+			return null;
+
+		Request r = slots[seq];
+		slots[seq] = null;
+		if (numPending[type]-- == NUM_SEQ_NUMS)
+			notifyAll();
+		return r;
+	}
+
+	/**
+	 * Sends a request, or sends it again, and sets the timer of the try.
+	 */
+	private void transmit(final Request r) {
+		try {
+			synchronized (r) {
+				if (r.isDone())
+					return;
+
+				// counted first, so the count is right once the reply comes
+				if (r.tries++ == 0)
+					r.sentAt = System.nanoTime();
+				socket.send(new DatagramPacket(r.msg, r.len, host, port));
+			}
+		} catch (IOException e) {
+			if (take(r.type, r.seqNum) == r)
+				r.completeExceptionally(e);
+			return;
+		}
+		if (r.tries == 1)
+			sent.incrementAndGet();
+		else
+			resent.incrementAndGet();
+
+		try {
+			r.timeout = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					expire(r);
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			// closed meanwhile; close() fails the request
+		}
+	}
+
+	/**
+	 * Sends a request again whose reply did not come in time, or gives up
+	 * on it after the last try.
+	 */
+	private void expire(Request r) {
+		if (r.tries < maxTries) {
+			transmit(r);
+		} else if (take(r.type, r.seqNum) == r) {
+			r.completeExceptionally(new SocketTimeoutException(
+					"No response received after " + maxTries + " tries."));
+		}
+	}
+
+	/**
+	 * Reads the replies and completes the requests they answer, until the
+	 * socket is closed.
+	 */
+	private void receive() {
+		byte[] buf = new byte[MAX_DATAGRAM_LEN];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		RegistrationCodec.Message reply = new RegistrationCodec.Message();
+		while (true) {
+			try {
+				packet.setLength(buf.length);
+				socket.receive(packet);
+			} catch (SocketException e) {
+				// the socket was closed
+				return;
+			} catch (IOException e) {
+				System.out.println("IO: " + e.getMessage());
+				continue;
+			}
+
+			// only well-formed replies from the service
+			int len = packet.getLength();
+			Request r = null;
+			if (reply.wrap(buf, 0, len).isValid() &&
+				port == packet.getPort() && host.equals(packet.getAddress()))
+				r = take(reply.type() & 0xff, reply.seqNum());
+			if (r == null) {
+				stray.incrementAndGet();
+				continue;
+			}
+
+			r.answeredAt = System.nanoTime();
+			if (r.timeout != null)
+				r.timeout.cancel(false);
+			answered.incrementAndGet();
+			r.complete(Arrays.copyOf(buf, len));
+		}
+	}
+
+	/**
+	 * A request, which completes with its reply.
+	 */
+	public static class Request extends CompletableFuture<byte[]> {
+		final byte[] msg;
+		final int len;
+		final int type;  // of the reply
+		int seqNum;
+		volatile int tries;
+		volatile long sentAt;
+		volatile long answeredAt;
+		volatile ScheduledFuture<?> timeout;
+
+		/**
+		 * Constructs a new Request.
+		 *
+		 * @param m array holding the message
+		 * @param l length of the message
+		 * @param t message type of the expected reply
+		 */
+		Request(byte[] m, int l, int t) {
+			msg = m;
+			len = l;
+			type = t;
+		}
+
+		/**
+		 * Returns the number of times the request was sent.
+		 *
+		 * @return 1 if the request was not sent again
+		 */
+		public int tries() {
+			return tries;
+		}
+
+		/**
+		 * Returns the time from when the request was first sent to when its
+		 * reply arrived, including the time spent sending it again.
+		 *
+		 * @return the time in nanoseconds, or -1 if no reply arrived
+		 */
+		public long latency() {
+			return answeredAt == 0 ? -1 : answeredAt - sentAt;
+		}
+	}
+}
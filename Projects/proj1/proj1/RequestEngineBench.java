@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Measures how many requests per second the request engine completes
+ * against a LocalRegistrationService on the local host, with a given
+ * number of requests outstanding at once. With 1 outstanding request
+ * the agent works the way it did before the engine, waiting for each
+ * response before sending the next request.
+ *
+ * Usage: java RequestEngineBench [requests] [outstanding,...] [drop rate]
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class RequestEngineBench {
+	private static final int DEFAULT_NUM_REQUESTS = 200000;
+	private static final String DEFAULT_OUTSTANDING = "1,16,64,256,512";
+
+	// short, so requests the service drops are sent again soon
+	private static final int TIMEOUT = 200;
+	private static final int MAX_NUM_TRIES = 3;
+
+	private static final String NAME = "bench";
+	private static final byte[] LOOPBACK = { 127, 0, 0, 1 };
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int numRequests = args.length > 0 ? Integer.valueOf(args[0]).intValue() : DEFAULT_NUM_REQUESTS;
+		String[] outstanding = (args.length > 1 ? args[1] : DEFAULT_OUTSTANDING).split(",");
+		double dropRate = args.length > 2 ? Double.valueOf(args[2]).doubleValue() : 0;
+
+		LocalRegistrationService service = new LocalRegistrationService(0, dropRate);
+		service.start();
+
+		// warm up, then measure
+		run(service, numRequests / 4, 64, false);
+		for (String k : outstanding)
+			run(service, numRequests, Integer.valueOf(k).intValue(), true);
+		service.close();
+	}
+
+	/**
+	 * Sends the requests, half registers and half probes, keeping the given
+	 * number of them outstanding, and prints the rate they completed at.
+	 */
+	private static void run(LocalRegistrationService service, int numRequests,
+							int outstanding, boolean print) throws IOException, InterruptedException {
+		DatagramSocket socket = new DatagramSocket();
+		RequestEngine engine = new RequestEngine(socket, InetAddress.getLoopbackAddress(),
+												 service.getPort(), TIMEOUT, MAX_NUM_TRIES);
+		final Semaphore permits = new Semaphore(outstanding);
+		final AtomicLong failed = new AtomicLong();
+		BiConsumer<byte[], Throwable> done = new BiConsumer<byte[], Throwable>() {
+			@Override
+			public void accept(byte[] res, Throwable t) {
+				if (t != null)
+					failed.incrementAndGet();
+				permits.release();
+			}
+		};
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numRequests; i++) {
+			permits.acquire();
+			CompletableFuture<byte[]> res;
+			if (i % 2 == 0) {
+				res = engine.send(register(i), RegistrationCodec.REGISTERED);
+			} else {
+				byte[] msg = RegistrationCodec.acquire();
+				res = engine.sendPooled(msg, RegistrationCodec.probe(msg, 0, 0),
+										RegistrationCodec.ACK);
+			}
+			res.whenComplete(done);
+		}
+		permits.acquire(outstanding);
+		long elapsed = System.nanoTime() - start;
+
+		if (print) {
+			System.out.printf("%4d outstanding: %9.0f requests/s, %d failed, %d resent%n",
+							  outstanding, numRequests * 1e9 / elapsed, failed.get(),
+							  engine.retransmissions());
+		}
+		engine.close();
+		socket.close();
+	}
+
+	/**
+	 * Returns a register message, for a port that depends on i.
+	 */
+	private static byte[] register(int i) {
+		byte[] msg = new byte[RegistrationCodec.registerLen(NAME)];
+		RegistrationCodec.register(msg, 0, 0, LOOPBACK, i & 0xffff, i, NAME);
+		return msg;
+	}
+}
@@ -0,0 +1,295 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Reregisters the registered ports before their registrations expire,
+ * all of them from one thread. The registrations wait on a hashed timer
+ * wheel: a ring of WHEEL_LEN slots, one per second, where a registration
+ * due in d seconds sits in the slot d seconds ahead, going round the ring
+ * d / WHEEL_LEN times first. Each second the thread takes the
+ * registrations due from one slot and sends them all in a batch through
+ * the request engine, without waiting for the responses; each response
+ * puts its registration back on the wheel for the next time. A
+ * registration thus costs one small object and its message, linked into
+ * its slot, rather than a thread of its own.
+ *
+ * A port is reregistered REREG_MARGIN seconds before its lifetime ends,
+ * less a random part of up to a tenth of that, so the ports registered
+ * together, or given the same lifetime, spread out over the seconds
+ * instead of all coming due at once every time.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class ReregScheduler {
+	private static final long TICK_LEN = 1000000000L;  // in nanoseconds
+	private static final int WHEEL_LEN = 512;  // in ticks
+	private static final int REREG_MARGIN = 30;  // in seconds
+	private static final int JITTER_DIVISOR = 10;
+
+	/**
+	 * Tells how the reregistrations went.
+	 */
+	public interface Listener {
+		/**
+		 * Called when a port was reregistered.
+		 *
+		 * @param port port number
+		 * @param lifeTime life time of the registration
+		 */
+		void reregistered(int port, int lifeTime);
+
+		/**
+		 * Called when a port could not be reregistered; it is not
+		 * reregistered again.
+		 *
+		 * @param port port number
+		 * @param cause why
+		 */
+		void failed(int port, Throwable cause);
+	}
+
+	private RequestEngine engine;
+	private byte resType;
+	private Listener listener;
+	private Random random = new Random();
+
+	// first registration of each slot, and the registrations by port
+	private Registration[] wheel = new Registration[WHEEL_LEN];
+	private Map<Integer, Registration> registrations = new HashMap<Integer, Registration>();
+	private long tick;  // the last tick handled
+	private Thread thread;
+
+	/**
+	 * Constructs a new ReregScheduler and starts its thread.
+	 *
+	 * @param engine engine to send the register messages through
+	 * @param resType message type of the response to a register message
+	 * @param listener told how the reregistrations went
+	 */
+	public ReregScheduler(RequestEngine engine, byte resType, Listener listener) {
+		this.engine = engine;
+		this.resType = resType;
+		this.listener = listener;
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					runWheel();
+				} catch (InterruptedException e) {
+					// closed
+				}
+			}
+		}, "rereg-scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Reregisters a port from now on, in place of any register message
+	 * it was reregistered with so far.
+	 *
+	 * @param port port number
+	 * @param msg register message for the port; the request engine fills in
+	 * its sequence number each time
+	 * @param lifeTime life time of the registration just made
+	 */
+	public synchronized void schedule(int port, byte[] msg, int lifeTime) {
+		cancel(port);
+		Registration r = new Registration(port, msg);
+		registrations.put(port, r);
+		add(r, lifeTime);
+	}
+
+	/**
+	 * Stops reregistering a port.
+	 *
+	 * @param port port number
+	 */
+	public synchronized void cancel(int port) {
+		Registration r = registrations.remove(port);
+		if (r != null && r.slot >= 0)
+			unlink(r);
+	}
+
+	/**
+	 * Returns true if the port is being reregistered.
+	 *
+	 * @param port port number
+	 * @return true if the port is being reregistered
+	 */
+	public synchronized boolean isScheduled(int port) {
+		return registrations.containsKey(port);
+	}
+
+	/**
+	 * Returns the register message a port is reregistered with.
+	 *
+	 * @param port port number
+	 * @return the message, or null if the port is not being reregistered
+	 */
+	public synchronized byte[] getMessage(int port) {
+		Registration r = registrations.get(port);
+		return r == null ? null : r.msg;
+	}
+
+	/**
+	 * Returns the number of ports being reregistered.
+	 *
+	 * @return the number of ports
+	 */
+	public synchronized int size() {
+		return registrations.size();
+	}
+
+	/**
+	 * Stops reregistering all ports.
+	 */
+	public void close() {
+		thread.interrupt();
+		synchronized (this) {
+			registrations.clear();
+			for (int i = 0; i < WHEEL_LEN; i++)
+				wheel[i] = null;
+		}
+	}
+
+	/**
+	 * Puts a registration on the wheel, to be reregistered before its life
+	 * time ends.
+	 */
+	private void add(Registration r, int lifeTime) {
+		int delay = 0;
+		if (lifeTime >= REREG_MARGIN)
+			delay = lifeTime - REREG_MARGIN;
+		delay -= random.nextInt(delay / JITTER_DIVISOR + 1);
+
+		// due at the next tick at the earliest
+		int ticks = Math.max(delay, 1);
+		r.slot = (int) ((tick + ticks) % WHEEL_LEN);
+		r.rounds = (ticks - 1) / WHEEL_LEN;
+		r.prev = null;
+		r.next = wheel[r.slot];
+		if (r.next != null)
+			r.next.prev = r;
+		wheel[r.slot] = r;
+	}
+
+	/**
+	 * Takes a registration off the wheel.
+	 */
+	private void unlink(Registration r) {
+		if (r.prev != null)
+			r.prev.next = r.next;
+		else
+			wheel[r.slot] = r.next;
+		if (r.next != null)
+			r.next.prev = r.prev;
+		r.prev = null;
+		r.next = null;
+		r.slot = -1;
+	}
+
+	/**
+	 * Handles a tick every second, sending the registrations that are due.
+	 */
+	private void runWheel() throws InterruptedException {
+		long start = System.nanoTime();
+		List<Registration> due = new ArrayList<Registration>();
+		while (true) {
+			// sleep to the next tick, from the start so no time is lost
+			long wait;
+			synchronized (this) {
+				wait = start + (tick + 1) * TICK_LEN - System.nanoTime();
+			}
+			if (wait > 0)
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+
+			synchronized (this) {
+				tick++;
+				Registration r = wheel[(int) (tick % WHEEL_LEN)];
+				while (r != null) {
+					Registration next = r.next;
+					if (r.rounds == 0) {
+						unlink(r);
+						due.add(r);
+					} else {
+						r.rounds--;
+					}
+					r = next;
+				}
+			}
+
+			for (Registration r : due)
+				send(r);
+			due.clear();
+		}
+	}
+
+	/**
+	 * Reregisters a port, and puts it back on the wheel once the service
+	 * answers.
+	 */
+	private void send(final Registration r) throws InterruptedException {
+		synchronized (this) {
+			if (registrations.get(r.port) != r)
+				return;
+		}
+
+		CompletableFuture<byte[]> res = engine.send(r.msg, resType);
+		res.whenComplete(new BiConsumer<byte[], Throwable>() {
+			@Override
+			public void accept(byte[] response, Throwable t) {
+				// the engine passes on only well-formed responses
+				int lifeTime = 0;
+				synchronized (ReregScheduler.this) {
+					// unregistered, or registered again, meanwhile
+					if (registrations.get(r.port) != r)
+						return;
+					if (t != null) {
+						registrations.remove(r.port);
+					} else {
+						lifeTime = new RegistrationCodec.Message()
+								.wrap(response, 0, response.length).lifeTime();
+						add(r, lifeTime);
+					}
+				}
+
+				if (t != null)
+					listener.failed(r.port, t);
+				else
+					listener.reregistered(r.port, lifeTime);
+			}
+		});
+	}
+
+	/**
+	 * A registered port, linked into the slot of the wheel it is due at
+	 * while it waits for its next reregistration.
+	 */
+	static class Registration {
+		final int port;
+		final byte[] msg;
+		int slot = -1;  // -1 while not on the wheel
+		int rounds;  // times round the wheel left before it is due
+		Registration prev;
+		Registration next;
+
+		/**
+		 * Constructs a new Registration.
+		 *
+		 * @param port port number
+		 * @param msg register message
+		 */
+		Registration(int port, byte[] msg) {
+			this.port = port;
+			this.msg = msg;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registers many ports at once with a LocalRegistrationService on the
+ * local host and has the ReregScheduler keep them registered, then prints
+ * what that costs: the heap each registration takes, the threads the
+ * agent runs, and how the reregistrations spread over the seconds. All
+ * the ports get the same life time, so without jitter they would all be
+ * reregistered in the same second every time.
+ *
+ * Usage: java ReregSchedulerBench [ports] [life time] [seconds]
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class ReregSchedulerBench {
+	private static final int DEFAULT_NUM_PORTS = 10000;
+	private static final int DEFAULT_LIFETIME = 80;  // in seconds
+	private static final int DEFAULT_DURATION = 60;  // in seconds
+
+	private static final int TIMEOUT = 1000;
+	private static final int MAX_NUM_TRIES = 3;
+
+	private static final String NAME = "bench";
+	private static final byte[] LOOPBACK = { 127, 0, 0, 1 };
+
+	public static void main(String[] args)
+			throws IOException, InterruptedException, ExecutionException {
+		int numPorts = args.length > 0 ? Integer.valueOf(args[0]).intValue() : DEFAULT_NUM_PORTS;
+		int lifeTime = args.length > 1 ? Integer.valueOf(args[1]).intValue() : DEFAULT_LIFETIME;
+		final int duration = args.length > 2 ? Integer.valueOf(args[2]).intValue() : DEFAULT_DURATION;
+
+		LocalRegistrationService service = new LocalRegistrationService(0, 0, lifeTime);
+		service.start();
+		DatagramSocket socket = new DatagramSocket();
+		RequestEngine engine = new RequestEngine(socket, InetAddress.getLoopbackAddress(),
+												 service.getPort(), TIMEOUT, MAX_NUM_TRIES);
+
+		// reregistrations done in each second since the start
+		final AtomicIntegerArray perSecond = new AtomicIntegerArray(duration);
+		final AtomicLong failed = new AtomicLong();
+		final long start = System.nanoTime();
+		ReregScheduler.Listener counter = new ReregScheduler.Listener() {
+			@Override
+			public void reregistered(int port, int lifeTime) {
+				int second = (int) ((System.nanoTime() - start) / 1000000000L);
+				if (second < duration)
+					perSecond.incrementAndGet(second);
+			}
+
+			@Override
+			public void failed(int port, Throwable cause) {
+				failed.incrementAndGet();
+			}
+		};
+		ReregScheduler reregs = new ReregScheduler(engine, RegistrationCodec.REGISTERED, counter);
+
+		// register the ports, then hand them to the scheduler
+		byte[][] msgs = new byte[numPorts][];
+		List<CompletableFuture<byte[]>> responses = new ArrayList<CompletableFuture<byte[]>>();
+		for (int i = 0; i < numPorts; i++) {
+			msgs[i] = register(i);
+			responses.add(engine.send(msgs[i], RegistrationCodec.REGISTERED));
+		}
+		int[] lifeTimes = new int[numPorts];
+		for (int i = 0; i < numPorts; i++) {
+			byte[] res = responses.get(i).get();
+			lifeTimes[i] = RegistrationAgent.getLifeTime(res);
+		}
+
+		long before = usedHeap();
+		for (int i = 0; i < numPorts; i++)
+			reregs.schedule(i, msgs[i], lifeTimes[i]);
+		long after = usedHeap();
+
+		System.out.printf("%d ports: %d bytes of heap per registration, %d live threads%n",
+						  numPorts, (after - before) / numPorts, Thread.activeCount());
+
+		Thread.sleep(duration * 1000L);
+		int total = 0;
+		int busiest = 0;
+		int busySeconds = 0;
+		for (int i = 0; i < duration; i++) {
+			int n = perSecond.get(i);
+			total += n;
+			busiest = Math.max(busiest, n);
+			if (n > 0)
+				busySeconds++;
+		}
+		System.out.printf("%d reregistrations in %d s, over %d seconds, at most %d in one; " +
+						  "%d failed%n", total, duration, busySeconds, busiest, failed.get());
+		System.out.println(engine.report());
+
+		reregs.close();
+		engine.close();
+		socket.close();
+		service.close();
+	}
+
+	/**
+	 * Returns the heap in use once the garbage is collected.
+	 */
+	private static long usedHeap() throws InterruptedException {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * Returns the register message of port i.
+	 */
+	private static byte[] register(int i) {
+		byte[] msg = new byte[RegistrationCodec.registerLen(NAME)];
+		RegistrationCodec.register(msg, 0, 0, LOOPBACK, i & 0xffff, i, NAME);
+		return msg;
+	}
+}
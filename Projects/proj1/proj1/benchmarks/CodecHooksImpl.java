@@ -0,0 +1,103 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import bench.CodecHooks;
+
+/**
+ * Implements the benchmark hooks on top of the agent classes. It lives in
+ * the default package so it can call them directly, including the package
+ * private ones.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class CodecHooksImpl implements CodecHooks {
+	private static final byte[] IP = { 10, 0, 0, 1 };
+	private static final String NAME = "service.example";
+
+	@Override
+	public CodecWorkload codec(int numEntries) {
+		// a fetch response and an ACK, as the service sends them
+		final byte[] fr = new byte[RegistrationCodec.FETCH_RESPONSE_LEN +
+								   numEntries * RegistrationCodec.FETCH_ENTRY_LEN];
+		RegistrationCodec.fetchResponse(fr, 0, 7, numEntries);
+		for (int i = 0; i < numEntries; i++)
+			RegistrationCodec.fetchEntry(fr, 0, i, 0x0a000000 + i, 1024 + i, 0xdeadbeef);
+		final byte[] ack = new byte[RegistrationCodec.HEADER_LEN];
+		RegistrationCodec.ack(ack, 0, 7);
+
+		final byte[] buf = new byte[RegistrationCodec.MAX_MSG_LEN];
+		final RegistrationCodec.Message view = new RegistrationCodec.Message();
+
+		return new CodecWorkload() {
+			@Override
+			public int registerCodec(int seqNum) {
+				return RegistrationCodec.register(buf, 0, seqNum, IP, seqNum & 0xffff, 
+												  seqNum, NAME) + buf[9];
+			}
+
+			@Override
+			public int registerByteBuffer(int seqNum) {
+				ByteBuffer bb = header((byte) 0x1, 15 + NAME.length(), (byte) seqNum);
+				bb.put(IP);
+				bb.putShort((short) seqNum);
+				bb.putInt(seqNum);
+				bb.put((byte) NAME.length());
+				bb.put(NAME.getBytes());
+				return bb.array().length + bb.array()[9];
+			}
+
+			@Override
+			public long fetchResponseCodec() {
+				view.wrap(fr, 0, fr.length);
+				if (!view.isValid())
+					throw new IllegalStateException("malformed fetch response");
+				long sum = 0;
+				for (int e = 0, n = view.numEntries(); e < n; e++)
+					sum += view.entryIp(e) + view.entryPort(e) + view.entryData(e);
+				return sum;
+			}
+
+			@Override
+			public long fetchResponseByteBuffer() {
+				long sum = 0;
+				int n = ByteBuffer.wrap(fr).order(ByteOrder.BIG_ENDIAN).get(4) & 0xff;
+				for (int e = 0; e < n; e++) {
+					byte[] ip = new byte[4];
+					for (int k = 0; k < 4; k++)
+						ip[k] = ByteBuffer.wrap(fr).order(ByteOrder.BIG_ENDIAN).get(5 + k + e * 10);
+					short port = ByteBuffer.wrap(fr).order(ByteOrder.BIG_ENDIAN).getShort(9 + e * 10);
+					int data = ByteBuffer.wrap(fr).order(ByteOrder.BIG_ENDIAN).getInt(11 + e * 10);
+					sum += ip[3] + (port & 0xffff) + data;
+				}
+				return sum;
+			}
+
+			@Override
+			public int probeCodec(int seqNum) {
+				int len = RegistrationCodec.probe(buf, 0, seqNum);
+				view.wrap(ack, 0, ack.length);
+				return len + (view.isValid() ? view.seqNum() + view.type() : 0) + buf[2];
+			}
+
+			@Override
+			public int probeByteBuffer(int seqNum) {
+				byte[] msg = header((byte) 0x6, 4, (byte) seqNum).array();
+				ByteBuffer res = ByteBuffer.wrap(ack).order(ByteOrder.BIG_ENDIAN);
+				return msg.length + res.get(2) + res.get(3) + msg[2];
+			}
+		};
+	}
+
+	/**
+	 * Returns a buffer with the header of a message, as the agent built it.
+	 */
+	private static ByteBuffer header(byte msgType, int len, byte seqNum) {
+		ByteBuffer bb = ByteBuffer.allocate(len).order(ByteOrder.BIG_ENDIAN);
+		bb.put((byte) 0xC4);
+		bb.put((byte) 0x61);
+		bb.put(seqNum);
+		bb.put(msgType);
+		return bb;
+	}
+}
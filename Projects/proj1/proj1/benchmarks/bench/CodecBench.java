@@ -0,0 +1,64 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encoding and decoding of registration messages: RegistrationCodec
+ * against the ByteBuffer code the agent used before, for a register
+ * message, the entries of a fetch response, and a probe with its ACK.
+ * Run with -prof gc to see that the codec allocates nothing.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBench {
+	// entries of the fetch response
+	@Param({ "100" })
+	public int entries;
+
+	private CodecHooks.CodecWorkload workload;
+	private int seqNum;
+
+	@Setup
+	public void setup() {
+		workload = CodecHooks.load().codec(entries);
+	}
+
+	@Benchmark
+	public int registerCodec() {
+		return workload.registerCodec(seqNum++);
+	}
+
+	@Benchmark
+	public int registerByteBuffer() {
+		return workload.registerByteBuffer(seqNum++);
+	}
+
+	@Benchmark
+	public long fetchResponseCodec() {
+		return workload.fetchResponseCodec();
+	}
+
+	@Benchmark
+	public long fetchResponseByteBuffer() {
+		return workload.fetchResponseByteBuffer();
+	}
+
+	@Benchmark
+	public int probeCodec() {
+		return workload.probeCodec(seqNum++);
+	}
+
+	@Benchmark
+	public int probeByteBuffer() {
+		return workload.probeByteBuffer(seqNum++);
+	}
+}
@@ -0,0 +1,91 @@
+package bench;
+
+/**
+ * The parts of the registration agent the benchmarks drive. JMH only
+ * accepts benchmarks in a named package, which cannot refer to the agent
+ * classes in the default package, so the benchmarks call through this
+ * interface. CodecHooksImpl implements it next to the agent classes and
+ * is loaded by name once per trial.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public interface CodecHooks {
+	/**
+	 * Encoding and decoding of the registration protocol, with
+	 * RegistrationCodec and the way the agent did it before: a new
+	 * ByteBuffer per message and a ByteBuffer.wrap per field read.
+	 */
+	interface CodecWorkload {
+		/**
+		 * Encodes a register message into a reused array.
+		 *
+		 * @param seqNum sequence number
+		 * @return a result depending on the bytes written
+		 */
+		int registerCodec(int seqNum);
+
+		/**
+		 * Encodes a register message into a new ByteBuffer.
+		 *
+		 * @param seqNum sequence number
+		 * @return a result depending on the bytes written
+		 */
+		int registerByteBuffer(int seqNum);
+
+		/**
+		 * Reads every entry of a fetch response in place, through a
+		 * reused view.
+		 *
+		 * @return a result depending on every field read
+		 */
+		long fetchResponseCodec();
+
+		/**
+		 * Reads every entry of a fetch response, wrapping the message
+		 * for every field.
+		 *
+		 * @return a result depending on every field read
+		 */
+		long fetchResponseByteBuffer();
+
+		/**
+		 * Encodes a probe into a reused array and reads the ACK to it.
+		 *
+		 * @param seqNum sequence number
+		 * @return a result depending on the bytes written and read
+		 */
+		int probeCodec(int seqNum);
+
+		/**
+		 * Encodes a probe into a new ByteBuffer and reads the ACK to it.
+		 *
+		 * @param seqNum sequence number
+		 * @return a result depending on the bytes written and read
+		 */
+		int probeByteBuffer(int seqNum);
+	}
+
+	/**
+	 * Returns a codec workload whose fetch response has the given number
+	 * of entries.
+	 *
+	 * @param numEntries entries of the fetch response, from 0 to 255
+	 * @return the workload
+	 */
+	CodecWorkload codec(int numEntries);
+
+	/**
+	 * Loads the implementation next to the agent classes.
+	 *
+	 * @return the hooks
+	 */
+	static CodecHooks load() {
+		try {
+			return (CodecHooks) Class.forName("CodecHooksImpl")
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("agent classes not on the class path", e);
+		}
+	}
+}
@@ -0,0 +1,407 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The access log and console output of the proxy, shared by the blocking
+ * and the non-blocking modes. Request handlers never write to the console
+ * or the log file themselves: they drop a record into a ring buffer and
+ * go on, and a background thread formats the records and writes them out
+ * in batches. A slow terminal or a full disk only holds up that thread.
+ *
+ * Claiming a slot in the ring is one compare-and-set, and the slots are
+ * allocated once, so logging takes no lock and allocates nothing. When the
+ * writer falls so far behind that the ring is full, new records are
+ * dropped and counted rather than making the handler wait.
+ *
+ * Access records go to the console unless a log file is opened, which is
+ * rotated once it reaches a given size. Messages such as errors always go
+ * to the console.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class AccessLog {
+	public static final long DEFAULT_MAX_FILE_BYTES = 64L << 20;
+	public static final int DEFAULT_MAX_FILES = 5;
+
+	// number of records the ring holds; a power of two
+	private static final int RING_SIZE = 8192;
+	private static final int RING_MASK = RING_SIZE - 1;
+	// how long the writer sleeps when the ring is empty
+	private static final long IDLE_WAIT = 10000000;  // in nanoseconds
+	private static final int WRITE_BUFFER_LEN = 65536;
+	// how long a stopping proxy waits for the writer to catch up
+	private static final long SHUTDOWN_WAIT = 2000;  // in milliseconds
+
+	private static final Record[] ring = new Record[RING_SIZE];
+	// next slot handed to a producer, and next slot the writer reads
+	private static final AtomicLong tail = new AtomicLong();
+	private static volatile long head;
+
+	private static final LongAdder written = new LongAdder();
+	private static final LongAdder dropped = new LongAdder();
+
+	// only used by the writer, under the class lock; console lines of a 
+	// batch are collected and go to System.out in one write
+	private static ByteArrayOutputStream console = new ByteArrayOutputStream(WRITE_BUFFER_LEN);
+	private static OutputStream file;
+	private static File path;
+	private static long fileBytes;
+	private static long maxFileBytes;
+	private static int maxFiles;
+	private static StringBuilder line = new StringBuilder();
+	private static byte[] scratch = new byte[1024];
+
+	static {
+		for (int i = 0; i < RING_SIZE; i++)
+			ring[i] = new Record(i);
+
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					if (drain() == 0)
+						LockSupport.parkNanos(IDLE_WAIT);
+				}
+			}
+		}, "access-log");
+		writer.setDaemon(true);
+		writer.start();
+
+		// give the writer a moment to write out what is still in the ring 
+		// when the proxy is stopped, but do not hang on a stuck console
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT;
+				while (head < tail.get() && System.currentTimeMillis() < deadline)
+					LockSupport.parkNanos(IDLE_WAIT / 10);
+			}
+		}, "access-log-flush"));
+	}
+
+	/**
+	 * Sends the access records to a file from now on, starting a new file
+	 * once it holds maxBytes bytes. The previous files are kept as
+	 * file.1, file.2 and so on, up to maxFiles of them.
+	 *
+	 * @param f log file, appended to if it exists
+	 * @param maxBytes size at which the file is rotated
+	 * @param maxFiles number of rotated files kept
+	 * @throws IllegalArgumentException if f is null, maxBytes is not
+	 * positive or maxFiles is negative
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static synchronized void open(File f, long maxBytes, int maxFiles)
+			throws IOException {
+		if (f == null || maxBytes <= 0 || maxFiles < 0)
+			throw new IllegalArgumentException("invalid access log settings");
+
+		closeFile();
+		path = f;
+		maxFileBytes = maxBytes;
+		AccessLog.maxFiles = maxFiles;
+		openFile();
+	}
+
+	/**
+	 * Logs a request that has been answered.
+	 *
+	 * @param client address of the client
+	 * @param host origin host, or null if there was none
+	 * @param requestLine first line of the request
+	 * @param status status code sent to the client, or 0 if no response
+	 * was sent
+	 * @param bytes bytes sent to the client
+	 * @param latency nanoseconds from the request header to the end of
+	 * the response
+	 */
+	public static void access(String client, String host, String requestLine,
+							  int status, long bytes, long latency) {
+		Record r = claim();
+		if (r == null)
+			return;
+
+		r.time = System.currentTimeMillis();
+		r.client = client;
+		r.host = host;
+		r.requestLine = requestLine;
+		r.status = status;
+		r.bytes = bytes;
+		r.latency = latency;
+		r.publish();
+	}
+
+	/**
+	 * Prints a message on the console, such as an error.
+	 *
+	 * @param text the message
+	 */
+	public static void message(String text) {
+		Record r = claim();
+		if (r == null)
+			return;
+
+		r.message = text;
+		r.publish();
+	}
+
+	/**
+	 * Returns the number of records written out so far.
+	 *
+	 * @return records written
+	 */
+	public static long written() {
+		return written.sum();
+	}
+
+	/**
+	 * Returns the number of records dropped because the ring was full.
+	 *
+	 * @return records dropped
+	 */
+	public static long dropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Claims the next free slot of the ring.
+	 *
+	 * @return the slot, or null if the ring is full
+	 */
+	private static Record claim() {
+		long pos = tail.get();
+		while (true) {
+			Record r = ring[(int) pos & RING_MASK];
+			long diff = r.seq - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1))
+					return r;
+				pos = tail.get();
+			} else if (diff < 0) {
+				// the writer has not read this slot yet
+				dropped.increment();
+				return null;
+			} else {
+				// another producer took the slot first
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Writes out the published records in the ring.
+	 *
+	 * @return number of records taken from the ring
+	 */
+	private static synchronized int drain() {
+		int n = 0;
+		boolean toFile = false;
+		long h = head;
+		while (true) {
+			Record r = ring[(int) h & RING_MASK];
+			if (r.seq != h + 1)
+				break;
+
+			line.setLength(0);
+			if (r.message != null) {
+				line.append(r.message).append('\n');
+				write(console, line);
+			} else {
+				format(r, line);
+				if (file != null && fileBytes >= maxFileBytes)
+					rotate();
+				if (file != null && write(file, line)) {
+					fileBytes += line.length();
+					toFile = true;
+				} else {
+					// no log file, or writing it failed
+					write(console, line);
+				}
+			}
+
+			r.clear();
+			r.seq = h + RING_SIZE;
+			head = ++h;
+			n++;
+		}
+
+		if (console.size() > 0) {
+			try {
+				console.writeTo(System.out);
+			} catch (IOException e) {
+				// PrintStream does not throw
+			}
+			System.out.flush();
+			console.reset();
+		}
+		if (toFile && file != null)
+			flush(file);
+		written.add(n);
+		return n;
+	}
+
+	/**
+	 * Formats an access record as one line of "name=value" fields.
+	 */
+	private static void format(Record r, StringBuilder sb) {
+		// the request line is split here rather than by the handler
+		String method = null;
+		String uri = null;
+		if (r.requestLine != null) {
+			int sp1 = r.requestLine.indexOf(' ');
+			int sp2 = sp1 < 0 ? -1 : r.requestLine.indexOf(' ', sp1 + 1);
+			method = sp1 < 0 ? r.requestLine : r.requestLine.substring(0, sp1);
+			if (sp1 >= 0)
+				uri = sp2 < 0 ? r.requestLine.substring(sp1 + 1) :
+					  r.requestLine.substring(sp1 + 1, sp2);
+		}
+
+		sb.append("time=").append(DateTimeFormatter.ISO_INSTANT.format(
+				Instant.ofEpochMilli(r.time)));
+		sb.append(" client=").append(orDash(r.client));
+		sb.append(" host=").append(orDash(r.host));
+		sb.append(" method=").append(orDash(method));
+		sb.append(" uri=").append(orDash(uri));
+		sb.append(" status=");
+		if (r.status > 0)
+			sb.append(r.status);
+		else
+			sb.append('-');
+		sb.append(" bytes=").append(r.bytes);
+		sb.append(" latency_us=").append(r.latency / 1000).append('\n');
+	}
+
+	private static String orDash(String s) {
+		return s == null || s.isEmpty() ? "-" : s;
+	}
+
+	/**
+	 * Moves file.1 to file.2 and so on, the current file to file.1, and
+	 * starts a new file.
+	 */
+	private static void rotate() {
+		closeFile();
+		try {
+			for (int i = maxFiles - 1; i >= 1; i--) {
+				File from = new File(path.getPath() + "." + i);
+				if (from.exists()) {
+					Files.move(from.toPath(), new File(path.getPath() + "." + (i + 1)).toPath(),
+							   StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			if (maxFiles > 0) {
+				Files.move(path.toPath(), new File(path.getPath() + ".1").toPath(),
+						   StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				Files.delete(path.toPath());
+			}
+			openFile();
+		} catch (IOException e) {
+			consoleLine("IO: " + e.getMessage());
+		}
+	}
+
+	private static void openFile() throws IOException {
+		file = new BufferedOutputStream(new FileOutputStream(path, true), WRITE_BUFFER_LEN);
+		fileBytes = path.length();
+	}
+
+	private static void closeFile() {
+		if (file == null)
+			return;
+		try {
+			file.close();
+		} catch (IOException e) {
+			consoleLine("IO: " + e.getMessage());
+		}
+		file = null;
+	}
+
+	/**
+	 * Adds a line to the console output, for the writer's own errors.
+	 */
+	private static void consoleLine(String s) {
+		write(console, new StringBuilder(s).append('\n'));
+	}
+
+	/**
+	 * Writes a line in ISO-8859-1, like the headers it mostly comes from.
+	 *
+	 * @return true if the line was written
+	 */
+	private static boolean write(OutputStream out, CharSequence cs) {
+		int len = cs.length();
+		if (scratch.length < len)
+			scratch = new byte[Math.max(len, scratch.length * 2)];
+		for (int i = 0; i < len; i++) {
+			char c = cs.charAt(i);
+			scratch[i] = (byte) (c <= 0xff ? c : '?');
+		}
+
+		try {
+			out.write(scratch, 0, len);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static void flush(OutputStream out) {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			// the next batch tries again
+		}
+	}
+
+	/**
+	 * A slot of the ring. Its sequence number says whose turn it is:
+	 * equal to the slot's next position, a producer may claim it; one
+	 * more, the writer may read it.
+	 */
+	static class Record {
+		volatile long seq;
+
+		long time;
+		String client;
+		String host;
+		String requestLine;
+		int status;
+		long bytes;
+		long latency;
+		String message;
+
+		/**
+		 * Constructs a new, free Record.
+		 *
+		 * @param pos position of the slot in the ring
+		 */
+		public Record(long pos) {
+			seq = pos;
+		}
+
+		/**
+		 * Hands the filled in record to the writer.
+		 */
+		void publish() {
+			seq = seq + 1;
+		}
+
+		/**
+		 * Drops the references of a written record.
+		 */
+		void clear() {
+			client = null;
+			host = null;
+			requestLine = null;
+			message = null;
+		}
+	}
+}
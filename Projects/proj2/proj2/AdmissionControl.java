@@ -0,0 +1,99 @@
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Decides whether a new client connection is served or turned away. The
+ * proxy serves at most a given number of connections at once, and at most
+ * a given number from any one client address, so a single client opening
+ * connections in a loop cannot take all of them. A connection over either
+ * limit is answered with 503 right away instead of queueing behind the
+ * ones being served, which keeps their latency bounded under overload.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class AdmissionControl {
+	public static final int DEFAULT_MAX_CONNECTIONS = 4096;
+	public static final int DEFAULT_MAX_PER_CLIENT = 256;
+
+	// the map functions below run atomically for their key; a count
+	// dropping to zero removes the client
+	private static final BiFunction<InetAddress, Integer, Integer> INCREMENT =
+			new BiFunction<InetAddress, Integer, Integer>() {
+		@Override
+		public Integer apply(InetAddress a, Integer n) {
+			return n == null ? 1 : n + 1;
+		}
+	};
+	private static final BiFunction<InetAddress, Integer, Integer> DECREMENT =
+			new BiFunction<InetAddress, Integer, Integer>() {
+		@Override
+		public Integer apply(InetAddress a, Integer n) {
+			return n == null || n <= 1 ? null : n - 1;
+		}
+	};
+
+	private int maxConnections;
+	private int maxPerClient;
+
+	private AtomicInteger connections = new AtomicInteger();
+	private ConcurrentHashMap<InetAddress, Integer> perClient =
+			new ConcurrentHashMap<InetAddress, Integer>();
+
+	/**
+	 * Constructs a new AdmissionControl.
+	 *
+	 * @param maxConnections maximum number of connections served at once
+	 * @param maxPerClient maximum number of connections from one address
+	 * @throws IllegalArgumentException if either limit is not positive
+	 */
+	public AdmissionControl(int maxConnections, int maxPerClient) {
+		if (maxConnections <= 0 || maxPerClient <= 0)
+			throw new IllegalArgumentException("invalid connection limits");
+
+		this.maxConnections = maxConnections;
+		this.maxPerClient = maxPerClient;
+	}
+
+	/**
+	 * Admits a new connection if the limits allow it. An admitted
+	 * connection must be released once it is closed.
+	 *
+	 * @param client address of the client
+	 * @return true if the connection is admitted
+	 */
+	public boolean admit(InetAddress client) {
+		if (connections.incrementAndGet() > maxConnections) {
+			connections.decrementAndGet();
+			return false;
+		}
+
+		if (perClient.compute(client, INCREMENT) > maxPerClient) {
+			perClient.compute(client, DECREMENT);
+			connections.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Releases an admitted connection.
+	 *
+	 * @param client address of the client
+	 */
+	public void release(InetAddress client) {
+		perClient.compute(client, DECREMENT);
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of connections admitted and not yet released.
+	 *
+	 * @return connections being served
+	 */
+	public int connections() {
+		return connections.get();
+	}
+}
@@ -0,0 +1,113 @@
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * The bandwidth limits of the non-blocking proxy: a token bucket for all
+ * the bytes sent to clients, and one per client address, shared by all the
+ * connections of that client. A client's bucket is dropped once its last
+ * connection closes.
+ *
+ * The limits only say how much may be sent; which connection sends next
+ * is up to the fair queue of each selector thread, see
+ * NioProxyServer.FairQueue.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class BandwidthShaper {
+	private TokenBucket global;
+	private long clientRate;
+	private long clientBurst;
+
+	private ConcurrentHashMap<InetAddress, ClientShare> clients =
+			new ConcurrentHashMap<InetAddress, ClientShare>();
+
+	// the map functions below run atomically for their key
+	private final BiFunction<InetAddress, ClientShare, ClientShare> open =
+			new BiFunction<InetAddress, ClientShare, ClientShare>() {
+		@Override
+		public ClientShare apply(InetAddress a, ClientShare c) {
+			if (c == null)
+				c = new ClientShare(new TokenBucket(clientRate, clientBurst));
+			c.connections++;
+			return c;
+		}
+	};
+	private static final BiFunction<InetAddress, ClientShare, ClientShare> CLOSE =
+			new BiFunction<InetAddress, ClientShare, ClientShare>() {
+		@Override
+		public ClientShare apply(InetAddress a, ClientShare c) {
+			if (c == null || --c.connections == 0)
+				return null;
+			return c;
+		}
+	};
+
+	/**
+	 * Constructs a new BandwidthShaper. A rate of 0 means no limit.
+	 *
+	 * @param rate bytes per second to all clients together
+	 * @param burst bytes that may be sent at once to all clients
+	 * @param clientRate bytes per second to one client
+	 * @param clientBurst bytes that may be sent at once to one client
+	 * @throws IllegalArgumentException if a rate is negative, or a burst
+	 * is not positive for a rate that is not 0
+	 */
+	public BandwidthShaper(long rate, long burst, long clientRate, long clientBurst) {
+		global = new TokenBucket(rate, burst);
+		// fails early on a bad client limit
+		new TokenBucket(clientRate, clientBurst);
+		this.clientRate = clientRate;
+		this.clientBurst = clientBurst;
+	}
+
+	/**
+	 * Returns the bucket of all the bytes sent to clients.
+	 *
+	 * @return the global bucket
+	 */
+	public TokenBucket global() {
+		return global;
+	}
+
+	/**
+	 * Returns the bucket of a client for a new connection of it. Each call
+	 * must be matched by a call to release().
+	 *
+	 * @param client address of the client
+	 * @return the client's bucket
+	 */
+	public TokenBucket open(InetAddress client) {
+		if (clientRate == 0)
+			return TokenBucket.UNLIMITED;
+		return clients.compute(client, open).bucket;
+	}
+
+	/**
+	 * Gives back the bucket of a client once a connection of it closed.
+	 *
+	 * @param client address of the client
+	 */
+	public void release(InetAddress client) {
+		if (clientRate != 0)
+			clients.compute(client, CLOSE);
+	}
+
+	/**
+	 * The bucket of a client and how many connections use it.
+	 */
+	static class ClientShare {
+		TokenBucket bucket;
+		int connections;
+
+		/**
+		 * Constructs a new ClientShare.
+		 *
+		 * @param b bucket of the client
+		 */
+		public ClientShare(TokenBucket b) {
+			bucket = b;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of reusable direct buffers of one size. Direct buffers are
+ * expensive to allocate and free, but socket channels read into and write
+ * from them without an extra copy through a temporary buffer, so they are
+ * allocated once and handed around. Heap buffers can be pooled as well, for
+ * relaying through streams, where the backing array is what gets used.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class BufferPool {
+	private int bufferSize;
+	private int maxPooled;
+	private boolean direct;
+
+	private ConcurrentLinkedQueue<ByteBuffer> free;
+	private AtomicInteger numFree;
+
+	// buffers allocated because the pool was empty, and buffers reused
+	private LongAdder allocated = new LongAdder();
+	private LongAdder reused = new LongAdder();
+
+	/**
+	 * Constructs a new BufferPool of direct buffers.
+	 *
+	 * @param bufferSize size of each buffer in bytes
+	 * @param maxPooled maximum number of free buffers kept in the pool
+	 * @throws IllegalArgumentException if bufferSize is not positive or
+	 * maxPooled is negative
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this(bufferSize, maxPooled, true);
+	}
+
+	/**
+	 * Constructs a new BufferPool.
+	 *
+	 * @param bufferSize size of each buffer in bytes
+	 * @param maxPooled maximum number of free buffers kept in the pool
+	 * @param direct true for direct buffers, false for heap buffers
+	 * @throws IllegalArgumentException if bufferSize is not positive or
+	 * maxPooled is negative
+	 */
+	public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+		if (bufferSize <= 0 || maxPooled < 0)
+			throw new IllegalArgumentException("invalid buffer pool size");
+
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		this.direct = direct;
+		free = new ConcurrentLinkedQueue<ByteBuffer>();
+		numFree = new AtomicInteger();
+	}
+
+	/**
+	 * Returns a cleared buffer, allocating a new one if the pool is empty.
+	 *
+	 * @return a buffer of bufferSize bytes
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer bb = free.poll();
+		if (bb == null) {
+			allocated.increment();
+			return direct ? ByteBuffer.allocateDirect(bufferSize) : 
+				ByteBuffer.allocate(bufferSize);
+		}
+
+		reused.increment();
+		numFree.decrementAndGet();
+		bb.clear();
+		return bb;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The caller must not use it afterwards.
+	 *
+	 * @param bb buffer taken from this pool
+	 */
+	public void release(ByteBuffer bb) {
+		if (bb == null || bb.capacity() != bufferSize || bb.isDirect() != direct)
+			return;
+
+		// drop the buffer if the pool is full; the collector frees it
+		if (numFree.incrementAndGet() > maxPooled) {
+			numFree.decrementAndGet();
+			return;
+		}
+		free.add(bb);
+	}
+
+	/**
+	 * Returns the size of the buffers in this pool.
+	 *
+	 * @return buffer size in bytes
+	 */
+	public int bufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Returns the number of buffers allocated because the pool was empty.
+	 *
+	 * @return number of allocations
+	 */
+	public long allocated() {
+		return allocated.sum();
+	}
+
+	/**
+	 * Returns the number of buffers handed out again from the pool.
+	 *
+	 * @return number of reuses
+	 */
+	public long reused() {
+		return reused.sum();
+	}
+}
@@ -0,0 +1,48 @@
+import java.io.*;
+
+/**
+ * Frames a body in the chunked transfer coding, one chunk per write, for
+ * bodies whose length is not known when the header goes out. The chunk
+ * size lines are small, so the stream below should be buffered.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+	private static final byte[] LAST_CHUNK = HeaderParser.bytes("0\r\n\r\n");
+
+	/**
+	 * Constructs a new ChunkedOutputStream.
+	 *
+	 * @param out stream the chunks are written to
+	 */
+	public ChunkedOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		// an empty chunk would end the body
+		if (len == 0)
+			return;
+
+		HTTPProxy.writeLine(out, Integer.toHexString(len));
+		out.write(b, off, len);
+		HTTPProxy.writeLine(out, HTTPProxy.EMPTY_LINE);
+	}
+
+	/**
+	 * Ends the body with the last chunk and no trailers. The stream below
+	 * is neither flushed nor closed.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void finish() throws IOException {
+		out.write(LAST_CHUNK);
+	}
+}
@@ -1,78 +1,786 @@
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A simple HTTP Proxy which prints out the first line of each HTTP request 
- * it receives from the browser, then fetches the requested page from 
- * the sourcing web server and returns it to the browser.
+ * A simple HTTP Proxy which logs each HTTP request it receives from the
+ * browser, then fetches the requested page from the sourcing web server
+ * and returns it to the browser. The log goes to the console, or to a
+ * file given with -accesslog; see AccessLog.
+ * 
+ * The blocking proxy turns away connections over its limits with 503, 
+ * see AdmissionControl, and closes connections that take too long to 
+ * send a request header or stop making progress.
+ * 
+ * With -compress, it compresses uncompressed text responses for clients 
+ * that accept gzip or deflate, see ResponseCompressor.
+ * 
+ * With -relay, it is also an onion router other proxies can build their 
+ * circuits through; with -circuit, it makes its own server connections 
+ * through a circuit over the given routers, see OnionRouter.
  * 
  * @author Chun-Wei Chen
  * @version 02/15/14
  */
 public class HTTPProxy {
-	private static final String HTTP_END_LINE = "\r\n";
-	private static final String EMPTY_LINE = "";
-	private static final String CONNECTION_CLOSE = "Connection: close";
-	private static final String CONNECTION_TAG = "connection:";
-	private static final String HOST_TAG = "host:";
-	private static final String CAP_HOST_TAG = "Host: ";
+	static final String HTTP_END_LINE = "\r\n";
+	static final String EMPTY_LINE = "";
+	static final String CONNECTION_CLOSE = "Connection: close";
+	static final String CONNECTION_KEEP_ALIVE = "Connection: keep-alive";
+	static final String PROXY_CONNECTION_TAG = "proxy-connection:";
+	static final String CONTENT_LENGTH_TAG = "content-length:";
+	static final String TRANSFER_ENCODING_TAG = "transfer-encoding:";
+	static final String EXPECT_TAG = "expect:";
+	static final String CONTINUE_RESPONSE = "HTTP/1.1 100 Continue";
+	static final String CACHE_CONTROL_TAG = "cache-control:";
+	static final String PRAGMA_TAG = "pragma:";
+	static final String AUTHORIZATION_TAG = "authorization:";
+	static final String RANGE_TAG = "range:";
+	static final String ACCEPT_ENCODING_TAG = "accept-encoding:";
+	static final String IF_PREFIX = "if-";
+	static final String NO_CACHE = "no-cache";
+	static final String CHUNKED = "chunked";
+	static final String KEEP_ALIVE = "keep-alive";
+	static final String CLOSE = "close";
+	static final String HTTP_1_0 = "HTTP/1.0";
+	static final String CONNECTION_TAG = "connection:";
+	static final String HOST_TAG = "host:";
+	static final String CAP_HOST_TAG = "Host: ";
+
+	// HTTP headers are ISO-8859-1 on the wire
+	static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+
+	// the same constants as bytes, for matching the request header in 
+	// place; header names are lower case and without the colon
+	private static final byte[] GET_BYTES = HeaderParser.bytes("GET ");
+	private static final byte[] HEAD_BYTES = HeaderParser.bytes("HEAD ");
+	private static final byte[] CONNECT_BYTES = HeaderParser.bytes("CONNECT ");
+	private static final byte[] HTTP_1_0_BYTES = HeaderParser.bytes(HTTP_1_0);
+	private static final byte[] CONNECTION_NAME = nameBytes(CONNECTION_TAG);
+	private static final byte[] PROXY_CONNECTION_NAME = nameBytes(PROXY_CONNECTION_TAG);
+	private static final byte[] HOST_NAME = nameBytes(HOST_TAG);
+	private static final byte[] CONTENT_LENGTH_NAME = nameBytes(CONTENT_LENGTH_TAG);
+	private static final byte[] TRANSFER_ENCODING_NAME = nameBytes(TRANSFER_ENCODING_TAG);
+	private static final byte[] EXPECT_NAME = nameBytes(EXPECT_TAG);
+	private static final byte[] CACHE_CONTROL_NAME = nameBytes(CACHE_CONTROL_TAG);
+	private static final byte[] PRAGMA_NAME = nameBytes(PRAGMA_TAG);
+	private static final byte[] AUTHORIZATION_NAME = nameBytes(AUTHORIZATION_TAG);
+	private static final byte[] RANGE_NAME = nameBytes(RANGE_TAG);
+	private static final byte[] ACCEPT_ENCODING_NAME = nameBytes(ACCEPT_ENCODING_TAG);
+	private static final byte[] IF_PREFIX_BYTES = HeaderParser.bytes(IF_PREFIX);
+	private static final byte[] NO_CACHE_BYTES = HeaderParser.bytes(NO_CACHE);
+	private static final byte[] CHUNKED_BYTES = HeaderParser.bytes(CHUNKED);
+	private static final byte[] KEEP_ALIVE_BYTES = HeaderParser.bytes(KEEP_ALIVE);
+	private static final byte[] CLOSE_BYTES = HeaderParser.bytes(CLOSE);
+	private static final byte[] CAP_HOST_BYTES = HeaderParser.bytes(CAP_HOST_TAG);
+	private static final byte[] CONNECTION_KEEP_ALIVE_LINE = 
+			HeaderParser.bytes(CONNECTION_KEEP_ALIVE + HTTP_END_LINE);
+	private static final byte[] END_LINE_BYTES = HeaderParser.bytes(HTTP_END_LINE);
+	private static final byte[] STATS_PATH_BYTES = HeaderParser.bytes(ProxyStats.STATS_PATH);
+
+	// command line options
+	private static final String NIO_OPTION = "-nio";
+	private static final String VTHREADS_OPTION = "-vthreads";
+	private static final String MAX_IDLE_OPTION = "-maxidle";
+	private static final String MAX_PER_HOST_OPTION = "-maxperhost";
+	private static final String IDLE_TIMEOUT_OPTION = "-idletimeout";
+	private static final String CACHE_OPTION = "-cache";
+	private static final String CACHE_DIR_OPTION = "-cachedir";
+	private static final String DNS_TTL_OPTION = "-dnsttl";
+	private static final String DNS_NEGATIVE_TTL_OPTION = "-dnsnegttl";
+	private static final String ACCESS_LOG_OPTION = "-accesslog";
+	private static final String LOG_SIZE_OPTION = "-logsize";
+	private static final String LOG_FILES_OPTION = "-logfiles";
+	private static final String MAX_CONNECTIONS_OPTION = "-maxconns";
+	private static final String MAX_PER_CLIENT_OPTION = "-maxperclient";
+	private static final String HEADER_TIMEOUT_OPTION = "-headertimeout";
+	private static final String CLIENT_TIMEOUT_OPTION = "-clienttimeout";
+	private static final String ACCEPTORS_OPTION = "-acceptors";
+	private static final String RATE_OPTION = "-ratelimit";
+	private static final String BURST_OPTION = "-rateburst";
+	private static final String CLIENT_RATE_OPTION = "-clientrate";
+	private static final String CLIENT_BURST_OPTION = "-clientburst";
+	private static final String CONNECT_TIMEOUT_OPTION = "-connecttimeout";
+	private static final String COMPRESS_OPTION = "-compress";
+	private static final String RELAY_OPTION = "-relay";
+	private static final String CIRCUIT_OPTION = "-circuit";
+	private static final String USAGE = 
+			"Usage: java HTTPProxy <port number> [-nio [selector threads]] " + 
+			"[-vthreads [max clients]] [-maxidle <idle server connections>] " + 
+			"[-maxperhost <idle connections per server>] " + 
+			"[-idletimeout <seconds>] [-cache [memory MB]] [-cachedir <directory>] " + 
+			"[-dnsttl <seconds>] [-dnsnegttl <seconds>] [-accesslog <file>] " + 
+			"[-logsize <MB>] [-logfiles <rotated files kept>] " + 
+			"[-maxconns <client connections>] [-maxperclient <connections per client>] " + 
+			"[-headertimeout <seconds>] [-clienttimeout <seconds>] " + 
+			"[-acceptors [listening sockets]] [-ratelimit <KB/s>] [-rateburst <KB>] " + 
+			"[-clientrate <KB/s>] [-clientburst <KB>] [-connecttimeout <seconds>] " + 
+			"[-compress [level]] [-relay <router port>] " + 
+			"[-circuit <host:port>[,<host:port>...]]";
+
+	private static final String GET_METHOD = "GET";
+	private static final String HEAD_METHOD = "HEAD";
+	private static final String CONNECT_METHOD = "CONNECT";
+	private static final String CONNECT_ESTABLISHED = "HTTP/1.1 200 Connection Established";
+	private static final String BAD_GATEWAY = "HTTP/1.1 502 Bad Gateway";
+	private static final String FORBIDDEN = "HTTP/1.1 403 Forbidden";
+	private static final String BAD_REQUEST = "HTTP/1.1 400 Bad Request";
+	private static final byte[] SERVICE_UNAVAILABLE = HeaderParser.bytes(
+			"HTTP/1.1 503 Service Unavailable" + HTTP_END_LINE + 
+			"Retry-After: 1" + HTTP_END_LINE + 
+			"Content-Length: 0" + HTTP_END_LINE + 
+			CONNECTION_CLOSE + HTTP_END_LINE + HTTP_END_LINE);
+	private static final int DEFAULT_CONNECT_PORT = 443;
+
+	// no more than one input buffer worth of bytes can be read ahead
+	private static final int MAX_PENDING_TUNNEL_LEN = 8192;
+
+	// buffer of each direction of a tunnel over a circuit
+	private static final int CIRCUIT_TUNNEL_BUFFER_LEN = 8192;
+
+	// request bodies up to this size are held in memory so the request 
+	// can be retried on a new server connection if a pooled one is stale
+	private static final int MAX_BUFFERED_BODY_LEN = 65536;
+
+	// default number of clients served at once in virtual-thread mode
+	private static final int DEFAULT_MAX_VIRTUAL_CLIENTS = 50000;
+
+	// default seconds a client has to send a request header, and to go 
+	// on with a request or start the next one
+	private static final int DEFAULT_HEADER_TIMEOUT = 10;
+	private static final int DEFAULT_CLIENT_TIMEOUT = 60;
+
+	// the timer wheel of the client timeouts; one turn is about a minute
+	private static final long TIMER_TICK = 100;  // in milliseconds
+	private static final int TIMER_SLOTS = 512;
+
+	// how long a turned away connection stays open so the client can 
+	// read the 503 before the socket is closed
+	private static final long REJECT_LINGER = 1000;  // in milliseconds
+
+	// connections waiting to be accepted on each listening socket; the 
+	// kernel caps it at net.core.somaxconn
+	static final int LISTEN_BACKLOG = 1024;
+
+	// idle connections to origin servers shared by all clients
+	private static UpstreamPool pool;
+
+	// addresses of origin servers shared by all clients, and 
+	// the addresses that recently failed to connect
+	private static ResolverCache resolver;
+	private static OriginConnector connector;
+
+	// responses shared by all clients, or null if caching is off
+	private static ResponseCache cache;
+
+	// compresses responses for the clients that accept it, or null if 
+	// compression is off
+	private static ResponseCompressor compressor;
+
+	// carries the server connections over a circuit, or null if the 
+	// proxy connects to the servers itself
+	private static OnionRouter onion;
+
+	// limits on the client connections of the blocking proxy, and the 
+	// timeouts closing the ones that stall
+	private static AdmissionControl admission;
+	private static TimerWheel timers;
+	private static long headerTimeout;  // in milliseconds
+	private static long clientTimeout;  // in milliseconds
+
+	// how often the resolver and cache statistics are printed, in milliseconds
+	private static final long REPORT_INTERVAL = 60000;
+
+	// runs the server-to-client half of CONNECT tunnels
+	private static Executor tunnelExecutor = Executors.newCachedThreadPool();
 
 	/**
 	 * Main method of the HTTP proxy that accept a port number
 	 * as argument from the user.
 	 * 
-	 * @param args a array of command line arguments; the array should 
-	 * contain only one argument that can be converted to 
-	 * integer value in order to run the program
+	 * @param args a array of command line arguments; the first argument 
+	 * must be a port number, optionally followed by "-nio" and the 
+	 * number of selector threads to run the non-blocking proxy, or by 
+	 * "-vthreads" and the maximum number of clients served at once to 
+	 * run each client on a virtual thread
 	 */
 	public static void main(String[] args) {
 		int port;
-		if (args.length != 1) {
-			System.out.println("Usage: java HTTPProxy <port number>");
+		if (args.length < 1) {
+			System.out.println(USAGE);
 			System.exit(1);
 		}
 
 		try {
 			port = Integer.valueOf(args[0]).intValue();
-			ProxyInitialization(port);
+
+			int numLoops = 0;  // 0 means the blocking proxy
+			int maxClients = 0;  // 0 means one platform thread per client
+			int maxIdle = UpstreamPool.DEFAULT_MAX_IDLE;
+			int maxPerHost = UpstreamPool.DEFAULT_MAX_PER_HOST;
+			int idleTimeout = UpstreamPool.DEFAULT_IDLE_TIMEOUT;
+			long cacheBytes = -1;  // -1 means no cache
+			File cacheDir = null;
+			int dnsTtl = ResolverCache.DEFAULT_TTL;
+			int dnsNegativeTtl = ResolverCache.DEFAULT_NEGATIVE_TTL;
+			File accessLog = null;  // null means the console
+			long logBytes = AccessLog.DEFAULT_MAX_FILE_BYTES;
+			int logFiles = AccessLog.DEFAULT_MAX_FILES;
+			int maxConnections = 0;  // 0 means the default of the mode
+			int maxPerClient = AdmissionControl.DEFAULT_MAX_PER_CLIENT;
+			int headerSeconds = DEFAULT_HEADER_TIMEOUT;
+			int clientSeconds = DEFAULT_CLIENT_TIMEOUT;
+			int numAcceptors = 1;
+			// bandwidth limits in bytes; a burst of 0 means one second's worth
+			long rate = 0;
+			long burst = 0;
+			long clientRate = 0;
+			long clientBurst = 0;
+			int connectTimeout = OriginConnector.DEFAULT_CONNECT_TIMEOUT;
+			int compressLevel = 0;  // 0 means no compression
+			int relayPort = 0;  // 0 means no onion router
+			String[] hops = null;  // null means no circuit
+			for (int i = 1; i < args.length; i++) {
+				if (args[i].equals(NIO_OPTION)) {
+					// one selector thread per core unless specified otherwise
+					numLoops = Runtime.getRuntime().availableProcessors();
+					if (hasOptionValue(args, i))
+						numLoops = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(VTHREADS_OPTION)) {
+					maxClients = DEFAULT_MAX_VIRTUAL_CLIENTS;
+					if (hasOptionValue(args, i))
+						maxClients = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(MAX_IDLE_OPTION) && hasOptionValue(args, i)) {
+					maxIdle = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(MAX_PER_HOST_OPTION) && hasOptionValue(args, i)) {
+					maxPerHost = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(IDLE_TIMEOUT_OPTION) && hasOptionValue(args, i)) {
+					idleTimeout = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(CACHE_OPTION)) {
+					cacheBytes = ResponseCache.DEFAULT_MEMORY_BYTES;
+					if (hasOptionValue(args, i))
+						cacheBytes = Long.valueOf(args[++i]).longValue() << 20;
+				} else if (args[i].equals(CACHE_DIR_OPTION) && hasOptionValue(args, i)) {
+					cacheDir = new File(args[++i]);
+				} else if (args[i].equals(DNS_TTL_OPTION) && hasOptionValue(args, i)) {
+					dnsTtl = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(DNS_NEGATIVE_TTL_OPTION) && hasOptionValue(args, i)) {
+					dnsNegativeTtl = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(ACCESS_LOG_OPTION) && hasOptionValue(args, i)) {
+					accessLog = new File(args[++i]);
+				} else if (args[i].equals(LOG_SIZE_OPTION) && hasOptionValue(args, i)) {
+					logBytes = Long.valueOf(args[++i]).longValue() << 20;
+				} else if (args[i].equals(LOG_FILES_OPTION) && hasOptionValue(args, i)) {
+					logFiles = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(MAX_CONNECTIONS_OPTION) && hasOptionValue(args, i)) {
+					maxConnections = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(MAX_PER_CLIENT_OPTION) && hasOptionValue(args, i)) {
+					maxPerClient = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(HEADER_TIMEOUT_OPTION) && hasOptionValue(args, i)) {
+					headerSeconds = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(CLIENT_TIMEOUT_OPTION) && hasOptionValue(args, i)) {
+					clientSeconds = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(ACCEPTORS_OPTION)) {
+					// one listening socket per core unless specified otherwise
+					numAcceptors = Runtime.getRuntime().availableProcessors();
+					if (hasOptionValue(args, i))
+						numAcceptors = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(RATE_OPTION) && hasOptionValue(args, i)) {
+					rate = Long.valueOf(args[++i]).longValue() << 10;
+				} else if (args[i].equals(BURST_OPTION) && hasOptionValue(args, i)) {
+					burst = Long.valueOf(args[++i]).longValue() << 10;
+				} else if (args[i].equals(CLIENT_RATE_OPTION) && hasOptionValue(args, i)) {
+					clientRate = Long.valueOf(args[++i]).longValue() << 10;
+				} else if (args[i].equals(CLIENT_BURST_OPTION) && hasOptionValue(args, i)) {
+					clientBurst = Long.valueOf(args[++i]).longValue() << 10;
+				} else if (args[i].equals(CONNECT_TIMEOUT_OPTION) && hasOptionValue(args, i)) {
+					connectTimeout = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(COMPRESS_OPTION)) {
+					compressLevel = ResponseCompressor.DEFAULT_LEVEL;
+					if (hasOptionValue(args, i))
+						compressLevel = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(RELAY_OPTION) && hasOptionValue(args, i)) {
+					relayPort = Integer.valueOf(args[++i]).intValue();
+				} else if (args[i].equals(CIRCUIT_OPTION) && hasOptionValue(args, i)) {
+					hops = args[++i].split(",");
+				} else {
+					System.out.println(USAGE);
+					System.exit(1);
+				}
+			}
+
+			if (numLoops > 0 && maxClients > 0) {
+				System.out.println(USAGE);
+				System.exit(1);
+			}
+
+			if (headerSeconds <= 0 || clientSeconds <= 0)
+				throw new IllegalArgumentException("timeouts must be positive");
+			if (numAcceptors <= 0)
+				throw new IllegalArgumentException("number of acceptors must be positive");
+
+			// only the non-blocking relay can hold a response back without 
+			// a thread waiting on it
+			BandwidthShaper shaper = null;
+			if (rate > 0 || clientRate > 0) {
+				if (numLoops == 0)
+					throw new IllegalArgumentException("bandwidth limits need -nio");
+				shaper = new BandwidthShaper(rate, burst > 0 ? burst : rate, 
+											 clientRate, clientBurst > 0 ? clientBurst : clientRate);
+			}
+
+			// the non-blocking relay passes bodies through as they are
+			if (compressLevel != 0) {
+				if (numLoops > 0)
+					throw new IllegalArgumentException("compression does not work with -nio");
+				compressor = new ResponseCompressor(compressLevel);
+			}
+
+			// the circuit's streams are blocking streams
+			if (hops != null && numLoops > 0)
+				throw new IllegalArgumentException("circuits do not work with -nio");
+
+			// with virtual threads, the clients served at once are the 
+			// connections admitted
+			if (maxConnections <= 0) {
+				maxConnections = maxClients > 0 ? maxClients : 
+								 AdmissionControl.DEFAULT_MAX_CONNECTIONS;
+			}
+
+			if (accessLog != null)
+				AccessLog.open(accessLog, logBytes, logFiles);
+			admission = new AdmissionControl(maxConnections, maxPerClient);
+			headerTimeout = headerSeconds * 1000L;
+			clientTimeout = clientSeconds * 1000L;
+			timers = new TimerWheel(TIMER_TICK, TIMER_SLOTS, "client-timeouts");
+			resolver = new ResolverCache(ResolverCache.SYSTEM_RESOLVER, dnsTtl, dnsNegativeTtl);
+			connector = new OriginConnector(connectTimeout);
+			pool = new UpstreamPool(maxIdle, maxPerHost, idleTimeout, resolver, connector);
+			if (relayPort > 0 || hops != null) {
+				OnionRouter router = new OnionRouter(resolver, connector);
+				if (hops != null) {
+					router.useCircuit(hops);
+					pool.routeThrough(router);
+					onion = router;
+				}
+				if (relayPort > 0)
+					router.listen(relayPort);
+			}
+			if (cacheBytes >= 0 || cacheDir != null) {
+				cache = new ResponseCache(Math.max(cacheBytes, 0), cacheDir, 
+										  ResponseCache.DEFAULT_DISK_BYTES);
+			}
+			startReporter();
+			if (numLoops > 0) {
+				new NioProxyServer(numLoops, resolver, connector, shaper).serve(port, numAcceptors);
+			} else if (maxClients > 0) {
+				ExecutorService executor = newVirtualThreadExecutor();
+				tunnelExecutor = executor;
+				ProxyInitialization(port, executor, numAcceptors);
+			} else {
+				ProxyInitialization(port, null, numAcceptors);
+			}
 		} catch (NumberFormatException e) {
 			System.out.println("NumberFormat: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.out.println("IllegalArgument: " + e.getMessage());
+		} catch (IOException e) {
+			System.out.println("IO: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns true if the option at position i is followed by a value.
+	 * 
+	 * @param args command line arguments
+	 * @param i position of the option
+	 * @return true if the next argument is a value rather than an option
+	 */
+	private static boolean hasOptionValue(String[] args, int i) {
+		return i + 1 < args.length && !args[i + 1].startsWith("-");
+	}
+
+	/**
+	 * Starts a thread printing the resolver and cache statistics every 
+	 * REPORT_INTERVAL milliseconds, when they changed.
+	 */
+	private static void startReporter() {
+		Thread reporter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				String last = null;
+				while (true) {
+					try {
+						Thread.sleep(REPORT_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					String report = resolver.report();
+					if (cache != null)
+						report += "\n" + cache.report();
+					if (!report.equals(last))
+						AccessLog.message(report);
+					last = report;
+				}
+			}
+		}, "stats-reporter");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * Creates an executor that starts a new virtual thread for each task. 
+	 * Looked up reflectively so the proxy still compiles and runs on JVMs 
+	 * older than Java 21, which fall back to platform threads.
+	 * 
+	 * @return an executor running each task on its own thread
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads are not supported by this JVM, " + 
+							   "using platform threads.");
+			return Executors.newCachedThreadPool();
 		}
 	}
 
 	/**
-	 * Initialize the HTTP proxy.
+	 * Initialize the HTTP proxy, running the clients on the given executor. 
+	 * Connections over the limits of admission are answered with 503 
+	 * and closed.
+	 * 
+	 * With more than one acceptor, each has its own listening socket on 
+	 * the port and its own pool of client threads, so accepting new 
+	 * connections is spread over as many threads as there are acceptors 
+	 * instead of going through one.
 	 * 
 	 * @param port port number
+	 * @param executor executor to run the clients on, or null to run 
+	 * them on platform threads
+	 * @param numAcceptors number of acceptor threads
 	 * @throws IllegalArgumentException if the port parameter is outside the 
 	 * specified range of valid port values, which is between 0 and 65535, inclusive
 	 * @throws IOException if an I/O error occurs when opening the socket
 	 * or waiting for a connection
 	 */
-	private static void ProxyInitialization(int port) {
-		ServerSocket s = null;
+	private static void ProxyInitialization(int port, ExecutorService executor, 
+											int numAcceptors) {
+		final ServerSocketChannel[] listeners;
+		try {
+			// opened as channels so CONNECT tunnels can use the 
+			// channels of the accepted sockets
+			listeners = listen(port, numAcceptors);
+		} catch (IllegalArgumentException e) {
+			System.out.println("IllegalArgument: " + e.getMessage());
+			return;
+		} catch (IOException e) {
+			System.out.println("IO: " + e.getMessage());
+			return;
+		}
+
+		for (int i = 1; i < numAcceptors; i++) {
+			final Executor workers = executor != null ? executor : newClientPool(i);
+			final ServerSocketChannel listener = listeners[i];
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					acceptLoop(listener, workers);
+				}
+			}, "acceptor-" + i);
+			t.start();
+		}
+		acceptLoop(listeners[0], executor != null ? executor : newClientPool(0));
+	}
+
+	/**
+	 * Opens n listening sockets on the given port. More than one share 
+	 * the port through SO_REUSEPORT, and the kernel spreads the new 
+	 * connections over them. Where SO_REUSEPORT is not supported, all 
+	 * of them are the same socket, which the acceptors take turns on.
+	 * 
+	 * @param port port number
+	 * @param n number of sockets
+	 * @return the listening sockets
+	 * @throws IOException if a socket cannot be opened or bound
+	 */
+	static ServerSocketChannel[] listen(int port, int n) throws IOException {
+		ServerSocketChannel[] listeners = new ServerSocketChannel[n];
+		listeners[0] = ServerSocketChannel.open();
+		boolean reusePort = n > 1 && listeners[0].supportedOptions().contains(
+				StandardSocketOptions.SO_REUSEPORT);
+		if (n > 1 && !reusePort)
+			System.out.println("SO_REUSEPORT is not supported, sharing one listening socket.");
+
+		for (int i = 0; i < n; i++) {
+			if (i > 0 && !reusePort) {
+				listeners[i] = listeners[0];
+				continue;
+			}
+			if (i > 0)
+				listeners[i] = ServerSocketChannel.open();
+			if (reusePort)
+				listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			listeners[i].bind(new InetSocketAddress(port), LISTEN_BACKLOG);
+		}
+		return listeners;
+	}
+
+	/**
+	 * Returns a pool of platform threads for the clients of one acceptor. 
+	 * Its threads are kept for a while after their client is done, so a 
+	 * new connection usually skips starting a thread.
+	 * 
+	 * @param acceptor number of the acceptor
+	 * @return an executor running each client on a pooled thread
+	 */
+	private static Executor newClientPool(final int acceptor) {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "client-" + acceptor + "-" + count.incrementAndGet());
+			}
+		});
+	}
+
+	/**
+	 * Accepts connections on a listening socket forever and runs each 
+	 * admitted client on the given executor.
+	 * 
+	 * @param s listening socket
+	 * @param workers executor to run the clients on
+	 */
+	private static void acceptLoop(ServerSocketChannel s, Executor workers) {
 		try {
-			s = new ServerSocket(port);
-			
 			while (true) {
 				// wait and accept a connection
-				Socket s1 = s.accept();
-				
-				// create a separate thread to handle the client and 
+				SocketChannel c = s.accept();
+				ProxyStats.accepted.increment();
+
+				// shed load here, before the client costs a thread
+				if (!admission.admit(c.socket().getInetAddress())) {
+					reject(c);
+					continue;
+				}
+
+				// handle the client on another thread and 
 				// keep accepting in-coming connections
-				Thread cit = new Thread(new ClientHandler(s1));
-				cit.start();
+				workers.execute(new ClientHandler(c.socket()));
 			}
-		} catch (IllegalArgumentException e) {
-			System.out.println("IllegalArgument: " + e.getMessage());
 		} catch (IOException e) {
 			System.out.println("IO: " + e.getMessage());
 		}
 	}
 
+	/**
+	 * Answers a connection over the limits with 503 Service Unavailable 
+	 * without reading its request. The response fits in the empty send 
+	 * buffer, so this never blocks the accept loop; the socket is closed 
+	 * a moment later, since closing it with the request unread would 
+	 * reset the connection and could destroy the response.
+	 * 
+	 * @param c the connection
+	 */
+	private static void reject(final SocketChannel c) {
+		ProxyStats.rejected.increment();
+		int n = 0;
+		try {
+			c.configureBlocking(false);
+			n = c.write(ByteBuffer.wrap(SERVICE_UNAVAILABLE));
+			c.shutdownOutput();
+		} catch (IOException e) {
+			// the client is gone already
+		}
+		AccessLog.access(c.socket().getInetAddress().getHostAddress(), null, null, 
+						 503, n, 0);
+
+		timers.schedule(new TimerWheel.Timeout() {
+			@Override
+			protected void expire() {
+				try {
+					c.close();
+				} catch (IOException e) {
+					// nothing more we can do
+				}
+			}
+		}, REJECT_LINGER);
+	}
+
+	/**
+	 * Returns the bytes of a header tag such as "host:" without the colon.
+	 * 
+	 * @param tag a lower case tag ending with a colon
+	 * @return the name as bytes
+	 */
+	private static byte[] nameBytes(String tag) {
+		return HeaderParser.bytes(tag.substring(0, tag.length() - 1));
+	}
+
+	/**
+	 * Reads a line ended by CRLF (or a bare LF) without the line end.
+	 * 
+	 * @param in input stream
+	 * @return the line, or null if the stream ended before any byte
+	 * @throws IOException if an I/O error occurs
+	 */
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int b = in.read();
+		if (b == -1)
+			return null;
+
+		while (b != -1 && b != '\n') {
+			if (b != '\r')
+				sb.append((char) b);
+			b = in.read();
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes a line followed by the HTTP end line indicator.
+	 * 
+	 * @param out output stream
+	 * @param line a line of an HTTP message
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void writeLine(OutputStream out, String line) throws IOException {
+		out.write((line + HTTP_END_LINE).getBytes(HEADER_CHARSET));
+	}
+
+	/**
+	 * Counts the bytes and the writes going through it. Each write is 
+	 * about one system call on the socket below.
+	 */
+	static class CountingOutputStream extends FilterOutputStream {
+		// volatile for the timeout checking progress
+		volatile long count;
+		long writes;
+
+		/**
+		 * Constructs a new CountingOutputStream.
+		 * 
+		 * @param out stream to be written to
+		 */
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+			writes++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			// write the whole array at once, not byte by byte
+			out.write(b, off, len);
+			count += len;
+			writes++;
+		}
+
+		/**
+		 * Returns a channel to the same socket whose writes are counted 
+		 * with this stream's, for bodies written to the socket directly.
+		 *
+		 * @param ch channel of the socket, or null
+		 * @return the counting channel, or null if ch is null
+		 */
+		public WritableByteChannel counting(final WritableByteChannel ch) {
+			if (ch == null)
+				return null;
+			return new WritableByteChannel() {
+				@Override
+				public int write(ByteBuffer src) throws IOException {
+					int n = ch.write(src);
+					count += n;
+					writes++;
+					return n;
+				}
+
+				@Override
+				public boolean isOpen() {
+					return ch.isOpen();
+				}
+
+				@Override
+				public void close() throws IOException {
+					ch.close();
+				}
+			};
+		}
+	}
+
 	static class ClientHandler implements Runnable {
 		private Socket cSocket;
 
+		// streams of the client connection, and how much of their 
+		// traffic has been added to the statistics
+		private HeaderParser request;
+		private CountingOutputStream response;
+		private long countedIn;
+		private long countedOut;
+		private long countedWrites;
+
+		// when the current request header arrived, or 0 if the 
+		// current request is not timed
+		private long requestStart;
+
+		// what the access log says about the current request: its first 
+		// line, or null once logged, the origin host, the status sent to 
+		// the client, and where its response starts in the client stream
+		private String clientAddress;
+		private String requestLine;
+		private String originHost;
+		private int status;
+		private long arrival;
+		private long responseStart;
+
+		// what the current request header says about its body 
+		// and the client connection
+		private boolean head;
+		private boolean connect;
+		private boolean clientKeepAlive;
+		private long contentLength;
+		private boolean chunked;
+		private boolean expectContinue;
+
+		// whether the current request may be answered from the cache, 
+		// the stale entry it revalidates, if any, and the flight other 
+		// requests for the same key can share, if it leads one
+		private boolean cacheableRequest;
+		private String cacheKey;
+		private ResponseCache.Entry revalidating;
+		private ResponseCache.Flight flight;
+
+		// the content coding the proxy may apply to the current response, 
+		// and the cache key of the response so encoded
+		private int encoding;
+		private String variantKey;
+
+		// closes the connection when it stalls, with the server 
+		// connection of the current request, if any
+		private Watchdog watchdog = new Watchdog();
+		private volatile UpstreamPool.UpstreamConnection upstream;
+		private volatile boolean timedOut;
+
 		/**
 		 * Constructs a new ClientHandler.
 		 * @param s a socket
@@ -86,162 +794,865 @@ public class HTTPProxy {
 		}
 
 		/**
-		 * Parses the HTTP request from the client.
+		 * Serves HTTP requests from the client one after another until 
+		 * either side wants to close the connection. Pipelined requests 
+		 * stay in the input buffer and are answered in the order they 
+		 * arrived.
 		 */
 		@Override
 		public void run() {
+			ProxyStats.active.increment();
 			try {
-				String host = null;
-				int port = 80; // default port number
-
-				// used to indicate the first line of request
-				// for the proxy to print it
-				int numOfLines;
+				// the relay coalesces small writes itself, see 
+				// ResponseRelay.flushIfIdle(), so Nagle's algorithm would 
+				// only hold back the last write of each response
+				cSocket.setTcpNoDelay(true);
 
 				// HTTP request from client to server
-				BufferedReader request = 
-						new BufferedReader(new InputStreamReader(cSocket.getInputStream()));
-
-				// get the first line of the request
-				String reqLine = request.readLine();
-				
-				// response from the server to client
-				DataOutputStream response = new DataOutputStream(cSocket.getOutputStream());
-
-				// buffer to store the request from the client 
-				// that will be sent to the server
-				StringBuffer outputBuffer = new StringBuffer();
-
-				for (numOfLines = 1; reqLine != null && reqLine.length() >= 1; 
-					 numOfLines++) {
-
-					// print the first line of each HTTP request
-					if (numOfLines == 1)
-						System.out.println(reqLine);
-
-					// get rid of leading and trailing white spaces
-					reqLine = reqLine.trim();
-
-					// split the line into tokens by white spaces
-					String[] reqLineParts = reqLine.split(" ");
-					if ((reqLineParts[0].toLowerCase()).equals(CONNECTION_TAG)) {
-						// turning off keep-alive
-						reqLine = CONNECTION_CLOSE;
-					} else if ((reqLineParts[0].toLowerCase()).equals(HOST_TAG)) {
-						host = "";
-
-						// retrieve the host from the HTTP 
-						for (int i = 1; i < reqLineParts.length; i++)
-							host += reqLineParts[i];
-
-						// retrieve the port number from the HTTP, if specified
-						String[] hostParts = host.split(":");
-						if (hostParts.length == 2)
-							port = Integer.valueOf(hostParts[1]).intValue();
-
-						reqLine = CAP_HOST_TAG + host;
+				request = new HeaderParser(cSocket.getInputStream());
+
+				// response from the server to client; a plain stream rather 
+				// than a DataOutputStream, whose synchronized write would pin 
+				// a virtual thread to its carrier while blocked on the socket
+				response = new CountingOutputStream(cSocket.getOutputStream());
+
+				clientAddress = cSocket.getInetAddress().getHostAddress();
+				boolean more = true;
+				boolean first = true;
+				while (more) {
+					// the first request is due right away; later ones when 
+					// the client has something more to ask
+					watchdog.arm(first ? Watchdog.HEADER : Watchdog.IDLE);
+					first = false;
+					requestStart = 0;
+					more = handleRequest(request, response);
+					endFlight();
+					if (requestStart != 0)
+						ProxyStats.total.recordSince(requestStart);
+					logAccess();
+					countBytes();
+				}
+			} catch (NumberFormatException e) {
+				ProxyStats.error(e);
+				AccessLog.message("NumberFormat: " + e.getMessage());
+			}  catch (IOException e) {
+				// the error of a timed out connection is only the closed socket
+				if (!timedOut) {
+					ProxyStats.error(e);
+					AccessLog.message("IO: " + e.getMessage());
+				}
+			} finally {
+				timers.cancel(watchdog);
+				endFlight();
+				logAccess();
+				countBytes();
+				ProxyStats.active.decrement();
+				admission.release(cSocket.getInetAddress());
+
+				// make sure the client socket does not leak on errors
+				try {
+					cSocket.close();
+				} catch (IOException e) {
+					AccessLog.message("IO: " + e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Ends the flight of the current request, if it leads one, so that 
+		 * requests waiting on it are never left behind.
+		 */
+		private void endFlight() {
+			if (flight != null) {
+				flight.end();
+				flight = null;
+			}
+		}
+
+		/**
+		 * Logs the current request, if it has not been logged yet.
+		 */
+		private void logAccess() {
+			if (requestLine == null)
+				return;
+
+			AccessLog.access(clientAddress, originHost, requestLine, status, 
+							 response.count - responseStart, System.nanoTime() - arrival);
+			requestLine = null;
+		}
+
+		/**
+		 * Adds the bytes moved since the last call to the statistics.
+		 */
+		private void countBytes() {
+			if (request != null) {
+				ProxyStats.bytesFromClients.add(request.bytesRead() - countedIn);
+				countedIn = request.bytesRead();
+			}
+			if (response != null) {
+				ProxyStats.bytesToClients.add(response.count - countedOut);
+				ProxyStats.writesToClients.add(response.writes - countedWrites);
+				countedOut = response.count;
+				countedWrites = response.writes;
+			}
+		}
+
+		/**
+		 * Parses one HTTP request from the client and relays it.
+		 * 
+		 * @param request parser reading from the client
+		 * @param response output stream to the client
+		 * @return true if the client connection can carry another request
+		 * @throws IOException if an I/O error occurs on the client connection
+		 */
+		private boolean handleRequest(HeaderParser request, OutputStream response) 
+				throws IOException {
+			head = false;
+			connect = false;
+			clientKeepAlive = true;
+			contentLength = 0;
+			chunked = false;
+			expectContinue = false;
+			cacheableRequest = false;
+			cacheKey = null;
+			revalidating = null;
+			flight = null;
+			encoding = ResponseCompressor.IDENTITY;
+			variantKey = null;
+
+			// get the request header, skipping empty lines 
+			// some clients send between requests
+			if (!request.readHeader())
+				return false;
+			long start = System.nanoTime();
+			ProxyStats.requests.increment();
+			watchdog.arm(Watchdog.TRANSFER);
+
+			// the first line of each HTTP request goes to the access log
+			arrival = start;
+			requestLine = request.requestLine();
+			originHost = null;
+			status = 0;
+			responseStart = this.response.count;
+			head = request.methodIs(HEAD_BYTES);
+			connect = request.methodIs(CONNECT_BYTES);
+			cacheableRequest = request.methodIs(GET_BYTES);
+			// HTTP/1.0 clients close unless they ask for keep-alive
+			clientKeepAlive = !request.versionIs(HTTP_1_0_BYTES);
+
+			// the request line goes to the server as it is
+			request.appendLine(0);
+
+			int hostLine = -1;
+			boolean sawConnection = false;
+			boolean noCache = false;
+			for (int i = 1; i < request.numLines(); i++) {
+				if (request.nameEquals(i, CONNECTION_NAME) || 
+					request.nameEquals(i, PROXY_CONNECTION_NAME)) {
+					if (request.valueContains(i, CLOSE_BYTES))
+						clientKeepAlive = false;
+					else if (request.valueContains(i, KEEP_ALIVE_BYTES))
+						clientKeepAlive = true;
+
+					// both are hop-by-hop; the server connection is 
+					// kept open so it can be pooled
+					if (request.nameEquals(i, CONNECTION_NAME) && !sawConnection) {
+						request.appendRaw(CONNECTION_KEEP_ALIVE_LINE);
+						sawConnection = true;
+					}
+				} else if (request.nameEquals(i, HOST_NAME)) {
+					hostLine = i;
+					request.appendHostLine(i, CAP_HOST_BYTES);
+				} else if (request.nameEquals(i, EXPECT_NAME)) {
+					// the proxy answers 100-continue itself, see below
+					expectContinue = true;
+				} else {
+					if (request.nameEquals(i, CONTENT_LENGTH_NAME)) {
+						contentLength = request.valueAsLong(i);
+					} else if (request.nameEquals(i, TRANSFER_ENCODING_NAME)) {
+						chunked = request.valueContains(i, CHUNKED_BYTES);
+					} else if (compressor != null && request.nameEquals(i, ACCEPT_ENCODING_NAME)) {
+						// HTTP/1.0 clients cannot take the chunked body
+						if (!request.versionIs(HTTP_1_0_BYTES))
+							encoding = ResponseCompressor.negotiate(request.value(i));
+					} else if (request.nameEquals(i, CACHE_CONTROL_NAME) || 
+							   request.nameEquals(i, PRAGMA_NAME)) {
+						noCache |= request.valueContains(i, NO_CACHE_BYTES);
+					} else if (request.nameEquals(i, AUTHORIZATION_NAME) || 
+							   request.nameEquals(i, RANGE_NAME) || 
+							   request.nameStartsWith(i, IF_PREFIX_BYTES)) {
+						// personal, partial and conditional requests 
+						// go to the server as they are
+						cacheableRequest = false;
 					}
+					request.appendLine(i);
+				}
+			}
+
+			// ask for a persistent server connection if the client 
+			// did not say anything about it
+			if (!sawConnection)
+				request.appendRaw(CONNECTION_KEEP_ALIVE_LINE);
 
-					// append the request line just read to output buffer
-					appendHTTPEndLine(outputBuffer, reqLine);
+			// requests for the proxy itself rather than an origin server
+			if (request.targetStartsWith(STATS_PATH_BYTES)) {
+				String target = request.requestTarget();
+				request.consumeHeader();
+				return serveStats(target, response);
+			}
+
+			if (connect) {
+				String target = request.requestTarget();
+				request.consumeHeader();
+				if (target != null)
+					openTunnel(target, request, response);
+				return false;
+			}
+
+			// the proxy only support the HTTP request with host tag
+			if (hostLine < 0) {
+				request.consumeHeader();
+				return false;
+			}
 
-					// read the next line of the request
-					reqLine = request.readLine();
+			String host = request.hostName(hostLine);
+			int port = request.hostPort(hostLine, 80);
+			originHost = host;
 
-					// cSocket.close(); // for experiment
-					// cSocket.shutdownInput(); // for experiment
-					// cSocket.shutdownOutput(); // for experiment
+			if (cache != null && cacheableRequest) {
+				String uri = request.requestTarget();
+				if (uri != null) {
+					cacheKey = ResponseCache.key(GET_METHOD, request.value(hostLine), uri);
+					if (encoding != ResponseCompressor.IDENTITY) {
+						variantKey = ResponseCache.variantKey(cacheKey, 
+															  ResponseCompressor.name(encoding));
+					}
+					ResponseCache.Entry e = lookup();
+					if (e != null && !noCache && e.isFresh(System.currentTimeMillis()))
+						return serveFromCache(e, request, response, start);
+
+					// another client may be fetching the same response 
+					// right now; share it rather than fetching it again, 
+					// or let later clients share this one; a client that 
+					// takes a compressed response only shares with others 
+					// that take the same
+					String flightKey = variantKey != null ? variantKey : cacheKey;
+					ResponseCache.Flight running = null;
+					if (!noCache) {
+						running = cache.follow(flightKey);
+						if (running == null) {
+							flight = cache.lead(flightKey);
+							if (flight == null)
+								running = cache.follow(flightKey);
+						}
+					}
+					if (running != null) {
+						long parseTime = System.nanoTime() - start;
+						requestStart = arrival;
+						status = running.serve(response, clientKeepAlive);
+						if (status > 0) {
+							request.consumeHeader();
+							ProxyStats.headerParse.record(parseTime);
+							return clientKeepAlive;
+						}
+
+						// the flight had nothing to share, but it may have 
+						// stored or revalidated the entry on its way; if not, 
+						// fetch it alone
+						e = lookup();
+						if (e != null && e.isFresh(System.currentTimeMillis()))
+							return serveFromCache(e, request, response, start);
+					}
+
+					// a stale entry with a validator only needs a 304 from the server
+					if (e != null && cache.appendValidators(e, request))
+						revalidating = e;
 				}
+			}
+
+			// append HTTP end of request indicator
+			request.appendRaw(END_LINE_BYTES);
+			request.consumeHeader();
+			ProxyStats.headerParse.recordSince(start);
+			requestStart = arrival;
+
+			// let the client send its body right away instead of waiting 
+			// for a 100 Continue the server would only send after the proxy 
+			// had already started reading the body
+			if (expectContinue && (chunked || contentLength > 0)) {
+				writeLine(response, CONTINUE_RESPONSE);
+				writeLine(response, EMPTY_LINE);
+				response.flush();
+			}
 
-				// append HTTP end of request indicator
-				appendHTTPEndLine(outputBuffer, EMPTY_LINE);
+			// send the request to server and send the 
+			// response from server back to client
+			return fetchRequest(request.output(), request.outputLength(), request, 
+								response, host, port);
+		}
+
+		/**
+		 * Returns the cached entry for the current request: the variant 
+		 * encoded for the client if it is fresh or the only one, otherwise 
+		 * the response as the server sent it.
+		 */
+		private ResponseCache.Entry lookup() {
+			ResponseCache.Entry e = cache.lookup(cacheKey);
+			if (variantKey != null) {
+				long now = System.currentTimeMillis();
+				ResponseCache.Entry v = cache.lookup(variantKey);
+				if (v != null && (v.isFresh(now) || e == null || !e.isFresh(now)))
+					e = v;
+			}
+			return e;
+		}
 
-				// the proxy only support the HTTP request with host tag
-				if (host != null) {
-					// send the request to server and send the 
-					// response from server back to client
-					fetchRequest(outputBuffer, response, host, port);
+		/**
+		 * Answers the current request from a fresh cache entry.
+		 * 
+		 * @param e the entry
+		 * @param request parser reading from the client
+		 * @param response output stream to the client
+		 * @param start when header parsing started, from System.nanoTime()
+		 * @return true if the client connection can carry another request
+		 * @throws IOException if an I/O error occurs on the client connection
+		 */
+		private boolean serveFromCache(ResponseCache.Entry e, HeaderParser request, 
+									   OutputStream response, long start) throws IOException {
+			request.consumeHeader();
+			ProxyStats.headerParse.recordSince(start);
+			requestStart = arrival;
+			ProxyStats.firstByte.recordSince(arrival);
+			cache.recordHit(e);
+			status = e.status();
+			if (encodes(e)) {
+				ByteBuffer relayBuffer = ResponseRelay.buffers.acquire();
+				ByteBuffer outBuffer = ResponseRelay.buffers.acquire();
+				try {
+					return serveEncoded(e, new RelayOutputStream(response, outBuffer.array()), 
+										relayBuffer.array());
+				} finally {
+					ResponseRelay.buffers.release(relayBuffer);
+					ResponseRelay.buffers.release(outBuffer);
 				}
+			}
+			cache.serve(e, response, this.response.counting(cSocket.getChannel()), head, 
+						clientKeepAlive);
+			return clientKeepAlive;
+		}
 
-				request.close();
-			} catch (NumberFormatException e) {
-				System.out.println("NumberFormat: " + e.getMessage());
-			}  catch (IOException e) {
-				System.out.println("IO: " + e.getMessage());
+		/**
+		 * Returns true if a cached response is to be compressed for the 
+		 * client of the current request, rather than served as it is.
+		 */
+		private boolean encodes(ResponseCache.Entry e) {
+			return variantKey != null && !head && 
+				   compressor.shouldCompress(e.head(System.currentTimeMillis()));
+		}
+
+		/**
+		 * Compresses a cached response for the client and stores the 
+		 * compressed variant, so the next client taking the same coding 
+		 * gets it as it is.
+		 * 
+		 * @param e entry of the uncompressed response
+		 * @param out buffered output stream to the client
+		 * @param buf buffer used to copy the body
+		 * @return true if the client connection can carry another request
+		 * @throws IOException if an I/O error occurs on the client connection
+		 */
+		private boolean serveEncoded(ResponseCache.Entry e, OutputStream out, byte[] buf) 
+				throws IOException {
+			ResponseRelay.ResponseHead sent = 
+					compressor.encodedHead(e.head(System.currentTimeMillis()), encoding);
+			ResponseRelay.writeHead(out, sent, clientKeepAlive);
+
+			ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+			ResponseCache.Fill fill = cache.startEncodedFill(variantKey, sent, chunks);
+			ResponseCompressor.Encoder z = compressor.open(fill, encoding);
+			try {
+				e.writeBody(z, buf);
+				z.finish();
+				chunks.finish();
+				out.flush();
+			} catch (IOException ex) {
+				fill.abort();
+				throw ex;
+			} finally {
+				z.release();
 			}
+			fill.commit();
+			return sent.clientKeepAlive;
 		}
 
 		/**
-		 * Appends the HTTP end line indicator.
+		 * Sends the proxy statistics to a client on this machine, or 403 
+		 * Forbidden to any other client.
 		 * 
-		 * @param sb a StringBuffer contains partial HTTP request
-		 * @param reqLine a line of the HTTP request
-		 * @throws IllegalArgumentException if either one of the arguments
-		 * passed in is null
+		 * @param target the request target, which selects the format
+		 * @param response output stream to the client
+		 * @return true if the client connection can carry another request
+		 * @throws IOException if an I/O error occurs on the client connection
 		 */
-		private void appendHTTPEndLine(StringBuffer sb, String reqLine) {
-			if (sb == null || reqLine == null)
-				throw new IllegalArgumentException("Arguments cannot be null.");
-	
-			if (reqLine.equals(EMPTY_LINE))
-				sb.append(HTTP_END_LINE);
-			else
-				sb.append(reqLine + HTTP_END_LINE);
+		private boolean serveStats(String target, OutputStream response) 
+				throws IOException {
+			if (!cSocket.getInetAddress().isLoopbackAddress()) {
+				status = 403;
+				writeLine(response, FORBIDDEN);
+				writeLine(response, "Content-Length: 0");
+				writeLine(response, CONNECTION_CLOSE);
+				writeLine(response, EMPTY_LINE);
+				response.flush();
+				return false;
+			}
+
+			status = 200;
+			response.write(ProxyStats.response(target, clientKeepAlive));
+			response.flush();
+			return clientKeepAlive;
+		}
+
+		/**
+		 * Connects to the server named in a CONNECT request and splices 
+		 * the client and server connections together until both close.
+		 * 
+		 * @param target the target of the CONNECT request, as "host:port"
+		 * @param request input stream from the client, which may already 
+		 * hold the first bytes for the server
+		 * @param response output stream to the client
+		 * @throws IOException if an I/O error occurs on the client connection
+		 */
+		private void openTunnel(String target, InputStream request, OutputStream response) 
+				throws IOException {
+			int port = DEFAULT_CONNECT_PORT;
+			int colon = target.lastIndexOf(':');
+			if (colon >= 0) {
+				try {
+					port = NioProxyServer.parsePort(target.substring(colon + 1));
+				} catch (NumberFormatException e) {
+					ProxyStats.error(e);
+					AccessLog.message("NumberFormat: " + e.getMessage());
+					status = 400;
+					writeLine(response, BAD_REQUEST);
+					writeLine(response, "Content-Length: 0");
+					writeLine(response, CONNECTION_CLOSE);
+					writeLine(response, EMPTY_LINE);
+					response.flush();
+					return;
+				}
+				target = target.substring(0, colon);
+			}
+
+			if (onion != null) {
+				tunnelThroughCircuit(target, port, request, response);
+				return;
+			}
+
+			SocketChannel server;
+			try {
+				server = connector.connect(resolver.resolve(target), port).getChannel();
+			} catch (IOException e) {
+				ProxyStats.error(e);
+				AccessLog.message("IO: " + e.getMessage());
+				status = 502;
+				writeLine(response, BAD_GATEWAY);
+				writeLine(response, CONNECTION_CLOSE);
+				writeLine(response, EMPTY_LINE);
+				response.flush();
+				return;
+			}
+
+			originHost = target;
+			status = 200;
+			writeLine(response, CONNECT_ESTABLISHED);
+			writeLine(response, EMPTY_LINE);
+			response.flush();
+
+			// bytes the client sent right after the request may 
+			// already be in the input buffer
+			byte[] pending = new byte[Math.min(request.available(), MAX_PENDING_TUNNEL_LEN)];
+			int n = request.read(pending);
+			if (n < pending.length)
+				pending = Arrays.copyOf(pending, Math.max(n, 0));
+
+			// a tunnel may stay quiet for long, and its traffic does not go 
+			// through the streams the watchdog watches
+			timers.cancel(watchdog);
+			new TunnelRelay(cSocket.getChannel(), server).run(pending, tunnelExecutor);
+			AccessLog.message("Tunnel to " + target + ":" + port + " closed; " + 
+							  TunnelRelay.report());
+		}
+
+		/**
+		 * Opens a stream to the server named in a CONNECT request over the 
+		 * circuit, and copies the bytes both ways until either side ends.
+		 * 
+		 * @param host host name of the server
+		 * @param port port number
+		 * @param request input stream from the client
+		 * @param response output stream to the client
+		 * @throws IOException if an I/O error occurs on the client connection
+		 */
+		private void tunnelThroughCircuit(String host, int port, InputStream request, 
+										  OutputStream response) throws IOException {
+			final OnionStream server;
+			try {
+				server = onion.open(host, port);
+			} catch (IOException e) {
+				ProxyStats.error(e);
+				AccessLog.message("IO: " + e.getMessage());
+				status = 502;
+				writeLine(response, BAD_GATEWAY);
+				writeLine(response, CONNECTION_CLOSE);
+				writeLine(response, EMPTY_LINE);
+				response.flush();
+				return;
+			}
+
+			originHost = host;
+			status = 200;
+			writeLine(response, CONNECT_ESTABLISHED);
+			writeLine(response, EMPTY_LINE);
+			response.flush();
+			timers.cancel(watchdog);
+
+			// the server's side on another thread; either side ending 
+			// ends the tunnel
+			final OutputStream client = response;
+			tunnelExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						OnionRouter.pump(server.in, client, new byte[CIRCUIT_TUNNEL_BUFFER_LEN]);
+					} catch (IOException e) {
+						// closed from the other side
+					} finally {
+						try {
+							cSocket.close();
+						} catch (IOException e) {
+							// nothing more we can do
+						}
+					}
+				}
+			});
+			try {
+				OnionRouter.pump(request, server.out, new byte[CIRCUIT_TUNNEL_BUFFER_LEN]);
+			} catch (IOException e) {
+				// closed from the other side
+			} finally {
+				server.close();
+			}
+			AccessLog.message("Tunnel to " + host + ":" + port + " over the circuit closed");
 		}
 
 		/**
 		 * Fetches the requested page from the sourcing web server 
-		 * and returns it to the browser.
+		 * and returns it to the browser. The server connection is taken 
+		 * from the pool and handed back once the response is relayed.
 		 * 
-		 * @param sb a StringBuffer contains HTTP request
+		 * @param header buffer holding the HTTP request header
+		 * @param headerLen length of the header in the buffer
+		 * @param req input stream from the client holding the request body
 		 * @param res response from server to client
 		 * @param host host name
 		 * @param port port number
+		 * @return true if the client connection can carry another request
 		 */
-		private void fetchRequest(StringBuffer sb, DataOutputStream res, 
-								  String host, int port) {
+		private boolean fetchRequest(byte[] header, int headerLen, InputStream req, 
+									 OutputStream res, String host, int port) {
+			// a buffer to hold the response from server and send to the 
+			// client, and the output buffers of both connections; all 
+			// come from the shared pool and go back once the request is done
+			ByteBuffer relayBuffer = ResponseRelay.buffers.acquire();
+			ByteBuffer outBuffer = ResponseRelay.buffers.acquire();
+			ByteBuffer upBuffer = ResponseRelay.buffers.acquire();
+			byte[] buf = relayBuffer.array();
+			OutputStream out = new RelayOutputStream(res, outBuffer.array());
+
 			try {
-				Socket s2 = new Socket(host, port);
-				InputStream serverResponse = s2.getInputStream();
-				PrintWriter clientRequest = 
-						new PrintWriter(new OutputStreamWriter(s2.getOutputStream()));
-
-				// print out the request
-				clientRequest.print(sb.toString());
-
-				// flush the writer
-				clientRequest.flush();
-
-				// a buffer to hold the response from server 
-				// and send to the client
-				byte[] buf = new byte[32767];
-				int numOfBytes = serverResponse.read(buf);
-
-				// keep reading from the buffer until there's nothing to be read
-				while (numOfBytes != -1) {
-					// write the response to client
-					// and flush the writer
-					res.write(buf, 0, numOfBytes);
-					res.flush();
-					
-					// read the next line of the response
-					numOfBytes = serverResponse.read(buf);
-
-					// cSocket.shutdownOutput(); // for experiment
-					// cSocket.shutdownInput(); // for experiment
-				}
-
-				// done with sending request and getting response,
-				// so close all the things we created for the connection
-				clientRequest.close();
-				serverResponse.close();
-				s2.close();
-				res.close();
+				// small bodies are read up front so a stale pooled 
+				// connection can be retried; larger ones are streamed 
+				// on a new connection
+				byte[] body = null;
+				UpstreamPool.UpstreamConnection conn;
+				if (!chunked && contentLength <= MAX_BUFFERED_BODY_LEN) {
+					body = new byte[(int) contentLength];
+					readFully(req, body);
+					conn = pool.acquire(host, port);
+				} else {
+					conn = pool.connect(host, port);
+				}
+
+				ResponseRelay.ResponseHead f;
+				try {
+					try {
+						f = sendAndRelay(conn, header, headerLen, body, req, out, buf, 
+										 upBuffer.array());
+					} catch (EOFException e) {
+						// a pooled connection the server already closed fails 
+						// before any response byte; retry it on a new connection
+						if (!conn.reused)
+							throw e;
+
+						conn.close();
+						conn = pool.connect(host, port);
+						f = sendAndRelay(conn, header, headerLen, body, req, out, buf, 
+										 upBuffer.array());
+					}
+
+					pool.release(conn, f.keepAlive);
+				} catch (IOException e) {
+					conn.close();
+					throw e;
+				}
+
+				return f.clientKeepAlive;
 			} catch (UnknownHostException e) {
-				System.out.println("UnknownHost: " + e.getMessage());
+				ProxyStats.error(e);
+				AccessLog.message("UnknownHost: " + e.getMessage());
 			} catch (IOException e) {
-				System.out.println("IO: " + e.getMessage());
+				if (!timedOut) {
+					ProxyStats.error(e);
+					AccessLog.message("IO: " + e.getMessage());
+				}
+			} finally {
+				upstream = null;
+				endFlight();
+				ResponseRelay.buffers.release(relayBuffer);
+				ResponseRelay.buffers.release(outBuffer);
+				ResponseRelay.buffers.release(upBuffer);
+			}
+			return false;
+		}
+
+		/**
+		 * Sends the request on a server connection and relays the response 
+		 * to the client.
+		 * 
+		 * @param body the request body, or null to stream it from the client
+		 * @param upBuf output buffer of the server connection
+		 * @return the framing of the response
+		 */
+		private ResponseRelay.ResponseHead sendAndRelay(UpstreamPool.UpstreamConnection conn, 
+				byte[] header, int headerLen, byte[] body, InputStream req, 
+				OutputStream out, byte[] buf, byte[] upBuf) throws IOException {
+			upstream = conn;
+
+			// header and a small body go out in one write
+			OutputStream upstream = new RelayOutputStream(conn.out, upBuf);
+			try {
+				upstream.write(header, 0, headerLen);
+				if (body != null) {
+					upstream.write(body);
+					upstream.flush();
+				}
+			} catch (SocketException e) {
+				throw new EOFException(e.getMessage());
+			}
+
+			if (body == null) {
+				if (chunked)
+					ResponseRelay.copyChunked(req, upstream, buf);
+				else
+					ResponseRelay.copyExactly(req, upstream, contentLength, buf);
+				upstream.flush();
+			}
+
+			ResponseRelay.ResponseHead h = ResponseRelay.readHead(conn.in, head);
+			ProxyStats.firstByte.recordSince(requestStart);
+
+			if (revalidating != null && h.status == 304) {
+				// the cached copy is still good
+				ResponseRelay.relayBody(conn.in, out, h, buf);
+				cache.revalidated(revalidating, h);
+				endFlight();
+				cache.recordHit(revalidating);
+				status = revalidating.status();
+				if (encodes(revalidating)) {
+					h.clientKeepAlive = serveEncoded(revalidating, out, buf);
+					return h;
+				}
+				cache.serve(revalidating, out, response.counting(cSocket.getChannel()), head, 
+							clientKeepAlive);
+				h.clientKeepAlive = clientKeepAlive;
+				return h;
+			}
+
+			status = h.status;
+			if (encoding != ResponseCompressor.IDENTITY && compressor.shouldCompress(h))
+				return relayEncoded(conn, h, out, buf);
+
+			ResponseRelay.writeHead(out, h, clientKeepAlive);
+			if (cacheKey == null) {
+				ResponseRelay.relayBody(conn.in, out, h, buf);
+				return h;
+			}
+
+			cache.recordMiss();
+			if (!cache.isCacheable(h)) {
+				if (flight != null)
+					flight.pass();
+				endFlight();
+				ResponseRelay.relayBody(conn.in, out, h, buf);
+				return h;
+			}
+
+			// keep a copy of the body while relaying it, and pass it on 
+			// to the clients waiting for the same response
+			ResponseCache.Flight shared = flight;
+			OutputStream client = shared == null ? out : shared.share(h, out);
+			ResponseCache.Fill fill = cache.startFill(cacheKey, h, client);
+			try {
+				ResponseRelay.relayBody(conn.in, fill, h, buf);
+			} catch (IOException e) {
+				fill.abort();
+				throw e;
+			}
+			fill.commit();
+			endFlight();
+			if (shared != null)
+				shared.checkLeader();
+			return h;
+		}
+
+		/**
+		 * Relays a response compressed, in the coding the client takes, 
+		 * and stores the compressed variant if the response is cacheable.
+		 * 
+		 * @param h head of the uncompressed response
+		 * @return the framing of the response
+		 */
+		private ResponseRelay.ResponseHead relayEncoded(UpstreamPool.UpstreamConnection conn, 
+				ResponseRelay.ResponseHead h, OutputStream out, byte[] buf) throws IOException {
+			ResponseRelay.ResponseHead sent = compressor.encodedHead(h, encoding);
+			ResponseRelay.writeHead(out, sent, clientKeepAlive);
+			h.clientKeepAlive = sent.clientKeepAlive;
+
+			// a compressed body has no length to share it by, so the 
+			// clients waiting on the flight fetch their own
+			ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+			ResponseCache.Fill fill = null;
+			if (cacheKey != null) {
+				cache.recordMiss();
+				if (flight != null)
+					flight.pass();
+				endFlight();
+				if (cache.isCacheable(h))
+					fill = cache.startEncodedFill(variantKey, sent, chunks);
+			}
+
+			ResponseCompressor.Encoder z = compressor.open(fill != null ? fill : chunks, encoding);
+			try {
+				ResponseRelay.relayDecodedBody(conn.in, z, h, buf);
+				z.finish();
+				chunks.finish();
+				out.flush();
+			} catch (IOException e) {
+				if (fill != null)
+					fill.abort();
+				throw e;
+			} finally {
+				z.release();
+			}
+			if (fill != null)
+				fill.commit();
+			return h;
+		}
+
+		/**
+		 * Closes the client connection and the server connection of the 
+		 * current request, which fails whatever the handler is blocked on.
+		 */
+		private void timeOut(String phase) {
+			timedOut = true;
+			ProxyStats.timedOut.increment();
+			AccessLog.message("Timeout: " + phase + " of " + clientAddress);
+			try {
+				cSocket.close();
+			} catch (IOException e) {
+				// nothing more we can do
+			}
+			UpstreamPool.UpstreamConnection u = upstream;
+			if (u != null)
+				u.close();
+		}
+
+		/**
+		 * Returns the bytes moved on the client connection so far.
+		 */
+		private long progress() {
+			return request.bytesRead() + response.count;
+		}
+
+		/**
+		 * The timeout of the client connection. Between requests, the 
+		 * client has clientTimeout to start the next request, and from 
+		 * then on headerTimeout to finish its header, so a client sending 
+		 * a header a byte at a time cannot hold the connection for long. 
+		 * While a request is served, the connection is closed once no byte 
+		 * has moved for clientTimeout, whether the client or the server 
+		 * is the one stalling. Progress is only checked when the timeout 
+		 * expires, so relaying costs nothing more.
+		 */
+		class Watchdog extends TimerWheel.Timeout {
+			static final int IDLE = 0;
+			static final int HEADER = 1;
+			static final int TRANSFER = 2;
+
+			private int phase;
+			// when the timeout is due, and the bytes moved when it was set
+			private long deadline;
+			private long mark;
+
+			/**
+			 * Sets the timeout for the next phase of the connection.
+			 * 
+			 * @param p the phase
+			 */
+			synchronized void arm(int p) {
+				long delay = p == HEADER ? headerTimeout : clientTimeout;
+				phase = p;
+				deadline = System.currentTimeMillis() + delay;
+				mark = progress();
+				timers.schedule(this, delay);
+			}
+
+			@Override
+			protected synchronized void expire() {
+				long now = System.currentTimeMillis();
+				if (now < deadline)
+					return;  // set again after it had expired
+
+				long p = progress();
+				if (phase == IDLE && p != mark) {
+					// the client started the next request
+					phase = HEADER;
+					deadline = now + headerTimeout;
+					timers.schedule(this, headerTimeout);
+				} else if (phase == TRANSFER && p != mark) {
+					mark = p;
+					deadline = now + clientTimeout;
+					timers.schedule(this, clientTimeout);
+				} else {
+					timeOut(phase == IDLE ? "idle connection" : 
+							phase == HEADER ? "request header" : "stalled request");
+				}
+			}
+		}
+
+		/**
+		 * Reads exactly b.length bytes.
+		 * 
+		 * @throws EOFException if the stream ends early
+		 */
+		private void readFully(InputStream in, byte[] b) throws IOException {
+			int off = 0;
+			while (off < b.length) {
+				int n = in.read(b, off, b.length - off);
+				if (n == -1)
+					throw new EOFException("request body ended early");
+				off += n;
 			}
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,597 @@
+import java.io.*;
+
+/**
+ * Parses HTTP request headers straight from the bytes read off the client
+ * socket, and builds the header forwarded to the server in a second byte
+ * buffer. Both buffers belong to one client connection and are reused for
+ * every request on it, so recognizing a header and copying it does not
+ * allocate: names are compared case-insensitively against lower case byte
+ * constants, and values are examined in place.
+ *
+ * The parser is also the input stream of the client connection. Bytes
+ * after the header (a request body or the next pipelined request) stay in
+ * its buffer and are returned by the read methods.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class HeaderParser extends InputStream {
+	private static final int INITIAL_BUFFER_LEN = 8192;
+	// largest request header the proxy is willing to buffer
+	private static final int MAX_HEADER_LEN = 65536;
+	private static final int MAX_LINES = 256;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private InputStream in;
+
+	// bytes read from the client; buf[pos, limit) are not consumed yet
+	private byte[] buf;
+	private int pos;
+	private int limit;
+
+	// line i of the current header is buf[lineStart[i], lineEnd[i]),
+	// without its line end; nameEnd[i] is the position of the colon
+	private int[] lineStart;
+	private int[] lineEnd;
+	private int[] nameEnd;
+	private int numLines;
+	private int headerEnd;
+
+	// the header forwarded to the server
+	private byte[] out;
+	private int outLen;
+
+	// the last host seen, reused while the client keeps asking for it
+	private String lastHost;
+
+	// bytes read from the client so far; volatile for the timeout 
+	// checking progress
+	private volatile long bytesRead;
+
+	/**
+	 * Constructs a new HeaderParser.
+	 *
+	 * @param in input stream of the client connection
+	 * @throws IllegalArgumentException if in is null
+	 */
+	public HeaderParser(InputStream in) {
+		if (in == null)
+			throw new IllegalArgumentException("input stream cannot be null");
+
+		this.in = in;
+		buf = new byte[INITIAL_BUFFER_LEN];
+		out = new byte[INITIAL_BUFFER_LEN];
+		lineStart = new int[MAX_LINES];
+		lineEnd = new int[MAX_LINES];
+		nameEnd = new int[MAX_LINES];
+	}
+
+	/**
+	 * Reads the next request header into the buffer and finds its lines.
+	 * Empty lines before the request line are skipped.
+	 *
+	 * @return false if the client closed the connection before sending
+	 * another request
+	 * @throws IOException if an I/O error occurs, the header is too long,
+	 * or the client closed the connection in the middle of it
+	 */
+	public boolean readHeader() throws IOException {
+		// some clients send an extra CRLF after a request body
+		while (true) {
+			if (pos == limit && !fill())
+				return false;
+			if (buf[pos] != '\r' && buf[pos] != '\n')
+				break;
+			pos++;
+		}
+
+		numLines = 0;
+		outLen = 0;
+		int scan = pos;
+		int start = pos;
+		while (true) {
+			while (scan < limit && buf[scan] != '\n')
+				scan++;
+
+			if (scan == limit) {
+				// the header continues beyond what was read so far
+				int shift = start - pos;
+				int scanned = scan - pos;
+				if (!fill())
+					throw new EOFException("request header ended early");
+				start = pos + shift;
+				scan = pos + scanned;
+				continue;
+			}
+
+			int end = scan > start && buf[scan - 1] == '\r' ? scan - 1 : scan;
+			scan++;
+			if (end == start) {
+				headerEnd = scan;
+				return numLines > 0;
+			}
+
+			if (numLines == MAX_LINES)
+				throw new IOException("too many request header lines");
+
+			// lines are recorded relative to pos, which fill() may move
+			lineStart[numLines] = start - pos;
+			lineEnd[numLines] = end - pos;
+			nameEnd[numLines] = indexOf(start, end, (byte) ':') - pos;
+			numLines++;
+			start = scan;
+		}
+	}
+
+	/**
+	 * Marks the current header as consumed, so the read methods return
+	 * what follows it.
+	 */
+	public void consumeHeader() {
+		pos = headerEnd;
+	}
+
+	/**
+	 * Returns the number of lines of the current header, including the
+	 * request line.
+	 *
+	 * @return number of lines
+	 */
+	public int numLines() {
+		return numLines;
+	}
+
+	/**
+	 * Returns true if the header line has the given name.
+	 *
+	 * @param line index of a header line
+	 * @param lowerName lower case name without the colon
+	 * @return true if the names match ignoring case
+	 */
+	public boolean nameEquals(int line, byte[] lowerName) {
+		int start = pos + lineStart[line];
+		int end = pos + nameEnd[line];
+		if (nameEnd[line] < 0 || end - start != lowerName.length)
+			return false;
+
+		for (int i = 0; i < lowerName.length; i++) {
+			if (toLower(buf[start + i]) != lowerName[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the header line name starts with the given prefix.
+	 *
+	 * @param line index of a header line
+	 * @param lowerPrefix lower case prefix
+	 * @return true if the name starts with the prefix ignoring case
+	 */
+	public boolean nameStartsWith(int line, byte[] lowerPrefix) {
+		int start = pos + lineStart[line];
+		if (nameEnd[line] < 0 || nameEnd[line] - lineStart[line] < lowerPrefix.length)
+			return false;
+
+		for (int i = 0; i < lowerPrefix.length; i++) {
+			if (toLower(buf[start + i]) != lowerPrefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the value of the header line contains the token.
+	 *
+	 * @param line index of a header line
+	 * @param lowerToken lower case token
+	 * @return true if the token appears in the value ignoring case
+	 */
+	public boolean valueContains(int line, byte[] lowerToken) {
+		int start = valueStart(line);
+		int end = valueEnd(line);
+		for (int i = start; i + lowerToken.length <= end; i++) {
+			int j = 0;
+			while (j < lowerToken.length && toLower(buf[i + j]) == lowerToken[j])
+				j++;
+			if (j == lowerToken.length)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the value of the header line as a non-negative number.
+	 *
+	 * @param line index of a header line
+	 * @return the number
+	 * @throws NumberFormatException if the value is not a number
+	 */
+	public long valueAsLong(int line) {
+		int start = valueStart(line);
+		int end = valueEnd(line);
+		if (start == end)
+			throw new NumberFormatException("empty number");
+
+		long n = 0;
+		for (int i = start; i < end; i++) {
+			int d = buf[i] - '0';
+			if (d < 0 || d > 9 || n > (Long.MAX_VALUE - d) / 10)
+				throw new NumberFormatException("not a number");
+			n = n * 10 + d;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the host of a Host header line without the port. The string
+	 * of the previous request is returned again if the host did not change.
+	 *
+	 * @param line index of the Host header line
+	 * @return the host name
+	 */
+	public String hostName(int line) {
+		int start = valueStart(line);
+		int end = hostEnd(line);
+
+		if (lastHost != null && lastHost.length() == end - start) {
+			int i = 0;
+			while (i < end - start && lastHost.charAt(i) == (char) (buf[start + i] & 0xff))
+				i++;
+			if (i == end - start)
+				return lastHost;
+		}
+
+		lastHost = new String(buf, start, end - start, HTTPProxy.HEADER_CHARSET);
+		return lastHost;
+	}
+
+	/**
+	 * Returns the port of a Host header line, or the default if it has none.
+	 *
+	 * @param line index of the Host header line
+	 * @param defaultPort port to return if the value has no port
+	 * @return the port number
+	 * @throws NumberFormatException if the port is empty or not a port number
+	 */
+	public int hostPort(int line, int defaultPort) {
+		int colon = hostEnd(line);
+		int end = valueEnd(line);
+		if (colon == end)
+			return defaultPort;
+
+		if (colon + 1 == end)
+			throw new NumberFormatException("invalid port in host header");
+
+		int port = 0;
+		for (int i = colon + 1; i < end; i++) {
+			int d = buf[i] - '0';
+			if (d < 0 || d > 9)
+				throw new NumberFormatException("invalid port in host header");
+			port = port * 10 + d;
+			if (port > 65535)
+				throw new NumberFormatException("invalid port in host header");
+		}
+		return port;
+	}
+
+	/**
+	 * Returns the value of the header line as a string. Allocates, so it is
+	 * only meant for the few values the proxy keeps, like the host.
+	 *
+	 * @param line index of a header line
+	 * @return the trimmed value
+	 */
+	public String value(int line) {
+		int start = valueStart(line);
+		return new String(buf, start, valueEnd(line) - start, HTTPProxy.HEADER_CHARSET);
+	}
+
+	/**
+	 * Returns true if the request line starts with the method.
+	 *
+	 * @param method method followed by a space, such as "GET "
+	 * @return true if the request uses the method
+	 */
+	public boolean methodIs(byte[] method) {
+		return regionEquals(pos + lineStart[0], method);
+	}
+
+	/**
+	 * Returns true if the request line ends with the given version.
+	 *
+	 * @param version a version such as "HTTP/1.0"
+	 * @return true if the request uses the version
+	 */
+	public boolean versionIs(byte[] version) {
+		int end = pos + lineEnd[0];
+		int start = end - version.length;
+		return start >= pos + lineStart[0] && regionEquals(start, version);
+	}
+
+	/**
+	 * Returns the request line. Allocates; used for logging and the cache.
+	 *
+	 * @return the request line without its line end
+	 */
+	public String requestLine() {
+		int start = pos + lineStart[0];
+		return new String(buf, start, pos + lineEnd[0] - start, HTTPProxy.HEADER_CHARSET);
+	}
+
+	/**
+	 * Returns the request target, the second token of the request line.
+	 * Allocates; used for CONNECT and the cache key.
+	 *
+	 * @return the request target, or null if the request line has none
+	 */
+	public String requestTarget() {
+		int start = pos + lineStart[0];
+		int end = pos + lineEnd[0];
+		int sp = indexOf(start, end, (byte) ' ');
+		if (sp < 0)
+			return null;
+
+		int targetEnd = indexOf(sp + 1, end, (byte) ' ');
+		if (targetEnd < 0)
+			targetEnd = end;
+		return new String(buf, sp + 1, targetEnd - sp - 1, HTTPProxy.HEADER_CHARSET);
+	}
+
+	/**
+	 * Returns true if the request target starts with the given bytes.
+	 *
+	 * @param prefix a prefix such as "/proxy-stats"
+	 * @return true if the target starts with the prefix
+	 */
+	public boolean targetStartsWith(byte[] prefix) {
+		int start = pos + lineStart[0];
+		int sp = indexOf(start, pos + lineEnd[0], (byte) ' ');
+		return sp >= 0 && sp + 1 + prefix.length <= pos + lineEnd[0] && 
+			   regionEquals(sp + 1, prefix);
+	}
+
+	/**
+	 * Copies a header line and a line end to the forwarded header.
+	 *
+	 * @param line index of a header line
+	 */
+	public void appendLine(int line) {
+		int start = pos + lineStart[line];
+		append(buf, start, pos + lineEnd[line] - start);
+		append(CRLF, 0, CRLF.length);
+	}
+
+	/**
+	 * Copies a Host header line to the forwarded header, normalizing its
+	 * name and dropping extra white space.
+	 *
+	 * @param line index of the Host header line
+	 * @param capHostTag "Host: " as bytes
+	 */
+	public void appendHostLine(int line, byte[] capHostTag) {
+		int start = valueStart(line);
+		append(capHostTag, 0, capHostTag.length);
+		append(buf, start, valueEnd(line) - start);
+		append(CRLF, 0, CRLF.length);
+	}
+
+	/**
+	 * Appends bytes that already end with a line end to the forwarded header.
+	 *
+	 * @param b bytes to append
+	 */
+	public void appendRaw(byte[] b) {
+		append(b, 0, b.length);
+	}
+
+	/**
+	 * Appends a line made of ISO-8859-1 characters and a line end to the
+	 * forwarded header, without encoding it into a temporary array.
+	 *
+	 * @param line line to append
+	 */
+	public void appendLine(String line) {
+		ensureOutput(line.length() + CRLF.length);
+		for (int i = 0; i < line.length(); i++)
+			out[outLen++] = (byte) line.charAt(i);
+		append(CRLF, 0, CRLF.length);
+	}
+
+	/**
+	 * Returns the buffer holding the forwarded header. Only the first
+	 * outputLength() bytes are valid, and only until the next readHeader().
+	 *
+	 * @return the output buffer
+	 */
+	public byte[] output() {
+		return out;
+	}
+
+	/**
+	 * Returns the length of the forwarded header.
+	 *
+	 * @return number of valid bytes in the output buffer
+	 */
+	public int outputLength() {
+		return outLen;
+	}
+
+	/**
+	 * Returns the number of bytes read from the client so far.
+	 *
+	 * @return number of bytes
+	 */
+	public long bytesRead() {
+		return bytesRead;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos == limit && !fill())
+			return -1;
+		return buf[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+
+		// hand out buffered bytes first, then read straight from the socket
+		if (pos < limit) {
+			int n = Math.min(len, limit - pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+		int n = in.read(b, off, len);
+		if (n > 0)
+			bytesRead += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (limit - pos) + in.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Reads more bytes from the client, moving the unconsumed bytes to the
+	 * front of the buffer and growing it if needed.
+	 *
+	 * @return false if the client closed the connection
+	 */
+	private boolean fill() throws IOException {
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+
+		if (limit == buf.length) {
+			if (buf.length >= MAX_HEADER_LEN)
+				throw new IOException("request header too long");
+			byte[] bigger = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, bigger, 0, limit);
+			buf = bigger;
+		}
+
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n == -1)
+			return false;
+		limit += n;
+		bytesRead += n;
+		return true;
+	}
+
+	/**
+	 * Appends bytes to the forwarded header, growing the buffer if needed.
+	 */
+	private void append(byte[] b, int off, int len) {
+		ensureOutput(len);
+		System.arraycopy(b, off, out, outLen, len);
+		outLen += len;
+	}
+
+	/**
+	 * Makes room for len more bytes in the output buffer.
+	 */
+	private void ensureOutput(int len) {
+		if (outLen + len <= out.length)
+			return;
+
+		byte[] bigger = new byte[Math.max(out.length * 2, outLen + len)];
+		System.arraycopy(out, 0, bigger, 0, outLen);
+		out = bigger;
+	}
+
+	/**
+	 * Returns the start of the value of a header line, after the colon
+	 * and any white space.
+	 */
+	private int valueStart(int line) {
+		int i = pos + (nameEnd[line] < 0 ? lineEnd[line] : nameEnd[line] + 1);
+		int end = pos + lineEnd[line];
+		while (i < end && (buf[i] == ' ' || buf[i] == '\t'))
+			i++;
+		return i;
+	}
+
+	/**
+	 * Returns the end of the value of a header line, before any trailing
+	 * white space.
+	 */
+	private int valueEnd(int line) {
+		int start = valueStart(line);
+		int end = pos + lineEnd[line];
+		while (end > start && (buf[end - 1] == ' ' || buf[end - 1] == '\t'))
+			end--;
+		return end;
+	}
+
+	/**
+	 * Returns the end of the host in a Host value, which is the colon
+	 * before the port, or the end of the value. An IPv6 literal in
+	 * brackets keeps its colons.
+	 */
+	private int hostEnd(int line) {
+		int start = valueStart(line);
+		int end = valueEnd(line);
+		int from = start;
+		if (start < end && buf[start] == '[')
+			from = indexOf(start, end, (byte) ']');
+		if (from < 0)
+			return end;
+
+		int colon = indexOf(from, end, (byte) ':');
+		return colon < 0 ? end : colon;
+	}
+
+	/**
+	 * Returns the index of the first b in buf[start, end), or -1.
+	 */
+	private int indexOf(int start, int end, byte b) {
+		for (int i = start; i < end; i++) {
+			if (buf[i] == b)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if buf holds the given bytes at start.
+	 */
+	private boolean regionEquals(int start, byte[] b) {
+		if (start + b.length > limit)
+			return false;
+		for (int i = 0; i < b.length; i++) {
+			if (buf[start + i] != b[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the lower case of an ASCII letter, or the byte itself.
+	 */
+	private static byte toLower(byte b) {
+		return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+	}
+
+	/**
+	 * Returns the bytes of an ASCII constant.
+	 *
+	 * @param s string made of ASCII characters
+	 * @return its bytes
+	 */
+	public static byte[] bytes(String s) {
+		return s.getBytes(HTTPProxy.HEADER_CHARSET);
+	}
+}
@@ -0,0 +1,1200 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A non-blocking mode of the HTTP proxy. Acceptor threads hand the
+ * accepted connections to a fixed set of selector threads, and each selector
+ * thread drives all of its connections through a small state machine: read
+ * the request header, connect to the origin server, send the request, and
+ * relay the response back to the browser. The number of threads no longer
+ * grows with the number of connections.
+ *
+ * The response is relayed as it arrives, with a ResponseFramer following
+ * its framing, so the connection is done as soon as the last byte of the
+ * response is in, and a response the server cut short is told apart from
+ * a complete one.
+ *
+ * With bandwidth limits, see BandwidthShaper, a connection with response
+ * bytes to send waits for its turn in the fair queue of its selector
+ * thread rather than writing right away. A connection out of tokens is
+ * simply left out of the select until it has some again, so no thread
+ * ever waits for tokens.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class NioProxyServer {
+	// largest request header the proxy is willing to buffer
+	private static final int MAX_HEADER_LEN = 65536;
+	private static final int HEADER_BUFFER_LEN = 8192;
+	private static final int RELAY_BUFFER_LEN = 32768;
+	private static final int NUM_RESOLVER_THREADS = 4;
+	private static final String FORBIDDEN = "HTTP/1.1 403 Forbidden";
+	private static final byte[] BAD_REQUEST = HeaderParser.bytes(
+			"HTTP/1.1 400 Bad Request" + HTTPProxy.HTTP_END_LINE + 
+			"Content-Length: 0" + HTTPProxy.HTTP_END_LINE + 
+			HTTPProxy.CONNECTION_CLOSE + HTTPProxy.HTTP_END_LINE + HTTPProxy.HTTP_END_LINE);
+	private static final byte[] NOT_IMPLEMENTED = HeaderParser.bytes(
+			"HTTP/1.1 501 Not Implemented" + HTTPProxy.HTTP_END_LINE + 
+			"Content-Length: 0" + HTTPProxy.HTTP_END_LINE + 
+			HTTPProxy.CONNECTION_CLOSE + HTTPProxy.HTTP_END_LINE + HTTPProxy.HTTP_END_LINE);
+	private static final int MAX_POOLED_BUFFERS = 1024;
+
+	// bytes a client may send per turn of the fair queue, split among its 
+	// connections; no write is smaller than MIN_GRANT unless it ends the 
+	// response, and unused turns add up to at most MAX_DEFICIT
+	private static final int QUANTUM = 16384;
+	private static final int MIN_GRANT = 1024;
+	private static final int MAX_DEFICIT = 2 * QUANTUM;
+
+	// how long a connect to one address of an origin may take while 
+	// other addresses are left to try; the last one gets what is left 
+	// of the connect timeout
+	private static final long ATTEMPT_TIMEOUT = 1000;  // in milliseconds
+
+	// connect timeouts of all the selector threads
+	private static final TimerWheel timers = new TimerWheel(50, 256, "connect-timeouts");
+
+	// relay buffers of all connections, handed back when they close
+	static final BufferPool buffers = new BufferPool(RELAY_BUFFER_LEN, MAX_POOLED_BUFFERS);
+
+	private SelectorLoop[] loops;
+
+	// host names missing from the resolver cache are 
+	// resolved off the selector threads
+	private ExecutorService resolver;
+	private ResolverCache resolverCache;
+	private OriginConnector connector;
+
+	// bandwidth limits, or null if there are none
+	private BandwidthShaper shaper;
+
+	/**
+	 * Constructs a new NioProxyServer.
+	 *
+	 * @param numLoops number of selector threads
+	 * @param resolverCache cache resolving the origin host names
+	 * @throws IllegalArgumentException if numLoops is less than 1 or
+	 * resolverCache is null
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public NioProxyServer(int numLoops, ResolverCache resolverCache) throws IOException {
+		this(numLoops, resolverCache, new OriginConnector(OriginConnector.DEFAULT_CONNECT_TIMEOUT), 
+			 null);
+	}
+
+	/**
+	 * Constructs a new NioProxyServer sending responses within the given
+	 * bandwidth limits.
+	 *
+	 * @param numLoops number of selector threads
+	 * @param resolverCache cache resolving the origin host names
+	 * @param connector connector ordering the addresses of an origin
+	 * @param shaper bandwidth limits, or null for none
+	 * @throws IllegalArgumentException if numLoops is less than 1, or
+	 * resolverCache or connector is null
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public NioProxyServer(int numLoops, ResolverCache resolverCache, 
+						  OriginConnector connector, BandwidthShaper shaper) throws IOException {
+		if (numLoops < 1)
+			throw new IllegalArgumentException("number of selector threads must be positive");
+		if (resolverCache == null || connector == null)
+			throw new IllegalArgumentException("resolver cache and connector cannot be null");
+
+		this.resolverCache = resolverCache;
+		this.connector = connector;
+		this.shaper = shaper;
+
+		resolver = Executors.newFixedThreadPool(NUM_RESOLVER_THREADS);
+		loops = new SelectorLoop[numLoops];
+		for (int i = 0; i < numLoops; i++) {
+			loops[i] = new SelectorLoop();
+			Thread t = new Thread(loops[i], "selector-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Accepts connections on the given port forever, handing them to the
+	 * selector threads in round-robin order. Each acceptor has its own
+	 * listening socket, see HTTPProxy.listen(), starts at a different
+	 * selector thread and steps by the number of acceptors, so with a
+	 * multiple of that many selector threads, each acceptor feeds its own.
+	 *
+	 * @param port port number
+	 * @param numAcceptors number of acceptor threads
+	 * @throws IOException if an I/O error occurs when opening the socket
+	 * or waiting for a connection
+	 */
+	public void serve(int port, int numAcceptors) throws IOException {
+		ServerSocketChannel[] listeners = HTTPProxy.listen(port, numAcceptors);
+		for (int i = 1; i < numAcceptors; i++) {
+			final ServerSocketChannel listener = listeners[i];
+			final int first = i;
+			final int step = numAcceptors;
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						accept(listener, first, step);
+					} catch (IOException e) {
+						AccessLog.message("IO: " + e.getMessage());
+					}
+				}
+			}, "acceptor-" + i);
+			t.start();
+		}
+		accept(listeners[0], 0, numAcceptors);
+	}
+
+	/**
+	 * Accepts connections on a listening socket forever, handing them to
+	 * every step-th selector thread from the given one on.
+	 *
+	 * @throws IOException if an I/O error occurs waiting for a connection
+	 */
+	private void accept(ServerSocketChannel ssc, int first, int step) throws IOException {
+		int next = first % loops.length;
+		while (true) {
+			SocketChannel client = ssc.accept();
+			ProxyStats.accepted.increment();
+			loops[next].register(client);
+			next = (next + step) % loops.length;
+		}
+	}
+
+	/**
+	 * A selector thread that owns a set of proxied connections.
+	 */
+	class SelectorLoop implements Runnable {
+		private Selector selector;
+
+		// work handed to this loop by other threads
+		private Queue<Runnable> tasks;
+
+		// connections waiting for their turn to send, if there are 
+		// bandwidth limits
+		private FairQueue queue;
+
+		/**
+		 * Constructs a new SelectorLoop.
+		 *
+		 * @throws IOException if the selector cannot be opened
+		 */
+		public SelectorLoop() throws IOException {
+			selector = Selector.open();
+			tasks = new ConcurrentLinkedQueue<Runnable>();
+			if (shaper != null)
+				queue = new FairQueue();
+		}
+
+		/**
+		 * Runs the given task on this selector thread.
+		 *
+		 * @param r task to be run
+		 */
+		public void execute(Runnable r) {
+			tasks.add(r);
+			selector.wakeup();
+		}
+
+		/**
+		 * Hands a newly accepted client connection to this loop.
+		 *
+		 * @param client client channel
+		 */
+		public void register(final SocketChannel client) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						client.configureBlocking(false);
+						client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+						ProxyConnection conn = new ProxyConnection(SelectorLoop.this, client);
+						conn.clientKey = client.register(selector, SelectionKey.OP_READ, conn);
+						ProxyStats.active.increment();
+						if (queue != null)
+							queue.opened(conn);
+					} catch (IOException e) {
+						ProxyStats.error(e);
+						AccessLog.message("IO: " + e.getMessage());
+						closeQuietly(client);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			// nanoseconds until a connection in the fair queue may send 
+			// again, or -1 if none is waiting
+			long wait = -1;
+			while (true) {
+				try {
+					if (wait < 0)
+						selector.select();
+					else if (wait == 0)
+						selector.selectNow();
+					else
+						selector.select(Math.max(1, wait / 1000000));
+
+					Runnable r;
+					while ((r = tasks.poll()) != null)
+						r.run();
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						ProxyConnection conn = (ProxyConnection) key.attachment();
+						try {
+							if (key.isValid())
+								conn.handle(key);
+						} catch (IOException e) {
+							ProxyStats.error(e);
+							AccessLog.message("IO: " + e.getMessage());
+							conn.close();
+						} catch (RuntimeException e) {
+							// a bug hit by one connection must not take 
+							// down the others of this thread
+							ProxyStats.error(e);
+							AccessLog.message("Error: " + e);
+							conn.close();
+						}
+					}
+
+					if (queue != null)
+						wait = queue.serve();
+				} catch (IOException e) {
+					AccessLog.message("IO: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * The connections of one selector thread that have response bytes to
+	 * send under bandwidth limits, served by deficit round robin. In each
+	 * round, every waiting connection may send a quantum of bytes, as far
+	 * as the token buckets allow; the quantum is split among the
+	 * connections the client has on this thread, so each client gets an
+	 * equal share however many connections it opens. A small response goes
+	 * out in its first turn instead of queueing behind bulk transfers.
+	 */
+	class FairQueue {
+		private ArrayDeque<ProxyConnection> waiting = new ArrayDeque<ProxyConnection>();
+		// open connections of each client on this thread
+		private Map<InetAddress, Integer> connections = new HashMap<InetAddress, Integer>();
+
+		/**
+		 * Takes on a new connection.
+		 *
+		 * @param c the connection
+		 */
+		void opened(ProxyConnection c) {
+			c.peer = c.client.socket().getInetAddress();
+			c.bucket = shaper.open(c.peer);
+			Integer n = connections.get(c.peer);
+			connections.put(c.peer, n == null ? 1 : n + 1);
+		}
+
+		/**
+		 * Forgets a closed connection.
+		 *
+		 * @param c the connection
+		 */
+		void closed(ProxyConnection c) {
+			shaper.release(c.peer);
+			Integer n = connections.get(c.peer);
+			if (n == null || n <= 1)
+				connections.remove(c.peer);
+			else
+				connections.put(c.peer, n - 1);
+		}
+
+		/**
+		 * Puts a connection with bytes to send at the end of the queue.
+		 *
+		 * @param c the connection
+		 */
+		void add(ProxyConnection c) {
+			if (!c.queued) {
+				c.queued = true;
+				waiting.add(c);
+			}
+		}
+
+		/**
+		 * Gives every waiting connection one turn.
+		 *
+		 * @return nanoseconds until a connection still waiting may send,
+		 * or -1 if none is waiting
+		 */
+		long serve() {
+			if (waiting.isEmpty())
+				return -1;
+
+			long now = System.nanoTime();
+			TokenBucket global = shaper.global();
+			int turns = waiting.size();
+			for (int i = 0; i < turns; i++) {
+				ProxyConnection c = waiting.poll();
+				c.queued = false;
+				if (c.state == State.CLOSED)
+					continue;
+
+				int pending = c.relay.position();
+				Integer n = connections.get(c.peer);
+				int share = QUANTUM / (n == null ? 1 : n);
+				c.deficit = Math.min(c.deficit + Math.max(share, MIN_GRANT), MAX_DEFICIT);
+				long allowed = Math.min(Math.min(c.deficit, pending), 
+										Math.min(global.available(now), c.bucket.available(now)));
+				if (allowed < Math.min(MIN_GRANT, pending)) {
+					// wait for enough tokens rather than sending tiny pieces
+					add(c);
+					continue;
+				}
+
+				try {
+					int sent = c.writeToClient(allowed);
+					global.take(sent);
+					c.bucket.take(sent);
+					c.deficit -= sent;
+					if (c.relay.position() == 0) {
+						c.deficit = 0;
+						c.afterWrite(true);
+					} else if (sent < allowed) {
+						// the socket is full; back in line once it drains
+						c.afterWrite(false);
+					} else {
+						add(c);
+					}
+				} catch (IOException e) {
+					ProxyStats.error(e);
+					AccessLog.message("IO: " + e.getMessage());
+					c.close();
+				}
+			}
+
+			if (waiting.isEmpty())
+				return -1;
+
+			long wait = Long.MAX_VALUE;
+			for (ProxyConnection c : waiting) {
+				if (c.state == State.CLOSED)
+					return 0;
+				long need = Math.min(MIN_GRANT, c.relay.position());
+				wait = Math.min(wait, Math.max(global.nanosUntil(need, now), 
+											   c.bucket.nanosUntil(need, now)));
+			}
+			return wait;
+		}
+	}
+
+	/**
+	 * States a proxied connection goes through.
+	 */
+	enum State { READING_HEADER, RESOLVING, CONNECTING, SENDING_BODY, RELAYING, CLOSED }
+
+	/**
+	 * A client connection together with its origin server connection.
+	 * Only ever touched by the selector thread that owns it.
+	 */
+	class ProxyConnection {
+		private SelectorLoop loop;
+		private State state;
+
+		private SocketChannel client;
+		private SocketChannel server;
+		private SelectionKey clientKey;
+		private SelectionKey serverKey;
+
+		// request bytes from the client, then the rewritten request
+		private ByteBuffer header;
+		// response bytes waiting to be written to the client, and where 
+		// the response ends
+		private ByteBuffer relay;
+		private ResponseFramer framer;
+
+		// addresses of the origin server in the order they are tried, 
+		// and the one being tried
+		private InetAddress[] addrs;
+		private int addrIndex;
+		private int port;
+		private ConnectTimeout connectTimeout;
+
+		private boolean serverDone;
+
+		// request body bytes the client has yet to send, or for a chunked 
+		// body, where it ends
+		private long bodyLeft;
+		private ResponseFramer chunkedBody;
+
+		// when the request header arrived and the connect started, 
+		// or 0 before that
+		private long requestStart;
+		private long connectStart;
+		private boolean sawFirstByte;
+
+		// what the access log says about the request
+		private String requestLine;
+		private String host;
+		private int status;
+		private long bytesOut;
+
+		// the client's token bucket and the connection's place in the 
+		// fair queue, if there are bandwidth limits
+		private InetAddress peer;
+		private TokenBucket bucket;
+		private boolean queued;
+		private long deficit;
+
+		/**
+		 * Constructs a new ProxyConnection.
+		 *
+		 * @param l selector loop owning the connection
+		 * @param c client channel
+		 */
+		public ProxyConnection(SelectorLoop l, SocketChannel c) {
+			loop = l;
+			client = c;
+			state = State.READING_HEADER;
+			header = ByteBuffer.allocate(HEADER_BUFFER_LEN);
+		}
+
+		/**
+		 * Advances the state machine for a ready key.
+		 *
+		 * @param key a selected key of either the client or the server channel
+		 * @throws IOException if an I/O error occurs
+		 */
+		public void handle(SelectionKey key) throws IOException {
+			switch (state) {
+			case READING_HEADER:
+				readHeader();
+				break;
+			case CONNECTING:
+				finishConnect();
+				break;
+			case SENDING_BODY:
+				sendBody(key);
+				break;
+			case RELAYING:
+				if (key == serverKey)
+					relayFromServer();
+				else
+					relayToClient();
+				break;
+			default:
+				break;
+			}
+		}
+
+		/**
+		 * Reads the request header from the client until the empty line
+		 * is seen, then starts resolving the origin server.
+		 */
+		private void readHeader() throws IOException {
+			if (!header.hasRemaining()) {
+				if (header.capacity() >= MAX_HEADER_LEN) {
+					close();
+					return;
+				}
+				ByteBuffer bigger = ByteBuffer.allocate(header.capacity() * 2);
+				header.flip();
+				bigger.put(header);
+				header = bigger;
+			}
+
+			int n = client.read(header);
+			if (n == -1) {
+				close();
+				return;
+			}
+			ProxyStats.bytesFromClients.add(n);
+
+			int end = findHeaderEnd(header);
+			if (end < 0)
+				return;
+
+			requestStart = System.nanoTime();
+			ProxyStats.requests.increment();
+			requestLine = requestLine(header);
+			if (isStatsRequest(header)) {
+				serveStats(header);
+				return;
+			}
+			if (requestLine.startsWith("CONNECT ")) {
+				// only the blocking proxy makes tunnels
+				answer(501, NOT_IMPLEMENTED);
+				return;
+			}
+
+			// rewrite the header block the same way the blocking proxy does
+			RewrittenRequest req;
+			try {
+				req = rewriteRequest(header, end);
+			} catch (NumberFormatException e) {
+				ProxyStats.error(e);
+				AccessLog.message("NumberFormat: " + e.getMessage());
+				answer(400, BAD_REQUEST);
+				return;
+			}
+			ProxyStats.headerParse.recordSince(requestStart);
+			host = req.host;
+			if (req.host == null) {
+				close();
+				return;
+			}
+
+			// the body bytes read with the header go out with it
+			if (req.chunked) {
+				chunkedBody = ResponseFramer.chunkedBody();
+				chunkedBody.feed(header, end, header.position());
+			} else {
+				bodyLeft = Math.max(0, req.bodyLength - (header.position() - end));
+			}
+			header = ByteBuffer.wrap(req.bytes);
+			state = State.RESOLVING;
+			clientKey.interestOps(0);
+			resolve(req.host, req.port);
+		}
+
+		/**
+		 * Answers a request for the proxy statistics, which are only given 
+		 * to clients on this machine, and closes the connection.
+		 *
+		 * @param bb buffer in write mode holding the request
+		 */
+		private void serveStats(ByteBuffer bb) throws IOException {
+			InetSocketAddress peer = (InetSocketAddress) client.getRemoteAddress();
+			if (peer.getAddress().isLoopbackAddress()) {
+				answer(200, ProxyStats.response(requestTarget(bb), false));
+			} else {
+				answer(403, (FORBIDDEN + HTTPProxy.HTTP_END_LINE + 
+							 HTTPProxy.CONNECTION_CLOSE + HTTPProxy.HTTP_END_LINE + 
+							 HTTPProxy.HTTP_END_LINE).getBytes(HTTPProxy.HEADER_CHARSET));
+			}
+		}
+
+		/**
+		 * Sends a response of the proxy's own to the client and closes the 
+		 * connection after it.
+		 *
+		 * @param status status code of the response
+		 * @param bytes the whole response
+		 */
+		private void answer(int status, byte[] bytes) throws IOException {
+			this.status = status;
+
+			// send it like a response that the server already finished
+			relay = ByteBuffer.allocate(bytes.length);
+			relay.put(bytes);
+			serverDone = true;
+			state = State.RELAYING;
+			relayToClient();
+		}
+
+		/**
+		 * Connects right away if the origin host is in the resolver cache,
+		 * otherwise resolves it on the resolver pool and continues with
+		 * the connect on this connection's selector thread.
+		 */
+		private void resolve(final String host, final int port) {
+			this.port = port;
+			InetAddress[] cached = resolverCache.peek(host);
+			if (cached != null) {
+				startConnect(host, cached);
+				return;
+			}
+
+			resolver.execute(new Runnable() {
+				@Override
+				public void run() {
+					InetAddress[] resolved;
+					try {
+						resolved = resolverCache.resolve(host);
+					} catch (UnknownHostException e) {
+						resolved = null;
+					}
+
+					final InetAddress[] found = resolved;
+					loop.execute(new Runnable() {
+						@Override
+						public void run() {
+							startConnect(host, found);
+						}
+					});
+				}
+			});
+		}
+
+		/**
+		 * Starts connecting to the origin server, trying the addresses 
+		 * that did not fail recently first.
+		 *
+		 * @param host host name of the origin server
+		 * @param found its addresses, or null if it has none
+		 */
+		private void startConnect(String host, InetAddress[] found) {
+			if (state == State.CLOSED)
+				return;
+
+			if (found == null) {
+				ProxyStats.error(UnknownHostException.class.getSimpleName());
+				AccessLog.message("UnknownHost: " + host);
+				close();
+				return;
+			}
+
+			addrs = connector.order(found);
+			addrIndex = 0;
+			connectStart = System.nanoTime();
+			connectTimeout = new ConnectTimeout(this);
+			connectNext();
+		}
+
+		/**
+		 * Starts a non-blocking connect to the next address of the origin 
+		 * server, or gives up if there is none left.
+		 */
+		private void connectNext() {
+			long left = connector.timeout() - (System.nanoTime() - connectStart) / 1000000;
+			if (left <= 0) {
+				giveUp(new SocketTimeoutException("connect timed out"));
+				return;
+			}
+
+			try {
+				InetSocketAddress addr = new InetSocketAddress(addrs[addrIndex], port);
+				server = SocketChannel.open();
+				server.configureBlocking(false);
+				server.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				state = State.CONNECTING;
+				if (server.connect(addr)) {
+					serverKey = server.register(loop.selector, 0, this);
+					connected();
+				} else {
+					serverKey = server.register(loop.selector, SelectionKey.OP_CONNECT, this);
+					boolean last = addrIndex + 1 >= addrs.length;
+					connectTimeout.attempt = addrIndex;
+					timers.schedule(connectTimeout, last ? left : Math.min(left, ATTEMPT_TIMEOUT));
+				}
+			} catch (IOException e) {
+				connectFailed(e);
+			}
+		}
+
+		/**
+		 * Gives up on the address being tried, and goes on with the next 
+		 * one, or closes the connection if it was the last.
+		 *
+		 * @param e why the address failed
+		 */
+		private void connectFailed(IOException e) {
+			connector.failed(addrs[addrIndex]);
+			if (serverKey != null)
+				serverKey.cancel();
+			closeQuietly(server);
+			serverKey = null;
+			server = null;
+
+			if (addrIndex + 1 < addrs.length) {
+				addrIndex++;
+				connectNext();
+			} else {
+				giveUp(e);
+			}
+		}
+
+		/**
+		 * Closes the connection after the origin server could not be reached.
+		 *
+		 * @param e why the last address failed
+		 */
+		private void giveUp(IOException e) {
+			ProxyStats.error(e);
+			AccessLog.message("IO: " + e.getMessage());
+			close();
+		}
+
+		/**
+		 * Starts relaying once the server connection is made.
+		 */
+		private void connected() throws IOException {
+			timers.cancel(connectTimeout);
+			connector.succeeded(addrs[addrIndex]);
+			startRelay();
+		}
+
+		/**
+		 * Completes the connect to the origin server, or goes on with the 
+		 * next address if this one failed.
+		 */
+		private void finishConnect() throws IOException {
+			boolean done;
+			try {
+				done = server.finishConnect();
+			} catch (IOException e) {
+				timers.cancel(connectTimeout);
+				connectFailed(e);
+				return;
+			}
+			if (done)
+				connected();
+		}
+
+		/**
+		 * Called on the selector thread when a connect attempt took too long.
+		 *
+		 * @param attempt the address the timeout was set for
+		 */
+		private void connectTimedOut(int attempt) {
+			if (state != State.CONNECTING || attempt != addrIndex)
+				return;
+			connectFailed(new SocketTimeoutException("connect to " + addrs[addrIndex] + 
+													 " timed out"));
+		}
+
+		/**
+		 * Writes the request to the origin server. The request is small, so
+		 * it is written before waiting for the response.
+		 */
+		private void startRelay() throws IOException {
+			if (state == State.CONNECTING)
+				ProxyStats.upstreamConnect.recordSince(connectStart);
+			state = State.RELAYING;
+			while (header.hasRemaining()) {
+				if (server.write(header) == 0) {
+					// socket buffer is full, which is rare for a header;
+					// fall back to waiting for it to drain
+					serverKey.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+
+			relay = buffers.acquire();
+			if (bodyPending()) {
+				// the rest of the body is still to come from the client
+				state = State.SENDING_BODY;
+				serverKey.interestOps(0);
+				clientKey.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+			startResponse();
+		}
+
+		/**
+		 * Reads the rest of the request body from the client and writes it 
+		 * to the server, a buffer at a time, then waits for the response.
+		 *
+		 * @param key the client key when it is readable, or the server key 
+		 * when it is writable
+		 */
+		private void sendBody(SelectionKey key) throws IOException {
+			if (key == clientKey) {
+				if (chunkedBody == null)
+					relay.limit((int) Math.min(relay.capacity(), bodyLeft));
+				int n = client.read(relay);
+				if (n == -1) {
+					// the client gave up on the request
+					close();
+					return;
+				}
+				ProxyStats.bytesFromClients.add(n);
+				if (chunkedBody != null)
+					relay.position(chunkedBody.feed(relay, 0, n));
+				else
+					bodyLeft -= n;
+				relay.flip();
+			}
+
+			server.write(relay);
+			if (relay.hasRemaining()) {
+				clientKey.interestOps(0);
+				serverKey.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+
+			relay.clear();
+			if (bodyPending()) {
+				serverKey.interestOps(0);
+				clientKey.interestOps(SelectionKey.OP_READ);
+			} else {
+				startResponse();
+			}
+		}
+
+		/**
+		 * Returns true if part of the request body is still to come from 
+		 * the client.
+		 */
+		private boolean bodyPending() {
+			return chunkedBody != null ? !chunkedBody.isDone() : bodyLeft > 0;
+		}
+
+		/**
+		 * Waits for the response once the whole request is sent.
+		 */
+		private void startResponse() {
+			state = State.RELAYING;
+			framer = new ResponseFramer(requestLine.startsWith("HEAD "));
+			clientKey.interestOps(0);
+			serverKey.interestOps(SelectionKey.OP_READ);
+		}
+
+		/**
+		 * Reads the response from the origin server and writes as much of it
+		 * as possible to the client.
+		 */
+		private void relayFromServer() throws IOException {
+			if (relay == null) {
+				// still sending the request to the server
+				startRelay();
+				return;
+			}
+
+			int n = server.read(relay);
+			if (n == -1) {
+				serverDone = true;
+				try {
+					framer.end();
+				} catch (IOException e) {
+					// the client gets what there is; the close tells it 
+					// the response is incomplete
+					ProxyStats.error(e);
+					AccessLog.message("IO: " + e.getMessage() + " from " + host);
+				}
+			} else if (n > 0) {
+				if (!sawFirstByte) {
+					ProxyStats.firstByte.recordSince(requestStart);
+					sawFirstByte = true;
+				}
+
+				int start = relay.position() - n;
+				int used = framer.feed(relay, start, relay.position());
+				if (framer.isDone()) {
+					// anything the server sent after the response is dropped
+					relay.position(start + used);
+					serverDone = true;
+				}
+				if (status == 0)
+					status = framer.status();
+			}
+
+			relayToClient();
+		}
+
+		/**
+		 * Writes buffered response bytes to the client, or with bandwidth 
+		 * limits, waits for a turn to do so. Stops reading from the server 
+		 * while the client cannot keep up.
+		 */
+		private void relayToClient() throws IOException {
+			if (loop.queue != null && relay.position() > 0) {
+				clientKey.interestOps(0);
+				if (serverKey != null)
+					serverKey.interestOps(0);
+				loop.queue.add(this);
+				return;
+			}
+
+			writeToClient(Integer.MAX_VALUE);
+			afterWrite(relay.position() == 0);
+		}
+
+		/**
+		 * Writes up to max buffered response bytes to the client.
+		 *
+		 * @param max most bytes to write
+		 * @return bytes written
+		 */
+		int writeToClient(long max) throws IOException {
+			relay.flip();
+			int limit = relay.limit();
+			relay.limit((int) Math.min(limit, relay.position() + max));
+			int n = client.write(relay);
+			relay.limit(limit);
+			ProxyStats.bytesToClients.add(n);
+			bytesOut += n;
+			ProxyStats.writesToClients.increment();
+			relay.compact();
+			return n;
+		}
+
+		/**
+		 * Goes on after a write to the client: closes once the response 
+		 * is done, reads more of it once the buffer is empty, or waits 
+		 * for the client socket to drain.
+		 *
+		 * @param drained true if no response bytes are left in the buffer
+		 */
+		void afterWrite(boolean drained) {
+			if (drained && serverDone) {
+				close();
+			} else if (drained) {
+				clientKey.interestOps(0);
+				serverKey.interestOps(SelectionKey.OP_READ);
+			} else {
+				clientKey.interestOps(SelectionKey.OP_WRITE);
+				if (serverKey != null)
+					serverKey.interestOps(0);
+			}
+		}
+
+		/**
+		 * Closes both sides of the connection.
+		 */
+		public void close() {
+			if (state == State.CLOSED)
+				return;
+			if (requestStart != 0)
+				ProxyStats.total.recordSince(requestStart);
+			if (clientKey != null)
+				ProxyStats.active.decrement();
+			if (requestLine != null) {
+				InetAddress peer = client.socket().getInetAddress();
+				AccessLog.access(peer == null ? null : peer.getHostAddress(), host, 
+								 requestLine, status, bytesOut, System.nanoTime() - requestStart);
+			}
+
+			state = State.CLOSED;
+			if (connectTimeout != null)
+				timers.cancel(connectTimeout);
+			if (bucket != null)
+				loop.queue.closed(this);
+			closeQuietly(client);
+			closeQuietly(server);
+			if (relay != null && relay.isDirect())
+				buffers.release(relay);
+			relay = null;
+		}
+	}
+
+	/**
+	 * The connect timeout of a proxied connection. It expires on the timer
+	 * thread and hands the work back to the connection's selector thread.
+	 */
+	class ConnectTimeout extends TimerWheel.Timeout {
+		private ProxyConnection conn;
+		// the address being tried when it was set
+		volatile int attempt;
+
+		/**
+		 * Constructs a new ConnectTimeout.
+		 *
+		 * @param c the connection
+		 */
+		public ConnectTimeout(ProxyConnection c) {
+			conn = c;
+		}
+
+		@Override
+		protected void expire() {
+			final int a = attempt;
+			conn.loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					conn.connectTimedOut(a);
+				}
+			});
+		}
+	}
+
+	/**
+	 * The request header after the proxy rewrote it.
+	 */
+	static class RewrittenRequest {
+		byte[] bytes;
+		String host;
+		int port = 80;  // default port number
+		long bodyLength;  // from Content-Length, or 0 if there is none
+		boolean chunked;  // the body has the chunked coding instead
+	}
+
+	/**
+	 * Returns true if the request in the buffer asks for the proxy 
+	 * statistics rather than an origin server.
+	 *
+	 * @param bb buffer in write mode holding the request
+	 * @return true if the request target is the statistics path
+	 */
+	static boolean isStatsRequest(ByteBuffer bb) {
+		String target = requestTarget(bb);
+		return target != null && target.startsWith(ProxyStats.STATS_PATH);
+	}
+
+	/**
+	 * Returns the request line in the buffer.
+	 *
+	 * @param bb buffer in write mode holding the request
+	 * @return the first line of the request, without the line end
+	 */
+	static String requestLine(ByteBuffer bb) {
+		int end = 0;
+		while (end < bb.position() && bb.get(end) != '\r' && bb.get(end) != '\n')
+			end++;
+
+		byte[] line = new byte[end];
+		for (int i = 0; i < end; i++)
+			line[i] = bb.get(i);
+		return new String(line, HTTPProxy.HEADER_CHARSET);
+	}
+
+	/**
+	 * Returns the target of the request line in the buffer.
+	 *
+	 * @param bb buffer in write mode holding the request
+	 * @return the request target, or null if the request line has none
+	 */
+	static String requestTarget(ByteBuffer bb) {
+		int start = -1;
+		for (int i = 0; i < bb.position(); i++) {
+			byte b = bb.get(i);
+			if (b == '\r' || b == '\n')
+				break;
+			if (b != ' ')
+				continue;
+			if (start >= 0) {
+				byte[] target = new byte[i - start];
+				for (int j = 0; j < target.length; j++)
+					target[j] = bb.get(start + j);
+				return new String(target, HTTPProxy.HEADER_CHARSET);
+			}
+			start = i + 1;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the position right after the empty line ending the header,
+	 * or -1 if the header is not complete yet.
+	 *
+	 * @param bb buffer in write mode holding the bytes read so far
+	 * @return end of the header, or -1
+	 */
+	static int findHeaderEnd(ByteBuffer bb) {
+		int len = bb.position();
+		for (int i = 3; i < len; i++) {
+			if (bb.get(i) == '\n' && bb.get(i - 1) == '\r' &&
+				bb.get(i - 2) == '\n' && bb.get(i - 3) == '\r')
+				return i + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Rewrites the request header: turns off keep-alive and normalizes the
+	 * host line. Bytes following the header are passed through unchanged.
+	 *
+	 * @param bb buffer in write mode holding the request
+	 * @param end end of the header
+	 * @return the rewritten request
+	 * @throws NumberFormatException if the port in the host line or the 
+	 * Content-Length is malformed
+	 */
+	static RewrittenRequest rewriteRequest(ByteBuffer bb, int end) {
+		RewrittenRequest req = new RewrittenRequest();
+		StringBuilder sb = new StringBuilder();
+		boolean sawConnection = false;
+
+		int lineStart = 0;
+		for (int i = 0; i < end - 2; i++) {
+			if (bb.get(i) != '\r' || bb.get(i + 1) != '\n')
+				continue;
+
+			byte[] raw = new byte[i - lineStart];
+			for (int j = 0; j < raw.length; j++)
+				raw[j] = bb.get(lineStart + j);
+			String line = new String(raw, HTTPProxy.HEADER_CHARSET);
+			lineStart = i + 2;
+
+			String[] parts = line.trim().split(" ");
+			if (parts[0].toLowerCase().equals(HTTPProxy.CONNECTION_TAG)) {
+				if (sawConnection)
+					continue;
+				line = HTTPProxy.CONNECTION_CLOSE;
+				sawConnection = true;
+			} else if (parts[0].toLowerCase().equals(HTTPProxy.HOST_TAG)) {
+				String host = "";
+				for (int k = 1; k < parts.length; k++)
+					host += parts[k];
+
+				String[] hostParts = host.split(":");
+				if (hostParts.length == 2)
+					req.port = parsePort(hostParts[1]);
+				req.host = hostParts[0];
+				line = HTTPProxy.CAP_HOST_TAG + host;
+			} else if (parts[0].toLowerCase().equals(HTTPProxy.TRANSFER_ENCODING_TAG)) {
+				req.chunked = line.toLowerCase().contains(HTTPProxy.CHUNKED);
+			} else if (parts[0].toLowerCase().equals(HTTPProxy.CONTENT_LENGTH_TAG)) {
+				req.bodyLength = Long.parseLong(
+						line.trim().substring(HTTPProxy.CONTENT_LENGTH_TAG.length()).trim());
+				if (req.bodyLength < 0)
+					throw new NumberFormatException("negative Content-Length");
+			}
+			sb.append(line).append(HTTPProxy.HTTP_END_LINE);
+		}
+		// server connections are not kept in this mode, and the client 
+		// connection closes after the response anyway
+		if (!sawConnection)
+			sb.append(HTTPProxy.CONNECTION_CLOSE).append(HTTPProxy.HTTP_END_LINE);
+		sb.append(HTTPProxy.HTTP_END_LINE);
+
+		byte[] head = sb.toString().getBytes(HTTPProxy.HEADER_CHARSET);
+		int rest = bb.position() - end;
+		req.bytes = new byte[head.length + rest];
+		System.arraycopy(head, 0, req.bytes, 0, head.length);
+		for (int j = 0; j < rest; j++)
+			req.bytes[head.length + j] = bb.get(end + j);
+
+		return req;
+	}
+
+	/**
+	 * Returns the port after the colon of a host line or CONNECT target.
+	 *
+	 * @param s the part after the colon
+	 * @return the port number
+	 * @throws NumberFormatException if it is not a port number from 1 
+	 * to 65535
+	 */
+	static int parsePort(String s) {
+		int port = Integer.parseInt(s);
+		if (port < 1 || port > 65535)
+			throw new NumberFormatException("invalid port " + port);
+		return port;
+	}
+
+	/**
+	 * Closes a channel, ignoring errors.
+	 *
+	 * @param c channel to be closed, may be null
+	 */
+	static void closeQuietly(Channel c) {
+		if (c == null)
+			return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			// nothing more we can do
+		}
+	}
+}
@@ -0,0 +1,196 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The fixed-size cells the onion routers exchange over their links. Every
+ * cell is CELL_LEN bytes whatever it carries, so a link reads and writes
+ * whole cells without looking for where one ends, and cells of many
+ * streams can be interleaved on one connection. The layout is
+ *
+ *     circuit id (2)  type (1)  stream id (2)  relay command (1)
+ *     data length (2)  data (DATA_LEN)
+ *
+ * where the stream id, relay command and data are only used by RELAY
+ * cells. The fields are read and written in place in the cell's buffer.
+ * Cells come from a pool of direct buffers and go back to it once they
+ * were written out or read; whoever holds a cell last releases it.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class OnionCell {
+	static final int CELL_LEN = 512;
+	static final int HEADER_LEN = 8;
+	static final int DATA_LEN = CELL_LEN - HEADER_LEN;
+
+	// cell types
+	static final int CREATE = 1;
+	static final int CREATED = 2;
+	static final int CREATE_FAILED = 3;
+	static final int DESTROY = 4;
+	static final int RELAY = 5;
+
+	// relay commands
+	static final int BEGIN = 1;
+	static final int CONNECTED = 2;
+	static final int BEGIN_FAILED = 3;
+	static final int DATA = 4;
+	static final int END = 5;
+	static final int SENDME = 6;
+	static final int EXTEND = 7;
+	static final int EXTENDED = 8;
+	static final int EXTEND_FAILED = 9;
+
+	// where the fields are
+	private static final int CIRCUIT_ID = 0;
+	private static final int TYPE = 2;
+	private static final int STREAM_ID = 3;
+	private static final int COMMAND = 5;
+	private static final int LENGTH = 6;
+
+	// enough free cells for the windows of a few busy streams
+	private static final int MAX_POOLED_CELLS = 16384;
+
+	static final BufferPool cells = new BufferPool(CELL_LEN, MAX_POOLED_CELLS);
+
+	/**
+	 * Returns a new cell of the given type with no data.
+	 *
+	 * @param circuitId circuit id on the link the cell goes out on
+	 * @param type cell type
+	 * @return the cell, ready to be written
+	 */
+	static ByteBuffer control(int circuitId, int type) {
+		ByteBuffer cell = cells.acquire();
+		cell.putShort(CIRCUIT_ID, (short) circuitId);
+		cell.put(TYPE, (byte) type);
+		cell.putShort(STREAM_ID, (short) 0);
+		cell.put(COMMAND, (byte) 0);
+		cell.putShort(LENGTH, (short) 0);
+		return cell;
+	}
+
+	/**
+	 * Returns a new RELAY cell carrying the given bytes.
+	 *
+	 * @param circuitId circuit id on the link the cell goes out on
+	 * @param streamId stream id, or 0 for commands about the circuit
+	 * @param command relay command
+	 * @param b the data, or null if there is none
+	 * @param off position of the data in b
+	 * @param len length of the data, at most DATA_LEN
+	 * @return the cell, ready to be written
+	 */
+	static ByteBuffer relay(int circuitId, int streamId, int command,
+							byte[] b, int off, int len) {
+		ByteBuffer cell = control(circuitId, RELAY);
+		cell.putShort(STREAM_ID, (short) streamId);
+		cell.put(COMMAND, (byte) command);
+		cell.putShort(LENGTH, (short) len);
+		if (len > 0) {
+			cell.position(HEADER_LEN);
+			cell.put(b, off, len);
+			cell.clear();
+		}
+		return cell;
+	}
+
+	/**
+	 * Returns the circuit id of a cell.
+	 *
+	 * @param cell the cell
+	 * @return the circuit id
+	 */
+	static int circuitId(ByteBuffer cell) {
+		return cell.getShort(CIRCUIT_ID) & 0xffff;
+	}
+
+	/**
+	 * Changes the circuit id of a cell, for passing it on to the next link.
+	 *
+	 * @param cell the cell
+	 * @param circuitId circuit id on the next link
+	 */
+	static void setCircuitId(ByteBuffer cell, int circuitId) {
+		cell.putShort(CIRCUIT_ID, (short) circuitId);
+	}
+
+	/**
+	 * Returns the type of a cell.
+	 *
+	 * @param cell the cell
+	 * @return the cell type
+	 */
+	static int type(ByteBuffer cell) {
+		return cell.get(TYPE);
+	}
+
+	/**
+	 * Returns the stream id of a RELAY cell.
+	 *
+	 * @param cell the cell
+	 * @return the stream id
+	 */
+	static int streamId(ByteBuffer cell) {
+		return cell.getShort(STREAM_ID) & 0xffff;
+	}
+
+	/**
+	 * Returns the relay command of a RELAY cell.
+	 *
+	 * @param cell the cell
+	 * @return the relay command
+	 */
+	static int command(ByteBuffer cell) {
+		return cell.get(COMMAND);
+	}
+
+	/**
+	 * Returns the length of the data of a RELAY cell.
+	 *
+	 * @param cell the cell
+	 * @return the data length, from 0 to DATA_LEN
+	 * @throws IllegalArgumentException if the length field is out of range
+	 */
+	static int length(ByteBuffer cell) {
+		int len = cell.getShort(LENGTH) & 0xffff;
+		if (len > DATA_LEN)
+			throw new IllegalArgumentException("cell data length out of range");
+		return len;
+	}
+
+	/**
+	 * Copies data out of a RELAY cell.
+	 *
+	 * @param cell the cell
+	 * @param from position in the data to copy from
+	 * @param b array to copy to
+	 * @param off position in b
+	 * @param len number of bytes to copy
+	 */
+	static void data(ByteBuffer cell, int from, byte[] b, int off, int len) {
+		cell.position(HEADER_LEN + from);
+		cell.get(b, off, len);
+		cell.clear();
+	}
+
+	/**
+	 * Returns the data of a RELAY cell as text.
+	 *
+	 * @param cell the cell
+	 * @return the text
+	 */
+	static String text(ByteBuffer cell) {
+		byte[] b = new byte[length(cell)];
+		data(cell, 0, b, 0, b.length);
+		return new String(b, HTTPProxy.HEADER_CHARSET);
+	}
+
+	/**
+	 * Gives a cell back to the pool.
+	 *
+	 * @param cell the cell, which must not be used afterwards
+	 */
+	static void release(ByteBuffer cell) {
+		cells.release(cell);
+	}
+}
@@ -0,0 +1,228 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A persistent connection between two onion routers, carrying the cells
+ * of all the circuits between them. A reader thread cuts what arrives into
+ * cells and hands each one to the router; a writer thread sends the cells
+ * queued by any thread, as many at once as are waiting, so a busy link
+ * writes in large gathering writes while a quiet one sends each cell right
+ * away.
+ *
+ * The queue is not bounded, but every stream has a window of cells it may
+ * send before it hears back, see OnionStream, so it holds no more than the
+ * windows of the streams on the link.
+ *
+ * Circuit ids are picked by the side that creates the circuit: odd ones by
+ * the router that opened the connection, even ones by the other, so both
+ * can create circuits at once without asking.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class OnionLink {
+	// bytes read at once, and cells written at once
+	private static final int READ_LEN = 65536;
+	private static final int MAX_BATCH = 64;
+
+	private SocketChannel channel;
+	private String name;
+	private OnionRouter router;
+	private LinkedBlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<ByteBuffer>();
+	private Thread reader;
+	private Thread writer;
+	private volatile boolean closed;
+
+	// the circuits on the link by their id on it
+	final ConcurrentHashMap<Integer, OnionRouter.Circuit> circuits =
+			new ConcurrentHashMap<Integer, OnionRouter.Circuit>();
+	private int nextCircuitId;
+
+	// cells sent and received over all links
+	static final LongAdder cellsOut = new LongAdder();
+	static final LongAdder cellsIn = new LongAdder();
+
+	/**
+	 * Constructs a new OnionLink over a connected channel.
+	 *
+	 * @param channel the connection, in blocking mode
+	 * @param name name of the other end, for the log
+	 * @param initiator true if this router opened the connection
+	 * @param router router the cells are handed to
+	 */
+	OnionLink(SocketChannel channel, String name, boolean initiator, OnionRouter router) {
+		this.channel = channel;
+		this.name = name;
+		this.router = router;
+		nextCircuitId = initiator ? 1 : 2;
+	}
+
+	/**
+	 * Starts the reader and writer threads.
+	 */
+	void start() {
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				read();
+			}
+		}, "onion-reader-" + name);
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "onion-writer-" + name);
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+
+	/**
+	 * Returns the name of the other end.
+	 *
+	 * @return host and port of the other router
+	 */
+	String name() {
+		return name;
+	}
+
+	/**
+	 * Returns true once the connection is closed.
+	 *
+	 * @return true if no more cells go over the link
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Adds a circuit this router creates on the link, under an unused id.
+	 *
+	 * @param c the circuit
+	 * @return its circuit id on the link
+	 * @throws IOException if all the ids are in use
+	 */
+	synchronized int addCircuit(OnionRouter.Circuit c) throws IOException {
+		for (int i = 0; i < 0x8000; i++) {
+			int id = nextCircuitId;
+			nextCircuitId += 2;
+			if (nextCircuitId > 0xffff)
+				nextCircuitId = nextCircuitId % 2 == 1 ? 1 : 2;
+			if (circuits.putIfAbsent(id, c) == null)
+				return id;
+		}
+		throw new IOException("no free circuit id on the link to " + name);
+	}
+
+	/**
+	 * Queues a cell to be sent. The link takes over the cell; it is
+	 * released once written, or right away if the link is closed.
+	 *
+	 * @param cell the cell
+	 */
+	void send(ByteBuffer cell) {
+		if (closed) {
+			OnionCell.release(cell);
+			return;
+		}
+		queue.add(cell);
+	}
+
+	/**
+	 * Closes the connection and stops the threads. Can be called more
+	 * than once.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing more we can do
+		}
+		if (writer != null)
+			writer.interrupt();
+		ByteBuffer cell;
+		while ((cell = queue.poll()) != null)
+			OnionCell.release(cell);
+		router.linkClosed(this);
+	}
+
+	/**
+	 * Reads cells until the connection ends.
+	 */
+	private void read() {
+		ByteBuffer in = ByteBuffer.allocateDirect(READ_LEN);
+		try {
+			while (true) {
+				if (channel.read(in) < 0)
+					throw new EOFException("link closed by " + name);
+
+				in.flip();
+				int end = in.limit();
+				while (end - in.position() >= OnionCell.CELL_LEN) {
+					ByteBuffer cell = OnionCell.cells.acquire();
+					in.limit(in.position() + OnionCell.CELL_LEN);
+					cell.put(in);
+					cell.clear();
+					in.limit(end);
+					cellsIn.increment();
+					router.received(this, cell);
+				}
+				in.compact();
+			}
+		} catch (IOException e) {
+			if (!closed)
+				AccessLog.message("IO: " + e.getMessage());
+		} catch (RuntimeException e) {
+			// a malformed cell; the other end cannot be trusted any more
+			AccessLog.message("Onion: bad cell from " + name + ": " + e.getMessage());
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Writes the queued cells until the link is closed.
+	 */
+	private void write() {
+		List<ByteBuffer> batch = new ArrayList<ByteBuffer>(MAX_BATCH);
+		ByteBuffer[] out = new ByteBuffer[MAX_BATCH];
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				int n = batch.size();
+				batch.toArray(out);
+				long left = (long) n * OnionCell.CELL_LEN;
+				while (left > 0)
+					left -= channel.write(out, 0, n);
+				cellsOut.add(n);
+				for (int i = 0; i < n; i++) {
+					OnionCell.release(out[i]);
+					out[i] = null;
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} catch (IOException e) {
+			if (!closed)
+				AccessLog.message("IO: " + e.getMessage());
+		} finally {
+			close();
+		}
+	}
+}
@@ -0,0 +1,585 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An onion router, in the manner of the course's Tor61 project: proxies
+ * forward their connections to origin servers through a chain of routers
+ * instead of making them themselves. A proxy builds a circuit through the
+ * routers, hop by hop, and opens a stream on the circuit for each server
+ * connection; the last router of the circuit, the exit, makes the
+ * connection and relays its bytes.
+ *
+ * Neighbouring routers keep one connection between them, an OnionLink,
+ * and every circuit and stream they share goes over it as fixed-size
+ * cells, see OnionCell. A circuit has an id on each link it crosses;
+ * routers in the middle only swap the id and pass RELAY cells on, so they
+ * do not know where a stream goes unless they are its exit. The entry
+ * proxy builds one circuit and opens all its streams on it, so a single
+ * connection carries all the proxy's traffic to the first router.
+ *
+ * The cells are not encrypted, unlike Tor's.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class OnionRouter {
+	// bytes the exit reads from a server at once, a few full cells
+	private static final int EXIT_READ_LEN = 8 * OnionCell.DATA_LEN;
+	private static final int PUMP_LEN = 8192;
+
+	private ResolverCache resolver;
+	private OriginConnector connector;
+	private ExecutorService workers;
+
+	// links this router opened, by the address of the other router
+	private ConcurrentHashMap<String, OnionLink> links =
+			new ConcurrentHashMap<String, OnionLink>();
+
+	// the routers the proxy's circuit goes through, and the circuit;
+	// null unless the proxy uses one
+	private String[] hops;
+	private Circuit circuit;
+
+	/**
+	 * Constructs a new OnionRouter.
+	 *
+	 * @param resolver cache resolving the routers and origin servers
+	 * @param connector connector for the links and the exit connections
+	 */
+	public OnionRouter(ResolverCache resolver, OriginConnector connector) {
+		this.resolver = resolver;
+		this.connector = connector;
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "onion-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Accepts links from other routers and proxies on the given port, on
+	 * a thread of its own.
+	 *
+	 * @param port port number
+	 * @throws IOException if the port cannot be bound
+	 */
+	public void listen(int port) throws IOException {
+		final ServerSocketChannel listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(port), HTTPProxy.LISTEN_BACKLOG);
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						SocketChannel c = listener.accept();
+						c.socket().setTcpNoDelay(true);
+						Socket s = c.socket();
+						String name = s.getInetAddress().getHostAddress() + ":" + s.getPort();
+						new OnionLink(c, name, false, OnionRouter.this).start();
+					}
+				} catch (IOException e) {
+					AccessLog.message("IO: " + e.getMessage());
+				}
+			}
+		}, "onion-acceptor");
+		t.setDaemon(true);
+		t.start();
+		AccessLog.message("Onion router listening on port " + port);
+	}
+
+	/**
+	 * Makes the proxy's server connections go through a circuit over the
+	 * given routers. The circuit is built when the first connection is
+	 * opened, and built again whenever it is lost.
+	 *
+	 * @param hops addresses of the routers as "host:port", the exit last
+	 * @throws IllegalArgumentException if there is no router or an
+	 * address has no port
+	 */
+	public synchronized void useCircuit(String[] hops) {
+		if (hops.length == 0)
+			throw new IllegalArgumentException("a circuit needs at least one router");
+		for (String hop : hops)
+			port(hop);
+
+		this.hops = hops;
+	}
+
+	/**
+	 * Opens a stream to an origin server through the proxy's circuit.
+	 *
+	 * @param host host name, which the exit resolves
+	 * @param port port number
+	 * @return the stream, connected to the server
+	 * @throws IOException if the circuit cannot be built or the exit
+	 * cannot connect
+	 */
+	public OnionStream open(String host, int port) throws IOException {
+		Circuit c = circuit();
+		OnionStream s = c.newStream();
+		c.sendRelay(s.id(), OnionCell.BEGIN, host + ":" + port);
+		s.awaitConnected(connector.timeout());
+		return s;
+	}
+
+	/**
+	 * Returns the proxy's circuit, building it if there is none.
+	 */
+	private synchronized Circuit circuit() throws IOException {
+		if (hops == null)
+			throw new IllegalStateException("no circuit configured");
+		if (circuit == null || circuit.destroyed)
+			circuit = build(hops);
+		return circuit;
+	}
+
+	/**
+	 * Builds a circuit: CREATE to the first router, then EXTEND through
+	 * the circuit to each of the next ones.
+	 *
+	 * @param hops addresses of the routers
+	 * @return the circuit
+	 * @throws IOException if a router cannot be reached or does not answer
+	 */
+	private Circuit build(String[] hops) throws IOException {
+		long start = System.nanoTime();
+		Circuit c = new Circuit(null, 0);
+		OnionLink first = link(hops[0]);
+		int id = first.addCircuit(c);
+		c.nextId = id;
+		c.nextLink = first;
+		first.send(OnionCell.control(id, OnionCell.CREATE));
+		awaitReply(c, OnionCell.CREATED, hops[0]);
+
+		for (int i = 1; i < hops.length; i++) {
+			c.sendRelay(0, OnionCell.EXTEND, hops[i]);
+			awaitReply(c, OnionCell.EXTENDED, hops[i]);
+		}
+
+		AccessLog.message("Circuit through " + String.join(", ", hops) + " built in " +
+						  (System.nanoTime() - start) / 1000000 + " ms");
+		return c;
+	}
+
+	/**
+	 * Waits for the answer to a CREATE or EXTEND, and tears the circuit
+	 * down if it is not the one expected.
+	 */
+	private void awaitReply(Circuit c, int expected, String hop) throws IOException {
+		Integer reply;
+		try {
+			reply = c.replies.poll(connector.timeout(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			destroy(c, null);
+			throw new InterruptedIOException("interrupted building a circuit");
+		}
+		if (reply == null) {
+			destroy(c, null);
+			throw new SocketTimeoutException("no answer from router " + hop);
+		}
+		if (reply != expected) {
+			destroy(c, null);
+			throw new IOException("could not extend the circuit to " + hop);
+		}
+	}
+
+	/**
+	 * Returns the link to another router, opening it if there is none.
+	 *
+	 * @param hop address of the router as "host:port"
+	 * @return the link
+	 * @throws IOException if the router cannot be reached
+	 */
+	private OnionLink link(String hop) throws IOException {
+		String key = hop.toLowerCase();
+		synchronized (links) {
+			OnionLink l = links.get(key);
+			if (l != null && !l.isClosed())
+				return l;
+
+			String host = hop.substring(0, hop.lastIndexOf(':'));
+			Socket s = connector.connect(resolver.resolve(host), port(hop));
+			l = new OnionLink(s.getChannel(), hop, true, this);
+			links.put(key, l);
+			l.start();
+			return l;
+		}
+	}
+
+	/**
+	 * Returns the port of a "host:port" address.
+	 *
+	 * @throws IllegalArgumentException if there is no valid port
+	 */
+	private static int port(String hop) {
+		int colon = hop.lastIndexOf(':');
+		if (colon <= 0)
+			throw new IllegalArgumentException("router address needs a port: " + hop);
+		try {
+			return Integer.valueOf(hop.substring(colon + 1)).intValue();
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("router address needs a port: " + hop);
+		}
+	}
+
+	/**
+	 * Acts on a cell received over a link. Called by the link's reader
+	 * thread, so nothing here may block; what does is handed to a worker.
+	 *
+	 * @param link the link
+	 * @param cell the cell, which this router takes over
+	 */
+	void received(OnionLink link, ByteBuffer cell) {
+		int id = OnionCell.circuitId(cell);
+		int type = OnionCell.type(cell);
+		Circuit c = link.circuits.get(id);
+
+		if (type == OnionCell.CREATE) {
+			OnionCell.release(cell);
+			if (c != null || id == 0) {
+				link.send(OnionCell.control(id, OnionCell.CREATE_FAILED));
+				return;
+			}
+			c = new Circuit(link, id);
+			link.circuits.put(id, c);
+			link.send(OnionCell.control(id, OnionCell.CREATED));
+			return;
+		}
+
+		// cells of a circuit already torn down are dropped
+		if (c == null) {
+			OnionCell.release(cell);
+			return;
+		}
+
+		// from the exit's side of the circuit, or from the entry's side
+		boolean fromNext = link == c.nextLink && id == c.nextId;
+		if (type == OnionCell.RELAY) {
+			OnionLink to = fromNext ? c.prevLink : c.nextLink;
+			if (to != null) {
+				OnionCell.setCircuitId(cell, fromNext ? c.prevId : c.nextId);
+				to.send(cell);
+			} else if (fromNext) {
+				atEntry(c, cell);
+			} else {
+				atExit(c, cell);
+			}
+			return;
+		}
+
+		OnionCell.release(cell);
+		if (type == OnionCell.DESTROY) {
+			destroy(c, link);
+		} else if (fromNext && (type == OnionCell.CREATED || type == OnionCell.CREATE_FAILED)) {
+			boolean created = type == OnionCell.CREATED;
+			if (c.prevLink == null) {
+				// the proxy's own circuit
+				c.replies.add(type);
+			} else {
+				c.sendRelay(0, created ? OnionCell.EXTENDED : OnionCell.EXTEND_FAILED, null, 0, 0);
+			}
+			if (!created) {
+				link.circuits.remove(id, c);
+				c.nextLink = null;
+			}
+		}
+	}
+
+	/**
+	 * Acts on a RELAY cell that reached the proxy end of its circuit.
+	 */
+	private void atEntry(Circuit c, ByteBuffer cell) {
+		int command = OnionCell.command(cell);
+		if (command == OnionCell.EXTENDED || command == OnionCell.EXTEND_FAILED) {
+			c.replies.add(command);
+			OnionCell.release(cell);
+			return;
+		}
+		deliver(c, cell);
+	}
+
+	/**
+	 * Acts on a RELAY cell that reached the exit of its circuit.
+	 */
+	private void atExit(final Circuit c, ByteBuffer cell) {
+		final int command = OnionCell.command(cell);
+		if (command == OnionCell.EXTEND || command == OnionCell.BEGIN) {
+			final int streamId = OnionCell.streamId(cell);
+			final String target = OnionCell.text(cell);
+			OnionCell.release(cell);
+			// both connect somewhere, which the link's reader cannot wait for
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (command == OnionCell.EXTEND)
+						extend(c, target);
+					else
+						begin(c, streamId, target);
+				}
+			});
+			return;
+		}
+		deliver(c, cell);
+	}
+
+	/**
+	 * Hands a RELAY cell to its stream, or drops it if the stream is gone.
+	 */
+	private void deliver(Circuit c, ByteBuffer cell) {
+		OnionStream s = c.streams.get(OnionCell.streamId(cell));
+		if (s != null)
+			s.received(cell);
+		else
+			OnionCell.release(cell);
+	}
+
+	/**
+	 * Extends a circuit that ends here to the next router.
+	 */
+	private void extend(Circuit c, String hop) {
+		if (c.nextLink != null) {
+			c.sendRelay(0, OnionCell.EXTEND_FAILED, null, 0, 0);
+			return;
+		}
+		try {
+			OnionLink l = link(hop);
+			int id = l.addCircuit(c);
+			c.nextId = id;
+			c.nextLink = l;
+			l.send(OnionCell.control(id, OnionCell.CREATE));
+		} catch (IOException | IllegalArgumentException e) {
+			AccessLog.message("IO: " + e.getMessage());
+			c.sendRelay(0, OnionCell.EXTEND_FAILED, null, 0, 0);
+		}
+	}
+
+	/**
+	 * Connects a stream that exits here to its origin server, and relays
+	 * its bytes both ways until either side ends.
+	 */
+	private void begin(Circuit c, int streamId, String target) {
+		final Socket server;
+		final OnionStream s;
+		try {
+			int colon = target.lastIndexOf(':');
+			if (colon <= 0)
+				throw new IOException("bad stream target " + target);
+			int port = Integer.valueOf(target.substring(colon + 1)).intValue();
+			server = connector.connect(resolver.resolve(target.substring(0, colon)), port);
+		} catch (IOException | IllegalArgumentException e) {
+			// a port out of range fails in the connector, not the parse
+			c.sendRelay(streamId, OnionCell.BEGIN_FAILED, "IO: " + e.getMessage());
+			return;
+		}
+
+		// added before CONNECTED, which the data may follow right away
+		s = new OnionStream(c, streamId, true);
+		c.streams.put(streamId, s);
+		c.sendRelay(streamId, OnionCell.CONNECTED, null, 0, 0);
+
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pump(server.getInputStream(), s.out, new byte[EXIT_READ_LEN]);
+				} catch (IOException e) {
+					// closed from the other direction
+				} finally {
+					s.close();
+					close(server);
+				}
+			}
+		});
+		try {
+			pump(s.in, server.getOutputStream(), new byte[PUMP_LEN]);
+		} catch (IOException e) {
+			// closed from the other direction
+		} finally {
+			close(server);
+			s.close();
+		}
+	}
+
+	/**
+	 * Copies one direction of a stream until its source ends. The bytes
+	 * are written as they are read, since either side may wait for them.
+	 *
+	 * @param in source
+	 * @param out destination, not buffered
+	 * @param buf buffer to copy through
+	 * @throws IOException if an I/O error occurs on either side
+	 */
+	static void pump(InputStream in, OutputStream out, byte[] buf) throws IOException {
+		int n;
+		while ((n = in.read(buf)) != -1)
+			out.write(buf, 0, n);
+	}
+
+	/**
+	 * Closes a socket, ignoring errors.
+	 */
+	private static void close(Socket s) {
+		try {
+			s.close();
+		} catch (IOException e) {
+			// nothing more we can do
+		}
+	}
+
+	/**
+	 * Tears a circuit down: the router on its other side gets DESTROY, and
+	 * its streams here end.
+	 *
+	 * @param c the circuit
+	 * @param from link the DESTROY came over or that closed, or null if the
+	 * circuit is torn down here
+	 */
+	private void destroy(Circuit c, OnionLink from) {
+		synchronized (c) {
+			if (c.destroyed)
+				return;
+			c.destroyed = true;
+		}
+
+		OnionLink prev = c.prevLink;
+		OnionLink next = c.nextLink;
+		if (prev != null) {
+			prev.circuits.remove(c.prevId, c);
+			if (prev != from)
+				prev.send(OnionCell.control(c.prevId, OnionCell.DESTROY));
+		}
+		if (next != null) {
+			next.circuits.remove(c.nextId, c);
+			if (next != from)
+				next.send(OnionCell.control(c.nextId, OnionCell.DESTROY));
+		}
+		for (OnionStream s : c.streams.values())
+			s.abort("circuit closed");
+		c.streams.clear();
+		c.replies.add(OnionCell.DESTROY);
+	}
+
+	/**
+	 * Tears down the circuits of a link that closed.
+	 *
+	 * @param link the link
+	 */
+	void linkClosed(OnionLink link) {
+		links.remove(link.name().toLowerCase(), link);
+		for (Circuit c : link.circuits.values())
+			destroy(c, link);
+	}
+
+	/**
+	 * A circuit as one router sees it: where its cells come from and go
+	 * to, and the streams that end here.
+	 */
+	class Circuit {
+		// the entry's side, or null at the proxy that built the circuit
+		final OnionLink prevLink;
+		final int prevId;
+		// the exit's side, or null at the exit
+		volatile OnionLink nextLink;
+		volatile int nextId;
+
+		final ConcurrentHashMap<Integer, OnionStream> streams =
+				new ConcurrentHashMap<Integer, OnionStream>();
+		private int nextStreamId = 1;
+
+		// answers to the CREATE and EXTENDs of the proxy's circuit
+		final LinkedBlockingQueue<Integer> replies = new LinkedBlockingQueue<Integer>();
+		volatile boolean destroyed;
+
+		/**
+		 * Constructs a new Circuit.
+		 *
+		 * @param prevLink link towards the entry, or null at the entry
+		 * @param prevId circuit id on that link
+		 */
+		Circuit(OnionLink prevLink, int prevId) {
+			this.prevLink = prevLink;
+			this.prevId = prevId;
+		}
+
+		/**
+		 * Opens a new stream at the proxy end of the circuit.
+		 *
+		 * @return the stream, waiting for CONNECTED
+		 * @throws IOException if the circuit is gone or all stream ids
+		 * are in use
+		 */
+		synchronized OnionStream newStream() throws IOException {
+			for (int i = 0; i < 0xffff; i++) {
+				int id = nextStreamId;
+				nextStreamId = nextStreamId == 0xffff ? 1 : nextStreamId + 1;
+				if (streams.containsKey(id))
+					continue;
+
+				OnionStream s = new OnionStream(this, id, false);
+				streams.put(id, s);
+				if (destroyed) {
+					streams.remove(id);
+					throw new IOException("circuit closed");
+				}
+				return s;
+			}
+			throw new IOException("no free stream id on the circuit");
+		}
+
+		/**
+		 * Drops a stream that ended.
+		 *
+		 * @param id the stream id
+		 */
+		void removeStream(int id) {
+			streams.remove(id);
+		}
+
+		/**
+		 * Sends a RELAY cell to the other end of the circuit: towards the
+		 * exit from the proxy, and towards the proxy from the exit.
+		 *
+		 * @param streamId stream id, or 0 for commands about the circuit
+		 * @param command relay command
+		 * @param b the data, or null if there is none
+		 * @param off position of the data in b
+		 * @param len length of the data, at most OnionCell.DATA_LEN
+		 */
+		void sendRelay(int streamId, int command, byte[] b, int off, int len) {
+			OnionLink to = prevLink != null ? prevLink : nextLink;
+			int id = prevLink != null ? prevId : nextId;
+			if (to == null)
+				return;
+			to.send(OnionCell.relay(id, streamId, command, b, off, len));
+		}
+
+		/**
+		 * Sends a RELAY cell carrying a short text.
+		 *
+		 * @param streamId stream id, or 0 for commands about the circuit
+		 * @param command relay command
+		 * @param text the text
+		 */
+		void sendRelay(int streamId, int command, String text) {
+			byte[] b = HeaderParser.bytes(text);
+			sendRelay(streamId, command, b, 0, Math.min(b.length, OnionCell.DATA_LEN));
+		}
+	}
+}
@@ -0,0 +1,325 @@
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * One end of a stream carried over a circuit: a connection to an origin
+ * server at the exit router, and the proxy's connection to it at the
+ * entry. The bytes go as DATA cells and come out of the stream's input
+ * stream in the same order; END closes the stream at both ends.
+ *
+ * Each stream has its own flow control window, so a slow reader holds
+ * back its own stream rather than the link every stream shares. A side
+ * may send WINDOW cells ahead of what the other side has read, and the
+ * other side sends SENDME every SENDME_INCREMENT cells it has read, which
+ * lets the sender go on with that many more. The cells received and not
+ * read yet thus never exceed WINDOW, and are queued here rather than
+ * holding up the link's reader thread.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class OnionStream {
+	static final int WINDOW = 500;  // in cells
+	static final int SENDME_INCREMENT = 50;  // in cells
+
+	// state of the stream's connection to the origin
+	private static final int CONNECTING = 0;
+	private static final int OPEN = 1;
+	private static final int FAILED = 2;
+
+	// queued after the last cell of a stream that ended
+	private static final ByteBuffer END_MARK = ByteBuffer.allocate(0);
+
+	private OnionRouter.Circuit circuit;
+	private int id;
+	private int state;
+	private String failure;
+
+	// cells received and not read yet, and the cell being read
+	private LinkedBlockingQueue<ByteBuffer> inbound = new LinkedBlockingQueue<ByteBuffer>();
+	private ByteBuffer current;
+	private int currentPos;
+	private int currentLen;
+	private boolean eof;
+	private int read;  // cells read since the last SENDME
+
+	// cells that may still be sent before a SENDME comes back
+	private int window = WINDOW;
+
+	// set once this side sent END or the circuit went away, and once
+	// the other side sent END
+	private volatile boolean closed;
+	private volatile boolean ended;
+
+	final InputStream in = new CellInputStream();
+	final OutputStream out = new CellOutputStream();
+
+	/**
+	 * Constructs a new OnionStream.
+	 *
+	 * @param circuit circuit carrying the stream
+	 * @param id stream id on the circuit
+	 * @param open true if the stream is connected already, as it is at
+	 * the exit, false if it waits for CONNECTED
+	 */
+	OnionStream(OnionRouter.Circuit circuit, int id, boolean open) {
+		this.circuit = circuit;
+		this.id = id;
+		state = open ? OPEN : CONNECTING;
+	}
+
+	/**
+	 * Returns the id of the stream on its circuit.
+	 *
+	 * @return the stream id
+	 */
+	int id() {
+		return id;
+	}
+
+	/**
+	 * Returns true if the stream can still carry bytes both ways.
+	 *
+	 * @return true if neither side ended the stream
+	 */
+	boolean isOpen() {
+		return !closed && !ended;
+	}
+
+	/**
+	 * Takes a RELAY cell the circuit received for this stream.
+	 *
+	 * @param cell the cell, which the stream takes over
+	 */
+	void received(ByteBuffer cell) {
+		int command = OnionCell.command(cell);
+		if (command == OnionCell.DATA && !closed) {
+			inbound.add(cell);
+			return;
+		}
+
+		if (command == OnionCell.END) {
+			// wakes a writer waiting for the window, which is never coming
+			synchronized (this) {
+				ended = true;
+				notifyAll();
+			}
+			inbound.add(END_MARK);
+		} else if (command == OnionCell.SENDME || command == OnionCell.CONNECTED ||
+				   command == OnionCell.BEGIN_FAILED) {
+			synchronized (this) {
+				if (command == OnionCell.SENDME) {
+					window += SENDME_INCREMENT;
+				} else if (command == OnionCell.CONNECTED) {
+					state = OPEN;
+				} else {
+					state = FAILED;
+					failure = OnionCell.text(cell);
+				}
+				notifyAll();
+			}
+		}
+		OnionCell.release(cell);
+	}
+
+	/**
+	 * Waits for the exit to connect to the origin server.
+	 *
+	 * @param timeout milliseconds to wait
+	 * @throws SocketTimeoutException if the exit did not answer in time
+	 * @throws IOException if the exit could not connect, or the circuit
+	 * went away
+	 */
+	void awaitConnected(long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (this) {
+			try {
+				while (state == CONNECTING && !closed) {
+					long left = deadline - System.currentTimeMillis();
+					if (left <= 0) {
+						close();
+						throw new SocketTimeoutException("no answer from the exit");
+					}
+					wait(left);
+				}
+			} catch (InterruptedException e) {
+				close();
+				throw new InterruptedIOException("interrupted waiting for the exit");
+			}
+			if (state == FAILED)
+				throw new IOException(failure);
+			if (closed)
+				throw new IOException(failure != null ? failure : "stream closed");
+		}
+	}
+
+	/**
+	 * Ends the stream: the other side gets END, and reading or writing
+	 * it fails from now on. Can be called more than once.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		circuit.sendRelay(id, OnionCell.END, null, 0, 0);
+		circuit.removeStream(id);
+		inbound.add(END_MARK);
+	}
+
+	/**
+	 * Ends the stream without telling the other side, since its circuit
+	 * is gone.
+	 *
+	 * @param why what happened, for the errors of reads and writes
+	 */
+	void abort(String why) {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			failure = why;
+			notifyAll();
+		}
+		inbound.add(END_MARK);
+	}
+
+	/**
+	 * Returns the next cell to read from, or null at the end of the stream.
+	 */
+	private ByteBuffer nextCell() throws IOException {
+		while (current == null || currentPos == currentLen) {
+			if (current != null)
+				doneWith();
+			if (eof)
+				return null;
+
+			ByteBuffer cell;
+			try {
+				cell = inbound.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted reading a stream");
+			}
+			if (cell == END_MARK) {
+				eof = true;
+				if (failure != null)
+					throw new IOException(failure);
+				return null;
+			}
+			current = cell;
+			currentPos = 0;
+			currentLen = OnionCell.length(cell);
+		}
+		return current;
+	}
+
+	/**
+	 * Releases the cell read up, and lets the other side send more once
+	 * enough cells were read.
+	 */
+	private void doneWith() {
+		OnionCell.release(current);
+		current = null;
+		if (++read == SENDME_INCREMENT) {
+			read = 0;
+			if (!closed)
+				circuit.sendRelay(id, OnionCell.SENDME, null, 0, 0);
+		}
+	}
+
+	/**
+	 * Reads the data of the cells as they come.
+	 */
+	class CellInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			ByteBuffer cell = nextCell();
+			if (cell == null)
+				return -1;
+
+			// what has arrived already, without waiting for more
+			int total = 0;
+			while (true) {
+				int n = Math.min(len - total, currentLen - currentPos);
+				OnionCell.data(cell, currentPos, b, off + total, n);
+				currentPos += n;
+				total += n;
+				if (currentPos == currentLen)
+					doneWith();
+				if (total == len)
+					return total;
+
+				ByteBuffer next = inbound.peek();
+				if (next == null || next == END_MARK)
+					return total;
+				cell = nextCell();
+			}
+		}
+
+		@Override
+		public int available() {
+			// what is left of the current cell, or the next one
+			if (current != null)
+				return currentLen - currentPos;
+			ByteBuffer next = inbound.peek();
+			return next == null || next == END_MARK ? 0 : OnionCell.length(next);
+		}
+
+		@Override
+		public void close() {
+			OnionStream.this.close();
+		}
+	}
+
+	/**
+	 * Sends the bytes written as DATA cells, as far as the window allows.
+	 * Nothing is buffered; callers write through a buffered stream, so
+	 * most cells go out full.
+	 */
+	class CellOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				synchronized (OnionStream.this) {
+					try {
+						while (window == 0 && !closed && !ended)
+							OnionStream.this.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException("interrupted writing a stream");
+					}
+					if (closed || ended)
+						throw new IOException(failure != null ? failure : "stream closed");
+					window--;
+				}
+
+				int n = Math.min(len, OnionCell.DATA_LEN);
+				circuit.sendRelay(id, OnionCell.DATA, b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void close() {
+			OnionStream.this.close();
+		}
+	}
+}
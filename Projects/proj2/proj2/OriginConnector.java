@@ -0,0 +1,276 @@
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connects to origin servers with more than one address the way "Happy
+ * Eyeballs" (RFC 8305) does: the addresses are tried in turn, each one
+ * ATTEMPT_DELAY after the previous one unless that one failed sooner,
+ * with the earlier attempts still running, and the first connection made
+ * wins. A dead address thus costs a quarter second rather than the
+ * system's connect timeout, and no connect takes longer than the timeout
+ * given.
+ *
+ * Addresses that failed recently are tried last, so the next requests to
+ * the same origin go to a working address first. The order alternates
+ * between IPv6 and IPv4, starting with the family of the first address.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class OriginConnector {
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10;  // in seconds
+
+	// how long an attempt runs alone before the next address is tried
+	private static final long ATTEMPT_DELAY = 250;  // in milliseconds
+	// how long a failed address is tried last
+	private static final long FAILURE_MEMORY = 60000;  // in milliseconds
+	private static final int MAX_FAILED = 4096;
+
+	private long timeout;  // in milliseconds
+
+	// addresses that failed, and until when they are tried last
+	private ConcurrentHashMap<InetAddress, Long> failed =
+			new ConcurrentHashMap<InetAddress, Long>();
+
+	/**
+	 * Constructs a new OriginConnector.
+	 *
+	 * @param timeout seconds a connect may take over all the addresses
+	 * @throws IllegalArgumentException if timeout is not positive
+	 */
+	public OriginConnector(int timeout) {
+		if (timeout <= 0)
+			throw new IllegalArgumentException("connect timeout must be positive");
+
+		this.timeout = timeout * 1000L;
+	}
+
+	/**
+	 * Returns how long a connect may take over all the addresses.
+	 *
+	 * @return the connect timeout in milliseconds
+	 */
+	public long timeout() {
+		return timeout;
+	}
+
+	/**
+	 * Connects to one of the addresses of an origin server.
+	 *
+	 * @param addrs addresses of the server
+	 * @param port port number
+	 * @return a connected socket in blocking mode, which has a channel
+	 * @throws SocketTimeoutException if no address answered in time
+	 * @throws IOException if every address failed; the error is the one of
+	 * the last address
+	 */
+	public Socket connect(InetAddress[] addrs, int port) throws IOException {
+		InetAddress[] order = order(addrs);
+		if (order.length == 1) {
+			SocketChannel c = SocketChannel.open();
+			try {
+				c.socket().setTcpNoDelay(true);
+				c.socket().connect(new InetSocketAddress(order[0], port), (int) timeout);
+			} catch (IOException e) {
+				c.close();
+				failed(order[0]);
+				throw e;
+			}
+			succeeded(order[0]);
+			return c.socket();
+		}
+
+		SocketChannel winner = race(order, port);
+		winner.configureBlocking(true);
+		winner.socket().setTcpNoDelay(true);
+		return winner.socket();
+	}
+
+	/**
+	 * Starts a connect to each address in turn until one succeeds.
+	 */
+	private SocketChannel race(InetAddress[] order, int port) throws IOException {
+		SocketChannel[] attempts = new SocketChannel[order.length];
+		SocketChannel winner = null;
+		IOException last = null;
+		int started = 0;
+		int running = 0;
+
+		long now = System.currentTimeMillis();
+		long deadline = now + timeout;
+		long nextStart = now;
+		Selector selector = Selector.open();
+		try {
+			while (winner == null) {
+				now = System.currentTimeMillis();
+				if (started < order.length && now >= nextStart) {
+					int i = started++;
+					nextStart = now + ATTEMPT_DELAY;
+					try {
+						attempts[i] = SocketChannel.open();
+						attempts[i].configureBlocking(false);
+						if (attempts[i].connect(new InetSocketAddress(order[i], port))) {
+							winner = attempts[i];
+							succeeded(order[i]);
+							break;
+						}
+						attempts[i].register(selector, SelectionKey.OP_CONNECT, i);
+						running++;
+					} catch (IOException e) {
+						// such as an unreachable network; go on right away
+						failed(order[i]);
+						last = e;
+						nextStart = now;
+						continue;
+					}
+				}
+
+				if (running == 0 && started == order.length)
+					throw last != null ? last : new IOException("no address to connect to");
+				if (now >= deadline) {
+					for (int i = 0; i < started; i++) {
+						if (attempts[i] != null && attempts[i].isOpen())
+							failed(order[i]);
+					}
+					throw new SocketTimeoutException("connect timed out");
+				}
+
+				long until = started < order.length ? Math.min(nextStart, deadline) : deadline;
+				selector.select(Math.max(1, until - now));
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext() && winner == null) {
+					SelectionKey key = it.next();
+					it.remove();
+					int i = (Integer) key.attachment();
+					try {
+						if (attempts[i].finishConnect()) {
+							winner = attempts[i];
+							succeeded(order[i]);
+						}
+					} catch (IOException e) {
+						// refused or unreachable; the next address goes now
+						failed(order[i]);
+						last = e;
+						key.cancel();
+						attempts[i].close();
+						running--;
+						nextStart = System.currentTimeMillis();
+					}
+				}
+			}
+		} finally {
+			// deregisters the winner so it can block again
+			selector.close();
+			boolean earlier = true;
+			for (int i = 0; i < started; i++) {
+				if (attempts[i] == winner) {
+					earlier = false;
+				} else if (attempts[i] != null && attempts[i].isOpen()) {
+					// an address tried before the winner and still not
+					// answering is as good as down
+					if (winner != null && earlier)
+						failed(order[i]);
+					attempts[i].close();
+				}
+			}
+		}
+		return winner;
+	}
+
+	/**
+	 * Returns the addresses in the order they should be tried: IPv6 and
+	 * IPv4 in turn, and the ones that failed recently last.
+	 *
+	 * @param addrs addresses of a server, which are left as they are
+	 * @return the addresses to try, in order
+	 */
+	public InetAddress[] order(InetAddress[] addrs) {
+		if (addrs.length == 1)
+			return addrs;
+
+		// looked at once, since other threads may add failures meanwhile
+		long now = System.currentTimeMillis();
+		boolean[] healthy = new boolean[addrs.length];
+		for (int i = 0; i < addrs.length; i++) {
+			Long until = failed.isEmpty() ? null : failed.get(addrs[i]);
+			healthy[i] = until == null || until < now;
+		}
+
+		InetAddress[] order = new InetAddress[addrs.length];
+		int n = 0;
+		// healthy addresses, alternating families
+		boolean v6 = addrs[0] instanceof Inet6Address;
+		int[] next = new int[2];  // next IPv4 and IPv6 address to look at
+		while (true) {
+			int family = v6 ? 1 : 0;
+			int i = nextHealthy(addrs, healthy, next[family], v6);
+			if (i < 0) {
+				i = nextHealthy(addrs, healthy, next[1 - family], !v6);
+				if (i < 0)
+					break;
+				family = 1 - family;
+			}
+			order[n++] = addrs[i];
+			next[family] = i + 1;
+			v6 = family == 0;
+		}
+		// then the ones that failed, as they came
+		for (int i = 0; i < addrs.length; i++) {
+			if (!healthy[i])
+				order[n++] = addrs[i];
+		}
+		return order;
+	}
+
+	/**
+	 * Returns the position of the first healthy address of the given
+	 * family from the given position on, or -1 if there is none.
+	 */
+	private int nextHealthy(InetAddress[] addrs, boolean[] healthy, int from, boolean v6) {
+		for (int i = from; i < addrs.length; i++) {
+			if ((addrs[i] instanceof Inet6Address) == v6 && healthy[i])
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Remembers that a connect to an address failed.
+	 *
+	 * @param a the address
+	 */
+	public void failed(InetAddress a) {
+		if (failed.size() >= MAX_FAILED) {
+			// forget the ones that have served their time
+			long now = System.currentTimeMillis();
+			Iterator<Long> it = failed.values().iterator();
+			while (it.hasNext()) {
+				if (it.next() < now)
+					it.remove();
+			}
+			if (failed.size() >= MAX_FAILED)
+				return;
+		}
+		failed.put(a, System.currentTimeMillis() + FAILURE_MEMORY);
+	}
+
+	/**
+	 * Forgets an earlier failure of an address that answered now.
+	 *
+	 * @param a the address
+	 */
+	public void succeeded(InetAddress a) {
+		if (!failed.isEmpty())
+			failed.remove(a);
+	}
+}
@@ -0,0 +1,361 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the proxy, shared by the blocking
+ * and the non-blocking modes. Everything is kept in striped counters
+ * (LongAdder), so recording a value is a few uncontended additions and
+ * never takes a lock; the totals are only summed up when the statistics
+ * are read.
+ *
+ * The statistics are served to local clients as "/proxy-stats" in plain
+ * text, or in JSON as "/proxy-stats?json".
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class ProxyStats {
+	static final String STATS_PATH = "/proxy-stats";
+	static final String JSON_QUERY = "?json";
+
+	// connections
+	static final LongAdder accepted = new LongAdder();
+	static final LongAdder active = new LongAdder();
+	static final LongAdder requests = new LongAdder();
+	// connections turned away over the limits, and closed as stalled
+	static final LongAdder rejected = new LongAdder();
+	static final LongAdder timedOut = new LongAdder();
+
+	// bytes relayed each way, not counting CONNECT tunnels
+	static final LongAdder bytesFromClients = new LongAdder();
+	static final LongAdder bytesToClients = new LongAdder();
+	// writes to client sockets, each about one system call
+	static final LongAdder writesToClients = new LongAdder();
+
+	// latencies; the first byte and total times start when the request
+	// header has arrived, the other two time the parse and the connect alone
+	static final Histogram headerParse = new Histogram();
+	static final Histogram upstreamConnect = new Histogram();
+	static final Histogram firstByte = new Histogram();
+	static final Histogram total = new Histogram();
+
+	private static final ConcurrentHashMap<String, LongAdder> errors =
+			new ConcurrentHashMap<String, LongAdder>();
+
+	private static final long startTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+	/**
+	 * Counts an error by the type of the exception.
+	 *
+	 * @param e the exception
+	 */
+	public static void error(Throwable e) {
+		error(e.getClass().getSimpleName());
+	}
+
+	/**
+	 * Counts an error of the given type.
+	 *
+	 * @param type name of the error
+	 */
+	public static void error(String type) {
+		LongAdder n = errors.get(type);
+		if (n == null) {
+			LongAdder created = new LongAdder();
+			n = errors.putIfAbsent(type, created);
+			if (n == null)
+				n = created;
+		}
+		n.increment();
+	}
+
+	/**
+	 * Returns the statistics as "name value" lines. Latencies are in
+	 * microseconds.
+	 *
+	 * @return the statistics in plain text
+	 */
+	public static String text() {
+		StringBuilder sb = new StringBuilder();
+		long uptime = (System.currentTimeMillis() - startTime) / 1000;
+		line(sb, "uptime_seconds", uptime);
+		line(sb, "accepted", accepted.sum());
+		sb.append("accept_rate_per_second ").append(acceptRate(uptime)).append('\n');
+		line(sb, "active_connections", active.sum());
+		line(sb, "rejected_connections", rejected.sum());
+		line(sb, "timed_out_connections", timedOut.sum());
+		line(sb, "requests", requests.sum());
+		line(sb, "bytes_from_clients", bytesFromClients.sum());
+		line(sb, "bytes_to_clients", bytesToClients.sum());
+		line(sb, "writes_to_clients", writesToClients.sum());
+		sb.append("writes_per_request ").append(writesPerRequest()).append('\n');
+		line(sb, "relay_buffers_allocated", ResponseRelay.buffers.allocated() + 
+			 NioProxyServer.buffers.allocated());
+		line(sb, "relay_buffers_reused", ResponseRelay.buffers.reused() + 
+			 NioProxyServer.buffers.reused());
+		line(sb, "active_tunnels", TunnelRelay.activeTunnels());
+		line(sb, "compressed_responses", ResponseCompressor.compressed.sum());
+		line(sb, "compression_bytes_in", ResponseCompressor.bytesIn.sum());
+		line(sb, "compression_bytes_out", ResponseCompressor.bytesOut.sum());
+		line(sb, "onion_cells_in", OnionLink.cellsIn.sum());
+		line(sb, "onion_cells_out", OnionLink.cellsOut.sum());
+		line(sb, "log_records_written", AccessLog.written());
+		line(sb, "log_records_dropped", AccessLog.dropped());
+		headerParse.text(sb, "header_parse_us");
+		upstreamConnect.text(sb, "upstream_connect_us");
+		firstByte.text(sb, "first_byte_us");
+		total.text(sb, "total_us");
+		for (Map.Entry<String, Long> e : errorCounts().entrySet())
+			line(sb, "errors{type=\"" + e.getKey() + "\"}", e.getValue());
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the statistics as one JSON object. Latencies are in
+	 * microseconds.
+	 *
+	 * @return the statistics in JSON
+	 */
+	public static String json() {
+		StringBuilder sb = new StringBuilder("{");
+		long uptime = (System.currentTimeMillis() - startTime) / 1000;
+		sb.append("\"uptime_seconds\":").append(uptime);
+		sb.append(",\"accepted\":").append(accepted.sum());
+		sb.append(",\"accept_rate_per_second\":").append(acceptRate(uptime));
+		sb.append(",\"active_connections\":").append(active.sum());
+		sb.append(",\"rejected_connections\":").append(rejected.sum());
+		sb.append(",\"timed_out_connections\":").append(timedOut.sum());
+		sb.append(",\"requests\":").append(requests.sum());
+		sb.append(",\"bytes_from_clients\":").append(bytesFromClients.sum());
+		sb.append(",\"bytes_to_clients\":").append(bytesToClients.sum());
+		sb.append(",\"writes_to_clients\":").append(writesToClients.sum());
+		sb.append(",\"writes_per_request\":").append(writesPerRequest());
+		sb.append(",\"relay_buffers_allocated\":").append(ResponseRelay.buffers.allocated() + 
+				  NioProxyServer.buffers.allocated());
+		sb.append(",\"relay_buffers_reused\":").append(ResponseRelay.buffers.reused() + 
+				  NioProxyServer.buffers.reused());
+		sb.append(",\"active_tunnels\":").append(TunnelRelay.activeTunnels());
+		sb.append(",\"compressed_responses\":").append(ResponseCompressor.compressed.sum());
+		sb.append(",\"compression_bytes_in\":").append(ResponseCompressor.bytesIn.sum());
+		sb.append(",\"compression_bytes_out\":").append(ResponseCompressor.bytesOut.sum());
+		sb.append(",\"onion_cells_in\":").append(OnionLink.cellsIn.sum());
+		sb.append(",\"onion_cells_out\":").append(OnionLink.cellsOut.sum());
+		sb.append(",\"log_records_written\":").append(AccessLog.written());
+		sb.append(",\"log_records_dropped\":").append(AccessLog.dropped());
+		sb.append(",\"header_parse_us\":");
+		headerParse.json(sb);
+		sb.append(",\"upstream_connect_us\":");
+		upstreamConnect.json(sb);
+		sb.append(",\"first_byte_us\":");
+		firstByte.json(sb);
+		sb.append(",\"total_us\":");
+		total.json(sb);
+
+		sb.append(",\"errors\":{");
+		boolean first = true;
+		for (Map.Entry<String, Long> e : errorCounts().entrySet()) {
+			if (!first)
+				sb.append(',');
+			sb.append('"').append(e.getKey()).append("\":").append(e.getValue());
+			first = false;
+		}
+		return sb.append("}}").toString();
+	}
+
+	/**
+	 * Returns the full HTTP response serving the statistics.
+	 *
+	 * @param target request target, which selects JSON if it ends in "?json"
+	 * @param clientKeepAlive true if the client connection stays open
+	 * @return the response bytes
+	 */
+	public static byte[] response(String target, boolean clientKeepAlive) {
+		boolean json = target != null && target.endsWith(JSON_QUERY);
+		byte[] body = (json ? json() : text()).getBytes(HTTPProxy.HEADER_CHARSET);
+		String head = "HTTP/1.1 200 OK" + HTTPProxy.HTTP_END_LINE +
+				"Content-Type: " + (json ? "application/json" : "text/plain") +
+				HTTPProxy.HTTP_END_LINE +
+				"Content-Length: " + body.length + HTTPProxy.HTTP_END_LINE +
+				"Cache-Control: no-store" + HTTPProxy.HTTP_END_LINE +
+				(clientKeepAlive ? HTTPProxy.CONNECTION_KEEP_ALIVE : HTTPProxy.CONNECTION_CLOSE) +
+				HTTPProxy.HTTP_END_LINE + HTTPProxy.HTTP_END_LINE;
+
+		byte[] headBytes = head.getBytes(HTTPProxy.HEADER_CHARSET);
+		byte[] all = new byte[headBytes.length + body.length];
+		System.arraycopy(headBytes, 0, all, 0, headBytes.length);
+		System.arraycopy(body, 0, all, headBytes.length, body.length);
+		return all;
+	}
+
+	/**
+	 * Returns the average number of connections accepted per second.
+	 */
+	private static String acceptRate(long uptime) {
+		return String.format("%.2f", accepted.sum() / (double) Math.max(uptime, 1));
+	}
+
+	/**
+	 * Returns the average number of writes to the client per request.
+	 */
+	private static String writesPerRequest() {
+		return String.format("%.2f", writesToClients.sum() / (double) Math.max(requests.sum(), 1));
+	}
+
+	/**
+	 * Returns a snapshot of the error counts sorted by type.
+	 */
+	private static Map<String, Long> errorCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : errors.entrySet())
+			counts.put(e.getKey(), e.getValue().sum());
+		return counts;
+	}
+
+	/**
+	 * Appends a "name value" line.
+	 */
+	private static void line(StringBuilder sb, String name, long value) {
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * A histogram of durations with four buckets per power of two, so a
+	 * percentile is off by at most a quarter of its value. Recording is a
+	 * bit scan and two striped additions.
+	 */
+	static class Histogram {
+		private static final int SUB_BUCKETS = 4;
+		private static final int SUB_BITS = 2;
+		private static final int NUM_BUCKETS = 64 * SUB_BUCKETS;
+
+		private LongAdder[] buckets;
+		private LongAdder sum;
+		private AtomicLong max;
+
+		/**
+		 * Constructs a new, empty Histogram.
+		 */
+		public Histogram() {
+			buckets = new LongAdder[NUM_BUCKETS];
+			for (int i = 0; i < NUM_BUCKETS; i++)
+				buckets[i] = new LongAdder();
+			sum = new LongAdder();
+			max = new AtomicLong();
+		}
+
+		/**
+		 * Records the time passed since a start time.
+		 *
+		 * @param startNanos start time from System.nanoTime()
+		 */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		/**
+		 * Records a duration.
+		 *
+		 * @param nanos duration in nanoseconds; negative values count as 0
+		 */
+		public void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+
+			buckets[bucket(nanos)].increment();
+			sum.add(nanos);
+
+			long m = max.get();
+			while (nanos > m && !max.compareAndSet(m, nanos))
+				m = max.get();
+		}
+
+		/**
+		 * Returns the bucket of a value: values below 4 have their own
+		 * bucket, larger ones are split by their highest bit and the two
+		 * bits below it.
+		 */
+		private static int bucket(long v) {
+			if (v < SUB_BUCKETS)
+				return (int) v;
+
+			int msb = 63 - Long.numberOfLeadingZeros(v);
+			int sub = (int) (v >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (msb - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		/**
+		 * Returns the largest value falling into a bucket.
+		 */
+		private static long bucketLimit(int b) {
+			if (b < SUB_BUCKETS)
+				return b;
+
+			int msb = b / SUB_BUCKETS + SUB_BITS - 1;
+			long sub = b % SUB_BUCKETS;
+			long low = (1L << msb) | (sub << (msb - SUB_BITS));
+			return low + (1L << (msb - SUB_BITS)) - 1;
+		}
+
+		/**
+		 * Returns the number of values, their sum, and the 50th, 90th and
+		 * 99th percentiles and the maximum, all in microseconds except the
+		 * count.
+		 */
+		private long[] summary() {
+			long[] counts = new long[NUM_BUCKETS];
+			long n = 0;
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				counts[i] = buckets[i].sum();
+				n += counts[i];
+			}
+
+			long[] s = new long[6];
+			s[0] = n;
+			s[1] = sum.sum() / 1000;
+			double[] ranks = { 0.5, 0.9, 0.99 };
+			for (int r = 0; r < ranks.length; r++) {
+				long target = (long) Math.ceil(n * ranks[r]);
+				long seen = 0;
+				for (int i = 0; i < NUM_BUCKETS && n > 0; i++) {
+					seen += counts[i];
+					if (seen >= target) {
+						s[2 + r] = Math.min(bucketLimit(i), max.get()) / 1000;
+						break;
+					}
+				}
+			}
+			s[5] = max.get() / 1000;
+			return s;
+		}
+
+		/**
+		 * Appends the summary as "name_stat value" lines.
+		 */
+		void text(StringBuilder sb, String name) {
+			long[] s = summary();
+			line(sb, name + "_count", s[0]);
+			line(sb, name + "_mean", s[0] > 0 ? s[1] / s[0] : 0);
+			line(sb, name + "_p50", s[2]);
+			line(sb, name + "_p90", s[3]);
+			line(sb, name + "_p99", s[4]);
+			line(sb, name + "_max", s[5]);
+		}
+
+		/**
+		 * Appends the summary as a JSON object.
+		 */
+		void json(StringBuilder sb) {
+			long[] s = summary();
+			sb.append("{\"count\":").append(s[0]);
+			sb.append(",\"mean\":").append(s[0] > 0 ? s[1] / s[0] : 0);
+			sb.append(",\"p50\":").append(s[2]);
+			sb.append(",\"p90\":").append(s[3]);
+			sb.append(",\"p99\":").append(s[4]);
+			sb.append(",\"max\":").append(s[5]).append('}');
+		}
+	}
+}
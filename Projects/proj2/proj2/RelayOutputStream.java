@@ -0,0 +1,73 @@
+import java.io.*;
+
+/**
+ * A buffered output stream over a buffer the caller provides, so relay
+ * buffers can come from a pool instead of being allocated per request.
+ * Unlike BufferedOutputStream it does not synchronize, so a virtual thread
+ * blocked writing to the socket does not pin its carrier thread.
+ *
+ * The buffer is written out when it fills up or on flush(); when to flush
+ * is up to the relay loop, see ResponseRelay.flushIfIdle().
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class RelayOutputStream extends OutputStream {
+	private OutputStream out;
+	private byte[] buf;
+	private int count;
+
+	/**
+	 * Constructs a new RelayOutputStream.
+	 *
+	 * @param out stream to be written to
+	 * @param buf buffer collecting the bytes until they are written
+	 * @throws IllegalArgumentException if either argument is null or the
+	 * buffer is empty
+	 */
+	public RelayOutputStream(OutputStream out, byte[] buf) {
+		if (out == null || buf == null || buf.length == 0)
+			throw new IllegalArgumentException("invalid relay stream arguments");
+
+		this.out = out;
+		this.buf = buf;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buf.length)
+			writeBuffer();
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len >= buf.length) {
+			// no point copying what fills the buffer anyway
+			writeBuffer();
+			out.write(b, off, len);
+			return;
+		}
+
+		if (len > buf.length - count)
+			writeBuffer();
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writeBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Writes out the buffered bytes, if any.
+	 */
+	private void writeBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+	}
+}
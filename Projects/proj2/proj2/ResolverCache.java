@@ -0,0 +1,287 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the addresses of origin servers so that requests do not wait for
+ * a name lookup each time they connect. Names that fail to resolve are
+ * remembered for a shorter time, so a missing host does not cost a lookup
+ * per request either.
+ *
+ * Concurrent lookups of the same name are collapsed into one, and entries
+ * close to expiring are looked up again in the background while the old
+ * addresses keep being handed out, so a busy host never expires in the
+ * middle of traffic. Lookups go through a Resolver, which is the system
+ * resolver unless another one is given.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class ResolverCache {
+	public static final int DEFAULT_TTL = 60;  // in seconds
+	public static final int DEFAULT_NEGATIVE_TTL = 5;  // in seconds
+
+	// an entry is refreshed once this much of its lifetime has passed
+	private static final double REFRESH_FRACTION = 0.75;
+	// expired entries are purged once the cache holds this many names
+	private static final int MAX_ENTRIES = 4096;
+	private static final int NUM_REFRESH_THREADS = 2;
+
+	/**
+	 * Looks up the addresses of a host name.
+	 */
+	public interface Resolver {
+		/**
+		 * Returns the addresses of a host name.
+		 *
+		 * @param host host name or literal address
+		 * @return at least one address
+		 * @throws UnknownHostException if the name cannot be resolved
+		 */
+		InetAddress[] resolve(String host) throws UnknownHostException;
+	}
+
+	/**
+	 * The resolver of the platform, as used by java.net.Socket.
+	 */
+	public static final Resolver SYSTEM_RESOLVER = new Resolver() {
+		@Override
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			return InetAddress.getAllByName(host);
+		}
+	};
+
+	private Resolver resolver;
+	private long ttl;
+	private long negativeTtl;
+
+	private ConcurrentHashMap<String, Entry> entries;
+	// lookups in progress, which later callers for the same name wait on
+	private ConcurrentHashMap<String, Lookup> inFlight;
+	private ExecutorService refresher;
+
+	private LongAdder hits = new LongAdder();
+	private LongAdder negativeHits = new LongAdder();
+	private LongAdder misses = new LongAdder();
+	private LongAdder collapsed = new LongAdder();
+	private LongAdder refreshes = new LongAdder();
+
+	/**
+	 * Constructs a new ResolverCache.
+	 *
+	 * @param resolver resolver doing the actual lookups
+	 * @param ttl seconds the addresses of a name are kept
+	 * @param negativeTtl seconds a failed lookup is remembered
+	 * @throws IllegalArgumentException if resolver is null or ttl or
+	 * negativeTtl is negative
+	 */
+	public ResolverCache(Resolver resolver, int ttl, int negativeTtl) {
+		if (resolver == null || ttl < 0 || negativeTtl < 0)
+			throw new IllegalArgumentException("invalid resolver cache settings");
+
+		this.resolver = resolver;
+		this.ttl = ttl * 1000L;
+		this.negativeTtl = negativeTtl * 1000L;
+		entries = new ConcurrentHashMap<String, Entry>();
+		inFlight = new ConcurrentHashMap<String, Lookup>();
+		refresher = Executors.newFixedThreadPool(NUM_REFRESH_THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "resolver-refresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Returns the addresses of a host, looking them up only if the cache
+	 * has no live entry for it.
+	 *
+	 * @param host host name or literal address
+	 * @return at least one address
+	 * @throws UnknownHostException if the name cannot be resolved, or
+	 * failed to resolve recently
+	 */
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		String name = host.toLowerCase();
+		Entry e = entries.get(name);
+		if (e != null && System.currentTimeMillis() < e.expiresAt) {
+			if (e.addresses == null) {
+				negativeHits.increment();
+				throw new UnknownHostException(host);
+			}
+			hit(name, e);
+			return e.addresses;
+		}
+
+		misses.increment();
+		return lookup(name, false);
+	}
+
+	/**
+	 * Returns the cached addresses of a host without blocking, or null if
+	 * the cache has no live positive entry for it.
+	 *
+	 * @param host host name or literal address
+	 * @return the addresses, or null if resolve() would have to look them up
+	 */
+	public InetAddress[] peek(String host) {
+		String name = host.toLowerCase();
+		Entry e = entries.get(name);
+		if (e == null || e.addresses == null || System.currentTimeMillis() >= e.expiresAt)
+			return null;
+
+		hit(name, e);
+		return e.addresses;
+	}
+
+	/**
+	 * Counts a hit on a positive entry and starts refreshing it if it is
+	 * about to expire.
+	 */
+	private void hit(final String name, final Entry e) {
+		hits.increment();
+		if (System.currentTimeMillis() < e.refreshAt || !e.refreshing.compareAndSet(false, true))
+			return;
+
+		refreshes.increment();
+		refresher.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					lookup(name, true);
+				} catch (UnknownHostException ex) {
+					// keep the old addresses until they expire
+				} finally {
+					e.refreshing.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Looks up a name, or waits for the lookup already in progress.
+	 *
+	 * @param name lower case host name
+	 * @param refresh true if the lookup refreshes a live entry, in which
+	 * case a failure does not replace it
+	 */
+	private InetAddress[] lookup(String name, boolean refresh) throws UnknownHostException {
+		Lookup mine = new Lookup();
+		Lookup running = inFlight.putIfAbsent(name, mine);
+		if (running != null) {
+			collapsed.increment();
+			return running.await(name);
+		}
+
+		try {
+			mine.addresses = resolver.resolve(name);
+			if (mine.addresses == null || mine.addresses.length == 0)
+				throw new UnknownHostException(name);
+			store(name, new Entry(mine.addresses, ttl));
+		} catch (UnknownHostException ex) {
+			mine.addresses = null;
+			mine.failure = ex;
+			if (!refresh)
+				store(name, new Entry(null, negativeTtl));
+		} finally {
+			inFlight.remove(name);
+			mine.done.countDown();
+		}
+		return mine.await(name);
+	}
+
+	/**
+	 * Adds an entry, first purging the expired ones if the cache is full.
+	 */
+	private void store(String name, Entry e) {
+		if (entries.size() >= MAX_ENTRIES) {
+			long now = System.currentTimeMillis();
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				if (now >= it.next().expiresAt)
+					it.remove();
+			}
+			// every entry is live; make room by dropping arbitrary ones
+			it = entries.values().iterator();
+			while (entries.size() >= MAX_ENTRIES && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		entries.put(name, e);
+	}
+
+	/**
+	 * Returns a one-line summary of the cache statistics.
+	 *
+	 * @return the statistics
+	 */
+	public String report() {
+		return String.format("resolver: %d names, %d hits, %d negative hits, %d misses, " +
+							 "%d collapsed, %d refreshes", entries.size(), hits.sum(),
+							 negativeHits.sum(), misses.sum(), collapsed.sum(),
+							 refreshes.sum());
+	}
+
+	/**
+	 * The addresses of a name, or null if the name failed to resolve.
+	 */
+	static class Entry {
+		InetAddress[] addresses;
+		long expiresAt;
+		long refreshAt;
+		AtomicBoolean refreshing = new AtomicBoolean();
+
+		/**
+		 * Constructs a new Entry.
+		 *
+		 * @param a addresses, or null for a failed lookup
+		 * @param lifetime milliseconds the entry stays live
+		 */
+		public Entry(InetAddress[] a, long lifetime) {
+			long now = System.currentTimeMillis();
+			addresses = a;
+			expiresAt = now + lifetime;
+			refreshAt = now + (long) (lifetime * REFRESH_FRACTION);
+		}
+	}
+
+	/**
+	 * A lookup in progress and, once done, its outcome.
+	 */
+	static class Lookup {
+		CountDownLatch done = new CountDownLatch(1);
+		InetAddress[] addresses;
+		UnknownHostException failure;
+
+		/**
+		 * Waits for the lookup to finish and returns its addresses.
+		 *
+		 * @param name host name being looked up
+		 * @return the addresses
+		 * @throws UnknownHostException if the lookup failed
+		 */
+		public InetAddress[] await(String name) throws UnknownHostException {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				throw new UnknownHostException(name + " (interrupted)");
+			}
+
+			if (addresses != null)
+				return addresses;
+			if (failure != null)
+				throw failure;
+			throw new UnknownHostException(name);
+		}
+	}
+}
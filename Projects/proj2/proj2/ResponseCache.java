@@ -0,0 +1,997 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache of responses shared by all clients of the proxy, keyed on the
+ * method, host and URI of the request. Small objects are kept off the
+ * Java heap in direct buffers; objects too large for that go to a disk
+ * tier and are served from memory-mapped files. Each tier is bounded in
+ * bytes and evicts its least recently used entries.
+ *
+ * Freshness follows the usual HTTP rules: Cache-Control s-maxage or
+ * max-age, then Expires, then a heuristic based on Last-Modified. Stale
+ * entries with an ETag or Last-Modified are revalidated with a
+ * conditional request instead of being fetched again.
+ *
+ * Concurrent misses on the same key are collapsed: the first request goes
+ * to the server as a Flight, and requests arriving while it is in flight
+ * wait for its response and get the same bytes as they come in, instead
+ * of all fetching the object at once.
+ *
+ * Bodies the proxy compressed itself are stored as variants of their
+ * own, under the key of the request and the content coding, see 
+ * variantKey(), next to the uncompressed response if there is one.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class ResponseCache {
+	public static final long DEFAULT_MEMORY_BYTES = 64L << 20;
+	public static final long DEFAULT_DISK_BYTES = 1L << 30;
+
+	// objects larger than this go to the disk tier
+	private static final long MAX_MEMORY_OBJECT = 1L << 20;
+	// objects larger than this are never cached
+	private static final long MAX_DISK_OBJECT = 64L << 20;
+	// responses larger than this are not shared while in flight, since 
+	// the body is held in memory until the last follower has it
+	private static final long MAX_COLLAPSED_BODY = MAX_MEMORY_OBJECT;
+	// how long a request waits for the response head of a flight before 
+	// going to the server itself, in milliseconds
+	private static final long FOLLOW_TIMEOUT = 30000;
+	// how long requests for a key whose response could not be shared go 
+	// to the server without waiting on each other, in milliseconds
+	private static final long PASS_TIME = 10000;
+	private static final int MAX_PASSES = 4096;
+	// most body bytes written to a client socket at once, so the 
+	// client timeout sees a slow client make progress
+	private static final int MAX_BODY_WRITE = 65536;
+
+	// heuristic freshness is a tenth of the time since the last
+	// modification, but no more than a day
+	private static final long MAX_HEURISTIC_FRESHNESS = 24L * 3600 * 1000;
+
+	private static final String CACHE_CONTROL_TAG = "cache-control:";
+	private static final String EXPIRES_TAG = "expires:";
+	private static final String DATE_TAG = "date:";
+	private static final String AGE_TAG = "age:";
+	private static final String ETAG_TAG = "etag:";
+	private static final String LAST_MODIFIED_TAG = "last-modified:";
+	private static final String VARY_TAG = "vary:";
+	private static final String SET_COOKIE_TAG = "set-cookie:";
+	private static final String IF_NONE_MATCH = "If-None-Match: ";
+	private static final String IF_MODIFIED_SINCE = "If-Modified-Since: ";
+
+	private long maxMemoryBytes;
+	private long maxDiskBytes;
+	private File dir;  // null if there is no disk tier
+
+	// both maps are in access order, least recently used first
+	private LinkedHashMap<String, Entry> memory;
+	private LinkedHashMap<String, Entry> disk;
+	private long memoryBytes;
+	private long diskBytes;
+
+	private AtomicLong nextFile;
+
+	// fetches in progress that later requests for the same key can share, 
+	// and when keys whose responses could not be shared may be shared again
+	private ConcurrentHashMap<String, Flight> flights;
+	private ConcurrentHashMap<String, Long> passes;
+
+	private LongAdder hits;
+	private LongAdder misses;
+	private LongAdder revalidations;
+	private LongAdder bytesSaved;
+	private LongAdder evictions;
+	private LongAdder collapsed;
+
+	/**
+	 * Constructs a new ResponseCache.
+	 *
+	 * @param maxMemoryBytes capacity of the memory tier in bytes
+	 * @param dir directory for the disk tier, or null for no disk tier
+	 * @param maxDiskBytes capacity of the disk tier in bytes
+	 * @throws IllegalArgumentException if a capacity is negative
+	 * @throws IOException if the directory cannot be created
+	 */
+	public ResponseCache(long maxMemoryBytes, File dir, long maxDiskBytes)
+			throws IOException {
+		if (maxMemoryBytes < 0 || maxDiskBytes < 0)
+			throw new IllegalArgumentException("cache capacity cannot be negative");
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create cache directory " + dir);
+
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.maxDiskBytes = maxDiskBytes;
+		this.dir = dir;
+		memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		disk = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		nextFile = new AtomicLong();
+		flights = new ConcurrentHashMap<String, Flight>();
+		passes = new ConcurrentHashMap<String, Long>();
+
+		hits = new LongAdder();
+		misses = new LongAdder();
+		revalidations = new LongAdder();
+		bytesSaved = new LongAdder();
+		evictions = new LongAdder();
+		collapsed = new LongAdder();
+	}
+
+	/**
+	 * Returns the cache key of a request.
+	 *
+	 * @param method request method
+	 * @param host host name with the port, as in the Host header
+	 * @param uri request URI
+	 * @return the key
+	 */
+	public static String key(String method, String host, String uri) {
+		return method + " " + host.toLowerCase() + " " + uri;
+	}
+
+	/**
+	 * Returns the cache key of a response the proxy encoded itself.
+	 *
+	 * @param key cache key of the request
+	 * @param coding name of the content coding, such as "gzip"
+	 * @return the key of the variant
+	 */
+	public static String variantKey(String key, String coding) {
+		return key + " " + coding;
+	}
+
+	/**
+	 * Returns the cached entry for a key, fresh or not, or null.
+	 *
+	 * @param key cache key
+	 * @return the entry, or null if the key is not cached
+	 */
+	public synchronized Entry lookup(String key) {
+		Entry e = memory.get(key);
+		if (e == null)
+			e = disk.get(key);
+		return e;
+	}
+
+	/**
+	 * Starts a flight for a key, so that requests for the same key arriving 
+	 * before the response is stored can share it. The caller fetches the 
+	 * response and must end the flight in any case.
+	 *
+	 * @param key cache key
+	 * @return the new flight, or null if the key is already in flight or 
+	 * its last response could not be shared
+	 */
+	public Flight lead(String key) {
+		Long until = passes.get(key);
+		if (until != null) {
+			if (System.currentTimeMillis() < until)
+				return null;
+			passes.remove(key, until);
+		}
+
+		Flight f = new Flight(key);
+		return flights.putIfAbsent(key, f) == null ? f : null;
+	}
+
+	/**
+	 * Returns the flight fetching a key, or null if there is none.
+	 *
+	 * @param key cache key
+	 * @return the flight, or null
+	 */
+	public Flight follow(String key) {
+		return flights.get(key);
+	}
+
+	/**
+	 * Records that a request was answered from the cache.
+	 *
+	 * @param e entry that answered it
+	 */
+	public void recordHit(Entry e) {
+		hits.increment();
+		bytesSaved.add(e.body.capacity());
+	}
+
+	/**
+	 * Records that a request could not be answered from the cache.
+	 */
+	public void recordMiss() {
+		misses.increment();
+	}
+
+	/**
+	 * Appends the conditional headers that revalidate an entry.
+	 *
+	 * @param e stale entry
+	 * @param parser parser building the forwarded request header, before its empty line
+	 * @return true if the entry has a validator and headers were added
+	 */
+	public boolean appendValidators(Entry e, HeaderParser parser) {
+		if (e.etag == null && e.lastModified == null)
+			return false;
+
+		if (e.etag != null)
+			parser.appendLine(IF_NONE_MATCH + e.etag);
+		if (e.lastModified != null)
+			parser.appendLine(IF_MODIFIED_SINCE + e.lastModified);
+		return true;
+	}
+
+	/**
+	 * Makes a stale entry fresh again after the server answered its
+	 * conditional request with 304 Not Modified. The header lines of the
+	 * 304 replace the stored lines of the same names, and the freshness
+	 * is worked out from the updated head.
+	 *
+	 * @param e revalidated entry
+	 * @param notModified head of the 304 response
+	 */
+	public void revalidated(Entry e, ResponseRelay.ResponseHead notModified) {
+		revalidations.increment();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			ResponseRelay.ResponseHead merged = merge(e.head, notModified);
+			e.head = merged;
+			e.storedAt = now;
+			e.expiresAt = now + Math.max(freshnessLifetime(merged, now), 0);
+			e.etag = merged.header(ETAG_TAG);
+			e.lastModified = merged.header(LAST_MODIFIED_TAG);
+		}
+	}
+
+	/**
+	 * Returns a copy of a stored head updated with the header lines of a 
+	 * 304 response. The framing of the stored body is kept.
+	 */
+	private static ResponseRelay.ResponseHead merge(ResponseRelay.ResponseHead stored, 
+													ResponseRelay.ResponseHead notModified) {
+		List<String> names = new ArrayList<String>();
+		List<String> lines = new ArrayList<String>();
+		for (String line : notModified.headers) {
+			int colon = line.indexOf(':');
+			if (colon <= 0 || isFraming(line))
+				continue;
+			names.add(line.substring(0, colon + 1));
+			lines.add(line);
+		}
+
+		ResponseRelay.ResponseHead h = stored.copy();
+		Iterator<String> it = h.headers.iterator();
+		while (it.hasNext()) {
+			String line = it.next();
+			for (String name : names) {
+				if (line.regionMatches(true, 0, name, 0, name.length())) {
+					it.remove();
+					break;
+				}
+			}
+		}
+		h.headers.addAll(lines);
+		return h;
+	}
+
+	/**
+	 * Returns true if a header line tells how a body is framed.
+	 */
+	private static boolean isFraming(String line) {
+		return line.regionMatches(true, 0, HTTPProxy.CONTENT_LENGTH_TAG, 0,
+								  HTTPProxy.CONTENT_LENGTH_TAG.length()) ||
+			   line.regionMatches(true, 0, HTTPProxy.TRANSFER_ENCODING_TAG, 0,
+								  HTTPProxy.TRANSFER_ENCODING_TAG.length());
+	}
+
+	/**
+	 * Returns true if a response could be stored at all.
+	 *
+	 * @param h head of the response to a GET request
+	 * @return true if the response is cacheable
+	 */
+	public boolean isCacheable(ResponseRelay.ResponseHead h) {
+		if (h.status != 200 || !h.delimited() || h.bodyless)
+			return false;
+		if (h.contentLength > MAX_DISK_OBJECT)
+			return false;
+		if (h.header(VARY_TAG) != null || h.header(SET_COOKIE_TAG) != null)
+			return false;
+
+		String cc = h.header(CACHE_CONTROL_TAG);
+		if (cc != null) {
+			cc = cc.toLowerCase();
+			if (cc.contains("no-store") || cc.contains("private"))
+				return false;
+		}
+
+		// a response that is stale at once is only worth keeping if it
+		// can be revalidated
+		return freshnessLifetime(h, System.currentTimeMillis()) > 0 ||
+			   h.header(ETAG_TAG) != null || h.header(LAST_MODIFIED_TAG) != null;
+	}
+
+	/**
+	 * Starts storing a response while it is relayed to the client. The
+	 * returned stream passes everything on to the client and keeps a copy
+	 * of the body; commit it once the body is complete.
+	 *
+	 * @param key cache key of the request
+	 * @param h head of the response, which must be cacheable
+	 * @param client output stream to the client
+	 * @return a stream to relay the body through
+	 */
+	public Fill startFill(String key, ResponseRelay.ResponseHead h, OutputStream client) {
+		return new Fill(key, h, client, false);
+	}
+
+	/**
+	 * Starts storing a body the proxy encodes itself, which goes to the 
+	 * client chunked. The stored head gets the Content-Length of the 
+	 * stored body instead.
+	 *
+	 * @param key cache key of the variant, see variantKey()
+	 * @param h head of the encoded response, whose original is cacheable
+	 * @param client stream framing the encoded body for the client
+	 * @return a stream to write the encoded body through
+	 */
+	public Fill startEncodedFill(String key, ResponseRelay.ResponseHead h, OutputStream client) {
+		return new Fill(key, h, client, true);
+	}
+
+	/**
+	 * Sends a cached response to the client.
+	 *
+	 * @param e entry to be sent
+	 * @param out output stream to the client
+	 * @param ch channel of the client socket, counting what is written 
+	 * like out does, or null
+	 * @param head true if the request was a HEAD request
+	 * @param clientKeepAlive true if the client wants to keep its connection
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void serve(Entry e, OutputStream out, WritableByteChannel ch, boolean head,
+					  boolean clientKeepAlive) throws IOException {
+		// the header goes out in one write
+		long age = (System.currentTimeMillis() - e.storedAt) / 1000;
+		out.write(headBytes(e.head, age, clientKeepAlive));
+		out.flush();
+
+		if (head)
+			return;
+
+		// write the off-heap or mapped body straight to the socket
+		ByteBuffer body = e.body.duplicate();
+		if (ch != null) {
+			int end = body.limit();
+			while (body.position() < end) {
+				body.limit(Math.min(end, body.position() + MAX_BODY_WRITE));
+				ch.write(body);
+			}
+		} else {
+			e.writeBody(out, new byte[Math.min(body.remaining(), 32768)]);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Returns the head of a response as sent to one client.
+	 *
+	 * @param h head of the response
+	 * @param age seconds the response was cached for, replacing any Age 
+	 * header, or -1 to leave the header as the server sent it
+	 * @param clientKeepAlive true if the client connection stays open
+	 * @return the head bytes
+	 */
+	private static byte[] headBytes(ResponseRelay.ResponseHead h, long age, 
+									boolean clientKeepAlive) throws IOException {
+		ByteArrayOutputStream hb = new ByteArrayOutputStream();
+		HTTPProxy.writeLine(hb, h.statusLine);
+		for (String line : h.headers) {
+			if (age < 0 || !line.regionMatches(true, 0, AGE_TAG, 0, AGE_TAG.length()))
+				HTTPProxy.writeLine(hb, line);
+		}
+		if (age >= 0)
+			HTTPProxy.writeLine(hb, "Age: " + age);
+		HTTPProxy.writeLine(hb, clientKeepAlive ?
+							HTTPProxy.CONNECTION_KEEP_ALIVE : HTTPProxy.CONNECTION_CLOSE);
+		HTTPProxy.writeLine(hb, HTTPProxy.EMPTY_LINE);
+		return hb.toByteArray();
+	}
+
+	/**
+	 * Returns a one-line summary of the cache statistics.
+	 *
+	 * @return hit ratio, bytes saved, evictions and tier sizes
+	 */
+	public synchronized String report() {
+		long h = hits.sum();
+		long m = misses.sum();
+		double ratio = h + m > 0 ? 100.0 * h / (h + m) : 0;
+
+		return String.format("cache: %.1f%% hit ratio (%d hits, %d misses), %d revalidated, " +
+							 "%d collapsed, %d bytes saved, %d evictions, " + 
+							 "%d entries in %d bytes of memory, %d entries in %d bytes on disk", 
+							 ratio, h, m, revalidations.sum(), collapsed.sum(), bytesSaved.sum(), 
+							 evictions.sum(), memory.size(), memoryBytes, disk.size(), diskBytes);
+	}
+
+	/**
+	 * Returns how long (in milliseconds) a response stays fresh from now.
+	 */
+	private static long freshnessLifetime(ResponseRelay.ResponseHead h, long now) {
+		long age = 0;
+		String ageValue = h.header(AGE_TAG);
+		if (ageValue != null) {
+			try {
+				age = Long.parseLong(ageValue) * 1000;
+			} catch (NumberFormatException e) {
+				// ignore a malformed Age
+			}
+		}
+
+		String cc = h.header(CACHE_CONTROL_TAG);
+		if (cc != null) {
+			cc = cc.toLowerCase();
+			if (cc.contains("no-cache"))
+				return 0;
+
+			// s-maxage is meant for shared caches like this one
+			long sMaxAge = directive(cc, "s-maxage=");
+			if (sMaxAge >= 0)
+				return sMaxAge * 1000 - age;
+			long maxAge = directive(cc, "max-age=");
+			if (maxAge >= 0)
+				return maxAge * 1000 - age;
+		}
+
+		long date = parseDate(h.header(DATE_TAG));
+		if (date < 0)
+			date = now;
+
+		String expiresValue = h.header(EXPIRES_TAG);
+		if (expiresValue != null) {
+			// an invalid Expires means already expired
+			long expires = parseDate(expiresValue);
+			return expires < 0 ? 0 : expires - date - age;
+		}
+
+		long lastModified = parseDate(h.header(LAST_MODIFIED_TAG));
+		if (lastModified >= 0 && lastModified < date)
+			return Math.min((date - lastModified) / 10, MAX_HEURISTIC_FRESHNESS) - age;
+
+		return 0;
+	}
+
+	/**
+	 * Returns the value of a numeric Cache-Control directive, or -1.
+	 */
+	private static long directive(String cc, String name) {
+		int i = cc.indexOf(name);
+		if (i < 0)
+			return -1;
+
+		int start = i + name.length();
+		int end = start;
+		while (end < cc.length() && Character.isDigit(cc.charAt(end)))
+			end++;
+		try {
+			return Long.parseLong(cc.substring(start, end));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Parses an HTTP date, returning milliseconds since the epoch or -1.
+	 */
+	private static long parseDate(String value) {
+		if (value == null)
+			return -1;
+		try {
+			return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME)
+								.toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Stores a complete entry in the right tier and evicts older entries
+	 * until the tier is within its capacity again.
+	 */
+	private void store(Entry e) {
+		List<Entry> evicted = new ArrayList<Entry>();
+
+		synchronized (this) {
+			Entry old = memory.remove(e.key);
+			if (old != null)
+				memoryBytes -= old.body.capacity();
+			old = disk.remove(e.key);
+			if (old != null) {
+				diskBytes -= old.body.capacity();
+				evicted.add(old);
+			}
+
+			boolean onDisk = e.file != null;
+			LinkedHashMap<String, Entry> tier = onDisk ? disk : memory;
+			long max = onDisk ? maxDiskBytes : maxMemoryBytes;
+			long size = e.body.capacity();
+			if (onDisk)
+				diskBytes += size;
+			else
+				memoryBytes += size;
+			tier.put(e.key, e);
+
+			Iterator<Map.Entry<String, Entry>> it = tier.entrySet().iterator();
+			while ((onDisk ? diskBytes : memoryBytes) > max && it.hasNext()) {
+				Entry victim = it.next().getValue();
+				it.remove();
+				if (onDisk)
+					diskBytes -= victim.body.capacity();
+				else
+					memoryBytes -= victim.body.capacity();
+				evictions.increment();
+				evicted.add(victim);
+			}
+		}
+
+		// delete evicted files outside the lock; a mapping still being
+		// served stays valid until it is collected
+		for (Entry victim : evicted) {
+			if (victim.file != null)
+				victim.file.delete();
+		}
+	}
+
+	/**
+	 * A cached response.
+	 */
+	static class Entry {
+		private String key;
+		// replaced when the entry is revalidated, while it may be served
+		private volatile ResponseRelay.ResponseHead head;
+		private ByteBuffer body;  // direct or memory-mapped
+		private File file;  // null for the memory tier
+
+		private long storedAt;
+		private long expiresAt;
+		private String etag;
+		private String lastModified;
+
+		/**
+		 * Returns true if the entry can be served without revalidation.
+		 *
+		 * @param now current time in milliseconds
+		 * @return true if the entry is fresh
+		 */
+		boolean isFresh(long now) {
+			return now < expiresAt;
+		}
+
+		/**
+		 * Returns the status code of the cached response.
+		 *
+		 * @return the status code
+		 */
+		int status() {
+			return head.status;
+		}
+
+		/**
+		 * Returns a copy of the head of the cached response, with an Age 
+		 * header telling how long it was cached for.
+		 *
+		 * @param now current time in milliseconds
+		 * @return the head
+		 */
+		ResponseRelay.ResponseHead head(long now) {
+			ResponseRelay.ResponseHead h = head.copy();
+			Iterator<String> it = h.headers.iterator();
+			while (it.hasNext()) {
+				if (it.next().regionMatches(true, 0, AGE_TAG, 0, AGE_TAG.length()))
+					it.remove();
+			}
+			h.headers.add("Age: " + (now - storedAt) / 1000);
+			return h;
+		}
+
+		/**
+		 * Writes the cached body.
+		 *
+		 * @param out stream the body is written to
+		 * @param buf buffer used to copy the body off the heap
+		 * @throws IOException if an I/O error occurs
+		 */
+		void writeBody(OutputStream out, byte[] buf) throws IOException {
+			ByteBuffer body = this.body.duplicate();
+			while (body.hasRemaining()) {
+				int n = Math.min(buf.length, body.remaining());
+				body.get(buf, 0, n);
+				out.write(buf, 0, n);
+			}
+		}
+	}
+
+	/**
+	 * Passes a response body on to the client while keeping a copy of it,
+	 * in memory first and in a file once it grows too large.
+	 */
+	class Fill extends FilterOutputStream {
+		private String key;
+		private ResponseRelay.ResponseHead head;
+		// true if the body goes to the client chunked, but is stored whole
+		private boolean encoded;
+
+		private ByteArrayOutputStream inMemory;
+		private File file;
+		private OutputStream fileOut;
+		private long size;
+		private boolean aborted;
+
+		/**
+		 * Constructs a new Fill.
+		 */
+		Fill(String k, ResponseRelay.ResponseHead h, OutputStream client, boolean enc) {
+			super(client);
+			key = k;
+			head = h;
+			encoded = enc;
+			inMemory = new ByteArrayOutputStream();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			if (aborted)
+				return;
+
+			try {
+				size += len;
+				if (size > MAX_DISK_OBJECT || (size > MAX_MEMORY_OBJECT && dir == null)) {
+					abort();
+				} else if (fileOut != null) {
+					fileOut.write(b, off, len);
+				} else if (size > MAX_MEMORY_OBJECT) {
+					// too large for memory, move what we have to a file
+					file = new File(dir, "entry-" + nextFile.incrementAndGet());
+					fileOut = new BufferedOutputStream(new FileOutputStream(file));
+					inMemory.writeTo(fileOut);
+					inMemory = null;
+					fileOut.write(b, off, len);
+				} else {
+					inMemory.write(b, off, len);
+				}
+			} catch (IOException e) {
+				// a failing disk must not break the response
+				abort();
+			}
+		}
+
+		/**
+		 * Stores the copied body. Call only once the whole body was relayed.
+		 */
+		public void commit() {
+			if (aborted)
+				return;
+
+			Entry e = new Entry();
+			e.key = key;
+			e.head = encoded ? sized(head, size) : head;
+			e.storedAt = System.currentTimeMillis();
+			e.expiresAt = e.storedAt + Math.max(freshnessLifetime(head, e.storedAt), 0);
+			e.etag = head.header(ETAG_TAG);
+			e.lastModified = head.header(LAST_MODIFIED_TAG);
+
+			try {
+				if (fileOut != null) {
+					fileOut.close();
+					FileChannel fc = new RandomAccessFile(file, "r").getChannel();
+					try {
+						e.body = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+					} finally {
+						fc.close();
+					}
+					e.file = file;
+				} else {
+					byte[] bytes = inMemory.toByteArray();
+					e.body = ByteBuffer.allocateDirect(bytes.length);
+					e.body.put(bytes);
+					e.body.flip();
+				}
+			} catch (IOException ex) {
+				abort();
+				return;
+			}
+
+			store(e);
+		}
+
+		/**
+		 * Returns a copy of a chunked head, delimited by the given length 
+		 * instead.
+		 */
+		private ResponseRelay.ResponseHead sized(ResponseRelay.ResponseHead h, long len) {
+			ResponseRelay.ResponseHead s = h.copy();
+			Iterator<String> it = s.headers.iterator();
+			while (it.hasNext()) {
+				if (it.next().regionMatches(true, 0, HTTPProxy.TRANSFER_ENCODING_TAG, 0, 
+											HTTPProxy.TRANSFER_ENCODING_TAG.length()))
+					it.remove();
+			}
+			s.headers.add("Content-Length: " + len);
+			s.chunked = false;
+			s.contentLength = len;
+			return s;
+		}
+
+		/**
+		 * Stops copying; nothing will be stored.
+		 */
+		public void abort() {
+			aborted = true;
+			inMemory = null;
+			if (fileOut != null) {
+				try {
+					fileOut.close();
+				} catch (IOException e) {
+					// the file is deleted anyway
+				}
+				file.delete();
+				fileOut = null;
+			}
+		}
+	}
+
+	/**
+	 * A response being fetched for one request that other requests for the
+	 * same key can share. The request that started the flight, the leader,
+	 * relays the body through share() as usual; followers wait in serve()
+	 * and write out each piece of the body as soon as it has arrived. A
+	 * response that cannot be shared ends the flight at once, and its
+	 * followers go on as if there had been none.
+	 */
+	class Flight {
+		private String key;
+
+		// set by the leader once the response turned out to be shareable
+		private ResponseRelay.ResponseHead head;
+		private byte[] body;
+		private int filled;
+		private boolean started;
+		private boolean ended;
+
+		// first error writing to the leader's own client
+		private IOException leaderFailure;
+
+		// guards the fields above; followers wait on a condition rather 
+		// than a monitor, which would pin the carrier thread of each 
+		// virtual thread waiting
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition changed = lock.newCondition();
+
+		/**
+		 * Constructs a new Flight.
+		 */
+		Flight(String k) {
+			key = k;
+		}
+
+		/**
+		 * Starts sharing a response with the followers, if it is small 
+		 * enough and its length is known; otherwise passes. 
+		 * Called by the leader with a cacheable response.
+		 *
+		 * @param h head of the response
+		 * @param client output stream to the leader's client
+		 * @return the stream the leader relays the body through
+		 */
+		public OutputStream share(ResponseRelay.ResponseHead h, OutputStream client) {
+			if (h.chunked || h.contentLength < 0 || h.contentLength > MAX_COLLAPSED_BODY) {
+				pass();
+				return client;
+			}
+
+			lock.lock();
+			try {
+				head = h;
+				body = new byte[(int) h.contentLength];
+				started = true;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			return new Tee(client);
+		}
+
+		/**
+		 * Ends the flight because its response cannot be shared, and lets 
+		 * requests for the key go to the server without a flight for a 
+		 * while, instead of each waiting for the head of the one before.
+		 */
+		public void pass() {
+			if (passes.size() >= MAX_PASSES) {
+				long now = System.currentTimeMillis();
+				Iterator<Long> it = passes.values().iterator();
+				while (it.hasNext()) {
+					if (now >= it.next())
+						it.remove();
+				}
+			}
+			if (passes.size() < MAX_PASSES)
+				passes.put(key, System.currentTimeMillis() + PASS_TIME);
+			end();
+		}
+
+		/**
+		 * Ends the flight. Followers still waiting for the head go on 
+		 * without it; those already receiving the body get the rest, or 
+		 * an error if the body is incomplete. Can be called more than once.
+		 */
+		public void end() {
+			flights.remove(key, this);
+			lock.lock();
+			try {
+				ended = true;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Throws the error the leader got writing to its own client, if 
+		 * any. The leader keeps relaying for the followers after its 
+		 * client went away, and finds out here.
+		 *
+		 * @throws IOException the error
+		 */
+		public void checkLeader() throws IOException {
+			if (leaderFailure != null)
+				throw leaderFailure;
+		}
+
+		/**
+		 * Sends the shared response to a follower, as it arrives.
+		 *
+		 * @param out output stream to the follower's client
+		 * @param clientKeepAlive true if the client wants to keep its connection
+		 * @return the status code sent, or 0 if the flight ended without 
+		 * sharing a response and nothing was sent
+		 * @throws IOException if an I/O error occurs or the shared body 
+		 * ended early
+		 */
+		public int serve(OutputStream out, boolean clientKeepAlive) throws IOException {
+			long deadline = System.currentTimeMillis() + FOLLOW_TIMEOUT;
+			lock.lock();
+			try {
+				while (!started && !ended) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						return 0;
+					await(wait);
+				}
+				if (!started)
+					return 0;
+			} finally {
+				lock.unlock();
+			}
+
+			collapsed.increment();
+			out.write(headBytes(head, -1, clientKeepAlive));
+			int pos = 0;
+			while (pos < body.length) {
+				int available;
+				lock.lock();
+				try {
+					while (filled == pos && !ended)
+						await(0);
+					if (filled == pos)
+						throw new IOException("shared response ended early");
+					available = filled;
+				} finally {
+					lock.unlock();
+				}
+
+				out.write(body, pos, available - pos);
+				out.flush();
+				pos = available;
+			}
+			out.flush();
+			return head.status;
+		}
+
+		/**
+		 * Waits to be signalled, for at most the given time, or with 0 for 
+		 * as long as it takes. Called holding the lock.
+		 */
+		private void await(long millis) throws IOException {
+			try {
+				if (millis == 0)
+					changed.await();
+				else
+					changed.await(millis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted waiting for a shared response");
+			}
+		}
+
+		/**
+		 * Adds the next piece of the body.
+		 */
+		private void append(byte[] b, int off, int len) {
+			lock.lock();
+			try {
+				len = Math.min(len, body.length - filled);
+				System.arraycopy(b, off, body, filled, len);
+				filled += len;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Passes the body on to the leader's client and to the followers. 
+		 * An error on the leader's client does not stop the followers; it 
+		 * is kept for checkLeader().
+		 */
+		class Tee extends FilterOutputStream {
+			/**
+			 * Constructs a new Tee.
+			 */
+			Tee(OutputStream client) {
+				super(client);
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				append(b, off, len);
+				if (leaderFailure != null)
+					return;
+				try {
+					out.write(b, off, len);
+				} catch (IOException e) {
+					leaderFailure = e;
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				if (leaderFailure != null)
+					return;
+				try {
+					out.flush();
+				} catch (IOException e) {
+					leaderFailure = e;
+				}
+			}
+		}
+	}
+}
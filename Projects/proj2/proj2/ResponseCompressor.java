@@ -0,0 +1,378 @@
+import java.io.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses uncompressed text responses on their way to clients that
+ * accept gzip or deflate. The body is compressed as it is relayed and
+ * sent in the chunked transfer coding, since its compressed length is
+ * only known at the end, so a stream never holds more than one output
+ * buffer and the state of its Deflater, whatever the size of the body.
+ *
+ * Deflaters are pooled, as setting one up costs more than compressing a
+ * small response with it.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class ResponseCompressor {
+	public static final int DEFAULT_LEVEL = 6;
+
+	// content codings the proxy applies
+	static final int IDENTITY = 0;
+	static final int GZIP = 1;
+	static final int DEFLATE = 2;
+
+	// bodies shorter than this gain less than the gzip header costs
+	private static final long MIN_LENGTH = 256;
+	private static final int OUTPUT_LEN = 8192;
+	private static final int MAX_POOLED_DEFLATERS = 256;
+
+	private static final String CONTENT_TYPE_TAG = "content-type:";
+	private static final String CONTENT_ENCODING_TAG = "content-encoding:";
+	private static final String CONTENT_RANGE_TAG = "content-range:";
+	private static final String CACHE_CONTROL_TAG = "cache-control:";
+	private static final String ETAG_TAG = "etag:";
+	private static final String VARY_TAG = "vary:";
+	private static final String NO_TRANSFORM = "no-transform";
+
+	// types that compress well, besides text/* and the +xml and +json types
+	private static final String[] COMPRESSIBLE_TYPES = {
+		"application/json", "application/javascript", "application/x-javascript",
+		"application/xml", "application/ecmascript", "image/svg+xml"
+	};
+
+	// the fixed gzip header: deflate, no flags, no time, unknown system
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private Pool gzipDeflaters;
+	private Pool zlibDeflaters;
+
+	// bodies compressed, and their bytes before and after
+	static final LongAdder compressed = new LongAdder();
+	static final LongAdder bytesIn = new LongAdder();
+	static final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * Constructs a new ResponseCompressor.
+	 *
+	 * @param level compression level from 1 (fastest) to 9 (smallest)
+	 * @throws IllegalArgumentException if the level is out of range
+	 */
+	public ResponseCompressor(int level) {
+		if (level < 1 || level > 9)
+			throw new IllegalArgumentException("compression level must be from 1 to 9");
+
+		// gzip wraps a raw deflate stream itself; deflate is the zlib format
+		gzipDeflaters = new Pool(level, true);
+		zlibDeflaters = new Pool(level, false);
+	}
+
+	/**
+	 * Returns the content coding to use for a client, from its
+	 * Accept-Encoding header. Gzip is preferred unless the client
+	 * prefers deflate; codings with q=0 are refused.
+	 *
+	 * @param acceptEncoding value of the Accept-Encoding header
+	 * @return GZIP, DEFLATE, or IDENTITY if the client takes neither
+	 */
+	static int negotiate(String acceptEncoding) {
+		double gzip = -1;
+		double deflate = -1;
+		double any = -1;
+		for (String part : acceptEncoding.split(",")) {
+			String[] params = part.split(";");
+			String coding = params[0].trim().toLowerCase();
+			double q = 1;
+			for (int i = 1; i < params.length; i++) {
+				String p = params[i].trim();
+				if (p.startsWith("q=")) {
+					try {
+						q = Double.parseDouble(p.substring(2));
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+
+			if (coding.equals("gzip") || coding.equals("x-gzip"))
+				gzip = q;
+			else if (coding.equals("deflate"))
+				deflate = q;
+			else if (coding.equals("*"))
+				any = q;
+		}
+
+		if (gzip < 0)
+			gzip = any;
+		if (deflate < 0)
+			deflate = any;
+		if (gzip > 0 && gzip >= deflate)
+			return GZIP;
+		return deflate > 0 ? DEFLATE : IDENTITY;
+	}
+
+	/**
+	 * Returns the name of a content coding.
+	 *
+	 * @param coding GZIP or DEFLATE
+	 * @return the name used in Content-Encoding
+	 */
+	static String name(int coding) {
+		return coding == GZIP ? "gzip" : "deflate";
+	}
+
+	/**
+	 * Returns true if a response is worth compressing: a complete,
+	 * uncompressed body of a compressible type that the server does not
+	 * forbid transforming.
+	 *
+	 * @param h head of the response
+	 * @return true if the response should be compressed
+	 */
+	public boolean shouldCompress(ResponseRelay.ResponseHead h) {
+		if (h.status != 200 || h.bodyless)
+			return false;
+		if (h.contentLength >= 0 && h.contentLength < MIN_LENGTH)
+			return false;
+		if (h.header(CONTENT_ENCODING_TAG) != null || h.header(CONTENT_RANGE_TAG) != null)
+			return false;
+
+		String cc = h.header(CACHE_CONTROL_TAG);
+		if (cc != null && cc.toLowerCase().contains(NO_TRANSFORM))
+			return false;
+
+		String type = h.header(CONTENT_TYPE_TAG);
+		if (type == null)
+			return false;
+		int semi = type.indexOf(';');
+		type = (semi < 0 ? type : type.substring(0, semi)).trim().toLowerCase();
+		if (type.startsWith("text/") || type.endsWith("+xml") || type.endsWith("+json"))
+			return true;
+		for (String t : COMPRESSIBLE_TYPES) {
+			if (type.equals(t))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the head of a response as sent compressed: chunked instead
+	 * of any Content-Length, with the content coding, Vary naming
+	 * Accept-Encoding, and a strong ETag made weak, since the compressed
+	 * bytes are not those the server tagged.
+	 *
+	 * @param h head of the uncompressed response, which is left as it is
+	 * @param coding GZIP or DEFLATE
+	 * @return the head of the compressed response
+	 */
+	public ResponseRelay.ResponseHead encodedHead(ResponseRelay.ResponseHead h, int coding) {
+		ResponseRelay.ResponseHead e = h.copy();
+		e.contentLength = -1;
+		e.chunked = true;
+
+		List<String> headers = e.headers;
+		headers.clear();
+		boolean sawVary = false;
+		for (String line : h.headers) {
+			if (line.regionMatches(true, 0, HTTPProxy.CONTENT_LENGTH_TAG, 0,
+								   HTTPProxy.CONTENT_LENGTH_TAG.length()) ||
+				line.regionMatches(true, 0, HTTPProxy.TRANSFER_ENCODING_TAG, 0,
+								   HTTPProxy.TRANSFER_ENCODING_TAG.length()))
+				continue;
+
+			if (line.regionMatches(true, 0, ETAG_TAG, 0, ETAG_TAG.length())) {
+				String tag = line.substring(ETAG_TAG.length()).trim();
+				if (!tag.startsWith("W/"))
+					line = "ETag: W/" + tag;
+			} else if (line.regionMatches(true, 0, VARY_TAG, 0, VARY_TAG.length())) {
+				sawVary = true;
+				String value = line.substring(VARY_TAG.length()).trim();
+				if (!value.equals("*") && !value.toLowerCase().contains("accept-encoding"))
+					line = "Vary: " + value + ", Accept-Encoding";
+			}
+			headers.add(line);
+		}
+
+		if (!sawVary)
+			headers.add("Vary: Accept-Encoding");
+		headers.add("Content-Encoding: " + name(coding));
+		headers.add("Transfer-Encoding: " + HTTPProxy.CHUNKED);
+		return e;
+	}
+
+	/**
+	 * Starts compressing a body. The encoder must be finished once the
+	 * body is complete, and released in any case.
+	 *
+	 * @param out stream the compressed bytes are written to
+	 * @param coding GZIP or DEFLATE
+	 * @return a stream compressing what is written to it
+	 * @throws IOException if an I/O error occurs
+	 */
+	public Encoder open(OutputStream out, int coding) throws IOException {
+		return new Encoder(out, coding == GZIP ? gzipDeflaters : zlibDeflaters, coding == GZIP);
+	}
+
+	/**
+	 * Deflaters of one format, reset and kept for the next body.
+	 */
+	static class Pool {
+		private int level;
+		private boolean nowrap;
+		private ConcurrentLinkedQueue<Deflater> idle = new ConcurrentLinkedQueue<Deflater>();
+		private AtomicInteger size = new AtomicInteger();
+
+		/**
+		 * Constructs a new Pool.
+		 *
+		 * @param level compression level of the deflaters
+		 * @param nowrap true for raw deflate streams, false for zlib
+		 */
+		Pool(int level, boolean nowrap) {
+			this.level = level;
+			this.nowrap = nowrap;
+		}
+
+		/**
+		 * Takes an idle deflater, or creates one if there is none.
+		 */
+		Deflater take() {
+			Deflater d = idle.poll();
+			if (d == null)
+				return new Deflater(level, nowrap);
+			size.decrementAndGet();
+			return d;
+		}
+
+		/**
+		 * Gives a deflater back, or frees it if the pool is full.
+		 */
+		void give(Deflater d) {
+			if (size.incrementAndGet() > MAX_POOLED_DEFLATERS) {
+				size.decrementAndGet();
+				d.end();
+				return;
+			}
+			d.reset();
+			idle.offer(d);
+		}
+	}
+
+	/**
+	 * Compresses the bytes written to it as they come. Flushing it ends
+	 * the current deflate block, so a server streaming its response in
+	 * pieces still reaches the client piece by piece; flushing twice with
+	 * nothing written in between adds nothing.
+	 */
+	static class Encoder extends OutputStream {
+		private OutputStream out;
+		private Pool pool;
+		private Deflater def;
+		private CRC32 crc;  // null for deflate
+		private byte[] buf = new byte[OUTPUT_LEN];
+		private boolean dirty;
+		private long in;
+		private long written;
+
+		/**
+		 * Constructs a new Encoder, writing the gzip header if it is one.
+		 */
+		Encoder(OutputStream out, Pool pool, boolean gzip) throws IOException {
+			this.out = out;
+			this.pool = pool;
+			def = pool.take();
+			if (gzip) {
+				crc = new CRC32();
+				out.write(GZIP_HEADER);
+				written = GZIP_HEADER.length;
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return;
+
+			def.setInput(b, off, len);
+			while (!def.needsInput())
+				deflate(Deflater.NO_FLUSH);
+			if (crc != null)
+				crc.update(b, off, len);
+			in += len;
+			dirty = true;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (dirty) {
+				// a full buffer may mean more output is waiting
+				int n;
+				do {
+					n = deflate(Deflater.SYNC_FLUSH);
+				} while (n == buf.length);
+				dirty = false;
+			}
+			out.flush();
+		}
+
+		/**
+		 * Writes the rest of the compressed body and the gzip trailer.
+		 * The stream below is not flushed.
+		 *
+		 * @throws IOException if an I/O error occurs
+		 */
+		public void finish() throws IOException {
+			def.finish();
+			while (!def.finished())
+				deflate(Deflater.NO_FLUSH);
+
+			if (crc != null) {
+				// CRC-32 and length of the body, little-endian
+				long v = crc.getValue();
+				byte[] trailer = new byte[8];
+				for (int i = 0; i < 4; i++) {
+					trailer[i] = (byte) (v >>> (8 * i));
+					trailer[4 + i] = (byte) (in >>> (8 * i));
+				}
+				out.write(trailer);
+				written += trailer.length;
+			}
+
+			compressed.increment();
+			bytesIn.add(in);
+			bytesOut.add(written);
+		}
+
+		/**
+		 * Gives the deflater back to its pool. Can be called more than once.
+		 */
+		public void release() {
+			if (def != null) {
+				pool.give(def);
+				def = null;
+			}
+		}
+
+		/**
+		 * Runs the deflater once and writes out what it produced.
+		 */
+		private int deflate(int flush) throws IOException {
+			int n = def.deflate(buf, 0, buf.length, flush);
+			if (n > 0) {
+				out.write(buf, 0, n);
+				written += n;
+			}
+			return n;
+		}
+	}
+}
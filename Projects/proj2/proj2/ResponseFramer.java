@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Follows the framing of one HTTP response as its bytes go by, for relays
+ * that pass the bytes on as they are read rather than through
+ * ResponseRelay's streams. The bytes are not copied or kept: only the
+ * status line, header lines and chunk size lines are looked at, one byte
+ * at a time, and body bytes are counted off in bulk.
+ *
+ * The framer tells where the response ends (no body, Content-Length,
+ * chunked, or the close of the connection), so the relay can finish as
+ * soon as the last byte is in instead of waiting for the server to close,
+ * and can tell a complete response from one cut short.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class ResponseFramer {
+	// longest status, header, chunk size or trailer line accepted
+	private static final int MAX_LINE_LEN = 8192;
+	private static final int MAX_HEADER_LEN = 65536;
+
+	// where in the response the next byte is
+	private static final int STATUS_LINE = 0;
+	private static final int HEADER_LINE = 1;
+	private static final int BODY = 2;
+	private static final int CHUNK_SIZE_LINE = 3;
+	private static final int CHUNK_DATA = 4;
+	private static final int CHUNK_END = 5;
+	private static final int TRAILER_LINE = 6;
+	private static final int UNTIL_EOF = 7;
+	private static final int DONE = 8;
+
+	private boolean head;
+	private int state = STATUS_LINE;
+
+	// the line being read, up to its line feed
+	private StringBuilder line = new StringBuilder();
+	private int headerLen;
+
+	private int status;
+	private int interimStatus;
+	private long contentLength;
+	private boolean chunked;
+
+	// body or chunk bytes still to come
+	private long remaining;
+
+	/**
+	 * Constructs a new ResponseFramer.
+	 *
+	 * @param head true if the request was a HEAD request, whose response
+	 * has no body whatever its header says
+	 */
+	public ResponseFramer(boolean head) {
+		this.head = head;
+	}
+
+	/**
+	 * Returns a framer following a chunked request body instead of a 
+	 * response, from its first chunk size line on.
+	 *
+	 * @return the framer
+	 */
+	static ResponseFramer chunkedBody() {
+		ResponseFramer f = new ResponseFramer(false);
+		f.chunked = true;
+		f.state = CHUNK_SIZE_LINE;
+		return f;
+	}
+
+	/**
+	 * Follows the next bytes of the response.
+	 *
+	 * @param bb buffer holding the bytes
+	 * @param from position of the first byte
+	 * @param to position after the last byte
+	 * @return number of the bytes that belong to the response; fewer than
+	 * given only if the response ended within them
+	 * @throws IOException if the response is malformed
+	 */
+	public int feed(ByteBuffer bb, int from, int to) throws IOException {
+		int i = from;
+		while (i < to && state != DONE) {
+			if (state == BODY || state == CHUNK_DATA) {
+				// counted off without looking at the bytes
+				int n = (int) Math.min(remaining, to - i);
+				i += n;
+				remaining -= n;
+				if (remaining == 0)
+					state = state == BODY ? DONE : CHUNK_END;
+			} else if (state == UNTIL_EOF) {
+				i = to;
+			} else {
+				byte b = bb.get(i++);
+				if (b == '\n')
+					endOfLine();
+				else if (b != '\r')
+					append(b);
+			}
+		}
+		return i - from;
+	}
+
+	/**
+	 * Tells the framer the server closed the connection.
+	 *
+	 * @throws IOException if the response was not complete
+	 */
+	public void end() throws IOException {
+		if (state == DONE || state == UNTIL_EOF)
+			return;
+		if (state == STATUS_LINE && status == 0 && line.length() == 0 && interimStatus == 0)
+			throw new IOException("server closed the connection");
+		if (state == STATUS_LINE || state == HEADER_LINE)
+			throw new IOException("response header ended early");
+		throw new IOException(chunked ? "chunked body ended early" : "response body ended early");
+	}
+
+	/**
+	 * Returns true if the whole response went by.
+	 *
+	 * @return true if the response is complete
+	 */
+	public boolean isDone() {
+		return state == DONE;
+	}
+
+	/**
+	 * Returns the status code of the final response.
+	 *
+	 * @return the status code, or 0 if its status line has not been seen
+	 */
+	public int status() {
+		return status;
+	}
+
+	/**
+	 * Adds a byte to the current line.
+	 */
+	private void append(byte b) throws IOException {
+		if (line.length() >= MAX_LINE_LEN)
+			throw new IOException("response line too long");
+		line.append((char) (b & 0xff));
+	}
+
+	/**
+	 * Acts on a complete line.
+	 */
+	private void endOfLine() throws IOException {
+		String l = line.toString();
+		line.setLength(0);
+
+		switch (state) {
+		case STATUS_LINE:
+			// a server may send empty lines before the status line
+			if (l.length() == 0)
+				return;
+			int code = ResponseRelay.statusCode(l);
+			if (code < 0)
+				throw new IOException("malformed status line");
+			if (code >= 100 && code < 200 && code != 101)
+				interimStatus = code;
+			else
+				status = code;
+			contentLength = -1;
+			chunked = false;
+			headerLen = l.length();
+			state = HEADER_LINE;
+			break;
+
+		case HEADER_LINE:
+			headerLen += l.length() + 2;
+			if (headerLen > MAX_HEADER_LEN)
+				throw new IOException("response header too long");
+			if (l.length() > 0) {
+				headerLine(l);
+			} else if (status == 0) {
+				// the header of an interim response; the final one follows
+				state = STATUS_LINE;
+			} else {
+				startBody();
+			}
+			break;
+
+		case CHUNK_SIZE_LINE:
+			int semi = l.indexOf(';');
+			String hex = (semi < 0 ? l : l.substring(0, semi)).trim();
+			try {
+				remaining = Long.parseLong(hex, 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("malformed chunk size");
+			}
+			if (remaining < 0)
+				throw new IOException("malformed chunk size");
+			state = remaining == 0 ? TRAILER_LINE : CHUNK_DATA;
+			break;
+
+		case CHUNK_END:
+			if (l.length() > 0)
+				throw new IOException("malformed chunked body");
+			state = CHUNK_SIZE_LINE;
+			break;
+
+		case TRAILER_LINE:
+			if (l.length() == 0)
+				state = DONE;
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Records what a header line says about the body.
+	 */
+	private void headerLine(String l) throws IOException {
+		if (l.regionMatches(true, 0, HTTPProxy.CONTENT_LENGTH_TAG, 0,
+							HTTPProxy.CONTENT_LENGTH_TAG.length())) {
+			try {
+				contentLength = Long.parseLong(
+						l.substring(HTTPProxy.CONTENT_LENGTH_TAG.length()).trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("malformed Content-Length");
+			}
+			if (contentLength < 0)
+				throw new IOException("malformed Content-Length");
+		} else if (l.regionMatches(true, 0, HTTPProxy.TRANSFER_ENCODING_TAG, 0,
+								   HTTPProxy.TRANSFER_ENCODING_TAG.length())) {
+			chunked = l.toLowerCase().contains(HTTPProxy.CHUNKED);
+		}
+	}
+
+	/**
+	 * Works out the framing of the body once the header is complete. The
+	 * chunked coding wins over Content-Length, as in ResponseRelay.
+	 */
+	private void startBody() {
+		if (head || status == 204 || status == 304) {
+			state = DONE;
+		} else if (status == 101) {
+			// the connection now carries another protocol
+			state = UNTIL_EOF;
+		} else if (chunked) {
+			state = CHUNK_SIZE_LINE;
+		} else if (contentLength >= 0) {
+			remaining = contentLength;
+			state = contentLength == 0 ? DONE : BODY;
+		} else {
+			state = UNTIL_EOF;
+		}
+	}
+}
@@ -0,0 +1,390 @@
+import java.io.*;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Relays one HTTP response from an origin server to the browser. The end
+ * of the response is found from its framing (no body, Content-Length, or
+ * chunked transfer coding) instead of waiting for the server to close the
+ * connection, so the connection can be reused afterwards.
+ *
+ * Bodies are not flushed after every read. Small reads pile up in the
+ * output buffer while the server has more bytes ready, and are flushed once
+ * it has none or MAX_FLUSH_DELAY has passed, so the client gets a few
+ * large writes instead of one write per read.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class ResponseRelay {
+	static final int RELAY_BUFFER_LEN = 32768;
+	private static final int MAX_POOLED_BUFFERS = 1024;
+
+	// longest time relayed bytes may sit in the output buffer while the
+	// server keeps sending, in nanoseconds
+	static final long MAX_FLUSH_DELAY = 2000000;
+
+	// relay and output buffers shared by all clients; heap buffers since
+	// they are used through streams
+	static final BufferPool buffers = 
+			new BufferPool(RELAY_BUFFER_LEN, MAX_POOLED_BUFFERS, false);
+
+	/**
+	 * The status line and header of a response, and what they say about 
+	 * the body and the connection.
+	 */
+	static class ResponseHead {
+		String statusLine;
+		int status;
+
+		// header lines except Connection, which is hop-by-hop
+		List<String> headers = new ArrayList<String>();
+
+		long contentLength = -1;
+		boolean chunked;
+		boolean bodyless;
+
+		// true if the server connection can be reused
+		boolean keepAlive;
+		// true if the client connection can be reused
+		boolean clientKeepAlive;
+
+		/**
+		 * Returns true if the client can find the end of the body without
+		 * the proxy closing the connection.
+		 */
+		boolean delimited() {
+			return bodyless || chunked || contentLength >= 0;
+		}
+
+		/**
+		 * Returns a copy of the head with its own list of headers.
+		 */
+		ResponseHead copy() {
+			ResponseHead h = new ResponseHead();
+			h.statusLine = statusLine;
+			h.status = status;
+			h.headers.addAll(headers);
+			h.contentLength = contentLength;
+			h.chunked = chunked;
+			h.bodyless = bodyless;
+			h.keepAlive = keepAlive;
+			h.clientKeepAlive = clientKeepAlive;
+			return h;
+		}
+
+		/**
+		 * Returns the value of the first header with the given name.
+		 *
+		 * @param tag lower case header name followed by a colon
+		 * @return the trimmed value, or null if there is no such header
+		 */
+		String header(String tag) {
+			for (String line : headers) {
+				if (line.regionMatches(true, 0, tag, 0, tag.length()))
+					return line.substring(tag.length()).trim();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the status line and header of the next response. Interim 1xx 
+	 * responses other than 101 are skipped, since the proxy already 
+	 * answered any 100-continue itself.
+	 *
+	 * @param in input stream of the server connection
+	 * @param head true if the request was a HEAD request
+	 * @return the head of the response
+	 * @throws EOFException if the server closed the connection before
+	 * sending anything
+	 * @throws IOException if an I/O error occurs or the header is malformed
+	 */
+	static ResponseHead readHead(InputStream in, boolean head) throws IOException {
+		String statusLine;
+		try {
+			statusLine = HTTPProxy.readLine(in);
+		} catch (SocketException e) {
+			// reset before the response started, treated like a close
+			statusLine = null;
+		}
+		if (statusLine == null)
+			throw new EOFException("server closed the connection");
+
+		ResponseHead h = new ResponseHead();
+		h.status = statusCode(statusLine);
+		while (h.status >= 100 && h.status < 200 && h.status != 101) {
+			readHeaders(in, h);
+			h.headers.clear();
+			statusLine = HTTPProxy.readLine(in);
+			if (statusLine == null)
+				throw new IOException("server closed the connection");
+			h.status = statusCode(statusLine);
+		}
+
+		h.statusLine = statusLine;
+		h.keepAlive = !statusLine.startsWith(HTTPProxy.HTTP_1_0) && h.status != 101;
+		h.bodyless = head || h.status == 204 || h.status == 304;
+		readHeaders(in, h);
+		return h;
+	}
+
+	/**
+	 * Reads header lines up to and including the empty line, recording
+	 * the body framing and dropping the Connection header.
+	 */
+	private static void readHeaders(InputStream in, ResponseHead h) throws IOException {
+		String line = HTTPProxy.readLine(in);
+		while (line != null && line.length() > 0) {
+			String lower = line.toLowerCase();
+			if (lower.startsWith(HTTPProxy.CONNECTION_TAG)) {
+				if (lower.contains(HTTPProxy.CLOSE))
+					h.keepAlive = false;
+				else if (lower.contains(HTTPProxy.KEEP_ALIVE))
+					h.keepAlive = true;
+				line = null;
+			} else if (lower.startsWith(HTTPProxy.CONTENT_LENGTH_TAG)) {
+				try {
+					h.contentLength = Long.parseLong(
+							line.substring(HTTPProxy.CONTENT_LENGTH_TAG.length()).trim());
+				} catch (NumberFormatException e) {
+					throw new IOException("malformed Content-Length");
+				}
+				if (h.contentLength < 0)
+					throw new IOException("malformed Content-Length");
+			} else if (lower.startsWith(HTTPProxy.TRANSFER_ENCODING_TAG)) {
+				h.chunked = lower.contains(HTTPProxy.CHUNKED);
+			}
+
+			if (line != null)
+				h.headers.add(line);
+			line = HTTPProxy.readLine(in);
+		}
+
+		if (line == null)
+			throw new IOException("response header ended early");
+	}
+
+	/**
+	 * Writes the head of a response to the client, with a Connection 
+	 * header telling whether the proxy keeps the client connection open. 
+	 * A body that ends at EOF can only be delimited by closing.
+	 *
+	 * @param out output stream to the client
+	 * @param h head of the response
+	 * @param clientKeepAlive true if the client wants to keep its connection
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void writeHead(OutputStream out, ResponseHead h, boolean clientKeepAlive)
+			throws IOException {
+		h.clientKeepAlive = clientKeepAlive && h.delimited();
+
+		HTTPProxy.writeLine(out, h.statusLine);
+		for (String line : h.headers)
+			HTTPProxy.writeLine(out, line);
+		HTTPProxy.writeLine(out, h.clientKeepAlive ? 
+							HTTPProxy.CONNECTION_KEEP_ALIVE : HTTPProxy.CONNECTION_CLOSE);
+		HTTPProxy.writeLine(out, HTTPProxy.EMPTY_LINE);
+	}
+
+	/**
+	 * Relays the body of a response whose head was already read.
+	 *
+	 * @param in input stream of the server connection
+	 * @param out output stream to the client
+	 * @param h head of the response
+	 * @param buf buffer used to copy the body
+	 * @throws IOException if an I/O error occurs or the body is malformed
+	 */
+	static void relayBody(InputStream in, OutputStream out, ResponseHead h, byte[] buf)
+			throws IOException {
+		if (h.bodyless) {
+			// no body
+		} else if (h.chunked) {
+			copyChunked(in, out, buf);
+		} else if (h.contentLength >= 0) {
+			copyExactly(in, out, h.contentLength, buf);
+		} else {
+			// the body ends when the server closes the connection
+			copyUntilEof(in, out, buf);
+			h.keepAlive = false;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Relays the content of a body whose head was already read, without 
+	 * its chunked framing and trailers, to be encoded again by the caller. 
+	 * The output is not flushed at the end; the caller finishes the 
+	 * encoding first.
+	 *
+	 * @param in input stream of the server connection
+	 * @param out stream taking the content
+	 * @param h head of the response
+	 * @param buf buffer used to copy the body
+	 * @throws IOException if an I/O error occurs or the body is malformed
+	 */
+	static void relayDecodedBody(InputStream in, OutputStream out, ResponseHead h, byte[] buf)
+			throws IOException {
+		if (h.bodyless) {
+			// no body
+		} else if (h.chunked) {
+			copyDechunked(in, out, buf);
+		} else if (h.contentLength >= 0) {
+			copyExactly(in, out, h.contentLength, buf);
+		} else {
+			copyUntilEof(in, out, buf);
+			h.keepAlive = false;
+		}
+	}
+
+	/**
+	 * Copies a chunked body including the chunk size lines and trailers.
+	 * Used for request bodies as well.
+	 */
+	static void copyChunked(InputStream in, OutputStream out, byte[] buf)
+			throws IOException {
+		long lastFlush = System.nanoTime();
+		while (true) {
+			String sizeLine = HTTPProxy.readLine(in);
+			if (sizeLine == null)
+				throw new IOException("chunked body ended early");
+			HTTPProxy.writeLine(out, sizeLine);
+
+			long size = chunkSize(sizeLine);
+			if (size == 0) {
+				// trailer lines up to the empty line
+				String line = HTTPProxy.readLine(in);
+				while (line != null && line.length() > 0) {
+					HTTPProxy.writeLine(out, line);
+					line = HTTPProxy.readLine(in);
+				}
+				HTTPProxy.writeLine(out, HTTPProxy.EMPTY_LINE);
+				return;
+			}
+
+			copyExactly(in, out, size, buf);
+			if (HTTPProxy.readLine(in) == null)
+				throw new IOException("chunked body ended early");
+			HTTPProxy.writeLine(out, HTTPProxy.EMPTY_LINE);
+
+			// a streaming server may pause after any chunk
+			lastFlush = flushIfIdle(in, out, lastFlush);
+		}
+	}
+
+	/**
+	 * Copies the data of a chunked body, dropping the chunk size lines 
+	 * and trailers.
+	 */
+	private static void copyDechunked(InputStream in, OutputStream out, byte[] buf)
+			throws IOException {
+		long lastFlush = System.nanoTime();
+		while (true) {
+			String sizeLine = HTTPProxy.readLine(in);
+			if (sizeLine == null)
+				throw new IOException("chunked body ended early");
+
+			long size = chunkSize(sizeLine);
+			if (size == 0) {
+				String line = HTTPProxy.readLine(in);
+				while (line != null && line.length() > 0)
+					line = HTTPProxy.readLine(in);
+				if (line == null)
+					throw new IOException("chunked body ended early");
+				return;
+			}
+
+			copyExactly(in, out, size, buf);
+			if (HTTPProxy.readLine(in) == null)
+				throw new IOException("chunked body ended early");
+
+			lastFlush = flushIfIdle(in, out, lastFlush);
+		}
+	}
+
+	/**
+	 * Returns the size in a chunk size line, dropping any chunk extension.
+	 */
+	private static long chunkSize(String sizeLine) throws IOException {
+		int semi = sizeLine.indexOf(';');
+		String hex = (semi < 0 ? sizeLine : sizeLine.substring(0, semi)).trim();
+		long size;
+		try {
+			size = Long.parseLong(hex, 16);
+		} catch (NumberFormatException e) {
+			throw new IOException("malformed chunk size");
+		}
+		if (size < 0)
+			throw new IOException("malformed chunk size");
+		return size;
+	}
+
+	/**
+	 * Copies exactly len bytes. Used for request bodies as well.
+	 */
+	static void copyExactly(InputStream in, OutputStream out, long len, byte[] buf)
+			throws IOException {
+		long lastFlush = System.nanoTime();
+		while (len > 0) {
+			int numOfBytes = in.read(buf, 0, (int) Math.min(buf.length, len));
+			if (numOfBytes == -1)
+				throw new IOException("response body ended early");
+
+			out.write(buf, 0, numOfBytes);
+			len -= numOfBytes;
+			if (len > 0)
+				lastFlush = flushIfIdle(in, out, lastFlush);
+		}
+	}
+
+	/**
+	 * Copies until the server closes the connection.
+	 */
+	private static void copyUntilEof(InputStream in, OutputStream out, byte[] buf)
+			throws IOException {
+		long lastFlush = System.nanoTime();
+		int numOfBytes = in.read(buf);
+		while (numOfBytes != -1) {
+			out.write(buf, 0, numOfBytes);
+			lastFlush = flushIfIdle(in, out, lastFlush);
+			numOfBytes = in.read(buf);
+		}
+	}
+
+	/**
+	 * Flushes the output if the next read would block, so the client is
+	 * not kept waiting for bytes the proxy already has, or if the last
+	 * flush was MAX_FLUSH_DELAY ago, so a steady stream keeps moving.
+	 * Otherwise the bytes stay in the output buffer, which writes itself
+	 * out when full.
+	 *
+	 * @param in source of the bytes being relayed
+	 * @param out destination of the bytes being relayed
+	 * @param lastFlush time of the last flush from System.nanoTime()
+	 * @return time of the last flush after this call
+	 * @throws IOException if an I/O error occurs
+	 */
+	static long flushIfIdle(InputStream in, OutputStream out, long lastFlush)
+			throws IOException {
+		long now = System.nanoTime();
+		if (now - lastFlush < MAX_FLUSH_DELAY && in.available() > 0)
+			return lastFlush;
+
+		out.flush();
+		return now;
+	}
+
+	/**
+	 * Returns the status code of a status line, or -1 if it is malformed.
+	 */
+	static int statusCode(String statusLine) {
+		String[] parts = statusLine.split(" ");
+		try {
+			return parts.length >= 2 ? Integer.parseInt(parts[1]) : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+import java.util.ArrayList;
+
+/**
+ * A hashed timer wheel: a ring of slots, each holding the timeouts due
+ * when the wheel's hand reaches it. Scheduling and cancelling a timeout is
+ * a few pointer updates, however many are pending, so every connection can
+ * keep one armed at all times. A timeout further away than one turn of the
+ * wheel waits for as many turns as it needs.
+ *
+ * A single thread moves the hand once per tick and runs the expired
+ * timeouts, so they must be quick, such as closing a socket. Timeouts fire
+ * at least their delay after they were scheduled and at most about one
+ * tick later.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class TimerWheel {
+	private final long tick;  // in milliseconds
+	private final Timeout[] slots;
+	private final int mask;
+	private final long startTime;
+
+	// ticks done so far, and timeouts waiting in the slots; both under
+	// the lock of the wheel
+	private long ticks;
+	private int pending;
+
+	// expired timeouts of the current tick, only used by the timer thread
+	private final ArrayList<Timeout> expired = new ArrayList<Timeout>();
+
+	/**
+	 * Constructs a new TimerWheel and starts its thread.
+	 *
+	 * @param tick milliseconds between two moves of the hand
+	 * @param numSlots number of slots, rounded up to a power of two
+	 * @param name name of the timer thread
+	 * @throws IllegalArgumentException if tick or numSlots is not positive
+	 */
+	public TimerWheel(long tick, int numSlots, String name) {
+		if (tick <= 0 || numSlots <= 0 || numSlots > (1 << 30))
+			throw new IllegalArgumentException("invalid timer wheel size");
+
+		int n = 1;
+		while (n < numSlots)
+			n <<= 1;
+		this.tick = tick;
+		slots = new Timeout[n];
+		mask = n - 1;
+		startTime = System.currentTimeMillis();
+
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				turn();
+			}
+		}, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Schedules a timeout, or moves it if it is already scheduled.
+	 *
+	 * @param t the timeout
+	 * @param delay milliseconds from now until it expires
+	 * @throws IllegalArgumentException if t is null or delay is negative
+	 */
+	public void schedule(Timeout t, long delay) {
+		if (t == null || delay < 0)
+			throw new IllegalArgumentException("invalid timeout");
+
+		// the current tick may be nearly over, so one more keeps the
+		// timeout from expiring early
+		long n = (delay + tick - 1) / tick + 1;
+		synchronized (this) {
+			unlink(t);
+			long due = ticks + n;
+			t.rounds = (n - 1) / slots.length;
+			t.slot = (int) due & mask;
+			t.next = slots[t.slot];
+			if (t.next != null)
+				t.next.prev = t;
+			slots[t.slot] = t;
+			t.wheel = this;
+			pending++;
+		}
+	}
+
+	/**
+	 * Cancels a timeout if it is scheduled.
+	 *
+	 * @param t the timeout
+	 */
+	public synchronized void cancel(Timeout t) {
+		unlink(t);
+	}
+
+	/**
+	 * Returns the number of timeouts waiting to expire.
+	 *
+	 * @return timeouts scheduled
+	 */
+	public synchronized int pending() {
+		return pending;
+	}
+
+	/**
+	 * Removes a timeout from its slot. Must hold the lock.
+	 */
+	private void unlink(Timeout t) {
+		if (t.wheel != this)
+			return;
+
+		if (t.prev != null)
+			t.prev.next = t.next;
+		else
+			slots[t.slot] = t.next;
+		if (t.next != null)
+			t.next.prev = t.prev;
+		t.prev = null;
+		t.next = null;
+		t.wheel = null;
+		pending--;
+	}
+
+	/**
+	 * Moves the hand once per tick and runs the timeouts it expires.
+	 */
+	private void turn() {
+		while (true) {
+			long wait;
+			synchronized (this) {
+				wait = startTime + (ticks + 1) * tick - System.currentTimeMillis();
+			}
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			synchronized (this) {
+				ticks++;
+				Timeout t = slots[(int) ticks & mask];
+				while (t != null) {
+					Timeout next = t.next;
+					if (t.rounds > 0) {
+						t.rounds--;
+					} else {
+						unlink(t);
+						expired.add(t);
+					}
+					t = next;
+				}
+			}
+
+			// outside the lock, so a timeout can schedule itself again
+			for (int i = 0; i < expired.size(); i++) {
+				try {
+					expired.get(i).expire();
+				} catch (RuntimeException e) {
+					AccessLog.message("Timer: " + e);
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	/**
+	 * Something to be done once a delay has passed. An instance can be
+	 * scheduled again after it expired or was cancelled, so a long-lived
+	 * owner needs only one.
+	 */
+	public abstract static class Timeout {
+		// where the timeout waits, under the lock of the wheel
+		private TimerWheel wheel;
+		private Timeout prev;
+		private Timeout next;
+		private int slot;
+		private long rounds;
+
+		/**
+		 * Called on the timer thread once the timeout expired.
+		 */
+		protected abstract void expire();
+	}
+}
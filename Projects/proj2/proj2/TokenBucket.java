@@ -0,0 +1,97 @@
+/**
+ * A token bucket limiting a byte rate. Tokens flow in at the rate, up to
+ * the burst size; sending a byte takes a token. A bucket with no rate
+ * lets everything through.
+ *
+ * Several selector threads may share a bucket, and one may take a little
+ * more than another just saw as available. The bucket then goes into debt,
+ * which the next tokens pay off, so the rate holds over time.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class TokenBucket {
+	// a bucket without a limit, for sharing
+	public static final TokenBucket UNLIMITED = new TokenBucket(0, 0);
+
+	private final double rate;  // tokens per nanosecond
+	private final long burst;
+	private double tokens;
+	private long last;
+
+	/**
+	 * Constructs a new, full TokenBucket.
+	 *
+	 * @param bytesPerSecond rate of the bucket, or 0 for no limit
+	 * @param burst most tokens the bucket holds
+	 * @throws IllegalArgumentException if the rate is negative, or the
+	 * burst is not positive for a bucket with a rate
+	 */
+	public TokenBucket(long bytesPerSecond, long burst) {
+		if (bytesPerSecond < 0 || (bytesPerSecond > 0 && burst <= 0))
+			throw new IllegalArgumentException("invalid token bucket");
+
+		rate = bytesPerSecond / 1e9;
+		this.burst = burst;
+		tokens = burst;
+		last = System.nanoTime();
+	}
+
+	/**
+	 * Returns true if the bucket limits anything.
+	 *
+	 * @return true if the bucket has a rate
+	 */
+	public boolean isLimited() {
+		return rate > 0;
+	}
+
+	/**
+	 * Returns the tokens in the bucket.
+	 *
+	 * @param now the time, from System.nanoTime()
+	 * @return tokens available, 0 if in debt
+	 */
+	public synchronized long available(long now) {
+		if (rate == 0)
+			return Long.MAX_VALUE;
+
+		refill(now);
+		return tokens <= 0 ? 0 : (long) tokens;
+	}
+
+	/**
+	 * Takes tokens for bytes sent.
+	 *
+	 * @param n number of tokens
+	 */
+	public synchronized void take(long n) {
+		if (rate == 0)
+			return;
+
+		tokens -= n;
+	}
+
+	/**
+	 * Returns how long until the bucket holds the given number of tokens.
+	 *
+	 * @param n number of tokens, at most the burst size
+	 * @param now the time, from System.nanoTime()
+	 * @return nanoseconds to wait, 0 if they are there already
+	 */
+	public synchronized long nanosUntil(long n, long now) {
+		if (rate == 0)
+			return 0;
+
+		refill(now);
+		double missing = Math.min(n, burst) - tokens;
+		return missing <= 0 ? 0 : (long) (missing / rate) + 1;
+	}
+
+	private void refill(long now) {
+		if (now > last) {
+			tokens = Math.min(burst, tokens + (now - last) * rate);
+			last = now;
+		}
+	}
+}
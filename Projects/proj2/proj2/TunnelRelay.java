@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Splices a client and a server socket channel together in both
+ * directions, as needed for CONNECT tunnels. Bytes move between the
+ * channels through pooled direct buffers, so they are never copied onto
+ * the Java heap, and nothing is flushed since channels write straight to
+ * the socket.
+ *
+ * The relay also keeps totals over all tunnels. Throughput per core is
+ * the number of bytes relayed per second of CPU time spent by the relay
+ * threads, which tells how many tunnel bytes one core can move.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class TunnelRelay {
+	private static final int TUNNEL_BUFFER_LEN = 65536;
+	private static final int MAX_POOLED_BUFFERS = 1024;
+
+	private static final BufferPool buffers =
+			new BufferPool(TUNNEL_BUFFER_LEN, MAX_POOLED_BUFFERS);
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	// totals over all tunnels
+	private static final LongAdder bytesUp = new LongAdder();
+	private static final LongAdder bytesDown = new LongAdder();
+	private static final LongAdder cpuNanos = new LongAdder();
+	private static final LongAdder numTunnels = new LongAdder();
+	private static final AtomicInteger activeTunnels = new AtomicInteger();
+
+	private SocketChannel client;
+	private SocketChannel server;
+
+	/**
+	 * Constructs a new TunnelRelay.
+	 *
+	 * @param c client channel
+	 * @param s server channel
+	 * @throws IllegalArgumentException if either channel is null
+	 */
+	public TunnelRelay(SocketChannel c, SocketChannel s) {
+		if (c == null || s == null)
+			throw new IllegalArgumentException("channels cannot be null");
+
+		client = c;
+		server = s;
+	}
+
+	/**
+	 * Relays bytes in both directions until both sides have closed. The
+	 * server-to-client direction runs on the given executor and the
+	 * client-to-server direction on the calling thread.
+	 *
+	 * @param pending bytes the client already sent after the CONNECT
+	 * request, or null
+	 * @param executor executor to run the second direction on
+	 */
+	public void run(byte[] pending, Executor executor) {
+		numTunnels.increment();
+		activeTunnels.incrementAndGet();
+
+		final CountDownLatch downDone = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				pump(server, client, null, bytesDown);
+				downDone.countDown();
+			}
+		});
+
+		pump(client, server, pending, bytesUp);
+
+		// wait for the other direction before closing the sockets
+		try {
+			downDone.await();
+		} catch (InterruptedException e) {
+			// close the sockets anyway
+		}
+
+		NioProxyServer.closeQuietly(client);
+		NioProxyServer.closeQuietly(server);
+		activeTunnels.decrementAndGet();
+	}
+
+	/**
+	 * Copies from one channel to the other until the source reaches EOF,
+	 * then half-closes the destination so the other side sees the EOF too.
+	 *
+	 * @param from source channel
+	 * @param to destination channel
+	 * @param pending bytes to write before reading from the source, or null
+	 * @param counter counter of the bytes moved in this direction
+	 */
+	private static void pump(SocketChannel from, SocketChannel to, byte[] pending,
+							 LongAdder counter) {
+		long cpuStart = threadCpuTime();
+		ByteBuffer bb = buffers.acquire();
+		try {
+			if (pending != null && pending.length > 0) {
+				bb.put(pending);
+				bb.flip();
+				counter.add(writeFully(to, bb));
+			}
+
+			bb.clear();
+			while (from.read(bb) != -1) {
+				bb.flip();
+				counter.add(writeFully(to, bb));
+				bb.clear();
+			}
+
+			to.shutdownOutput();
+		} catch (IOException e) {
+			// one side reset the connection; close both so the
+			// other direction stops as well
+			NioProxyServer.closeQuietly(from);
+			NioProxyServer.closeQuietly(to);
+		} finally {
+			buffers.release(bb);
+			long cpuEnd = threadCpuTime();
+			if (cpuStart >= 0 && cpuEnd >= 0)
+				cpuNanos.add(cpuEnd - cpuStart);
+		}
+	}
+
+	/**
+	 * Writes all remaining bytes of the buffer.
+	 *
+	 * @return number of bytes written
+	 */
+	private static int writeFully(SocketChannel to, ByteBuffer bb) throws IOException {
+		int n = bb.remaining();
+		while (bb.hasRemaining())
+			to.write(bb);
+		return n;
+	}
+
+	/**
+	 * Returns the CPU time of the current thread in nanoseconds, or -1 if
+	 * it cannot be measured (for instance on a virtual thread).
+	 */
+	private static long threadCpuTime() {
+		if (!threads.isCurrentThreadCpuTimeSupported())
+			return -1;
+		try {
+			return threads.getCurrentThreadCpuTime();
+		} catch (UnsupportedOperationException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the number of tunnels open right now.
+	 *
+	 * @return number of active tunnels
+	 */
+	public static int activeTunnels() {
+		return activeTunnels.get();
+	}
+
+	/**
+	 * Returns a one-line summary of the tunnel totals.
+	 *
+	 * @return the totals with the throughput per core in MB/s
+	 */
+	public static String report() {
+		long up = bytesUp.sum();
+		long down = bytesDown.sum();
+		long cpu = cpuNanos.sum();
+		double perCore = cpu > 0 ? (up + down) * 1e3 / cpu : 0;  // bytes per ns * 1e9 / 1e6
+
+		return String.format("tunnels: %d total, %d active, %d bytes up, %d bytes down, " +
+							 "%.1f MB/s per core", numTunnels.sum(), activeTunnels.get(),
+							 up, down, perCore);
+	}
+}
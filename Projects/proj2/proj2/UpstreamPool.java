@@ -0,0 +1,324 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of idle persistent connections to origin servers, keyed by host
+ * and port. A connection is handed back to the pool once a response has
+ * been relayed completely and the server agreed to keep it open, so the
+ * next request to the same origin can skip the TCP handshake.
+ *
+ * With an onion router, the connections are streams over the router's
+ * circuit instead, which are pooled the same way; the exit keeps its
+ * connection to the origin open as long as the stream is.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class UpstreamPool {
+	public static final int DEFAULT_MAX_IDLE = 256;
+	public static final int DEFAULT_MAX_PER_HOST = 8;
+	public static final int DEFAULT_IDLE_TIMEOUT = 30;  // in seconds
+
+	// maximum number of idle connections over all origins
+	private int maxIdle;
+	// maximum number of idle connections kept for a single origin
+	private int maxPerHost;
+	// idle connections older than this (in milliseconds) are closed
+	private long idleTimeout;
+
+	// addresses of the origins, and how to connect to them
+	private ResolverCache resolver;
+	private OriginConnector connector;
+
+	// carries the connections over a circuit, or null to connect directly
+	private OnionRouter router;
+
+	// idle connections of each origin, most recently used first
+	private Map<String, Deque<UpstreamConnection>> idle;
+	private int numIdle;
+
+	/**
+	 * Constructs a new UpstreamPool and starts the thread closing the
+	 * connections that stay idle for too long.
+	 *
+	 * @param maxIdle maximum number of idle connections over all origins
+	 * @param maxPerHost maximum number of idle connections for one origin
+	 * @param idleTimeout seconds a connection may stay idle before it is closed
+	 * @param resolver cache resolving the origin host names
+	 * @param connector connector trying the addresses of an origin
+	 * @throws IllegalArgumentException if any of the limits is negative,
+	 * idleTimeout is not positive, or resolver or connector is null
+	 */
+	public UpstreamPool(int maxIdle, int maxPerHost, int idleTimeout, 
+						ResolverCache resolver, OriginConnector connector) {
+		if (maxIdle < 0 || maxPerHost < 0 || idleTimeout <= 0 || resolver == null || 
+			connector == null)
+			throw new IllegalArgumentException("invalid connection pool limits");
+
+		this.maxIdle = maxIdle;
+		this.maxPerHost = maxPerHost;
+		this.idleTimeout = idleTimeout * 1000L;
+		this.resolver = resolver;
+		this.connector = connector;
+		idle = new HashMap<String, Deque<UpstreamConnection>>();
+
+		Thread reaper = new Thread(new IdleReaper(), "upstream-pool-reaper");
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	/**
+	 * Opens the new connections through the circuit of an onion router
+	 * rather than directly.
+	 *
+	 * @param router the router, set up with the circuit to use
+	 */
+	public void routeThrough(OnionRouter router) {
+		this.router = router;
+	}
+
+	/**
+	 * Returns an idle connection to the given origin, or opens a new one
+	 * if there is none.
+	 *
+	 * @param host host name
+	 * @param port port number
+	 * @return a connection to the origin server
+	 * @throws IOException if a new connection cannot be opened
+	 */
+	public UpstreamConnection acquire(String host, int port) throws IOException {
+		String key = key(host, port);
+		UpstreamConnection conn = takeIdle(key);
+		if (conn != null)
+			return conn;
+
+		return connect(host, port);
+	}
+
+	/**
+	 * Opens a new connection to the given origin, bypassing the idle ones.
+	 *
+	 * @param host host name
+	 * @param port port number
+	 * @return a new connection to the origin server
+	 * @throws IOException if the connection cannot be opened
+	 */
+	public UpstreamConnection connect(String host, int port) throws IOException {
+		if (router != null) {
+			// the exit resolves the name
+			long start = System.nanoTime();
+			OnionStream s = router.open(host, port);
+			ProxyStats.upstreamConnect.recordSince(start);
+			return new UpstreamConnection(key(host, port), s);
+		}
+
+		InetAddress[] addrs = resolver.resolve(host);
+		long start = System.nanoTime();
+		Socket s = connector.connect(addrs, port);
+		ProxyStats.upstreamConnect.recordSince(start);
+		return new UpstreamConnection(key(host, port), s);
+	}
+
+	/**
+	 * Hands a connection back after a response was relayed. The connection
+	 * is kept for reuse if it is still usable and the limits allow it,
+	 * and closed otherwise.
+	 *
+	 * @param conn connection to be released
+	 * @param reusable true if the server will accept another request on it
+	 */
+	public void release(UpstreamConnection conn, boolean reusable) {
+		if (reusable && conn.isOpen() && putIdle(conn))
+			return;
+
+		conn.close();
+	}
+
+	/**
+	 * Removes and returns the most recently used idle connection of the
+	 * origin that has not timed out yet.
+	 */
+	private UpstreamConnection takeIdle(String key) {
+		List<UpstreamConnection> expired = new ArrayList<UpstreamConnection>();
+		UpstreamConnection conn = null;
+
+		synchronized (this) {
+			Deque<UpstreamConnection> conns = idle.get(key);
+			long now = System.currentTimeMillis();
+			while (conns != null && !conns.isEmpty()) {
+				UpstreamConnection c = conns.pollFirst();
+				numIdle--;
+				// a stream whose circuit went away is of no use either
+				if (now - c.idleSince < idleTimeout && c.isOpen()) {
+					conn = c;
+					break;
+				}
+				expired.add(c);
+			}
+
+			if (conns != null && conns.isEmpty())
+				idle.remove(key);
+		}
+
+		// close outside the lock since closing a socket may block
+		for (UpstreamConnection c : expired)
+			c.close();
+
+		if (conn != null)
+			conn.reused = true;
+
+		return conn;
+	}
+
+	/**
+	 * Adds a connection to its origin's idle list if the limits allow it.
+	 *
+	 * @return true if the connection was added
+	 */
+	private synchronized boolean putIdle(UpstreamConnection conn) {
+		if (numIdle >= maxIdle)
+			return false;
+
+		Deque<UpstreamConnection> conns = idle.get(conn.key);
+		if ((conns == null ? 0 : conns.size()) >= maxPerHost)
+			return false;
+		if (conns == null) {
+			conns = new ArrayDeque<UpstreamConnection>();
+			idle.put(conn.key, conns);
+		}
+
+		conn.idleSince = System.currentTimeMillis();
+		conns.addFirst(conn);
+		numIdle++;
+		return true;
+	}
+
+	/**
+	 * Closes every idle connection that has timed out.
+	 */
+	private void closeExpired() {
+		List<UpstreamConnection> expired = new ArrayList<UpstreamConnection>();
+
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			Iterator<Deque<UpstreamConnection>> it = idle.values().iterator();
+			while (it.hasNext()) {
+				Deque<UpstreamConnection> conns = it.next();
+				// the oldest connections are at the end of the list
+				while (!conns.isEmpty() && now - conns.peekLast().idleSince >= idleTimeout) {
+					expired.add(conns.pollLast());
+					numIdle--;
+				}
+				if (conns.isEmpty())
+					it.remove();
+			}
+		}
+
+		for (UpstreamConnection c : expired)
+			c.close();
+	}
+
+	/**
+	 * Returns the pool key of an origin.
+	 */
+	private static String key(String host, int port) {
+		return host.toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * A connection to an origin server with its streams. The input stream
+	 * is buffered and must be kept with the socket, since it may hold
+	 * bytes the server already sent.
+	 */
+	static class UpstreamConnection {
+		private String key;
+		private long idleSince;
+
+		// the socket, or the stream over a circuit; the other is null
+		Socket socket;
+		OnionStream stream;
+		InputStream in;
+		OutputStream out;
+
+		// true if the connection has carried a request before
+		boolean reused;
+
+		/**
+		 * Constructs a new UpstreamConnection.
+		 *
+		 * @param k pool key of the origin
+		 * @param s connected socket
+		 * @throws IOException if the streams of the socket cannot be created
+		 */
+		public UpstreamConnection(String k, Socket s) throws IOException {
+			key = k;
+			socket = s;
+			in = new BufferedInputStream(s.getInputStream());
+			out = s.getOutputStream();
+		}
+
+		/**
+		 * Constructs a new UpstreamConnection over a stream of a circuit,
+		 * whose input is buffered in its cells already.
+		 *
+		 * @param k pool key of the origin
+		 * @param s connected stream
+		 */
+		public UpstreamConnection(String k, OnionStream s) {
+			key = k;
+			stream = s;
+			in = s.in;
+			out = s.out;
+		}
+
+		/**
+		 * Returns true if neither side closed the connection yet.
+		 *
+		 * @return true if the connection may be reused
+		 */
+		public boolean isOpen() {
+			return stream != null ? stream.isOpen() : !socket.isClosed();
+		}
+
+		/**
+		 * Closes the connection, ignoring errors.
+		 */
+		public void close() {
+			if (stream != null) {
+				stream.close();
+				return;
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing more we can do
+			}
+		}
+	}
+
+	/**
+	 * Periodically closes the connections that stayed idle for too long,
+	 * so the pool does not hold sockets the servers already gave up on.
+	 */
+	class IdleReaper implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(Math.max(1000, idleTimeout / 2));
+				} catch (InterruptedException e) {
+					return;
+				}
+				closeExpired();
+			}
+		}
+	}
+}
@@ -0,0 +1,312 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import bench.ProxyHooks;
+
+/**
+ * Implements the benchmark hooks on top of the proxy classes. It lives in
+ * the default package so it can call them directly, including the package
+ * private ones.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class ProxyHooksImpl implements ProxyHooks {
+	private static final byte[] GET_BYTES = HeaderParser.bytes("GET ");
+	private static final byte[] HEAD_BYTES = HeaderParser.bytes("HEAD ");
+	private static final byte[] CONNECT_BYTES = HeaderParser.bytes("CONNECT ");
+	private static final byte[] HTTP_1_0_BYTES = HeaderParser.bytes(HTTPProxy.HTTP_1_0);
+	private static final byte[] CONNECTION_NAME = HeaderParser.bytes("connection");
+	private static final byte[] PROXY_CONNECTION_NAME = HeaderParser.bytes("proxy-connection");
+	private static final byte[] HOST_NAME = HeaderParser.bytes("host");
+	private static final byte[] CONTENT_LENGTH_NAME = HeaderParser.bytes("content-length");
+	private static final byte[] TRANSFER_ENCODING_NAME = HeaderParser.bytes("transfer-encoding");
+	private static final byte[] EXPECT_NAME = HeaderParser.bytes("expect");
+	private static final byte[] CACHE_CONTROL_NAME = HeaderParser.bytes("cache-control");
+	private static final byte[] PRAGMA_NAME = HeaderParser.bytes("pragma");
+	private static final byte[] AUTHORIZATION_NAME = HeaderParser.bytes("authorization");
+	private static final byte[] RANGE_NAME = HeaderParser.bytes("range");
+	private static final byte[] IF_PREFIX_BYTES = HeaderParser.bytes(HTTPProxy.IF_PREFIX);
+	private static final byte[] NO_CACHE_BYTES = HeaderParser.bytes(HTTPProxy.NO_CACHE);
+	private static final byte[] CHUNKED_BYTES = HeaderParser.bytes(HTTPProxy.CHUNKED);
+	private static final byte[] KEEP_ALIVE_BYTES = HeaderParser.bytes(HTTPProxy.KEEP_ALIVE);
+	private static final byte[] CLOSE_BYTES = HeaderParser.bytes(HTTPProxy.CLOSE);
+	private static final byte[] CAP_HOST_BYTES = HeaderParser.bytes(HTTPProxy.CAP_HOST_TAG);
+	private static final byte[] CONNECTION_KEEP_ALIVE_LINE =
+			HeaderParser.bytes(HTTPProxy.CONNECTION_KEEP_ALIVE + HTTPProxy.HTTP_END_LINE);
+	private static final byte[] END_LINE_BYTES = HeaderParser.bytes(HTTPProxy.HTTP_END_LINE);
+
+	// the original proxy's tags
+	private static final String CONNECTION_TAG = "connection:";
+	private static final String HOST_TAG = "host:";
+
+	// how long startProxy() waits for the proxy to accept connections
+	private static final long STARTUP_TIMEOUT = 10000;
+
+	@Override
+	public HeaderWorkload headers(final byte[] request) {
+		final HeaderParser parser = new HeaderParser(new ReplayInputStream(request));
+
+		return new HeaderWorkload() {
+			@Override
+			public int parse() throws IOException {
+				return rewrite(parser);
+			}
+
+			@Override
+			public int parseNewConnection() throws IOException {
+				return rewrite(new HeaderParser(new ByteArrayInputStream(request)));
+			}
+
+			@Override
+			public int baseline() throws IOException {
+				return rewriteOriginal(new ByteArrayInputStream(request));
+			}
+		};
+	}
+
+	/**
+	 * Does what ClientHandler.handleRequest does to a request header,
+	 * short of sending it: classify every line and build the header for
+	 * the server.
+	 */
+	private static int rewrite(HeaderParser request) throws IOException {
+		if (!request.readHeader())
+			throw new EOFException("no request");
+
+		boolean head = request.methodIs(HEAD_BYTES);
+		boolean connect = request.methodIs(CONNECT_BYTES);
+		boolean cacheable = request.methodIs(GET_BYTES);
+		boolean keepAlive = !request.versionIs(HTTP_1_0_BYTES);
+		request.appendLine(0);
+
+		int hostLine = -1;
+		boolean sawConnection = false;
+		boolean noCache = false;
+		boolean chunked = false;
+		boolean expectContinue = false;
+		long contentLength = 0;
+		for (int i = 1; i < request.numLines(); i++) {
+			if (request.nameEquals(i, CONNECTION_NAME) ||
+				request.nameEquals(i, PROXY_CONNECTION_NAME)) {
+				if (request.valueContains(i, CLOSE_BYTES))
+					keepAlive = false;
+				else if (request.valueContains(i, KEEP_ALIVE_BYTES))
+					keepAlive = true;
+				if (request.nameEquals(i, CONNECTION_NAME) && !sawConnection) {
+					request.appendRaw(CONNECTION_KEEP_ALIVE_LINE);
+					sawConnection = true;
+				}
+			} else if (request.nameEquals(i, HOST_NAME)) {
+				hostLine = i;
+				request.appendHostLine(i, CAP_HOST_BYTES);
+			} else if (request.nameEquals(i, EXPECT_NAME)) {
+				expectContinue = true;
+			} else {
+				if (request.nameEquals(i, CONTENT_LENGTH_NAME)) {
+					contentLength = request.valueAsLong(i);
+				} else if (request.nameEquals(i, TRANSFER_ENCODING_NAME)) {
+					chunked = request.valueContains(i, CHUNKED_BYTES);
+				} else if (request.nameEquals(i, CACHE_CONTROL_NAME) ||
+						   request.nameEquals(i, PRAGMA_NAME)) {
+					noCache |= request.valueContains(i, NO_CACHE_BYTES);
+				} else if (request.nameEquals(i, AUTHORIZATION_NAME) ||
+						   request.nameEquals(i, RANGE_NAME) ||
+						   request.nameStartsWith(i, IF_PREFIX_BYTES)) {
+					cacheable = false;
+				}
+				request.appendLine(i);
+			}
+		}
+		if (!sawConnection)
+			request.appendRaw(CONNECTION_KEEP_ALIVE_LINE);
+		request.appendRaw(END_LINE_BYTES);
+		request.consumeHeader();
+
+		int port = hostLine < 0 ? 0 : request.hostPort(hostLine, 80);
+		String host = hostLine < 0 ? null : request.hostName(hostLine);
+
+		// fold the results in so none of the work is dead code
+		int flags = (head ? 1 : 0) | (connect ? 2 : 0) | (cacheable ? 4 : 0) |
+					(keepAlive ? 8 : 0) | (noCache ? 16 : 0) | (chunked ? 32 : 0) |
+					(expectContinue ? 64 : 0);
+		return request.outputLength() + flags + port + (int) contentLength +
+			   (host == null ? 0 : host.length());
+	}
+
+	/**
+	 * The request handling of the original proxy, up to sending the
+	 * request: read the lines with a BufferedReader, split and lower case
+	 * each of them, and collect the header in a StringBuffer.
+	 */
+	private static int rewriteOriginal(InputStream in) throws IOException {
+		String host = null;
+		int port = 80;
+
+		BufferedReader request = new BufferedReader(new InputStreamReader(in));
+		String reqLine = request.readLine();
+		StringBuffer outputBuffer = new StringBuffer();
+
+		while (reqLine != null && reqLine.length() >= 1) {
+			reqLine = reqLine.trim();
+			String[] reqLineParts = reqLine.split(" ");
+			if ((reqLineParts[0].toLowerCase()).equals(CONNECTION_TAG)) {
+				reqLine = HTTPProxy.CONNECTION_CLOSE;
+			} else if ((reqLineParts[0].toLowerCase()).equals(HOST_TAG)) {
+				host = "";
+				for (int i = 1; i < reqLineParts.length; i++)
+					host += reqLineParts[i];
+
+				String[] hostParts = host.split(":");
+				if (hostParts.length == 2)
+					port = Integer.valueOf(hostParts[1]).intValue();
+
+				reqLine = HTTPProxy.CAP_HOST_TAG + host;
+			}
+			appendHTTPEndLine(outputBuffer, reqLine);
+			reqLine = request.readLine();
+		}
+		appendHTTPEndLine(outputBuffer, HTTPProxy.EMPTY_LINE);
+
+		// the original printed the buffer through a PrintWriter
+		byte[] header = outputBuffer.toString().getBytes(StandardCharsets.ISO_8859_1);
+		return header.length + port + (host == null ? 0 : host.length());
+	}
+
+	/**
+	 * The original ClientHandler.appendHTTPEndLine.
+	 */
+	private static void appendHTTPEndLine(StringBuffer sb, String reqLine) {
+		if (sb == null || reqLine == null)
+			throw new IllegalArgumentException("Arguments cannot be null.");
+
+		if (reqLine.equals(HTTPProxy.EMPTY_LINE))
+			sb.append(HTTPProxy.HTTP_END_LINE);
+		else
+			sb.append(reqLine + HTTPProxy.HTTP_END_LINE);
+	}
+
+	@Override
+	public void relay(String policy, InputStream in, OutputStream out, long len, byte[] buf)
+			throws IOException {
+		if (policy.equals("adaptive")) {
+			// what fetchRequest and ResponseRelay do for a framed body
+			ByteBuffer outBuffer = ResponseRelay.buffers.acquire();
+			try {
+				OutputStream ros = new RelayOutputStream(out, outBuffer.array());
+				ResponseRelay.copyExactly(in, ros, len, buf);
+				ros.flush();
+			} finally {
+				ResponseRelay.buffers.release(outBuffer);
+			}
+		} else if (policy.equals("eachRead")) {
+			// a buffered stream flushed after every read, as the relay 
+			// did before the adaptive policy
+			OutputStream bos = new BufferedOutputStream(out, buf.length);
+			while (len > 0) {
+				int n = in.read(buf, 0, (int) Math.min(buf.length, len));
+				if (n == -1)
+					throw new EOFException("body ended early");
+				bos.write(buf, 0, n);
+				bos.flush();
+				len -= n;
+			}
+		} else if (policy.equals("atEnd")) {
+			OutputStream bos = new BufferedOutputStream(out, buf.length);
+			while (len > 0) {
+				int n = in.read(buf, 0, (int) Math.min(buf.length, len));
+				if (n == -1)
+					throw new EOFException("body ended early");
+				bos.write(buf, 0, n);
+				len -= n;
+			}
+			bos.flush();
+		} else if (policy.equals("direct")) {
+			// the original fetchRequest
+			while (len > 0) {
+				int n = in.read(buf, 0, (int) Math.min(buf.length, len));
+				if (n == -1)
+					throw new EOFException("body ended early");
+				out.write(buf, 0, n);
+				out.flush();
+				len -= n;
+			}
+		} else {
+			throw new IllegalArgumentException("unknown flush policy: " + policy);
+		}
+	}
+
+	@Override
+	public void startProxy(final String[] args) throws IOException {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				HTTPProxy.main(args);
+			}
+		}, "proxy-main");
+		t.setDaemon(true);
+		t.start();
+
+		int port = Integer.parseInt(args[0]);
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while (true) {
+			try (Socket s = new Socket()) {
+				s.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline)
+					throw e;
+			}
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted waiting for the proxy");
+			}
+		}
+	}
+
+	@Override
+	public void startRelay(int port) throws IOException {
+		ResolverCache resolver = new ResolverCache(ResolverCache.SYSTEM_RESOLVER,
+				ResolverCache.DEFAULT_TTL, ResolverCache.DEFAULT_NEGATIVE_TTL);
+		OriginConnector connector = new OriginConnector(OriginConnector.DEFAULT_CONNECT_TIMEOUT);
+		new OnionRouter(resolver, connector).listen(port);
+	}
+
+	/**
+	 * Endlessly replays one request, like a client sending the same request
+	 * over and over on a persistent connection.
+	 */
+	static class ReplayInputStream extends InputStream {
+		private byte[] data;
+		private int pos;
+
+		/**
+		 * Constructs a new ReplayInputStream.
+		 *
+		 * @param d bytes to replay
+		 */
+		public ReplayInputStream(byte[] d) {
+			data = d;
+		}
+
+		@Override
+		public int read() {
+			int b = data[pos] & 0xff;
+			pos = (pos + 1) % data.length;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			// one request per read, as it would arrive from the network
+			int n = Math.min(len, data.length - pos);
+			System.arraycopy(data, pos, b, off, n);
+			pos = (pos + n) % data.length;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * How many new connections per second the proxy takes on, by the number
+ * of acceptors. Each operation opens a connection, sends a request the
+ * proxy turns down at once (it has no Host header) and waits for the proxy
+ * to close the connection, so the score is accepts per second plus the
+ * cost of handing each connection to a thread and closing it again.
+ *
+ * The acceptors only help with as many cores as acceptors; compare the
+ * scores on a machine with at least 4 cores, with -t set to the number of
+ * cores or more.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class AcceptBench {
+	private static final byte[] REQUEST =
+			"GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	/**
+	 * The proxy, shared by all client threads.
+	 */
+	@State(Scope.Benchmark)
+	public static class Proxy {
+		@Param({ "blocking", "nio" })
+		public String mode;
+
+		@Param({ "1", "2", "4" })
+		public int acceptors;
+
+		int port;
+		private PrintStream stdout;
+
+		@Setup
+		public void setup() throws IOException {
+			port = EndToEndBench.freePort();
+
+			// the proxy logs every request; keep that off the results
+			stdout = System.out;
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+			String[] args = mode.equals("nio") ?
+					new String[] { Integer.toString(port), "-nio", "-acceptors",
+								   Integer.toString(acceptors) } :
+					new String[] { Integer.toString(port), "-acceptors",
+								   Integer.toString(acceptors) };
+			ProxyHooks.load().startProxy(args);
+		}
+
+		@TearDown
+		public void tearDown() {
+			System.setOut(stdout);
+		}
+	}
+
+	@Benchmark
+	public int connect(Proxy proxy) throws IOException {
+		try (Socket s = new Socket(InetAddress.getLoopbackAddress(), proxy.port)) {
+			OutputStream out = s.getOutputStream();
+			out.write(REQUEST);
+			out.flush();
+
+			// nothing comes back; wait for the proxy to close
+			InputStream in = s.getInputStream();
+			return in.read();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A burst of clients asking the blocking proxy for the same object at the
+ * same moment, as after a link is posted somewhere popular. The origin is
+ * slow to answer, so every request of the burst arrives while the first
+ * one is still waiting for the response. Each operation is one burst for
+ * an object the proxy has not seen yet.
+ *
+ * With a cacheable response, the burst should cost one origin request;
+ * with "Cache-Control: no-store", one per client, and the clients that
+ * waited on the first one take two origin round trips. The bursts and
+ * originRequests counters add up over each iteration; their ratio is the
+ * origin requests per burst.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class CollapseBench {
+	// how long the origin takes to answer
+	private static final long ORIGIN_DELAY = 50;  // in milliseconds
+	private static final int BODY_LEN = 16384;
+
+	/**
+	 * The proxy, the origin and the clients.
+	 */
+	@State(Scope.Benchmark)
+	public static class Burst {
+		@Param({ "cache", "nocache" })
+		public String mode;
+
+		@Param({ "50" })
+		public int clients;
+
+		int proxyPort;
+		StubOrigin origin;
+		ExecutorService pool;
+		private long next;
+		private PrintStream stdout;
+
+		@Setup
+		public void setup() throws IOException {
+			String headers = mode.equals("cache") ? "Cache-Control: max-age=60\r\n" :
+							 "Cache-Control: no-store\r\n";
+			origin = new StubOrigin(BODY_LEN, headers, ORIGIN_DELAY);
+			proxyPort = EndToEndBench.freePort();
+			pool = Executors.newFixedThreadPool(clients);
+
+			// the proxy logs every request; keep that off the results
+			stdout = System.out;
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+			ProxyHooks.load().startProxy(new String[] { Integer.toString(proxyPort), "-cache" });
+		}
+
+		@TearDown
+		public void tearDown() {
+			System.setOut(stdout);
+			pool.shutdownNow();
+			origin.close();
+		}
+
+		/**
+		 * Sends the clients after a new object all at once and waits for all
+		 * the responses.
+		 *
+		 * @return number of body bytes received
+		 */
+		long burst() throws IOException, InterruptedException {
+			String target = "127.0.0.1:" + origin.port();
+			final byte[] request = ("GET http://" + target + "/object-" + (next++) + " HTTP/1.1\r\n" +
+									"Host: " + target + "\r\n" +
+									"User-Agent: CollapseBench\r\n" +
+									"Connection: close\r\n" +
+									"\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Future<Long>> results = new ArrayList<Future<Long>>(clients);
+			for (int i = 0; i < clients; i++) {
+				results.add(pool.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						start.await();
+						return fetch(request);
+					}
+				}));
+			}
+			start.countDown();
+
+			long total = 0;
+			try {
+				for (Future<Long> f : results)
+					total += f.get();
+			} catch (ExecutionException e) {
+				throw new IOException("client failed", e.getCause());
+			}
+			return total;
+		}
+
+		/**
+		 * Sends one request on a new connection and reads the whole response.
+		 */
+		private long fetch(byte[] request) throws IOException {
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort)) {
+				socket.setTcpNoDelay(true);
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+				OutputStream out = socket.getOutputStream();
+				out.write(request);
+				out.flush();
+
+				byte[] header = new byte[65536];
+				int len = StubOrigin.readHeader(in, header);
+				if (len < 0)
+					throw new EOFException("proxy closed the connection");
+
+				long remaining = EndToEndBench.contentLength(header, len);
+				byte[] body = new byte[16384];
+				long total = 0;
+				while (remaining != 0) {
+					int n = in.read(body, 0, (int) Math.min(body.length,
+							remaining < 0 ? body.length : remaining));
+					if (n == -1) {
+						if (remaining > 0)
+							throw new EOFException("response ended early");
+						break;
+					}
+					total += n;
+					if (remaining > 0)
+						remaining -= n;
+				}
+				return total;
+			}
+		}
+	}
+
+	/**
+	 * Bursts sent and origin requests they caused.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters {
+		public long bursts;
+		public long originRequests;
+	}
+
+	@Benchmark
+	public long burst(Burst burst, Counters counters)
+			throws IOException, InterruptedException {
+		long before = burst.origin.requests();
+		long n = burst.burst();
+		counters.bursts++;
+		counters.originRequests += burst.origin.requests() - before;
+		return n;
+	}
+}
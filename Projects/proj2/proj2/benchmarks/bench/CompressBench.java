@@ -0,0 +1,136 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A client that accepts gzip fetching a 64 KB JSON document through the
+ * blocking proxy, without the cache, so every operation compresses the
+ * whole body on its way. The score is the cost per response; the 
+ * responses and wireBytes counters add up over each iteration, and their
+ * ratio is the bytes each response takes on the client link.
+ *
+ * With "off" the proxy relays the body as it is; the other modes are
+ * compression levels.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class CompressBench {
+	private static final int BODY_LEN = 65536;
+
+	/**
+	 * The proxy and the origin.
+	 */
+	@State(Scope.Benchmark)
+	public static class Proxy {
+		@Param({ "off", "1", "6" })
+		public String level;
+
+		int proxyPort;
+		StubOrigin origin;
+		byte[] request;
+		private PrintStream stdout;
+
+		@Setup
+		public void setup() throws IOException {
+			origin = new StubOrigin(document(), "application/json", "", 0);
+			proxyPort = EndToEndBench.freePort();
+
+			// the proxy logs every request; keep that off the results
+			stdout = System.out;
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+			String[] args = level.equals("off") ?
+					new String[] { Integer.toString(proxyPort) } :
+					new String[] { Integer.toString(proxyPort), "-compress", level };
+			ProxyHooks.load().startProxy(args);
+
+			String target = "127.0.0.1:" + origin.port();
+			request = ("GET http://" + target + "/api/items HTTP/1.1\r\n" +
+					   "Host: " + target + "\r\n" +
+					   "Accept-Encoding: gzip, deflate\r\n" +
+					   "Connection: close\r\n" +
+					   "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		}
+
+		@TearDown
+		public void tearDown() {
+			System.setOut(stdout);
+			origin.close();
+		}
+
+		/**
+		 * Returns a JSON array of records like those of a typical API.
+		 */
+		private static byte[] document() {
+			Random random = new Random(42);
+			String[] names = { "alpha", "bravo", "charlie", "delta", "echo", "foxtrot" };
+			StringBuilder sb = new StringBuilder("[");
+			while (sb.length() < BODY_LEN - 200) {
+				if (sb.length() > 1)
+					sb.append(",\n");
+				sb.append("{\"id\":").append(random.nextInt(1000000))
+				  .append(",\"name\":\"").append(names[random.nextInt(names.length)])
+				  .append("\",\"price\":").append(random.nextInt(100000) / 100.0)
+				  .append(",\"tags\":[\"new\",\"sale\"],\"active\":")
+				  .append(random.nextBoolean()).append('}');
+			}
+			sb.append("]");
+			return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	/**
+	 * Responses read and the bytes they took.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters {
+		public long responses;
+		public long wireBytes;
+	}
+
+	@Benchmark
+	public long fetch(Proxy proxy, Counters counters) throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxy.proxyPort)) {
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			out.write(proxy.request);
+			out.flush();
+
+			// the proxy closes the connection after the response
+			byte[] buf = new byte[16384];
+			long total = 0;
+			int n = in.read(buf);
+			while (n != -1) {
+				total += n;
+				n = in.read(buf);
+			}
+			if (total == 0)
+				throw new EOFException("proxy closed the connection");
+
+			counters.responses++;
+			counters.wireBytes += total;
+			return total;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Whole requests through a proxy running in the benchmark's JVM to a stub
+ * origin server, also in the JVM. Each benchmark thread is one client;
+ * run with -t to add clients.
+ *
+ * The modes are the blocking proxy with a persistent client connection,
+ * the blocking proxy with a new client connection per request, and the
+ * non-blocking proxy, which closes the client connection after each
+ * response.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBench {
+	private static final byte[] CONTENT_LENGTH =
+			"content-length:".getBytes(StandardCharsets.ISO_8859_1);
+
+	/**
+	 * The proxy and the origin, shared by all client threads.
+	 */
+	@State(Scope.Benchmark)
+	public static class Servers {
+		@Param({ "blocking", "blocking-close", "nio-close" })
+		public String mode;
+
+		@Param({ "1024", "65536" })
+		public int bodyLen;
+
+		int proxyPort;
+		StubOrigin origin;
+		private PrintStream stdout;
+
+		@Setup
+		public void setup() throws IOException {
+			origin = new StubOrigin(bodyLen);
+			proxyPort = freePort();
+
+			// the proxy prints every request line; keep that off the results
+			stdout = System.out;
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+			String[] args = mode.startsWith("nio") ?
+					new String[] { Integer.toString(proxyPort), "-nio" } :
+					new String[] { Integer.toString(proxyPort) };
+			ProxyHooks.load().startProxy(args);
+		}
+
+		@TearDown
+		public void tearDown() {
+			System.setOut(stdout);
+			origin.close();
+		}
+
+		boolean persistent() {
+			return !mode.endsWith("close");
+		}
+	}
+
+	/**
+	 * One client with its connection to the proxy.
+	 */
+	@State(Scope.Thread)
+	public static class Client {
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		private byte[] request;
+		private byte[] header = new byte[65536];
+		private byte[] body = new byte[65536];
+
+		@Setup
+		public void setup(Servers servers) {
+			String target = "127.0.0.1:" + servers.origin.port();
+			request = ("GET http://" + target + "/bench HTTP/1.1\r\n" +
+					   "Host: " + target + "\r\n" +
+					   "User-Agent: EndToEndBench\r\n" +
+					   "Accept: */*\r\n" +
+					   (servers.persistent() ? "" : "Connection: close\r\n") +
+					   "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			if (socket != null)
+				socket.close();
+		}
+
+		/**
+		 * Sends one request and reads the whole response.
+		 *
+		 * @return number of body bytes received
+		 */
+		int fetch(Servers servers) throws IOException {
+			if (socket == null) {
+				socket = new Socket(InetAddress.getLoopbackAddress(), servers.proxyPort);
+				socket.setTcpNoDelay(true);
+				in = new BufferedInputStream(socket.getInputStream());
+				out = socket.getOutputStream();
+			}
+
+			out.write(request);
+			out.flush();
+
+			int len = StubOrigin.readHeader(in, header);
+			if (len < 0)
+				throw new EOFException("proxy closed the connection");
+
+			long remaining = contentLength(header, len);
+			int total = 0;
+			while (remaining != 0) {
+				int n = in.read(body, 0, (int) Math.min(body.length, 
+						remaining < 0 ? body.length : remaining));
+				if (n == -1) {
+					if (remaining > 0)
+						throw new EOFException("response ended early");
+					break;
+				}
+				total += n;
+				if (remaining > 0)
+					remaining -= n;
+			}
+
+			if (!servers.persistent()) {
+				socket.close();
+				socket = null;
+			}
+			return total;
+		}
+	}
+
+	@Benchmark
+	public int request(Servers servers, Client client) throws IOException {
+		return client.fetch(servers);
+	}
+
+	/**
+	 * Returns the Content-Length of a response header, or -1 if it has none.
+	 */
+	static long contentLength(byte[] header, int len) {
+		for (int i = 0; i + CONTENT_LENGTH.length <= len; i++) {
+			int j = 0;
+			while (j < CONTENT_LENGTH.length &&
+				   Character.toLowerCase(header[i + j]) == CONTENT_LENGTH[j])
+				j++;
+			if (j < CONTENT_LENGTH.length)
+				continue;
+
+			long n = 0;
+			for (int k = i + j; k < len && header[k] != '\r'; k++) {
+				if (header[k] >= '0' && header[k] <= '9')
+					n = n * 10 + (header[k] - '0');
+			}
+			return n;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns a free local port.
+	 */
+	static int freePort() throws IOException {
+		try (ServerSocket s = new ServerSocket(0)) {
+			return s.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Request header processing: the byte-level HeaderParser on a persistent
+ * and on a new client connection, against the original String-based code
+ * with appendHTTPEndLine.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBench {
+	// what curl sends through a proxy
+	private static final String SMALL =
+			"GET http://example.com/index.html HTTP/1.1\r\n" +
+			"Host: example.com\r\n" +
+			"User-Agent: curl/8.5.0\r\n" +
+			"Accept: */*\r\n" +
+			"Proxy-Connection: Keep-Alive\r\n" +
+			"\r\n";
+
+	// what a browser sends, cookies included
+	private static final String BROWSER =
+			"GET http://www.example.com:8080/static/js/app.js?v=20140215 HTTP/1.1\r\n" +
+			"Host: www.example.com:8080\r\n" +
+			"Connection: keep-alive\r\n" +
+			"Cache-Control: max-age=0\r\n" +
+			"Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+			"User-Agent: Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.36 " +
+			"(KHTML, like Gecko) Chrome/32.0.1700.107 Safari/537.36\r\n" +
+			"Referer: http://www.example.com:8080/index.html\r\n" +
+			"Accept-Encoding: gzip,deflate,sdch\r\n" +
+			"Accept-Language: en-US,en;q=0.8,zh-TW;q=0.6\r\n" +
+			"Cookie: session=8f14e45fceea167a5a36dedd4bea2543; theme=dark; " +
+			"_ga=GA1.2.1234567890.1392451200; _gid=GA1.2.987654321.1392451200; " +
+			"prefs=lang%3Den%26tz%3DAmerica%2FLos_Angeles%26layout%3Dwide\r\n" +
+			"If-None-Match: \"5d8c72a5edda8d6a\"\r\n" +
+			"If-Modified-Since: Sat, 15 Feb 2014 08:00:00 GMT\r\n" +
+			"\r\n";
+
+	@Param({ "small", "browser" })
+	public String request;
+
+	private ProxyHooks.HeaderWorkload workload;
+
+	@Setup
+	public void setup() {
+		String r = request.equals("small") ? SMALL : BROWSER;
+		workload = ProxyHooks.load().headers(r.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	@Benchmark
+	public int parser() throws IOException {
+		return workload.parse();
+	}
+
+	@Benchmark
+	public int parserNewConnection() throws IOException {
+		return workload.parseNewConnection();
+	}
+
+	@Benchmark
+	public int stringBuffer() throws IOException {
+		return workload.baseline();
+	}
+}
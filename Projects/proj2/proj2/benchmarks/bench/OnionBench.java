@@ -0,0 +1,181 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Requests through the blocking proxy over a circuit of onion routers,
+ * all of them running in the benchmark's JVM on loopback, to a stub
+ * origin server. With 0 hops the proxy connects to the origin itself, so
+ * the difference between hop counts is the cost of each router.
+ *
+ * latency fetches a 1 KB response on a persistent client connection, one
+ * request at a time, so it is the time a request and its response take
+ * through the routers and back. throughput has several clients fetching
+ * 1 MB responses at once, all multiplexed over the one link to the first
+ * router; its bytes counter is the aggregate rate of body bytes.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OnionBench {
+	private static final int SMALL_BODY_LEN = 1024;
+	private static final int LARGE_BODY_LEN = 1 << 20;
+
+	/**
+	 * The routers, the proxy and the origins, shared by all client threads.
+	 */
+	@State(Scope.Benchmark)
+	public static class Servers {
+		@Param({ "0", "1", "2", "3" })
+		public int hops;
+
+		int proxyPort;
+		StubOrigin small;
+		StubOrigin large;
+		private PrintStream stdout;
+
+		@Setup
+		public void setup() throws IOException {
+			small = new StubOrigin(SMALL_BODY_LEN);
+			large = new StubOrigin(LARGE_BODY_LEN);
+			proxyPort = EndToEndBench.freePort();
+
+			// the proxy logs every request; keep that off the results
+			stdout = System.out;
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+			ProxyHooks hooks = ProxyHooks.load();
+			StringBuilder circuit = new StringBuilder();
+			for (int i = 0; i < hops; i++) {
+				int port = EndToEndBench.freePort();
+				hooks.startRelay(port);
+				if (i > 0)
+					circuit.append(',');
+				circuit.append("127.0.0.1:").append(port);
+			}
+
+			String[] args = hops == 0 ?
+					new String[] { Integer.toString(proxyPort) } :
+					new String[] { Integer.toString(proxyPort), "-circuit", circuit.toString() };
+			hooks.startProxy(args);
+		}
+
+		@TearDown
+		public void tearDown() {
+			System.setOut(stdout);
+			small.close();
+			large.close();
+		}
+	}
+
+	/**
+	 * One client with its persistent connection to the proxy.
+	 */
+	@State(Scope.Thread)
+	public static class Client {
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		private byte[] header = new byte[65536];
+		private byte[] body = new byte[65536];
+		byte[] smallRequest;
+		byte[] largeRequest;
+
+		@Setup
+		public void setup(Servers servers) {
+			smallRequest = request(servers.small);
+			largeRequest = request(servers.large);
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			if (socket != null)
+				socket.close();
+		}
+
+		/**
+		 * Returns a request for the origin's response.
+		 */
+		private static byte[] request(StubOrigin origin) {
+			String target = "127.0.0.1:" + origin.port();
+			return ("GET http://" + target + "/onion HTTP/1.1\r\n" +
+					"Host: " + target + "\r\n" +
+					"User-Agent: OnionBench\r\n" +
+					"\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		}
+
+		/**
+		 * Sends one request and reads the whole response.
+		 *
+		 * @return number of body bytes received
+		 */
+		long fetch(Servers servers, byte[] request) throws IOException {
+			if (socket == null) {
+				socket = new Socket(InetAddress.getLoopbackAddress(), servers.proxyPort);
+				socket.setTcpNoDelay(true);
+				in = new BufferedInputStream(socket.getInputStream());
+				out = socket.getOutputStream();
+			}
+
+			out.write(request);
+			out.flush();
+
+			int len = StubOrigin.readHeader(in, header);
+			if (len < 0)
+				throw new EOFException("proxy closed the connection");
+
+			long remaining = EndToEndBench.contentLength(header, len);
+			long total = 0;
+			while (remaining > 0) {
+				int n = in.read(body, 0, (int) Math.min(body.length, remaining));
+				if (n == -1)
+					throw new EOFException("response ended early");
+				total += n;
+				remaining -= n;
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * Body bytes received, whose rate is the aggregate throughput.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long bytes;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Threads(1)
+	public long latency(Servers servers, Client client) throws IOException {
+		return client.fetch(servers, client.smallRequest);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(4)
+	public long throughput(Servers servers, Client client, Counters counters)
+			throws IOException {
+		long n = client.fetch(servers, client.largeRequest);
+		counters.bytes += n;
+		return n;
+	}
+}
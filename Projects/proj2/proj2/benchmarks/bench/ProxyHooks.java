@@ -0,0 +1,107 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The parts of the proxy the benchmarks drive. JMH only accepts benchmarks
+ * in a named package, and classes in a named package cannot refer to the
+ * proxy classes in the default package, so the benchmarks go through this
+ * interface. Its implementation, ProxyHooksImpl, lives in the default
+ * package next to the proxy and is loaded by name once per trial; after
+ * that every call is an ordinary interface call.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public interface ProxyHooks {
+	/**
+	 * Request header processing over one client connection.
+	 */
+	interface HeaderWorkload {
+		/**
+		 * Parses and rewrites the next request with the connection's
+		 * HeaderParser, as ClientHandler does for each request.
+		 *
+		 * @return length of the rewritten header
+		 * @throws IOException if the request is malformed
+		 */
+		int parse() throws IOException;
+
+		/**
+		 * Like parse(), but on a new connection with a new HeaderParser.
+		 *
+		 * @return length of the rewritten header
+		 * @throws IOException if the request is malformed
+		 */
+		int parseNewConnection() throws IOException;
+
+		/**
+		 * Parses and rewrites the request the way the original proxy did:
+		 * a BufferedReader per connection, split and toLowerCase on every
+		 * line, and appendHTTPEndLine into a StringBuffer.
+		 *
+		 * @return length of the rewritten header
+		 * @throws IOException if the request is malformed
+		 */
+		int baseline() throws IOException;
+	}
+
+	/**
+	 * Returns a header workload replaying the given request.
+	 *
+	 * @param request a complete request header
+	 * @return the workload
+	 */
+	HeaderWorkload headers(byte[] request);
+
+	/**
+	 * Relays a response body of len bytes the way the proxy does.
+	 *
+	 * @param policy "adaptive" to relay with a pooled output buffer and
+	 * flush only when the source runs dry, as ResponseRelay does now;
+	 * "eachRead" to flush a buffered stream after every read, as it did
+	 * before; "atEnd" to flush only once at the end; or "direct" to write
+	 * and flush every read straight to the socket as the original proxy did
+	 * @param in source of the body
+	 * @param out client stream
+	 * @param len length of the body
+	 * @param buf relay buffer
+	 * @throws IOException if an I/O error occurs
+	 */
+	void relay(String policy, InputStream in, OutputStream out, long len, byte[] buf)
+			throws IOException;
+
+	/**
+	 * Starts the proxy on a daemon thread, as if run with the given
+	 * arguments, and returns once it accepts connections.
+	 *
+	 * @param args command line arguments of HTTPProxy
+	 * @throws IOException if the proxy does not come up
+	 */
+	void startProxy(String[] args) throws IOException;
+
+	/**
+	 * Starts an onion router accepting links on the given port, as a
+	 * proxy run with -relay does, and returns once it is listening.
+	 *
+	 * @param port port number
+	 * @throws IOException if the port cannot be bound
+	 */
+	void startRelay(int port) throws IOException;
+
+	/**
+	 * Loads the implementation next to the proxy classes.
+	 *
+	 * @return the hooks
+	 */
+	static ProxyHooks load() {
+		try {
+			return (ProxyHooks) Class.forName("ProxyHooksImpl")
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("proxy classes not on the class path", e);
+		}
+	}
+}
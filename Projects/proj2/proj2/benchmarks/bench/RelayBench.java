@@ -0,0 +1,125 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The loop relaying a response body to the client, for several relay
+ * buffer sizes and flush policies. The body comes from memory in pieces of
+ * arrivalSize bytes, the way a server's bytes come off the socket, and is
+ * written to a real loopback socket drained by another thread, so every
+ * flush costs a system call as it does in the proxy.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayBench {
+	private static final int BODY_LEN = 1 << 20;
+
+	@Param({ "4096", "16384", "32767", "65536" })
+	public int bufferSize;
+
+	@Param({ "adaptive", "eachRead", "atEnd", "direct" })
+	public String policy;
+
+	// bytes handed out per read: one segment, or a full socket buffer
+	@Param({ "1448", "65536" })
+	public int arrivalSize;
+
+	private ProxyHooks hooks;
+	private byte[] body;
+	private byte[] buf;
+
+	private ServerSocket server;
+	private Socket client;
+	private OutputStream out;
+	private Thread drain;
+
+	@Setup
+	public void setup() throws IOException {
+		hooks = ProxyHooks.load();
+		body = new byte[BODY_LEN];
+		buf = new byte[bufferSize];
+
+		server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+		final Socket peer = server.accept();
+		drain = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] sink = new byte[65536];
+				try (InputStream in = peer.getInputStream()) {
+					while (in.read(sink) != -1)
+						;
+				} catch (IOException e) {
+					// the benchmark is over
+				}
+			}
+		}, "relay-drain");
+		drain.setDaemon(true);
+		drain.start();
+		out = client.getOutputStream();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		client.close();
+		server.close();
+	}
+
+	/**
+	 * Relays one 1 MB body; the score is bodies per second.
+	 */
+	@Benchmark
+	public void relayBody() throws IOException {
+		hooks.relay(policy, new SegmentedInputStream(body, arrivalSize), out, BODY_LEN, buf);
+	}
+
+	/**
+	 * Hands out a byte array at most a fixed number of bytes per read.
+	 */
+	static class SegmentedInputStream extends InputStream {
+		private byte[] data;
+		private int pos;
+		private int segment;
+
+		public SegmentedInputStream(byte[] d, int segment) {
+			data = d;
+			this.segment = segment;
+		}
+
+		@Override
+		public int read() {
+			return pos < data.length ? data[pos++] & 0xff : -1;
+		}
+
+		@Override
+		public int available() {
+			// the whole body is already there, as with a fast server
+			return data.length - pos;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (pos == data.length)
+				return -1;
+			int n = Math.min(Math.min(len, segment), data.length - pos);
+			System.arraycopy(data, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+	}
+}
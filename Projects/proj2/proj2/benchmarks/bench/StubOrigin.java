@@ -0,0 +1,194 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An origin server running in the benchmark's JVM. It answers every
+ * request with the same response of a fixed size and keeps connections
+ * open unless the request says "Connection: close", so the proxy rather
+ * than the server is what gets measured. It can also stand in for a slow
+ * server, answering each request only after a delay, and counts the
+ * requests it answered.
+ *
+ * @author Chun-Wei Chen
+ * @version 02/15/14
+ */
+public class StubOrigin implements Runnable {
+	private static final byte[] CLOSE = "connection: close".getBytes(StandardCharsets.ISO_8859_1);
+
+	private ServerSocket server;
+	private byte[] response;
+	private long delay;
+	private AtomicLong requests = new AtomicLong();
+
+	/**
+	 * Starts a new StubOrigin on a free loopback port.
+	 *
+	 * @param bodyLen length of the response body
+	 * @throws IOException if the server socket cannot be opened
+	 */
+	public StubOrigin(int bodyLen) throws IOException {
+		this(bodyLen, "", 0);
+	}
+
+	/**
+	 * Starts a new StubOrigin on a free loopback port.
+	 *
+	 * @param bodyLen length of the response body
+	 * @param headers extra header lines of the response, each ending 
+	 * in CRLF
+	 * @param delay milliseconds to wait before answering each request
+	 * @throws IOException if the server socket cannot be opened
+	 */
+	public StubOrigin(int bodyLen, String headers, long delay) throws IOException {
+		this(new byte[bodyLen], "application/octet-stream", headers, delay);
+	}
+
+	/**
+	 * Starts a new StubOrigin on a free loopback port.
+	 *
+	 * @param body the response body
+	 * @param contentType media type of the body
+	 * @param headers extra header lines of the response, each ending 
+	 * in CRLF
+	 * @param delay milliseconds to wait before answering each request
+	 * @throws IOException if the server socket cannot be opened
+	 */
+	public StubOrigin(byte[] body, String contentType, String headers, long delay)
+			throws IOException {
+		server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+		this.delay = delay;
+
+		byte[] head = ("HTTP/1.1 200 OK\r\n" +
+					   "Content-Type: " + contentType + "\r\n" + headers +
+					   "Content-Length: " + body.length + "\r\n\r\n")
+					  .getBytes(StandardCharsets.ISO_8859_1);
+		response = new byte[head.length + body.length];
+		System.arraycopy(head, 0, response, 0, head.length);
+		System.arraycopy(body, 0, response, head.length, body.length);
+
+		Thread t = new Thread(this, "stub-origin");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Returns the port the server listens on.
+	 *
+	 * @return port number
+	 */
+	public int port() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Returns the number of requests answered so far.
+	 *
+	 * @return number of requests
+	 */
+	public long requests() {
+		return requests.get();
+	}
+
+	/**
+	 * Closes the server socket.
+	 */
+	public void close() {
+		try {
+			server.close();
+		} catch (IOException e) {
+			// nothing more we can do
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!server.isClosed()) {
+			final Socket s;
+			try {
+				s = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(s);
+				}
+			}, "stub-origin-connection");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Answers requests on one connection until the proxy closes it.
+	 */
+	private void serve(Socket s) {
+		try (Socket socket = s) {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			byte[] header = new byte[65536];
+			while (true) {
+				int len = readHeader(in, header);
+				if (len < 0)
+					return;
+
+				requests.incrementAndGet();
+				if (delay > 0)
+					Thread.sleep(delay);
+				out.write(response);
+				out.flush();
+				if (contains(header, len, CLOSE))
+					return;
+			}
+		} catch (IOException e) {
+			// the proxy went away
+		} catch (InterruptedException e) {
+			// the benchmark is over
+		}
+	}
+
+	/**
+	 * Reads a request header up to its empty line.
+	 *
+	 * @return length of the header, or -1 at the end of the stream
+	 */
+	static int readHeader(InputStream in, byte[] header) throws IOException {
+		int len = 0;
+		while (true) {
+			int b = in.read();
+			if (b == -1)
+				return -1;
+			if (len < header.length)
+				header[len] = (byte) b;
+			len++;
+			if (len >= 4 && b == '\n' && header[len - 2] == '\r' &&
+				header[len - 3] == '\n' && header[len - 4] == '\r')
+				return len;
+		}
+	}
+
+	/**
+	 * Returns true if the header contains the lower case token, ignoring case.
+	 */
+	static boolean contains(byte[] header, int len, byte[] token) {
+		for (int i = 0; i + token.length <= len; i++) {
+			int j = 0;
+			while (j < token.length && Character.toLowerCase(header[i + j]) == token[j])
+				j++;
+			if (j == token.length)
+				return true;
+		}
+		return false;
+	}
+}